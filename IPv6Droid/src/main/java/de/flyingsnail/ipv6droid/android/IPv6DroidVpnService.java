@@ -53,19 +53,36 @@ import androidx.core.app.NotificationManagerCompat;
 import androidx.core.app.TaskStackBuilder;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import de.flyingsnail.ipv6droid.R;
+import de.flyingsnail.ipv6droid.android.statistics.HistoryRecord;
+import de.flyingsnail.ipv6droid.android.statistics.MetricsEndpoint;
+import de.flyingsnail.ipv6droid.android.statistics.SpanTracer;
 import de.flyingsnail.ipv6droid.android.statistics.Statistics;
+import de.flyingsnail.ipv6droid.android.statistics.StatisticsHistory;
+import de.flyingsnail.ipv6droid.android.statistics.StatisticsListener;
+import de.flyingsnail.ipv6droid.android.statistics.StatisticsPublisher;
+import de.flyingsnail.ipv6droid.android.statistics.TunnelMetrics;
 import de.flyingsnail.ipv6droid.android.statusdetail.StatisticsActivity;
 import de.flyingsnail.ipv6droid.android.vpnrun.VpnStatusReport;
 import de.flyingsnail.ipv6droid.android.vpnrun.VpnThread;
+import de.flyingsnail.ipv6droid.transport.TrafficClassMapper;
 
 /**
  * The Android service controlling the VpnThread.
@@ -81,6 +98,18 @@ public class IPv6DroidVpnService extends VpnService implements UserNotificationC
     public static final String STATISTICS_INTERFACE = Objects.requireNonNull(IPv6DroidVpnService.class.getPackage()).getName() + ".Statistics";
     private static final String CHANNEL_ERRORS_ID = "deadbeef";
     private static final String CHANNEL_STATUS_ID = "42";
+    /**
+     * The name of the file in the app's private files dir keeping the statistics history.
+     */
+    private static final String FILE_STATISTICS_HISTORY = "statistics_history";
+    /**
+     * The name of the file in the app's private files dir that metrics are exported to.
+     */
+    private static final String FILE_METRICS = "metrics.txt";
+    /**
+     * The name of the file in the app's private files dir that the span trace is exported to.
+     */
+    private static final String FILE_TRACE = "trace.json";
 
     // the thread doing the work
     private VpnThread thread;
@@ -115,6 +144,10 @@ public class IPv6DroidVpnService extends VpnService implements UserNotificationC
      */
     private boolean vpnShouldRun = false;
     private TunnelPersisting tunnelPersisting;
+    private StatisticsHistory statisticsHistory;
+    private final StatisticsPublisher statisticsPublisher = new StatisticsPublisher();
+    private final TunnelMetrics tunnelMetrics = new TunnelMetrics();
+    private MetricsEndpoint metricsEndpoint;
     private Tunnels cachedTunnels;
     private boolean errorNotification;
     private static final ExecutorService executor = Executors.newCachedThreadPool();
@@ -151,6 +184,9 @@ public class IPv6DroidVpnService extends VpnService implements UserNotificationC
         LocalBroadcastManager.getInstance(this).registerReceiver(statusReceiver,
                 statusIntentFilter);
 
+        // open the persistent statistics history
+        statisticsHistory = new StatisticsHistory(new File(getFilesDir(), FILE_STATISTICS_HISTORY));
+
         // load persisted tunnels from file
         tunnelPersisting = new TunnelPersistingFile(getApplicationContext());
         try {
@@ -174,7 +210,10 @@ public class IPv6DroidVpnService extends VpnService implements UserNotificationC
             // Build the configuration object from the saved shared preferences.
             SharedPreferences myPreferences = PreferenceManager.getDefaultSharedPreferences(this);
             RoutingConfiguration routingConfiguration = loadRoutingConfiguration(myPreferences);
+            TransmissionConfiguration transmissionConfiguration = loadTransmissionConfiguration(myPreferences);
             Log.d(TAG, "retrieved configuration");
+            startMetricsEndpoint(myPreferences);
+            SpanTracer.setEnabled(myPreferences.getBoolean("tracing_enabled", false));
 
             // Read out the requested tunnels configuration from the Intent, if present.
             // This is necessary to support, because it might differ from the persisted tunnel set,
@@ -188,7 +227,7 @@ public class IPv6DroidVpnService extends VpnService implements UserNotificationC
             }
 
             // Start a new session by creating a new thread.
-            thread = new VpnThread(this, cachedTunnels, routingConfiguration, SESSION_NAME);
+            thread = new VpnThread(this, cachedTunnels, routingConfiguration, transmissionConfiguration, SESSION_NAME);
             startVpn();
         } else {
             Log.i(TAG, "VpnThread not started again - already running");
@@ -279,9 +318,65 @@ public class IPv6DroidVpnService extends VpnService implements UserNotificationC
         notifyUserOfError(R.string.ayiyavpnservice_destroyed, new Exception(""));
         unregisterLocalCommandReceiver();
         LocalBroadcastManager.getInstance(this).unregisterReceiver(statusReceiver);
+        statisticsHistory.close();
+        statisticsPublisher.shutdown();
+        stopMetricsEndpoint();
         super.onDestroy();
     }
 
+    /**
+     * (Re-)start the loopback endpoint serving metrics as configured, or stop it if disabled.
+     * @param myPreferences the SharedPreferences to read the configuration from
+     */
+    private synchronized void startMetricsEndpoint(SharedPreferences myPreferences) {
+        stopMetricsEndpoint();
+        if (!myPreferences.getBoolean("metrics_endpoint_enabled", false))
+            return;
+        int port = getIntPreference(myPreferences, "metrics_endpoint_port", 9464);
+        String token = myPreferences.getString("metrics_endpoint_token", "").trim();
+        if (token.isEmpty()) {
+            // any app on the device may connect to the loopback port, so never serve without token
+            token = MetricsEndpoint.newToken();
+            myPreferences.edit().putString("metrics_endpoint_token", token).apply();
+        }
+        try {
+            metricsEndpoint = new MetricsEndpoint(tunnelMetrics.getRegistry(), port, token);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Cannot start metrics endpoint on port " + port, e);
+        }
+    }
+
+    private synchronized void stopMetricsEndpoint() {
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+            metricsEndpoint = null;
+        }
+    }
+
+    /**
+     * Get the publisher of statistics to subscribed listeners.
+     * @return the StatisticsPublisher of this service
+     */
+    public StatisticsPublisher getStatisticsPublisher() {
+        return statisticsPublisher;
+    }
+
+    /**
+     * Get the persistent history of sessions and traffic.
+     * @return the StatisticsHistory of this service
+     */
+    public StatisticsHistory getStatisticsHistory() {
+        return statisticsHistory;
+    }
+
+    /**
+     * Get the metrics of tunnel health exported for scraping.
+     * @return the TunnelMetrics of this service
+     */
+    public TunnelMetrics getTunnelMetrics() {
+        return tunnelMetrics;
+    }
+
     /**
      * Callback when we loose the rights to run a VPN.
      */
@@ -430,6 +525,61 @@ public class IPv6DroidVpnService extends VpnService implements UserNotificationC
                 myPreferences.getBoolean("routes_forcetunnel", false));
     }
 
+    private TransmissionConfiguration loadTransmissionConfiguration(SharedPreferences myPreferences) {
+        return new TransmissionConfiguration(
+                myPreferences.getBoolean("scheduler_enabled", true),
+                getIntPreference(myPreferences, "scheduler_codel_target", 5),
+                getIntPreference(myPreferences, "scheduler_codel_interval", 100),
+                myPreferences.getBoolean("bundling_enabled", true),
+                getIntPreference(myPreferences, "bundling_period", 20),
+                getIntPreference(myPreferences, "bundling_max_packets", 10),
+                getTrafficClassesPreference(myPreferences),
+                myPreferences.getBoolean("ecn_propagation", true),
+                myPreferences.getBoolean("capture_enabled", false),
+                getIntPreference(myPreferences, "capture_snap_length", 128),
+                getIntPreference(myPreferences, "capture_sampling", 1),
+                getIntPreference(myPreferences, "capture_max_size", 16),
+                myPreferences.getBoolean("handover_enabled", true),
+                myPreferences.getBoolean("on_demand_enabled", false),
+                getIntPreference(myPreferences, "on_demand_idle_timeout", 300));
+    }
+
+    /**
+     * Read the service classes selected for DSCP propagation.
+     * @param myPreferences the SharedPreferences to read from
+     * @return an int giving the bitwise or of the selected TrafficClassMapper.CLASS_ constants
+     */
+    private static int getTrafficClassesPreference(SharedPreferences myPreferences) {
+        Set<String> selected = myPreferences.getStringSet("traffic_class_propagation",
+                new HashSet<>(Arrays.asList("voice", "video", "network_control", "other")));
+        int classes = 0;
+        if (selected.contains("voice"))
+            classes |= TrafficClassMapper.CLASS_VOICE;
+        if (selected.contains("video"))
+            classes |= TrafficClassMapper.CLASS_VIDEO;
+        if (selected.contains("network_control"))
+            classes |= TrafficClassMapper.CLASS_NETWORK_CONTROL;
+        if (selected.contains("other"))
+            classes |= TrafficClassMapper.CLASS_OTHER;
+        return classes;
+    }
+
+    /**
+     * Read an integer preference that is maintained as String by an EditTextPreference.
+     * @param myPreferences the SharedPreferences to read from
+     * @param key the String giving the key of the preference
+     * @param defaultValue the int to return if the preference is not set or not a number
+     * @return the int value of the preference
+     */
+    private static int getIntPreference(SharedPreferences myPreferences, String key, int defaultValue) {
+        try {
+            return Integer.parseInt(myPreferences.getString(key, String.valueOf(defaultValue)).trim());
+        } catch (NumberFormatException | ClassCastException e) {
+            Log.w(TAG, "Ignoring invalid value for preference " + key);
+            return defaultValue;
+        }
+    }
+
     public class StatisticsBinder extends Binder {
         /**
          * Get statistics from the tunnel refreshing thread.
@@ -439,6 +589,72 @@ public class IPv6DroidVpnService extends VpnService implements UserNotificationC
         public Statistics getStatistics() {
             return (thread == null ) ? null : thread.getStatistics();
         }
+
+        /**
+         * Subscribe to changes of the statistics. The listener is called from a background
+         * thread with each group of figures that changed.
+         *
+         * @param listener the StatisticsListener to call
+         */
+        public void subscribe(StatisticsListener listener) {
+            statisticsPublisher.subscribe(listener);
+        }
+
+        /**
+         * Cancel the subscription of a listener.
+         *
+         * @param listener the StatisticsListener to remove
+         */
+        public void unsubscribe(StatisticsListener listener) {
+            statisticsPublisher.unsubscribe(listener);
+        }
+
+        /**
+         * Get the persisted history of sessions, reconnects and hourly traffic in a time range.
+         *
+         * @param from a long giving the start of the range in milliseconds since epoch
+         * @param to a long giving the end of the range in milliseconds since epoch
+         * @return a List of HistoryRecord, oldest first
+         */
+        public List<HistoryRecord> getHistory(long from, long to) {
+            return statisticsHistory.getRecords(from, to);
+        }
+
+        /**
+         * Write the current metrics in OpenMetrics text format to a file in the app's private
+         * files dir, replacing a previous export.
+         *
+         * @return the File written
+         * @throws IOException if the file cannot be written
+         */
+        public File exportMetrics() throws IOException {
+            File target = new File(getFilesDir(), FILE_METRICS);
+            File temp = new File(getFilesDir(), FILE_METRICS + ".tmp");
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+                tunnelMetrics.getRegistry().write(out);
+            }
+            if (!temp.renameTo(target))
+                throw new IOException("Cannot replace " + target);
+            return target;
+        }
+
+        /**
+         * Write the recorded lifecycle spans in trace event JSON, as read by chrome://tracing
+         * and Perfetto, to a file in the app's private files dir, replacing a previous export.
+         *
+         * @return the File written
+         * @throws IOException if the file cannot be written
+         */
+        public File exportTrace() throws IOException {
+            File target = new File(getFilesDir(), FILE_TRACE);
+            File temp = new File(getFilesDir(), FILE_TRACE + ".tmp");
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+                SpanTracer.write(out);
+            }
+            if (!temp.renameTo(target))
+                throw new IOException("Cannot replace " + target);
+            return target;
+        }
     }
 
     /**
@@ -28,6 +28,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.text.InputType;
 import android.util.Log;
+import android.widget.Toast;
 
 import androidx.preference.EditTextPreference;
 import androidx.preference.ListPreference;
@@ -50,6 +51,20 @@ public class SettingsFragment extends PreferenceFragmentCompat {
 
     private final static String TAG = SettingsFragment.class.getName();
 
+    /**
+     * Keys of EditTextPreferences that take a non-negative integer.
+     */
+    private final static String[] NUMERIC_PREFERENCES = {
+            "scheduler_codel_target",
+            "scheduler_codel_interval",
+            "bundling_period",
+            "bundling_max_packets",
+            "metrics_endpoint_port",
+            "capture_snap_length",
+            "capture_sampling",
+            "capture_max_size"
+    };
+
     @Override
     public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
         // Load the preferences from an XML resource
@@ -66,6 +81,35 @@ public class SettingsFragment extends PreferenceFragmentCompat {
             );
         }
 
+        for (String numericKey : NUMERIC_PREFERENCES) {
+            final EditTextPreference numericPreference = findPreference(numericKey);
+            if (numericPreference != null) {
+                numericPreference.setOnBindEditTextListener(
+                        editText -> {
+                            editText.setInputType(InputType.TYPE_CLASS_NUMBER);
+                            editText.setSingleLine(true);
+                        }
+                );
+            }
+        }
+
+        final EditTextPreference bundlingMaxPackets = findPreference("bundling_max_packets");
+        if (bundlingMaxPackets != null) {
+            bundlingMaxPackets.setOnPreferenceChangeListener((preference, newValue) -> {
+                try {
+                    final int value = Integer.parseInt(newValue.toString().trim());
+                    if (value >= 1 && value <= TransmissionConfiguration.MAX_BUNDLING_PACKETS)
+                        return true;
+                } catch (NumberFormatException e) {
+                    Log.i(TAG, "Rejecting non-numeric packets per batch");
+                }
+                Toast.makeText(requireContext(),
+                        getString(R.string.pref_error_bundling_max_packets, TransmissionConfiguration.MAX_BUNDLING_PACKETS),
+                        Toast.LENGTH_LONG).show();
+                return false;
+            });
+        }
+
         final ListPreference dtlsKeyAlias = findPreference("dtls_key_alias");
         if (dtlsKeyAlias != null) {
             CharSequence[] keys = new CharSequence[0];
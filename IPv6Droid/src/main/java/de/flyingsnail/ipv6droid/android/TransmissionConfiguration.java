@@ -0,0 +1,294 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android;
+
+import androidx.annotation.NonNull;
+
+/**
+ * This represents the end-user configuration related to the handling of packets on their way
+ * through the tunnel.
+ */
+public class TransmissionConfiguration implements Cloneable {
+    /**
+     * a flag if outgoing packets should pass the fair queueing scheduler
+     */
+    private boolean schedulerEnabled;
+
+    /**
+     * the acceptable standing queue delay of the scheduler in milliseconds
+     */
+    private int codelTarget;
+
+    /**
+     * the interval in milliseconds in which the scheduler tolerates a queue delay above target
+     */
+    private int codelInterval;
+
+    /**
+     * a flag if outgoing packets may be held back to send them in batches
+     */
+    private boolean bundlingEnabled;
+
+    /**
+     * the maximum time in milliseconds that outgoing packets are held back
+     */
+    private int bundlingPeriod;
+
+    /**
+     * the number of packets that are sent as one batch
+     */
+    private int bundlingMaxPackets;
+
+    /**
+     * The largest number of packets accepted for a batch, a quarter of the outgoing scheduler's
+     * capacity.
+     */
+    public static final int MAX_BUNDLING_PACKETS = 64;
+
+    /**
+     * the groups of service classes whose DSCP is copied to the tunnel datagrams, as bitwise or
+     * of the CLASS_ constants of TrafficClassMapper
+     */
+    private int propagatedTrafficClasses;
+
+    /**
+     * a flag if the ECN field is copied to the tunnel datagrams
+     */
+    private boolean ecnPropagated;
+
+    /**
+     * a flag if the packets passing the tunnel are captured to files
+     */
+    private boolean captureEnabled;
+
+    /**
+     * the maximum number of bytes captured per packet
+     */
+    private int captureSnapLength;
+
+    /**
+     * the n so that every n-th packet is captured
+     */
+    private int captureSampling;
+
+    /**
+     * the maximum size of all capture files together in megabytes
+     */
+    private int captureMaxSize;
+
+    /**
+     * a flag if the tunnel is handed over to a new network before the old one is given up
+     */
+    private boolean handoverEnabled;
+
+    /**
+     * a flag if the transporter is closed while the tunnel is idle and connected on demand
+     */
+    private boolean onDemandEnabled;
+
+    /**
+     * the time in seconds without packets after which an on-demand tunnel is closed
+     */
+    private int onDemandIdleTimeout;
+
+    /**
+     * Initialize the TransmissionConfiguration object.
+     * @param schedulerEnabled a flag if outgoing packets should be scheduled per flow
+     * @param codelTarget an int giving the target queue delay in milliseconds
+     * @param codelInterval an int giving the interval in milliseconds before dropping starts
+     * @param bundlingEnabled a flag if outgoing packets should be sent in batches
+     * @param bundlingPeriod an int giving the maximum time in milliseconds to hold back packets
+     * @param bundlingMaxPackets an int giving the number of packets in a full batch
+     * @param propagatedTrafficClasses an int giving the service classes whose DSCP is copied
+     *                                 to the tunnel datagrams
+     * @param ecnPropagated a flag if the ECN field is copied to the tunnel datagrams
+     * @param captureEnabled a flag if the packets passing the tunnel are captured to files
+     * @param captureSnapLength an int giving the maximum number of bytes captured per packet
+     * @param captureSampling an int n so that every n-th packet is captured
+     * @param captureMaxSize an int giving the maximum size of all capture files in megabytes
+     * @param handoverEnabled a flag if the tunnel is connected via a new network before the
+     *                        connection via the old network is closed
+     * @param onDemandEnabled a flag if the connection to the PoP is closed while the tunnel is
+     *                        idle, and connected again by the next outgoing packet
+     * @param onDemandIdleTimeout an int giving the time in seconds without packets after which
+     *                            an on-demand tunnel is closed
+     */
+    public TransmissionConfiguration(boolean schedulerEnabled,
+                                     int codelTarget,
+                                     int codelInterval,
+                                     boolean bundlingEnabled,
+                                     int bundlingPeriod,
+                                     int bundlingMaxPackets,
+                                     int propagatedTrafficClasses,
+                                     boolean ecnPropagated,
+                                     boolean captureEnabled,
+                                     int captureSnapLength,
+                                     int captureSampling,
+                                     int captureMaxSize,
+                                     boolean handoverEnabled,
+                                     boolean onDemandEnabled,
+                                     int onDemandIdleTimeout) {
+        this.schedulerEnabled = schedulerEnabled;
+        this.codelTarget = codelTarget;
+        this.codelInterval = codelInterval;
+        this.bundlingEnabled = bundlingEnabled;
+        this.bundlingPeriod = bundlingPeriod;
+        this.bundlingMaxPackets = bundlingMaxPackets;
+        this.propagatedTrafficClasses = propagatedTrafficClasses;
+        this.ecnPropagated = ecnPropagated;
+        this.captureEnabled = captureEnabled;
+        this.captureSnapLength = captureSnapLength;
+        this.captureSampling = captureSampling;
+        this.captureMaxSize = captureMaxSize;
+        this.handoverEnabled = handoverEnabled;
+        this.onDemandEnabled = onDemandEnabled;
+        this.onDemandIdleTimeout = onDemandIdleTimeout;
+    }
+
+    public boolean isSchedulerEnabled() {
+        return schedulerEnabled;
+    }
+
+    public void setSchedulerEnabled(boolean schedulerEnabled) {
+        this.schedulerEnabled = schedulerEnabled;
+    }
+
+    public int getCodelTarget() {
+        return codelTarget;
+    }
+
+    public void setCodelTarget(int codelTarget) {
+        this.codelTarget = codelTarget;
+    }
+
+    public int getCodelInterval() {
+        return codelInterval;
+    }
+
+    public void setCodelInterval(int codelInterval) {
+        this.codelInterval = codelInterval;
+    }
+
+    public boolean isBundlingEnabled() {
+        return bundlingEnabled;
+    }
+
+    public void setBundlingEnabled(boolean bundlingEnabled) {
+        this.bundlingEnabled = bundlingEnabled;
+    }
+
+    public int getBundlingPeriod() {
+        return bundlingPeriod;
+    }
+
+    public void setBundlingPeriod(int bundlingPeriod) {
+        this.bundlingPeriod = bundlingPeriod;
+    }
+
+    public int getBundlingMaxPackets() {
+        return bundlingMaxPackets;
+    }
+
+    public void setBundlingMaxPackets(int bundlingMaxPackets) {
+        this.bundlingMaxPackets = bundlingMaxPackets;
+    }
+
+    public int getPropagatedTrafficClasses() {
+        return propagatedTrafficClasses;
+    }
+
+    public void setPropagatedTrafficClasses(int propagatedTrafficClasses) {
+        this.propagatedTrafficClasses = propagatedTrafficClasses;
+    }
+
+    public boolean isEcnPropagated() {
+        return ecnPropagated;
+    }
+
+    public void setEcnPropagated(boolean ecnPropagated) {
+        this.ecnPropagated = ecnPropagated;
+    }
+
+    public boolean isCaptureEnabled() {
+        return captureEnabled;
+    }
+
+    public void setCaptureEnabled(boolean captureEnabled) {
+        this.captureEnabled = captureEnabled;
+    }
+
+    public int getCaptureSnapLength() {
+        return captureSnapLength;
+    }
+
+    public void setCaptureSnapLength(int captureSnapLength) {
+        this.captureSnapLength = captureSnapLength;
+    }
+
+    public int getCaptureSampling() {
+        return captureSampling;
+    }
+
+    public void setCaptureSampling(int captureSampling) {
+        this.captureSampling = captureSampling;
+    }
+
+    public int getCaptureMaxSize() {
+        return captureMaxSize;
+    }
+
+    public void setCaptureMaxSize(int captureMaxSize) {
+        this.captureMaxSize = captureMaxSize;
+    }
+
+    public boolean isHandoverEnabled() {
+        return handoverEnabled;
+    }
+
+    public void setHandoverEnabled(boolean handoverEnabled) {
+        this.handoverEnabled = handoverEnabled;
+    }
+
+    public boolean isOnDemandEnabled() {
+        return onDemandEnabled;
+    }
+
+    public void setOnDemandEnabled(boolean onDemandEnabled) {
+        this.onDemandEnabled = onDemandEnabled;
+    }
+
+    public int getOnDemandIdleTimeout() {
+        return onDemandIdleTimeout;
+    }
+
+    public void setOnDemandIdleTimeout(int onDemandIdleTimeout) {
+        this.onDemandIdleTimeout = onDemandIdleTimeout;
+    }
+
+    @Override
+    @NonNull
+    public Object clone() throws CloneNotSupportedException {
+        return super.clone();
+    }
+}
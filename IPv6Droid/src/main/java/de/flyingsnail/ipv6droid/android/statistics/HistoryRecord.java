@@ -0,0 +1,141 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.statistics;
+
+import androidx.annotation.NonNull;
+
+/**
+ * One record read from the {@link StatisticsHistory}.
+ */
+public class HistoryRecord {
+    /** The record describes a session of the VPN, i.e. the run of one tunnel thread */
+    public static final int TYPE_SESSION = 1;
+    /** The record aggregates the traffic of one hour of wall clock time */
+    public static final int TYPE_HOUR = 2;
+    /** The record marks a reconnect of the tunnel */
+    public static final int TYPE_RECONNECT = 3;
+
+    /** The session is still running, or the process died before it could be closed */
+    public static final int CAUSE_OPEN = -1;
+    /** The session ended ordinarily */
+    public static final int CAUSE_NONE = 0;
+    /** The connection failed with a network error */
+    public static final int CAUSE_IO_ERROR = 1;
+    /** The monitoring of the connection ended, e.g. due to a change of network */
+    public static final int CAUSE_MONITOR_ENDED = 2;
+    /** The session ended due to a failure */
+    public static final int CAUSE_FAILED = 3;
+
+    private final int type;
+    private final int cause;
+    private final long startTime;
+    private final long endTime;
+    private final long bytesTransmitted;
+    private final long packetsTransmitted;
+    private final long bytesReceived;
+    private final long packetsReceived;
+    private final int reconnects;
+
+    HistoryRecord(int type, int cause, long startTime, long endTime,
+                  long bytesTransmitted, long packetsTransmitted,
+                  long bytesReceived, long packetsReceived, int reconnects) {
+        this.type = type;
+        this.cause = cause;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.bytesTransmitted = bytesTransmitted;
+        this.packetsTransmitted = packetsTransmitted;
+        this.bytesReceived = bytesReceived;
+        this.packetsReceived = packetsReceived;
+        this.reconnects = reconnects;
+    }
+
+    /**
+     * @return an int giving the type of this record, one of the TYPE_ constants
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * @return an int giving the cause of a reconnect, or the end cause of a session; one of
+     * the CAUSE_ constants. Always CAUSE_NONE for hour records.
+     */
+    public int getCause() {
+        return cause;
+    }
+
+    /**
+     * @return a long giving the start time in milliseconds since epoch
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return a long giving the end time in milliseconds since epoch. For an open session,
+     * this is the last time it was updated.
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+
+    public long getBytesTransmitted() {
+        return bytesTransmitted;
+    }
+
+    public long getPacketsTransmitted() {
+        return packetsTransmitted;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    /**
+     * @return an int giving the number of reconnects within the session or hour
+     */
+    public int getReconnects() {
+        return reconnects;
+    }
+
+    @Override
+    public @NonNull String toString() {
+        return "HistoryRecord{" +
+                "type=" + type +
+                ", cause=" + cause +
+                ", startTime=" + startTime +
+                ", endTime=" + endTime +
+                ", bytesTransmitted=" + bytesTransmitted +
+                ", packetsTransmitted=" + packetsTransmitted +
+                ", bytesReceived=" + bytesReceived +
+                ", packetsReceived=" + packetsReceived +
+                ", reconnects=" + reconnects +
+                '}';
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.statistics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of fixed memory with buckets of logarithmically growing width, in the style of
+ * HdrHistogram. Each power of two is split into 32 linear sub-buckets, so that any value is
+ * reported with a relative error of less than 1/32.
+ * <p>Values are recorded by a single writer thread without allocation. Readers never block the
+ * writer; they re-read in the rare case that a value was recorded concurrently. The counts are
+ * accessed with volatile semantics, so that they cannot be reordered across the sequence.</p>
+ */
+public class LogLinearHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    // incremented by the writer before and after each update, i.e. odd while updating
+    private volatile int sequence = 0;
+
+    private final AtomicLongArray counts;
+    private final long maxValue;
+    private volatile long totalCount = 0L;
+
+    /**
+     * Constructor.
+     * @param maxValue a long giving the highest value to distinguish; larger values are
+     *                 recorded as maxValue.
+     */
+    public LogLinearHistogram(long maxValue) {
+        if (maxValue < 1)
+            throw new IllegalArgumentException("LogLinearHistogram requires a positive maxValue");
+        this.maxValue = maxValue;
+        counts = new AtomicLongArray(indexOf(maxValue) + 1);
+    }
+
+    /**
+     * Record a value. This must always be called from the same thread.
+     * @param value a long giving the value; negative values are recorded as 0.
+     */
+    public void record(long value) {
+        int index = indexOf(Math.max(0L, Math.min(value, maxValue)));
+        int seq = sequence;
+        sequence = seq + 1;
+        counts.set(index, counts.get(index) + 1);
+        totalCount++;
+        sequence = seq + 2;
+    }
+
+    /**
+     * Read the values at the usual percentiles 50, 90, 99 and 99.9 in one pass.
+     * @return the Percentiles, all 0 if no value is recorded yet.
+     */
+    public Percentiles getPercentiles() {
+        long p50, p90, p99, p999;
+        int seq;
+        do {
+            while (((seq = sequence) & 1) != 0)
+                Thread.yield();
+            long total = totalCount;
+            long rank50 = rank(total, 0.5);
+            long rank90 = rank(total, 0.9);
+            long rank99 = rank(total, 0.99);
+            long rank999 = rank(total, 0.999);
+            p50 = p90 = p99 = p999 = 0L;
+            long seen = 0L;
+            for (int i = 0; i < counts.length() && seen < rank999; i++) {
+                long count = counts.get(i);
+                if (count == 0L)
+                    continue;
+                long before = seen;
+                seen += count;
+                long value = highestEquivalentValue(i);
+                if (before < rank50 && seen >= rank50)
+                    p50 = value;
+                if (before < rank90 && seen >= rank90)
+                    p90 = value;
+                if (before < rank99 && seen >= rank99)
+                    p99 = value;
+                if (before < rank999 && seen >= rank999)
+                    p999 = value;
+            }
+        } while (sequence != seq);
+        return new Percentiles(p50, p90, p99, p999);
+    }
+
+    /**
+     * @return a long giving the number of values recorded.
+     */
+    public long getTotalCount() {
+        long result;
+        int seq;
+        do {
+            while (((seq = sequence) & 1) != 0)
+                Thread.yield();
+            result = totalCount;
+        } while (sequence != seq);
+        return result;
+    }
+
+    private static long rank(long total, double percentile) {
+        return (long) Math.ceil(total * percentile);
+    }
+
+    /**
+     * Calculate the bucket of a value. Values below 2*SUB_BUCKET_COUNT have a bucket of their
+     * own; above, each power of two is divided into SUB_BUCKET_COUNT buckets.
+     * @param value the non-negative long value
+     * @return the int index of the bucket
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * Calculate the highest value that falls into a bucket.
+     * @param index the int index of the bucket
+     * @return a long giving the highest value of that bucket
+     */
+    private static long highestEquivalentValue(int index) {
+        if (index < 2 * SUB_BUCKET_COUNT)
+            return index;
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long top = index - ((long) shift << SUB_BUCKET_BITS);
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.statistics;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * A minimal HTTP endpoint serving the metrics of a MetricsRegistry in OpenMetrics text format
+ * at /metrics. It only listens on the loopback interface, so only local scrapers, e.g. via
+ * adb port forwarding, can reach it. As any app on the device can connect to the loopback
+ * interface, each request must present an access token as a bearer token in its Authorization
+ * header. Requests are served one by one by a single thread.
+ */
+public class MetricsEndpoint implements Runnable {
+    private static final String TAG = MetricsEndpoint.class.getName();
+
+    /**
+     * Time in milliseconds that a client may take to send its request.
+     */
+    private static final int REQUEST_TIMEOUT_MILLISECONDS = 5000;
+
+    private final MetricsRegistry registry;
+    private final byte[] token;
+    private final ServerSocket serverSocket;
+    private final Thread thread;
+
+    /**
+     * Constructor. Binds the endpoint to the given port of the loopback interface and starts
+     * serving requests.
+     * @param registry the MetricsRegistry to serve
+     * @param port an int giving the TCP port to listen on, or 0 for any free port
+     * @param token the String that requests must present as bearer token
+     * @throws IOException if the port cannot be bound
+     */
+    public MetricsEndpoint(@NonNull MetricsRegistry registry, int port, @NonNull String token) throws IOException {
+        if (token.isEmpty())
+            throw new IllegalArgumentException("MetricsEndpoint requires an access token");
+        this.registry = registry;
+        this.token = token.getBytes(StandardCharsets.US_ASCII);
+        this.serverSocket = new ServerSocket(port, 4, InetAddress.getLoopbackAddress());
+        this.thread = new Thread(this, "Metrics endpoint");
+        thread.setDaemon(true);
+        thread.start();
+        Log.i(TAG, "Metrics endpoint listening on port " + getPort());
+    }
+
+    /**
+     * Create a random access token.
+     * @return a String of 32 hex digits
+     */
+    public static @NonNull String newToken() {
+        final byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        final StringBuilder token = new StringBuilder(2 * random.length);
+        for (byte b : random)
+            token.append(String.format("%02x", b & 0xff));
+        return token.toString();
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try (Socket client = serverSocket.accept()) {
+                serve(client);
+            } catch (IOException e) {
+                if (!serverSocket.isClosed())
+                    Log.w(TAG, "Failed to serve metrics request", e);
+            }
+        }
+        Log.i(TAG, "Metrics endpoint stopped");
+    }
+
+    private void serve(@NonNull Socket client) throws IOException {
+        client.setSoTimeout(REQUEST_TIMEOUT_MILLISECONDS);
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+        String requestLine = in.readLine();
+        if (requestLine == null)
+            return;
+        // skip the headers, except for the authorization
+        boolean authorized = false;
+        String header;
+        do {
+            header = in.readLine();
+            if (header != null && header.regionMatches(true, 0, "Authorization:", 0, 14))
+                authorized = isAuthorized(header.substring(14).trim());
+        } while (header != null && !header.isEmpty());
+
+        String[] request = requestLine.split(" ");
+        String status;
+        String contentType;
+        String extraHeaders = "";
+        byte[] body;
+        if (request.length < 2 || !("GET".equals(request[0]) || "HEAD".equals(request[0]))) {
+            status = "405 Method Not Allowed";
+            contentType = "text/plain; charset=utf-8";
+            body = new byte[0];
+        } else if (!"/metrics".equals(request[1]) && !request[1].startsWith("/metrics?")) {
+            status = "404 Not Found";
+            contentType = "text/plain; charset=utf-8";
+            body = new byte[0];
+        } else if (!authorized) {
+            status = "401 Unauthorized";
+            extraHeaders = "WWW-Authenticate: Bearer\r\n";
+            contentType = "text/plain; charset=utf-8";
+            body = new byte[0];
+        } else {
+            status = "200 OK";
+            contentType = MetricsRegistry.CONTENT_TYPE;
+            body = registry.toOpenMetrics().getBytes(StandardCharsets.UTF_8);
+        }
+        String head = "HTTP/1.1 " + status + "\r\n" +
+                "Content-Type: " + contentType + "\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                extraHeaders +
+                "Connection: close\r\n\r\n";
+        OutputStream out = client.getOutputStream();
+        out.write(head.getBytes(StandardCharsets.US_ASCII));
+        if (!"HEAD".equals(request[0]))
+            out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Check the credentials of an Authorization header against the access token.
+     * @param credentials the String value of the Authorization header
+     * @return true if the credentials are the bearer token expected
+     */
+    private boolean isAuthorized(@NonNull String credentials) {
+        if (!credentials.regionMatches(true, 0, "Bearer ", 0, 7))
+            return false;
+        final byte[] presented = credentials.substring(7).trim().getBytes(StandardCharsets.US_ASCII);
+        // constant time comparison
+        return MessageDigest.isEqual(presented, token);
+    }
+
+    /**
+     * Stop serving and release the port.
+     */
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot close metrics endpoint", e);
+        }
+        thread.interrupt();
+    }
+
+    /**
+     * @return an int giving the TCP port the endpoint listens on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+}
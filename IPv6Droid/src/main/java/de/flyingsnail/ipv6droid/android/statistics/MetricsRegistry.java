@@ -0,0 +1,275 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.statistics;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A set of named counters, gauges and summaries that can be written in OpenMetrics text format.
+ * <p>Neither registration nor updates take a lock, and updates do not allocate, so metrics may be
+ * updated from any thread including those on the data path. Writing the metrics allocates and
+ * is meant for occasional export only.</p>
+ */
+public class MetricsRegistry {
+    /**
+     * The content type of the text written by {@link #write(Writer)}.
+     */
+    public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private final AtomicReference<Metric[]> metrics = new AtomicReference<>(new Metric[0]);
+
+    /**
+     * A metric of a given name, in OpenMetrics terms a MetricFamily with a single MetricPoint.
+     */
+    private abstract static class Metric {
+        final String name;
+        final String help;
+
+        Metric(@NonNull String name, @NonNull String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        abstract String getType();
+
+        abstract void writeSamples(@NonNull StringBuilder out, @NonNull String name);
+    }
+
+    /**
+     * A monotonically increasing count.
+     */
+    public static class Counter extends Metric {
+        private final AtomicLong value = new AtomicLong();
+
+        Counter(@NonNull String name, @NonNull String help) {
+            super(name, help);
+        }
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        /**
+         * @param delta a long giving the non-negative amount to add; negative values are ignored
+         */
+        public void add(long delta) {
+            if (delta > 0L)
+                value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        @Override
+        String getType() {
+            return "counter";
+        }
+
+        @Override
+        void writeSamples(@NonNull StringBuilder out, @NonNull String name) {
+            out.append(name).append("_total ").append(get()).append('\n');
+        }
+    }
+
+    /**
+     * A value that may go up and down. NaN represents an unknown value.
+     */
+    public static class Gauge extends Metric {
+        private final AtomicLong bits = new AtomicLong(Double.doubleToRawLongBits(Double.NaN));
+
+        Gauge(@NonNull String name, @NonNull String help) {
+            super(name, help);
+        }
+
+        public void set(double value) {
+            bits.set(Double.doubleToRawLongBits(value));
+        }
+
+        public double get() {
+            return Double.longBitsToDouble(bits.get());
+        }
+
+        @Override
+        String getType() {
+            return "gauge";
+        }
+
+        @Override
+        void writeSamples(@NonNull StringBuilder out, @NonNull String name) {
+            out.append(name).append(' ');
+            appendDouble(out, get());
+            out.append('\n');
+        }
+    }
+
+    /**
+     * The quantiles of a LogLinearHistogram.
+     */
+    private static class Summary extends Metric {
+        private final LogLinearHistogram histogram;
+        private final double scale;
+
+        Summary(@NonNull String name, @NonNull String help, @NonNull LogLinearHistogram histogram, double scale) {
+            super(name, help);
+            this.histogram = histogram;
+            this.scale = scale;
+        }
+
+        @Override
+        String getType() {
+            return "summary";
+        }
+
+        @Override
+        void writeSamples(@NonNull StringBuilder out, @NonNull String name) {
+            // read the count first, so it never includes values missing from the quantiles
+            long count = histogram.getTotalCount();
+            Percentiles percentiles = histogram.getPercentiles();
+            appendQuantile(out, name, "0.5", percentiles.getP50());
+            appendQuantile(out, name, "0.9", percentiles.getP90());
+            appendQuantile(out, name, "0.99", percentiles.getP99());
+            appendQuantile(out, name, "0.999", percentiles.getP999());
+            out.append(name).append("_count ").append(count).append('\n');
+        }
+
+        private void appendQuantile(StringBuilder out, String name, String quantile, long value) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ");
+            appendDouble(out, value * scale);
+            out.append('\n');
+        }
+    }
+
+    /**
+     * Register a new counter.
+     * @param name a String giving the name of the metric, without the _total suffix
+     * @param help a String describing the metric
+     * @return the Counter
+     * @throws IllegalArgumentException if a metric of this name already exists
+     */
+    public Counter addCounter(@NonNull String name, @NonNull String help) {
+        return register(new Counter(name, help));
+    }
+
+    /**
+     * Register a new gauge. Its value is unknown until it is first set.
+     * @param name a String giving the name of the metric
+     * @param help a String describing the metric
+     * @return the Gauge
+     * @throws IllegalArgumentException if a metric of this name already exists
+     */
+    public Gauge addGauge(@NonNull String name, @NonNull String help) {
+        return register(new Gauge(name, help));
+    }
+
+    /**
+     * Register a new summary, reporting the usual percentiles of the values recorded. Note that
+     * values must be recorded by one thread at a time, see LogLinearHistogram.
+     * @param name a String giving the name of the metric
+     * @param help a String describing the metric
+     * @param maxValue a long giving the highest value to distinguish
+     * @param scale a double to multiply recorded values with on export, e.g. to convert
+     *              milliseconds to seconds
+     * @return the LogLinearHistogram to record values into
+     * @throws IllegalArgumentException if a metric of this name already exists
+     */
+    public LogLinearHistogram addSummary(@NonNull String name, @NonNull String help, long maxValue, double scale) {
+        LogLinearHistogram histogram = new LogLinearHistogram(maxValue);
+        register(new Summary(name, help, histogram, scale));
+        return histogram;
+    }
+
+    private <T extends Metric> T register(@NonNull T metric) {
+        Metric[] current;
+        Metric[] updated;
+        do {
+            current = metrics.get();
+            for (Metric existing : current) {
+                if (existing.name.equals(metric.name))
+                    throw new IllegalArgumentException("Metric " + metric.name + " already registered");
+            }
+            updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = metric;
+        } while (!metrics.compareAndSet(current, updated));
+        return metric;
+    }
+
+    /**
+     * Write all metrics in OpenMetrics text format, terminated by the EOF marker.
+     * @param out the Writer to write to
+     * @throws IOException if writing fails
+     */
+    public void write(@NonNull Writer out) throws IOException {
+        out.write(toOpenMetrics());
+        out.flush();
+    }
+
+    /**
+     * Render all metrics in OpenMetrics text format, terminated by the EOF marker.
+     * @return the String exposition of the metrics
+     */
+    public @NonNull String toOpenMetrics() {
+        StringBuilder text = new StringBuilder(4096);
+        for (Metric metric : metrics.get()) {
+            text.append("# TYPE ").append(metric.name).append(' ').append(metric.getType()).append('\n');
+            text.append("# HELP ").append(metric.name).append(' ');
+            appendEscaped(text, metric.help);
+            text.append('\n');
+            metric.writeSamples(text, metric.name);
+        }
+        text.append("# EOF\n");
+        return text.toString();
+    }
+
+    private static void appendDouble(StringBuilder out, double value) {
+        if (Double.isNaN(value))
+            out.append("NaN");
+        else if (Double.isInfinite(value))
+            out.append(value > 0 ? "+Inf" : "-Inf");
+        else if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            out.append((long) value);
+        else
+            out.append(value);
+    }
+
+    private static void appendEscaped(StringBuilder out, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\')
+                out.append("\\\\");
+            else if (c == '\n')
+                out.append("\\n");
+            else if (c == '"')
+                out.append("\\\"");
+            else
+                out.append(c);
+        }
+    }
+}
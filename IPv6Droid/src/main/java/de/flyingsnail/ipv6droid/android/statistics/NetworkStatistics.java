@@ -0,0 +1,108 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.statistics;
+
+import android.net.RouteInfo;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The statistics describing the networks that the tunnel runs on: routing, DNS, the local IPv4
+ * address, and whether the tunnel is routed. They change with the device's networks.
+ */
+public class NetworkStatistics {
+    private final Inet4Address myIPv4;
+    private final List<RouteInfo> nativeRouting;
+    private final List<RouteInfo> vpnRouting;
+    private final List<InetAddress> nativeDnsSetting;
+    private final List<InetAddress> vpnDnsSetting;
+    private final boolean tunnelRouted;
+
+    /**
+     * Constructor.
+     * @param myIPv4 an Inet4Address giving the local address of the connection to the PoP, or null
+     * @param nativeRouting a List of RouteInfo of the native network
+     * @param vpnRouting a List of RouteInfo of the VPN
+     * @param nativeDnsSetting a List of InetAddress of the native network's DNS servers
+     * @param vpnDnsSetting a List of InetAddress of the VPN's DNS servers
+     * @param tunnelRouted a boolean, true if the default route goes to the tunnel
+     */
+    public NetworkStatistics(Inet4Address myIPv4,
+                             List<RouteInfo> nativeRouting, List<RouteInfo> vpnRouting,
+                             List<InetAddress> nativeDnsSetting, List<InetAddress> vpnDnsSetting,
+                             boolean tunnelRouted) {
+        this.myIPv4 = myIPv4;
+        this.nativeRouting = nativeRouting;
+        this.vpnRouting = vpnRouting;
+        this.nativeDnsSetting = nativeDnsSetting;
+        this.vpnDnsSetting = vpnDnsSetting;
+        this.tunnelRouted = tunnelRouted;
+    }
+
+    public Inet4Address getMyIPv4() {
+        return myIPv4;
+    }
+
+    public List<RouteInfo> getNativeRouting() {
+        return nativeRouting;
+    }
+
+    public List<RouteInfo> getVpnRouting() {
+        return vpnRouting;
+    }
+
+    public List<InetAddress> getNativeDnsSetting() {
+        return nativeDnsSetting;
+    }
+
+    public List<InetAddress> getVpnDnsSetting() {
+        return vpnDnsSetting;
+    }
+
+    public boolean isTunnelRouted() {
+        return tunnelRouted;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof NetworkStatistics)) return false;
+
+        NetworkStatistics that = (NetworkStatistics) o;
+        return tunnelRouted == that.tunnelRouted
+                && Objects.equals(myIPv4, that.myIPv4)
+                && Objects.equals(nativeRouting, that.nativeRouting)
+                && Objects.equals(vpnRouting, that.vpnRouting)
+                && Objects.equals(nativeDnsSetting, that.nativeDnsSetting)
+                && Objects.equals(vpnDnsSetting, that.vpnDnsSetting);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(myIPv4, nativeRouting, vpnRouting, nativeDnsSetting, vpnDnsSetting, tunnelRouted);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.statistics;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * One outage of a tunnel that was working before: what triggered it, how long the reconnect
+ * spent in each phase, and the total downtime.
+ */
+public class OutageRecord {
+    /** The device lost network connectivity */
+    public static final int TRIGGER_NETWORK_LOST = 1;
+    /** The device switched to a different network */
+    public static final int TRIGGER_NETWORK_CHANGED = 2;
+    /** A copy thread ended, with the exception that made it end as detail if any */
+    public static final int TRIGGER_COPY_THREAD_DIED = 3;
+    /** The PoP did not answer probes or heartbeats */
+    public static final int TRIGGER_HEARTBEAT_TIMEOUT = 4;
+    /** The transporter declared itself broken, with its reason as detail */
+    public static final int TRIGGER_TUNNEL_BROKEN = 5;
+    /** The tunnel was rebuilt because routing through it became required or inhibited */
+    public static final int TRIGGER_ROUTING_CHANGED = 6;
+    /** Any other I/O error, with the exception as detail */
+    public static final int TRIGGER_IO_ERROR = 7;
+
+    /** Waiting for the device to be connected to a network */
+    public static final int PHASE_CONNECTIVITY = 0;
+    /** Preparing the transporter socket, including resolution of the PoP address */
+    public static final int PHASE_RESOLVE = 1;
+    /** Connecting the transporter to the PoP, including any handshake */
+    public static final int PHASE_HANDSHAKE = 2;
+    /** Waiting for the first packet from the PoP after the transporter connected */
+    public static final int PHASE_FIRST_PACKET = 3;
+    /** The number of phases */
+    public static final int PHASE_COUNT = 4;
+
+    private final long startTime;
+    private final long endTime;
+    private final int trigger;
+    private final String detail;
+    private final long[] phaseMillis;
+    private final int attempts;
+    private final boolean recovered;
+
+    OutageRecord(long startTime, long endTime, int trigger, @Nullable String detail,
+                 @NonNull long[] phaseMillis, int attempts, boolean recovered) {
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.trigger = trigger;
+        this.detail = detail;
+        this.phaseMillis = phaseMillis.clone();
+        this.attempts = attempts;
+        this.recovered = recovered;
+    }
+
+    /**
+     * @return a long giving the time the tunnel broke, in milliseconds since epoch
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return a long giving the time the tunnel worked again or the session ended, in
+     * milliseconds since epoch
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * @return a long giving the milliseconds the tunnel was down
+     */
+    public long getDowntime() {
+        return endTime - startTime;
+    }
+
+    /**
+     * @return an int giving the cause of the outage, one of the TRIGGER_ constants
+     */
+    public int getTrigger() {
+        return trigger;
+    }
+
+    /**
+     * @return a String describing the cause in more detail, e.g. an exception message, or null
+     */
+    public @Nullable String getDetail() {
+        return detail;
+    }
+
+    /**
+     * Get the time spent in a phase of reconnecting, summed over all attempts.
+     * @param phase an int giving the phase, one of the PHASE_ constants
+     * @return a long giving the milliseconds spent in the phase
+     */
+    public long getPhaseMillis(int phase) {
+        return phaseMillis[phase];
+    }
+
+    /**
+     * @return an int giving the number of connect attempts until the tunnel worked again
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return true if the tunnel worked again, false if the session ended during the outage
+     */
+    public boolean isRecovered() {
+        return recovered;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "Outage of " + getDowntime() + " ms, trigger " + trigger +
+                (detail == null ? "" : " (" + detail + ")") +
+                ", connectivity " + phaseMillis[PHASE_CONNECTIVITY] +
+                " ms, resolve " + phaseMillis[PHASE_RESOLVE] +
+                " ms, handshake " + phaseMillis[PHASE_HANDSHAKE] +
+                " ms, first packet " + phaseMillis[PHASE_FIRST_PACKET] +
+                " ms, " + attempts + " attempts" + (recovered ? "" : ", not recovered");
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.statistics;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps track of the outages of one tunnel session and aggregates them to availability and
+ * mean time to repair. An outage starts when a working tunnel breaks, and ends when the first
+ * packet from the PoP arrives after reconnecting. Connecting initially is not an outage, and
+ * availability is accounted from the time the tunnel first worked.
+ */
+public class OutageTracker {
+    private static final String TAG = OutageTracker.class.getName();
+
+    /**
+     * The number of most recent outages kept in detail.
+     */
+    private static final int MAX_RECORDS = 100;
+
+    private final ArrayDeque<OutageRecord> records = new ArrayDeque<>(MAX_RECORDS);
+
+    // time the tunnel first worked, or -1 if it did not yet
+    private long firstUpTime = -1L;
+    // time the session ended, or -1 if it is still running
+    private long sessionEndTime = -1L;
+
+    // aggregates over all finished outages
+    private int outageCount = 0;
+    private int recoveredCount = 0;
+    private long totalDowntime = 0L;
+    private long recoveredDowntime = 0L;
+
+    // the open outage, if any
+    private boolean outageOpen = false;
+    private long outageStart;
+    private int outageTrigger;
+    private String outageDetail;
+    private final long[] phaseMillis = new long[OutageRecord.PHASE_COUNT];
+    private int phase = -1;
+    private long phaseStart;
+    private int attempts;
+
+    /**
+     * Record that the tunnel broke. This is ignored if the tunnel did not work yet, or while an
+     * outage is open, so that the first trigger is kept when reconnect attempts fail again.
+     * @param trigger an int giving the cause, one of the OutageRecord.TRIGGER_ constants
+     * @param detail a String describing the cause in more detail, or null
+     * @param now a long giving the current time in milliseconds since epoch
+     */
+    public synchronized void outageStarted(int trigger, @Nullable String detail, long now) {
+        if (firstUpTime < 0L || outageOpen || sessionEndTime >= 0L)
+            return;
+        outageOpen = true;
+        outageStart = now;
+        outageTrigger = trigger;
+        outageDetail = detail;
+        Arrays.fill(phaseMillis, 0L);
+        phase = -1;
+        attempts = 0;
+        Log.i(TAG, "Outage started, trigger " + trigger);
+    }
+
+    /**
+     * Replace the trigger of the open outage, if any, when its actual cause is found out later.
+     * @param trigger an int giving the cause, one of the OutageRecord.TRIGGER_ constants
+     * @param detail a String describing the cause in more detail, or null
+     */
+    public synchronized void setTrigger(int trigger, @Nullable String detail) {
+        if (!outageOpen)
+            return;
+        outageTrigger = trigger;
+        outageDetail = detail;
+    }
+
+    /**
+     * Record that reconnecting entered a new phase. The time since the previous phase started
+     * is added to that phase. This is ignored unless an outage is open.
+     * @param newPhase an int giving the phase, one of the OutageRecord.PHASE_ constants
+     * @param now a long giving the current time in milliseconds since epoch
+     */
+    public synchronized void phaseStarted(int newPhase, long now) {
+        if (!outageOpen)
+            return;
+        closePhase(now);
+        if (newPhase == OutageRecord.PHASE_CONNECTIVITY)
+            attempts++;
+        phase = newPhase;
+        phaseStart = now;
+    }
+
+    /**
+     * Record that the tunnel is proven to work, i.e. a packet from the PoP arrived. This ends
+     * the open outage, if any.
+     * @param now a long giving the current time in milliseconds since epoch
+     */
+    public synchronized void tunnelWorking(long now) {
+        if (sessionEndTime >= 0L)
+            return;
+        if (firstUpTime < 0L)
+            firstUpTime = now;
+        else if (outageOpen)
+            finishOutage(now, true);
+    }
+
+    /**
+     * Record the end of the session. An open outage is finished as not recovered.
+     * @param now a long giving the current time in milliseconds since epoch
+     */
+    public synchronized void sessionEnded(long now) {
+        if (sessionEndTime >= 0L)
+            return;
+        if (outageOpen)
+            finishOutage(now, false);
+        sessionEndTime = now;
+    }
+
+    private void closePhase(long now) {
+        if (phase >= 0)
+            phaseMillis[phase] += Math.max(0L, now - phaseStart);
+        phase = -1;
+    }
+
+    private void finishOutage(long now, boolean recovered) {
+        closePhase(now);
+        OutageRecord record = new OutageRecord(outageStart, now, outageTrigger, outageDetail,
+                phaseMillis, attempts, recovered);
+        Log.i(TAG, record.toString());
+        if (records.size() >= MAX_RECORDS)
+            records.removeFirst();
+        records.addLast(record);
+        outageCount++;
+        totalDowntime += record.getDowntime();
+        if (recovered) {
+            recoveredCount++;
+            recoveredDowntime += record.getDowntime();
+        }
+        outageOpen = false;
+    }
+
+    /**
+     * Get the share of time the tunnel worked since it first did.
+     * @param now a long giving the current time in milliseconds since epoch
+     * @return a double between 0 and 1, or NaN if the tunnel never worked
+     */
+    public synchronized double getAvailability(long now) {
+        long end = sessionEndTime >= 0L ? sessionEndTime : now;
+        if (firstUpTime < 0L || end <= firstUpTime)
+            return Double.NaN;
+        return Math.max(0.0, 1.0 - (double) getTotalDowntime(end) / (end - firstUpTime));
+    }
+
+    /**
+     * @return a double giving the average milliseconds from an outage to recovery, or NaN if no
+     * outage recovered yet
+     */
+    public synchronized double getMeanTimeToRepair() {
+        return recoveredCount == 0 ? Double.NaN : (double) recoveredDowntime / recoveredCount;
+    }
+
+    /**
+     * @return an int giving the number of outages, including an open one
+     */
+    public synchronized int getOutageCount() {
+        return outageCount + (outageOpen ? 1 : 0);
+    }
+
+    /**
+     * @param now a long giving the current time in milliseconds since epoch
+     * @return a long giving the milliseconds the tunnel was down, including an open outage
+     */
+    public synchronized long getTotalDowntime(long now) {
+        return totalDowntime + (outageOpen ? Math.max(0L, now - outageStart) : 0L);
+    }
+
+    /**
+     * @return a List of the most recent finished OutageRecord, oldest first
+     */
+    public synchronized @NonNull List<OutageRecord> getRecords() {
+        return new ArrayList<>(records);
+    }
+}
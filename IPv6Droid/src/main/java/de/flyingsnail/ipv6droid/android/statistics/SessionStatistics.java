@@ -0,0 +1,96 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.statistics;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * The statistics describing a tunnel session: start time, addresses of both ends and MTU.
+ * They change only when the tunnel is connected.
+ */
+public class SessionStatistics {
+    private final Date startedAt;
+    private final Inet4Address brokerIPv4;
+    private final Inet6Address brokerIPv6;
+    private final Inet6Address myIPv6;
+    private final int mtu;
+
+    /**
+     * Constructor.
+     * @param startedAt a Date giving the point of time when the tunnel was started
+     * @param brokerIPv4 an Inet4Address giving the broker's IP address
+     * @param brokerIPv6 an Inet6Address giving the broker's IP address
+     * @param myIPv6 an Inet6Address giving my own IP
+     * @param mtu an int giving the maximum number of bytes transferable in a single packet
+     */
+    public SessionStatistics(Date startedAt, Inet4Address brokerIPv4, Inet6Address brokerIPv6,
+                             Inet6Address myIPv6, int mtu) {
+        this.startedAt = startedAt;
+        this.brokerIPv4 = brokerIPv4;
+        this.brokerIPv6 = brokerIPv6;
+        this.myIPv6 = myIPv6;
+        this.mtu = mtu;
+    }
+
+    public Date getStartedAt() {
+        return startedAt;
+    }
+
+    public Inet4Address getBrokerIPv4() {
+        return brokerIPv4;
+    }
+
+    public Inet6Address getBrokerIPv6() {
+        return brokerIPv6;
+    }
+
+    public Inet6Address getMyIPv6() {
+        return myIPv6;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SessionStatistics)) return false;
+
+        SessionStatistics that = (SessionStatistics) o;
+        return mtu == that.mtu
+                && Objects.equals(startedAt, that.startedAt)
+                && Objects.equals(brokerIPv4, that.brokerIPv4)
+                && Objects.equals(brokerIPv6, that.brokerIPv6)
+                && Objects.equals(myIPv6, that.myIPv6);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(startedAt, brokerIPv4, brokerIPv6, myIPv6, mtu);
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.statistics;
+
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records spans of the tunnel lifecycle, e.g. connecting, waiting for connectivity or the
+ * lifetime of a copy thread, so that the interplay of threads during a reconnect can be viewed
+ * as a timeline. Spans are written into a preallocated ring buffer keeping the most recent
+ * {@link #CAPACITY} entries, which can be exported in the trace event format that
+ * chrome://tracing and Perfetto read.
+ * <p>A span is taken by
+ * <pre>
+ *     final long span = SpanTracer.begin();
+ *     ...
+ *     SpanTracer.end("name", span);
+ * </pre>
+ * While tracing is disabled, this costs a volatile read. Recording takes no lock and does not
+ * allocate; names should be constants.</p>
+ */
+public final class SpanTracer {
+    /**
+     * The number of entries kept, a power of two.
+     */
+    public static final int CAPACITY = 4096;
+
+    private static final String CATEGORY = "ipv6droid";
+    private static final long INSTANT = -1L;
+
+    private static volatile boolean enabled = false;
+
+    private static final AtomicLong next = new AtomicLong();
+    // per slot, the number of the entry + 1 once written, 0 while being written
+    private static final AtomicLongArray sequence = new AtomicLongArray(CAPACITY);
+    private static final long[] startNanos = new long[CAPACITY];
+    private static final long[] durationNanos = new long[CAPACITY];
+    private static final long[] threadIds = new long[CAPACITY];
+    private static final String[] threadNames = new String[CAPACITY];
+    private static final String[] names = new String[CAPACITY];
+    private static final String[] attributeKeys = new String[CAPACITY];
+    private static final String[] attributeValues = new String[CAPACITY];
+
+    private SpanTracer() {
+    }
+
+    /**
+     * Switch recording on or off. Recorded entries are kept.
+     * @param enabled a flag if spans should be recorded
+     */
+    public static void setEnabled(boolean enabled) {
+        SpanTracer.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Begin a span.
+     * @return a long to pass to end, 0 if tracing is disabled
+     */
+    public static long begin() {
+        return enabled ? System.nanoTime() | 1L : 0L;
+    }
+
+    /**
+     * End a span, recording it unless tracing was disabled when it began.
+     * @param name the String naming the span
+     * @param begin the long returned by begin
+     */
+    public static void end(@NonNull String name, long begin) {
+        end(name, begin, null, null);
+    }
+
+    /**
+     * End a span with an attribute, recording it unless tracing was disabled when it began.
+     * @param name the String naming the span
+     * @param begin the long returned by begin
+     * @param key the String naming the attribute, or null
+     * @param value the String value of the attribute
+     */
+    public static void end(@NonNull String name, long begin, @Nullable String key, @Nullable String value) {
+        if (begin != 0L)
+            record(name, begin, System.nanoTime() - begin, key, value);
+    }
+
+    /**
+     * Record an event without duration.
+     * @param name the String naming the event
+     * @param key the String naming the attribute, or null
+     * @param value the String value of the attribute
+     */
+    public static void instant(@NonNull String name, @Nullable String key, @Nullable String value) {
+        if (enabled)
+            record(name, System.nanoTime(), INSTANT, key, value);
+    }
+
+    private static void record(String name, long start, long duration, String key, String value) {
+        final Thread thread = Thread.currentThread();
+        final long entry = next.getAndIncrement();
+        final int slot = (int) (entry & (CAPACITY - 1));
+        sequence.set(slot, 0L);
+        startNanos[slot] = start;
+        durationNanos[slot] = duration;
+        threadIds[slot] = thread.getId();
+        threadNames[slot] = thread.getName();
+        names[slot] = name;
+        attributeKeys[slot] = key;
+        attributeValues[slot] = value;
+        sequence.set(slot, entry + 1);
+    }
+
+    /**
+     * Write the recorded entries as trace event JSON.
+     * @param out the Writer to write to
+     * @throws IOException if writing fails
+     */
+    public static void write(@NonNull Writer out) throws IOException {
+        out.write(toChromeTrace());
+        out.flush();
+    }
+
+    /**
+     * Render the recorded entries as trace event JSON, oldest first. Entries overwritten while
+     * rendering are skipped.
+     * @return the String giving the JSON document
+     */
+    public static @NonNull String toChromeTrace() {
+        final int pid = Process.myPid();
+        final long last = next.get();
+        final Map<Long, String> threads = new LinkedHashMap<>();
+        final StringBuilder json = new StringBuilder(64 * 1024);
+        json.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        for (long entry = Math.max(0L, last - CAPACITY); entry < last; entry++) {
+            final int slot = (int) (entry & (CAPACITY - 1));
+            if (sequence.get(slot) != entry + 1)
+                continue;
+            final long start = startNanos[slot];
+            final long duration = durationNanos[slot];
+            final long tid = threadIds[slot];
+            final String threadName = threadNames[slot];
+            final String name = names[slot];
+            final String key = attributeKeys[slot];
+            final String value = attributeValues[slot];
+            if (sequence.get(slot) != entry + 1)
+                continue; // overwritten meanwhile
+            threads.put(tid, threadName);
+
+            if (!first)
+                json.append(',');
+            first = false;
+            json.append("{\"name\":");
+            appendString(json, name);
+            json.append(",\"cat\":\"").append(CATEGORY).append('"');
+            if (duration == INSTANT) {
+                json.append(",\"ph\":\"i\",\"s\":\"t\"");
+            } else {
+                json.append(",\"ph\":\"X\",\"dur\":");
+                appendMicros(json, duration);
+            }
+            json.append(",\"ts\":");
+            appendMicros(json, start);
+            json.append(",\"pid\":").append(pid).append(",\"tid\":").append(tid);
+            if (key != null) {
+                json.append(",\"args\":{");
+                appendString(json, key);
+                json.append(':');
+                appendString(json, value);
+                json.append('}');
+            }
+            json.append('}');
+        }
+        for (Map.Entry<Long, String> thread : threads.entrySet()) {
+            if (!first)
+                json.append(',');
+            first = false;
+            json.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":").append(pid)
+                    .append(",\"tid\":").append(thread.getKey()).append(",\"args\":{\"name\":");
+            appendString(json, thread.getValue());
+            json.append("}}");
+        }
+        json.append("]}\n");
+        return json.toString();
+    }
+
+    private static void appendMicros(StringBuilder json, long nanos) {
+        json.append(nanos / 1000L).append('.');
+        long fraction = Math.abs(nanos % 1000L);
+        if (fraction < 100L)
+            json.append('0');
+        if (fraction < 10L)
+            json.append('0');
+        json.append(fraction);
+    }
+
+    private static void appendString(StringBuilder json, @Nullable String text) {
+        if (text == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        json.append(String.format("\\u%04x", (int) c));
+                    else
+                        json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -23,25 +23,19 @@
 
 package de.flyingsnail.ipv6droid.android.statistics;
 
-import android.net.RouteInfo;
-
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.net.Inet4Address;
-import java.net.Inet6Address;
-import java.net.InetAddress;
 import java.util.Date;
 import java.util.List;
-import java.util.Objects;
 
 /**
  * Created by pelzi on 01.05.15.
  * This class is a transporter for statistical information from the VPN management thread to the
- * GUI classes.
+ * GUI classes. It carries the traffic figures; the session and network figures are in
+ * {@link SessionStatistics} and {@link NetworkStatistics}, as they change much less often.
  */
 public class Statistics {
-    private Date startedAt;
     private long bytesTransmitted;
     private int reconnectCount;
     private long bytesReceived;
@@ -55,43 +49,32 @@ public class Statistics {
     private double timeSpanPerBurstReceived;
     private double timeLapseBetweenBurstsTransmitted;
     private double timeLapseBetweenBurstsReceived;
-    private Inet4Address brokerIPv4;
-    private Inet4Address myIPv4;
-    private Inet6Address brokerIPv6;
-    private Inet6Address myIPv6;
-    private int mtu;
-    private List<RouteInfo> nativeRouting;
-    private List<RouteInfo> vpnRouting;
-    private List<InetAddress> nativeDnsSetting;
-    private List<InetAddress> vpnDnsSetting;
+    private double queueDelayTransmitted;
+    private long queueDropsTransmitted;
+    private Percentiles packetSizeTransmitted;
+    private Percentiles packetSizeReceived;
+    private Percentiles packetGapTransmitted;
+    private Percentiles packetGapReceived;
+    private Percentiles processingTimeTransmitted;
+    private Percentiles processingTimeReceived;
+    private double roundTripTime = Double.NaN;
+    private double roundTripTimeVariation = Double.NaN;
+    private double probeLossRate;
+    private double availability = Double.NaN;
+    private double meanTimeToRepair = Double.NaN;
+    private int outageCount;
+    private long downtime;
+    private int idleCount;
+    private int wakeCount;
+    private List<OutageRecord> outages;
     private Date timestamp;
-    private boolean tunnelRouted;
 
-    /** Constructor setting all fields at once. */
+    /** Constructor setting the transmission fields at once. */
     public Statistics(@NonNull TransmissionStatistics outgoingStatistics,
                       @NonNull TransmissionStatistics ingoingStatistics,
-                      Date startedAt,
-                      int reconnectCount,
-                      Inet4Address brokerIPv4, Inet4Address myIPv4,
-                      Inet6Address brokerIPv6, Inet6Address myIPv6,
-                      int mtu,
-                      List<RouteInfo> nativeRouting, List<RouteInfo> vpnRouting,
-                      List<InetAddress> nativeDnsSetting,List<InetAddress> vpnDnsSetting,
-                      boolean tunnelRouted)
+                      int reconnectCount)
     {
-        this.brokerIPv4 = brokerIPv4;
-        this.myIPv4 = myIPv4;
-        this.brokerIPv6 = brokerIPv6;
-        this.myIPv6 = myIPv6;
-        this.mtu = mtu;
-        this.nativeRouting = nativeRouting;
-        this.vpnRouting = vpnRouting;
-        this.nativeDnsSetting = nativeDnsSetting;
-        this.vpnDnsSetting = vpnDnsSetting;
-
-        this.tunnelRouted = tunnelRouted;
         this.timestamp = new Date();
-        this.startedAt = startedAt;
         this.reconnectCount = reconnectCount;
 
         addOutgoingStatistics(outgoingStatistics);
@@ -99,19 +82,10 @@ public class Statistics {
     }
 
     /**
-     * Constructor setting fields that are known right at the point of tunnel startup.
-     * @param startedAt a Date giving the point of time when the tunnel was started
-     * @param brokerIPv4 an Inet4Address giving the broker's IP address
-     * @param brokerIPv6 an Inet6Address giving the broker's IP address
-     * @param myIPv6 an Inet6Address giving my own IP
-     * @param mtu an int giving the maximum number of bytes transferable in a single packet
+     * Constructor for a Statistics to be filled by its setters.
      */
-    public Statistics(Date startedAt, Inet4Address brokerIPv4, Inet6Address brokerIPv6, Inet6Address myIPv6, int mtu) {
-        this.startedAt = startedAt;
-        this.brokerIPv4 = brokerIPv4;
-        this.brokerIPv6 = brokerIPv6;
-        this.myIPv6 = myIPv6;
-        this.mtu = mtu;
+    public Statistics() {
+        this.timestamp = new Date();
     }
 
     /**
@@ -127,6 +101,9 @@ public class Statistics {
             this.packetsPerBurstTransmitted = outgoingStatistics.getAverageBurstPackets();
             this.timeSpanPerBurstTransmitted = outgoingStatistics.getAverageBurstLength();
             this.timeLapseBetweenBurstsTransmitted = outgoingStatistics.getAverageBurstPause();
+            this.packetSizeTransmitted = outgoingStatistics.getPacketSizePercentiles();
+            this.packetGapTransmitted = outgoingStatistics.getPacketGapPercentiles();
+            this.processingTimeTransmitted = outgoingStatistics.getProcessingTimePercentiles();
         }
         return this;
     }
@@ -144,15 +121,13 @@ public class Statistics {
             this.packetsPerBurstReceived = ingoingStatistics.getAverageBurstPackets();
             this.timeSpanPerBurstReceived = ingoingStatistics.getAverageBurstLength();
             this.timeLapseBetweenBurstsReceived = ingoingStatistics.getAverageBurstPause();
+            this.packetSizeReceived = ingoingStatistics.getPacketSizePercentiles();
+            this.packetGapReceived = ingoingStatistics.getPacketGapPercentiles();
+            this.processingTimeReceived = ingoingStatistics.getProcessingTimePercentiles();
         }
         return this;
     }
 
-    public Statistics setStartedAt(Date startedAt) {
-        this.startedAt = startedAt;
-        return this;
-    }
-
     public Statistics setBytesTransmitted(long bytesTransmitted) {
         this.bytesTransmitted = bytesTransmitted;
         return this;
@@ -218,63 +193,99 @@ public class Statistics {
         return this;
     }
 
-    public Statistics setBrokerIPv4(Inet4Address brokerIPv4) {
-        this.brokerIPv4 = brokerIPv4;
+    public Statistics setQueueDelayTransmitted(double queueDelayTransmitted) {
+        this.queueDelayTransmitted = queueDelayTransmitted;
         return this;
     }
 
-    public Statistics setMyIPv4(Inet4Address myIPv4) {
-        this.myIPv4 = myIPv4;
+    public Statistics setQueueDropsTransmitted(long queueDropsTransmitted) {
+        this.queueDropsTransmitted = queueDropsTransmitted;
         return this;
     }
 
-    public Statistics setBrokerIPv6(Inet6Address brokerIPv6) {
-        this.brokerIPv6 = brokerIPv6;
+    public Statistics setPacketSizeTransmitted(Percentiles packetSizeTransmitted) {
+        this.packetSizeTransmitted = packetSizeTransmitted;
         return this;
     }
 
-    public Statistics setMyIPv6(Inet6Address myIPv6) {
-        this.myIPv6 = myIPv6;
+    public Statistics setPacketSizeReceived(Percentiles packetSizeReceived) {
+        this.packetSizeReceived = packetSizeReceived;
         return this;
     }
 
-    public Statistics setMtu(int mtu) {
-        this.mtu = mtu;
+    public Statistics setPacketGapTransmitted(Percentiles packetGapTransmitted) {
+        this.packetGapTransmitted = packetGapTransmitted;
         return this;
     }
 
-    public Statistics setNativeRouting(List<RouteInfo> nativeRouting) {
-        this.nativeRouting = nativeRouting;
+    public Statistics setPacketGapReceived(Percentiles packetGapReceived) {
+        this.packetGapReceived = packetGapReceived;
         return this;
     }
 
-    public Statistics setVpnRouting(List<RouteInfo> vpnRouting) {
-        this.vpnRouting = vpnRouting;
+    public Statistics setProcessingTimeTransmitted(Percentiles processingTimeTransmitted) {
+        this.processingTimeTransmitted = processingTimeTransmitted;
         return this;
     }
 
-    public Statistics setNativeDnsSetting(List<InetAddress> nativeDnsSetting) {
-        this.nativeDnsSetting = nativeDnsSetting;
+    public Statistics setProcessingTimeReceived(Percentiles processingTimeReceived) {
+        this.processingTimeReceived = processingTimeReceived;
         return this;
     }
 
-    public Statistics setVpnDnsSetting(List<InetAddress> vpnDnsSetting) {
-        this.vpnDnsSetting = vpnDnsSetting;
+    public Statistics setRoundTripTime(double roundTripTime) {
+        this.roundTripTime = roundTripTime;
         return this;
     }
 
-    public Statistics setTimestamp(Date timestamp) {
-        this.timestamp = timestamp;
+    public Statistics setRoundTripTimeVariation(double roundTripTimeVariation) {
+        this.roundTripTimeVariation = roundTripTimeVariation;
+        return this;
+    }
+
+    public Statistics setProbeLossRate(double probeLossRate) {
+        this.probeLossRate = probeLossRate;
+        return this;
+    }
+
+    public Statistics setAvailability(double availability) {
+        this.availability = availability;
+        return this;
+    }
+
+    public Statistics setMeanTimeToRepair(double meanTimeToRepair) {
+        this.meanTimeToRepair = meanTimeToRepair;
         return this;
     }
 
-    public Statistics setTunnelRouted(boolean tunnelRouted) {
-        this.tunnelRouted = tunnelRouted;
+    public Statistics setOutageCount(int outageCount) {
+        this.outageCount = outageCount;
         return this;
     }
 
-    public Date getStartedAt() {
-        return startedAt;
+    public Statistics setDowntime(long downtime) {
+        this.downtime = downtime;
+        return this;
+    }
+
+    public Statistics setIdleCount(int idleCount) {
+        this.idleCount = idleCount;
+        return this;
+    }
+
+    public Statistics setWakeCount(int wakeCount) {
+        this.wakeCount = wakeCount;
+        return this;
+    }
+
+    public Statistics setOutages(List<OutageRecord> outages) {
+        this.outages = outages;
+        return this;
+    }
+
+    public Statistics setTimestamp(Date timestamp) {
+        this.timestamp = timestamp;
+        return this;
     }
 
     public int getReconnectCount() {
@@ -329,48 +340,148 @@ public class Statistics {
         return timeLapseBetweenBurstsReceived;
     }
 
-    public Inet4Address getBrokerIPv4() {
-        return brokerIPv4;
+    /**
+     * Query the average time outgoing packets waited in the scheduler.
+     * @return a double giving the average queue delay in milliseconds
+     */
+    public double getQueueDelayTransmitted() {
+        return queueDelayTransmitted;
+    }
+
+    /**
+     * Query the number of outgoing packets dropped by the scheduler.
+     * @return a long giving the number of dropped packets
+     */
+    public long getQueueDropsTransmitted() {
+        return queueDropsTransmitted;
+    }
+
+    /**
+     * Query the distribution of the sizes of outgoing packets.
+     * @return the Percentiles in bytes, or null if not known
+     */
+    public @Nullable Percentiles getPacketSizeTransmitted() {
+        return packetSizeTransmitted;
+    }
+
+    /**
+     * Query the distribution of the sizes of incoming packets.
+     * @return the Percentiles in bytes, or null if not known
+     */
+    public @Nullable Percentiles getPacketSizeReceived() {
+        return packetSizeReceived;
     }
 
-    public Inet4Address getMyIPv4() {
-        return myIPv4;
+    /**
+     * Query the distribution of gaps between outgoing packets.
+     * @return the Percentiles in microseconds, or null if not known
+     */
+    public @Nullable Percentiles getPacketGapTransmitted() {
+        return packetGapTransmitted;
     }
 
-    public Inet6Address getBrokerIPv6() {
-        return brokerIPv6;
+    /**
+     * Query the distribution of gaps between incoming packets.
+     * @return the Percentiles in microseconds, or null if not known
+     */
+    public @Nullable Percentiles getPacketGapReceived() {
+        return packetGapReceived;
     }
 
-    public Inet6Address getMyIPv6() {
-        return myIPv6;
+    /**
+     * Query the distribution of the time from reading an outgoing packet to sending it.
+     * @return the Percentiles in microseconds, or null if not known
+     */
+    public @Nullable Percentiles getProcessingTimeTransmitted() {
+        return processingTimeTransmitted;
     }
 
-    public int getMtu() {
-        return mtu;
+    /**
+     * Query the distribution of the time from reading an incoming packet to writing it.
+     * @return the Percentiles in microseconds, or null if not known
+     */
+    public @Nullable Percentiles getProcessingTimeReceived() {
+        return processingTimeReceived;
     }
 
-    public List<RouteInfo> getNativeRouting() {
-        return nativeRouting;
+    /**
+     * @return a double giving the smoothed round trip time to the PoP in milliseconds, or NaN
+     * if not measured.
+     */
+    public double getRoundTripTime() {
+        return roundTripTime;
     }
 
-    public List<RouteInfo> getVpnRouting() {
-        return vpnRouting;
+    /**
+     * @return a double giving the smoothed variation (jitter) of the round trip time to the PoP
+     * in milliseconds, or NaN if not measured.
+     */
+    public double getRoundTripTimeVariation() {
+        return roundTripTimeVariation;
     }
 
-    public List<InetAddress> getNativeDnsSetting() {
-        return nativeDnsSetting;
+    /**
+     * @return a double between 0 and 1 giving the smoothed rate of probes lost.
+     */
+    public double getProbeLossRate() {
+        return probeLossRate;
     }
 
-    public List<InetAddress> getVpnDnsSetting() {
-        return vpnDnsSetting;
+    /**
+     * @return a double between 0 and 1 giving the share of time the tunnel worked since it first
+     * did in this session, or NaN if it never worked.
+     */
+    public double getAvailability() {
+        return availability;
     }
 
-    public Date getTimestamp() { return timestamp; }
+    /**
+     * @return a double giving the average milliseconds from an outage to the tunnel working
+     * again, or NaN if no outage recovered yet.
+     */
+    public double getMeanTimeToRepair() {
+        return meanTimeToRepair;
+    }
 
-    public boolean isTunnelRouted() {
-        return tunnelRouted;
+    /**
+     * @return an int giving the number of outages in this session, including an open one.
+     */
+    public int getOutageCount() {
+        return outageCount;
+    }
+
+    /**
+     * @return an int giving the number of times the connection to the PoP was closed because
+     * the tunnel was idle.
+     */
+    public int getIdleCount() {
+        return idleCount;
     }
 
+    /**
+     * @return an int giving the number of times an idle tunnel was connected again by an
+     * outgoing packet.
+     */
+    public int getWakeCount() {
+        return wakeCount;
+    }
+
+    /**
+     * @return a long giving the milliseconds the tunnel was down in this session.
+     */
+    public long getDowntime() {
+        return downtime;
+    }
+
+    /**
+     * @return a List of the most recent finished OutageRecord, oldest first, or null.
+     */
+    public @Nullable List<OutageRecord> getOutages() {
+        return outages;
+    }
+
+    public Date getTimestamp() { return timestamp; }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -382,19 +493,14 @@ public class Statistics {
         if (bytesReceived != that.bytesReceived) return false;
         if (packetsTransmitted != that.packetsTransmitted) return false;
         if (packetsReceived != that.packetsReceived) return false;
-        if (mtu != that.mtu) return false;
-        if (tunnelRouted != that.tunnelRouted) return false;
-        if (!brokerIPv4.equals(that.brokerIPv4)) return false;
-        if (!Objects.equals(myIPv4, that.myIPv4)) return false;
-        if (!brokerIPv6.equals(that.brokerIPv6)) return false;
-        if (!myIPv6.equals(that.myIPv6)) return false;
-        if (!Objects.equals(nativeRouting, that.nativeRouting))
-            return false;
-        if (!Objects.equals(vpnRouting, that.vpnRouting))
-            return false;
-        return Objects.equals(vpnDnsSetting, that.vpnDnsSetting)
-                && Objects.equals(nativeDnsSetting, that.nativeDnsSetting);
-
+        if (queueDropsTransmitted != that.queueDropsTransmitted) return false;
+        if (reconnectCount != that.reconnectCount) return false;
+        if (outageCount != that.outageCount) return false;
+        if (idleCount != that.idleCount) return false;
+        if (wakeCount != that.wakeCount) return false;
+        if (Double.compare(meanTimeToRepair, that.meanTimeToRepair) != 0) return false;
+        if (Double.compare(roundTripTime, that.roundTripTime) != 0) return false;
+        return Double.compare(probeLossRate, that.probeLossRate) == 0;
     }
 
     @Override
@@ -403,16 +509,9 @@ public class Statistics {
         result = 31 * result + (int) (bytesReceived ^ (bytesReceived >>> 32));
         result = 31 * result + (int) (packetsTransmitted ^ (packetsTransmitted >>> 32));
         result = 31 * result + (int) (packetsReceived ^ (packetsReceived >>> 32));
-        result = 31 * result + brokerIPv4.hashCode();
-        result = 31 * result + myIPv4.hashCode();
-        result = 31 * result + brokerIPv6.hashCode();
-        result = 31 * result + myIPv6.hashCode();
-        result = 31 * result + mtu;
-        result = 31 * result + (nativeRouting != null ? nativeRouting.hashCode() : 0);
-        result = 31 * result + (vpnRouting != null ? vpnRouting.hashCode() : 0);
-        result = 31 * result + (nativeDnsSetting != null ? nativeDnsSetting.hashCode() : 0);
-        result = 31 * result + (vpnDnsSetting != null ? vpnDnsSetting.hashCode() : 0);
-        result = 31 * result + (tunnelRouted ? 1 : 0);
+        result = 31 * result + (int) (queueDropsTransmitted ^ (queueDropsTransmitted >>> 32));
+        result = 31 * result + reconnectCount;
+        result = 31 * result + outageCount;
         return result;
     }
 }
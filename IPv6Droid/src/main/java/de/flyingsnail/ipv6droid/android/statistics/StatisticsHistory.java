@@ -0,0 +1,291 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.statistics;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A persistent history of sessions, reconnects and hourly traffic, kept across runs of the
+ * service. Records have a fixed size and are written to a ring in a memory-mapped file; when
+ * the ring is full, the oldest records are overwritten. As writes only touch mapped memory,
+ * they never wait on storage, and they survive the death of the process as the kernel writes
+ * back the mapped pages on its own.
+ * <p>Session and hour records are updated in place while they are current, so that no more
+ * than the last update is lost if the process dies.</p>
+ * <p>If the file cannot be mapped, all operations silently do nothing.</p>
+ */
+public class StatisticsHistory {
+    private static final String TAG = StatisticsHistory.class.getName();
+
+    private static final int MAGIC = 0x36447348; // "6DsH"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 64;
+    /** The number of records kept; this caps the file size at 512 kB */
+    private static final int CAPACITY = 8192;
+    private static final long HOUR = 3600000L;
+
+    // header layout
+    private static final int HDR_MAGIC = 0;
+    private static final int HDR_VERSION = 4;
+    private static final int HDR_RECORD_SIZE = 8;
+    private static final int HDR_CAPACITY = 12;
+    private static final int HDR_NEXT_RECORD = 16;
+
+    // record layout
+    private static final int REC_TYPE = 0;
+    private static final int REC_CAUSE = 4;
+    private static final int REC_START = 8;
+    private static final int REC_END = 16;
+    private static final int REC_BYTES_OUT = 24;
+    private static final int REC_PACKETS_OUT = 32;
+    private static final int REC_BYTES_IN = 40;
+    private static final int REC_PACKETS_IN = 48;
+    private static final int REC_RECONNECTS = 56;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    // the absolute number of the next record to write
+    private long nextRecord;
+    // the absolute number of the record of the current hour, or -1
+    private long currentHour = -1L;
+    // a flag set when the file was closed
+    private boolean closed = false;
+
+    /**
+     * Constructor. Opens or creates the history file.
+     * @param historyFile the File to keep the history in
+     */
+    public StatisticsHistory(@NonNull File historyFile) {
+        RandomAccessFile myFile = null;
+        MappedByteBuffer myBuffer = null;
+        try {
+            myFile = new RandomAccessFile(historyFile, "rw");
+            myBuffer = myFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) RECORD_SIZE * CAPACITY);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot map statistics history file, history is disabled", e);
+            if (myFile != null) {
+                try {
+                    myFile.close();
+                } catch (IOException ignored) {
+                }
+                myFile = null;
+            }
+        }
+        file = myFile;
+        buffer = myBuffer;
+        if (buffer == null)
+            return;
+
+        if (buffer.getInt(HDR_MAGIC) != MAGIC || buffer.getInt(HDR_VERSION) != VERSION
+                || buffer.getInt(HDR_RECORD_SIZE) != RECORD_SIZE || buffer.getInt(HDR_CAPACITY) != CAPACITY
+                || buffer.getLong(HDR_NEXT_RECORD) < 0L) {
+            Log.i(TAG, "Initializing statistics history");
+            buffer.putInt(HDR_MAGIC, MAGIC);
+            buffer.putInt(HDR_VERSION, VERSION);
+            buffer.putInt(HDR_RECORD_SIZE, RECORD_SIZE);
+            buffer.putInt(HDR_CAPACITY, CAPACITY);
+            buffer.putLong(HDR_NEXT_RECORD, 0L);
+        }
+        nextRecord = buffer.getLong(HDR_NEXT_RECORD);
+
+        // continue the hour record of a previous run if it is still current
+        long hourStart = System.currentTimeMillis() / HOUR * HOUR;
+        for (long r = nextRecord - 1; r >= 0 && r >= nextRecord - CAPACITY; r--) {
+            int pos = position(r);
+            if (buffer.getInt(pos + REC_TYPE) == HistoryRecord.TYPE_HOUR) {
+                if (buffer.getLong(pos + REC_START) == hourStart)
+                    currentHour = r;
+                break;
+            }
+        }
+    }
+
+    private boolean isDisabled() {
+        return buffer == null || closed;
+    }
+
+    private static int position(long record) {
+        return HEADER_SIZE + (int) (record % CAPACITY) * RECORD_SIZE;
+    }
+
+    /**
+     * Check if the given record is still in the ring.
+     */
+    private boolean isKept(long record) {
+        return record >= 0 && record < nextRecord && record >= nextRecord - CAPACITY;
+    }
+
+    /**
+     * Allocate the next record and initialize it.
+     * @return a long giving the absolute number of the record
+     */
+    private long newRecord(int type, int cause, long time) {
+        long record = nextRecord;
+        int pos = position(record);
+        for (int i = 0; i < RECORD_SIZE; i += 8)
+            buffer.putLong(pos + i, 0L);
+        buffer.putInt(pos + REC_TYPE, type);
+        buffer.putInt(pos + REC_CAUSE, cause);
+        buffer.putLong(pos + REC_START, time);
+        buffer.putLong(pos + REC_END, time);
+        // publish the record only after it is complete
+        nextRecord = record + 1;
+        buffer.putLong(HDR_NEXT_RECORD, nextRecord);
+        return record;
+    }
+
+    /**
+     * Record the start of a session.
+     * @param time a long giving the start time in milliseconds since epoch
+     * @return a long identifying the session in later calls, or -1 if history is disabled
+     */
+    public synchronized long startSession(long time) {
+        if (isDisabled())
+            return -1L;
+        return newRecord(HistoryRecord.TYPE_SESSION, HistoryRecord.CAUSE_OPEN, time);
+    }
+
+    /**
+     * Record the end of a session.
+     * @param session the long returned by {@link #startSession(long)}
+     * @param cause an int giving the end cause, one of the HistoryRecord.CAUSE_ constants
+     */
+    public synchronized void endSession(long session, int cause) {
+        if (isDisabled() || !isKept(session))
+            return;
+        int pos = position(session);
+        buffer.putLong(pos + REC_END, System.currentTimeMillis());
+        buffer.putInt(pos + REC_CAUSE, cause);
+    }
+
+    /**
+     * Record a reconnect within a session.
+     * @param session the long returned by {@link #startSession(long)}
+     * @param cause an int giving the cause of the reconnect, one of the HistoryRecord.CAUSE_ constants
+     */
+    public synchronized void recordReconnect(long session, int cause) {
+        if (isDisabled())
+            return;
+        long now = System.currentTimeMillis();
+        newRecord(HistoryRecord.TYPE_RECONNECT, cause, now);
+        if (isKept(session))
+            increment(position(session) + REC_RECONNECTS);
+        int hourPos = position(hourRecord(now));
+        increment(hourPos + REC_RECONNECTS);
+    }
+
+    /**
+     * Add traffic to a session and to the current hour. This is expected to be called
+     * regularly, e.g. once per second.
+     * @param session the long returned by {@link #startSession(long)}
+     */
+    public synchronized void addTraffic(long session, long bytesTransmitted, long packetsTransmitted,
+                                        long bytesReceived, long packetsReceived) {
+        if (isDisabled())
+            return;
+        long now = System.currentTimeMillis();
+        if (isKept(session))
+            add(position(session), now, bytesTransmitted, packetsTransmitted, bytesReceived, packetsReceived);
+        add(position(hourRecord(now)), now, bytesTransmitted, packetsTransmitted, bytesReceived, packetsReceived);
+    }
+
+    /**
+     * Get the record of the hour of the given time, allocating it if required.
+     */
+    private long hourRecord(long now) {
+        long hourStart = now / HOUR * HOUR;
+        if (!isKept(currentHour) || buffer.getLong(position(currentHour) + REC_START) != hourStart)
+            currentHour = newRecord(HistoryRecord.TYPE_HOUR, HistoryRecord.CAUSE_NONE, hourStart);
+        return currentHour;
+    }
+
+    private void add(int pos, long now, long bytesOut, long packetsOut, long bytesIn, long packetsIn) {
+        buffer.putLong(pos + REC_BYTES_OUT, buffer.getLong(pos + REC_BYTES_OUT) + bytesOut);
+        buffer.putLong(pos + REC_PACKETS_OUT, buffer.getLong(pos + REC_PACKETS_OUT) + packetsOut);
+        buffer.putLong(pos + REC_BYTES_IN, buffer.getLong(pos + REC_BYTES_IN) + bytesIn);
+        buffer.putLong(pos + REC_PACKETS_IN, buffer.getLong(pos + REC_PACKETS_IN) + packetsIn);
+        buffer.putLong(pos + REC_END, now);
+    }
+
+    private void increment(int pos) {
+        buffer.putInt(pos, buffer.getInt(pos) + 1);
+    }
+
+    /**
+     * Read the records overlapping a time range, oldest first.
+     * @param from a long giving the start of the range in milliseconds since epoch
+     * @param to a long giving the end of the range in milliseconds since epoch
+     * @return a List of HistoryRecord, empty if history is disabled
+     */
+    public synchronized @NonNull List<HistoryRecord> getRecords(long from, long to) {
+        List<HistoryRecord> records = new ArrayList<>();
+        if (isDisabled())
+            return records;
+        for (long r = Math.max(0L, nextRecord - CAPACITY); r < nextRecord; r++) {
+            int pos = position(r);
+            long start = buffer.getLong(pos + REC_START);
+            long end = buffer.getLong(pos + REC_END);
+            if (end < from || start > to)
+                continue;
+            records.add(new HistoryRecord(
+                    buffer.getInt(pos + REC_TYPE),
+                    buffer.getInt(pos + REC_CAUSE),
+                    start,
+                    end,
+                    buffer.getLong(pos + REC_BYTES_OUT),
+                    buffer.getLong(pos + REC_PACKETS_OUT),
+                    buffer.getLong(pos + REC_BYTES_IN),
+                    buffer.getLong(pos + REC_PACKETS_IN),
+                    buffer.getInt(pos + REC_RECONNECTS)));
+        }
+        return records;
+    }
+
+    /**
+     * Write back the mapped file and close it. Later calls do nothing.
+     */
+    public synchronized void close() {
+        if (isDisabled() || file == null)
+            return;
+        closed = true;
+        try {
+            buffer.force();
+            file.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close statistics history", e);
+        }
+    }
+}
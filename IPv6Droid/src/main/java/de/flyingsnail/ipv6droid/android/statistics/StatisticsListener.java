@@ -0,0 +1,62 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.statistics;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A receiver of statistics updates from a {@link StatisticsPublisher}. Each group of figures is
+ * delivered on its own, when it changed. The methods are called from threads of the tunnel, not
+ * from the UI thread, and must return quickly.
+ */
+public interface StatisticsListener {
+    /**
+     * Called when a tunnel session is up, or its session figures changed.
+     * @param session the current SessionStatistics
+     */
+    void onSessionChanged(@NonNull SessionStatistics session);
+
+    /**
+     * Called when the networks that the tunnel runs on changed.
+     * @param network the current NetworkStatistics
+     */
+    void onNetworkChanged(@NonNull NetworkStatistics network);
+
+    /**
+     * Called when the traffic figures of the tunnel were sampled.
+     * @param traffic the current Statistics
+     */
+    void onTrafficChanged(@NonNull Statistics traffic);
+
+    /**
+     * Called when seconds of throughput were added to the time series.
+     * @param samples the ThroughputSamples added since the previous call
+     */
+    void onThroughputSampled(@NonNull ThroughputSamples samples);
+
+    /**
+     * Called when no tunnel is running any more.
+     */
+    void onTunnelDown();
+}
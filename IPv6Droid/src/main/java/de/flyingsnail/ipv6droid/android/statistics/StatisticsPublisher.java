@@ -0,0 +1,215 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.statistics;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Delivers statistics to subscribed listeners. The producers publish each group of figures where
+ * it changes: the session and traffic figures on the tick of the throughput sampler, the network
+ * figures on a change of the device's networks. A listener receives a group only if it differs
+ * from the one delivered before. A new listener receives the current groups at once.
+ */
+public class StatisticsPublisher {
+    private static final String TAG = StatisticsPublisher.class.getName();
+
+    private final List<StatisticsListener> listeners = new ArrayList<>();
+    /** The index of the next throughput sample to deliver to each listener */
+    private final Map<StatisticsListener, Long> throughputIndexes = new HashMap<>();
+    /** The series of the throughput samples delivered */
+    private ThroughputSeries series = null;
+    /** The current session figures, or null if no tunnel is up */
+    private SessionStatistics session = null;
+    private NetworkStatistics network = null;
+    private Statistics traffic = null;
+
+    /**
+     * Register a listener. The listener is called immediately with the current figures, or told
+     * that no tunnel is up; later with each change. Registering a listener again has no effect.
+     * @param listener the StatisticsListener to call
+     */
+    public synchronized void subscribe(@NonNull StatisticsListener listener) {
+        if (listeners.contains(listener))
+            return;
+        listeners.add(listener);
+        throughputIndexes.put(listener, 0L);
+        try {
+            if (session == null)
+                listener.onTunnelDown();
+            else
+                deliverAll(listener);
+            if (series != null)
+                deliverThroughput(listener);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Delivery of statistics failed", e);
+        }
+        Log.i(TAG, "Statistics listener subscribed");
+    }
+
+    /**
+     * Unregister a listener. Nothing happens if the listener is not registered.
+     * @param listener the StatisticsListener to remove
+     */
+    public synchronized void unsubscribe(@NonNull StatisticsListener listener) {
+        listeners.remove(listener);
+        throughputIndexes.remove(listener);
+    }
+
+    /**
+     * Query if any listener is registered. Producers may skip collecting figures if not.
+     * @return a boolean, true if a listener is registered
+     */
+    public synchronized boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * Unregister all listeners.
+     */
+    public synchronized void shutdown() {
+        listeners.clear();
+        throughputIndexes.clear();
+    }
+
+    /**
+     * Publish the session figures of a tunnel that is up. If the tunnel was down before, the
+     * network and traffic figures known are delivered as well.
+     * @param current the current SessionStatistics
+     */
+    public synchronized void publishSession(@NonNull SessionStatistics current) {
+        if (current.equals(session))
+            return;
+        final boolean wasDown = session == null;
+        session = current;
+        for (StatisticsListener listener : listeners) {
+            try {
+                if (wasDown)
+                    deliverAll(listener);
+                else
+                    listener.onSessionChanged(current);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Delivery of session statistics failed", e);
+            }
+        }
+    }
+
+    /**
+     * Publish the network figures. They are delivered only while a tunnel is up, and kept
+     * for delivery when it is up again.
+     * @param current the current NetworkStatistics
+     */
+    public synchronized void publishNetwork(@NonNull NetworkStatistics current) {
+        if (current.equals(network))
+            return;
+        network = current;
+        if (session == null)
+            return;
+        for (StatisticsListener listener : listeners) {
+            try {
+                listener.onNetworkChanged(current);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Delivery of network statistics failed", e);
+            }
+        }
+    }
+
+    /**
+     * Publish the traffic figures of a tunnel that is up.
+     * @param current the current Statistics
+     */
+    public synchronized void publishTraffic(@NonNull Statistics current) {
+        if (current.equals(traffic))
+            return;
+        traffic = current;
+        if (session == null)
+            return;
+        for (StatisticsListener listener : listeners) {
+            try {
+                listener.onTrafficChanged(current);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Delivery of traffic statistics failed", e);
+            }
+        }
+    }
+
+    /**
+     * Publish the throughput samples that each listener has not received yet.
+     * @param current the ThroughputSeries that samples were added to
+     */
+    public synchronized void publishThroughput(@NonNull ThroughputSeries current) {
+        if (current != series) {
+            series = current;
+            for (Map.Entry<StatisticsListener, Long> entry : throughputIndexes.entrySet())
+                entry.setValue(0L);
+        }
+        for (StatisticsListener listener : listeners) {
+            try {
+                deliverThroughput(listener);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Delivery of throughput samples failed", e);
+            }
+        }
+    }
+
+    /**
+     * Publish that no tunnel is up any more. Nothing is delivered if none was before.
+     */
+    public synchronized void publishTunnelDown() {
+        if (session == null)
+            return;
+        session = null;
+        traffic = null;
+        for (StatisticsListener listener : listeners) {
+            try {
+                listener.onTunnelDown();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Delivery of tunnel down failed", e);
+            }
+        }
+    }
+
+    private void deliverAll(StatisticsListener listener) {
+        listener.onSessionChanged(session);
+        if (network != null)
+            listener.onNetworkChanged(network);
+        if (traffic != null)
+            listener.onTrafficChanged(traffic);
+    }
+
+    private void deliverThroughput(StatisticsListener listener) {
+        final Long index = throughputIndexes.get(listener);
+        final ThroughputSamples samples = series.getSamplesSince(ThroughputSeries.Resolution.SECOND,
+                index == null ? 0L : index);
+        throughputIndexes.put(listener, samples.getNextIndex());
+        if (samples.size() > 0)
+            listener.onThroughputSampled(samples);
+    }
+}
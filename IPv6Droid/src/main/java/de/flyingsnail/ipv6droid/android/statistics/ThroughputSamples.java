@@ -0,0 +1,126 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.statistics;
+
+/**
+ * A consecutive range of samples retrieved from a {@link ThroughputSeries}.
+ */
+public class ThroughputSamples {
+    private final long seriesStartTime;
+    private final long intervalMillis;
+    private final long firstIndex;
+    private final long[] bytesTransmitted;
+    private final long[] packetsTransmitted;
+    private final long[] bytesReceived;
+    private final long[] packetsReceived;
+    private final int[] reconnects;
+    private final float[] roundTripTime;
+
+    ThroughputSamples(long seriesStartTime, long intervalMillis, long firstIndex, int count) {
+        this.seriesStartTime = seriesStartTime;
+        this.intervalMillis = intervalMillis;
+        this.firstIndex = firstIndex;
+        bytesTransmitted = new long[count];
+        packetsTransmitted = new long[count];
+        bytesReceived = new long[count];
+        packetsReceived = new long[count];
+        reconnects = new int[count];
+        roundTripTime = new float[count];
+    }
+
+    void set(int i, long bytesOut, long packetsOut, long bytesIn, long packetsIn,
+             int reconnectCount, float rtt) {
+        bytesTransmitted[i] = bytesOut;
+        packetsTransmitted[i] = packetsOut;
+        bytesReceived[i] = bytesIn;
+        packetsReceived[i] = packetsIn;
+        reconnects[i] = reconnectCount;
+        roundTripTime[i] = rtt;
+    }
+
+    /**
+     * @return a long giving the time in milliseconds since epoch when the series was started.
+     * It identifies the series, i.e. sample indexes of different series are unrelated.
+     */
+    public long getSeriesStartTime() {
+        return seriesStartTime;
+    }
+
+    /**
+     * @return a long giving the time in milliseconds covered by each sample.
+     */
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * @return a long giving the index of the first sample contained.
+     */
+    public long getFirstIndex() {
+        return firstIndex;
+    }
+
+    /**
+     * @return a long giving the index to ask for to receive the samples following these.
+     */
+    public long getNextIndex() {
+        return firstIndex + bytesTransmitted.length;
+    }
+
+    /**
+     * @return an int giving the number of samples contained.
+     */
+    public int size() {
+        return bytesTransmitted.length;
+    }
+
+    public long getBytesTransmitted(int i) {
+        return bytesTransmitted[i];
+    }
+
+    public long getPacketsTransmitted(int i) {
+        return packetsTransmitted[i];
+    }
+
+    public long getBytesReceived(int i) {
+        return bytesReceived[i];
+    }
+
+    public long getPacketsReceived(int i) {
+        return packetsReceived[i];
+    }
+
+    public int getReconnects(int i) {
+        return reconnects[i];
+    }
+
+    /**
+     * @param i the int giving the position of the sample within this range
+     * @return a float giving the average round trip time in milliseconds, or NaN if none was
+     * measured in the interval of the sample.
+     */
+    public float getRoundTripTime(int i) {
+        return roundTripTime[i];
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.statistics;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A time series of the throughput of the tunnel, kept in ring buffers of fixed size: one sample
+ * per second for the last hour, and one sample per minute for the last day. Each sample holds the
+ * bytes and packets transmitted and received, the number of reconnects, and the average round
+ * trip time measured in its interval.
+ * <p>Samples are numbered consecutively from the start of the series. Clients can retrieve the
+ * samples added since the last sample they know by {@link #getSamplesSince(Resolution, long)}.</p>
+ * <p>Memory is allocated at construction time only; adding a sample does not allocate.</p>
+ */
+public class ThroughputSeries {
+    /**
+     * The resolutions kept.
+     */
+    public enum Resolution {
+        SECOND(1000L, 3600),
+        MINUTE(60000L, 1440);
+
+        private final long intervalMillis;
+        private final int capacity;
+
+        Resolution(long intervalMillis, int capacity) {
+            this.intervalMillis = intervalMillis;
+            this.capacity = capacity;
+        }
+
+        public long getIntervalMillis() {
+            return intervalMillis;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+    }
+
+    /**
+     * The samples of one resolution.
+     */
+    private static class Ring {
+        private final Resolution resolution;
+        private final long[] bytesTransmitted;
+        private final long[] bytesReceived;
+        private final long[] packetsTransmitted;
+        private final long[] packetsReceived;
+        private final int[] reconnects;
+        private final float[] roundTripTime;
+        // the index of the next sample to add
+        private long nextIndex = 0L;
+
+        private Ring(Resolution resolution) {
+            this.resolution = resolution;
+            int capacity = resolution.getCapacity();
+            bytesTransmitted = new long[capacity];
+            bytesReceived = new long[capacity];
+            packetsTransmitted = new long[capacity];
+            packetsReceived = new long[capacity];
+            reconnects = new int[capacity];
+            roundTripTime = new float[capacity];
+        }
+
+        private void add(long bytesOut, long packetsOut, long bytesIn, long packetsIn,
+                         int reconnectCount, float rtt) {
+            int pos = (int) (nextIndex % resolution.getCapacity());
+            bytesTransmitted[pos] = bytesOut;
+            packetsTransmitted[pos] = packetsOut;
+            bytesReceived[pos] = bytesIn;
+            packetsReceived[pos] = packetsIn;
+            reconnects[pos] = reconnectCount;
+            roundTripTime[pos] = rtt;
+            nextIndex++;
+        }
+    }
+
+    private final long startTime;
+    private final Ring seconds = new Ring(Resolution.SECOND);
+    private final Ring minutes = new Ring(Resolution.MINUTE);
+
+    // the cumulative counters at the previous sample
+    private long lastBytesTransmitted = 0L;
+    private long lastPacketsTransmitted = 0L;
+    private long lastBytesReceived = 0L;
+    private long lastPacketsReceived = 0L;
+
+    // events since the previous sample
+    private int pendingReconnects = 0;
+    private double pendingRttSum = 0.0;
+    private int pendingRttCount = 0;
+
+    // the sums of the running minute
+    private long minuteBytesTransmitted = 0L;
+    private long minutePacketsTransmitted = 0L;
+    private long minuteBytesReceived = 0L;
+    private long minutePacketsReceived = 0L;
+    private int minuteReconnects = 0;
+    private double minuteRttSum = 0.0;
+    private int minuteRttCount = 0;
+
+    /**
+     * Constructor. The series starts now, i.e. sample 0 of either resolution covers the first
+     * interval after construction.
+     */
+    public ThroughputSeries() {
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Mark a reconnect of the tunnel in the running interval.
+     */
+    public synchronized void markReconnect() {
+        pendingReconnects++;
+    }
+
+    /**
+     * Record a round trip time measured in the running interval.
+     * @param rttMillis a double giving the round trip time in milliseconds
+     */
+    public synchronized void recordRoundTripTime(double rttMillis) {
+        pendingRttSum += rttMillis;
+        pendingRttCount++;
+    }
+
+    /**
+     * Close the running second without traffic counters being available, e.g. while the
+     * tunnel is down.
+     */
+    public void sampleIdle() {
+        sample(lastBytesTransmitted, lastPacketsTransmitted, lastBytesReceived, lastPacketsReceived);
+    }
+
+    /**
+     * Close the running second. This is expected to be called once per second by a timer.
+     * The counters are cumulative; if they are found smaller than at the previous sample, they
+     * are assumed to have restarted from 0 (e.g. after a reconnect).
+     * @param bytesTransmitted a long giving the number of bytes transmitted so far
+     * @param packetsTransmitted a long giving the number of packets transmitted so far
+     * @param bytesReceived a long giving the number of bytes received so far
+     * @param packetsReceived a long giving the number of packets received so far
+     */
+    public synchronized void sample(long bytesTransmitted, long packetsTransmitted,
+                                    long bytesReceived, long packetsReceived) {
+        long bytesOut = delta(bytesTransmitted, lastBytesTransmitted);
+        long packetsOut = delta(packetsTransmitted, lastPacketsTransmitted);
+        long bytesIn = delta(bytesReceived, lastBytesReceived);
+        long packetsIn = delta(packetsReceived, lastPacketsReceived);
+        lastBytesTransmitted = bytesTransmitted;
+        lastPacketsTransmitted = packetsTransmitted;
+        lastBytesReceived = bytesReceived;
+        lastPacketsReceived = packetsReceived;
+
+        float rtt = pendingRttCount == 0 ? Float.NaN : (float) (pendingRttSum / pendingRttCount);
+        seconds.add(bytesOut, packetsOut, bytesIn, packetsIn, pendingReconnects, rtt);
+
+        minuteBytesTransmitted += bytesOut;
+        minutePacketsTransmitted += packetsOut;
+        minuteBytesReceived += bytesIn;
+        minutePacketsReceived += packetsIn;
+        minuteReconnects += pendingReconnects;
+        minuteRttSum += pendingRttSum;
+        minuteRttCount += pendingRttCount;
+        pendingReconnects = 0;
+        pendingRttSum = 0.0;
+        pendingRttCount = 0;
+
+        if (seconds.nextIndex % 60 == 0) {
+            minutes.add(minuteBytesTransmitted, minutePacketsTransmitted,
+                    minuteBytesReceived, minutePacketsReceived, minuteReconnects,
+                    minuteRttCount == 0 ? Float.NaN : (float) (minuteRttSum / minuteRttCount));
+            minuteBytesTransmitted = 0L;
+            minutePacketsTransmitted = 0L;
+            minuteBytesReceived = 0L;
+            minutePacketsReceived = 0L;
+            minuteReconnects = 0;
+            minuteRttSum = 0.0;
+            minuteRttCount = 0;
+        }
+    }
+
+    private static long delta(long current, long last) {
+        return current >= last ? current - last : current;
+    }
+
+    /**
+     * Retrieve the samples added since a given sample. If the requested sample is no longer
+     * kept, the samples returned start with the oldest one available.
+     * @param resolution the Resolution of the samples to retrieve
+     * @param sinceIndex a long giving the index of the first sample requested; usually the
+     *                   value of {@link ThroughputSamples#getNextIndex()} of the previous call.
+     * @return the ThroughputSamples, possibly holding no sample at all.
+     */
+    public synchronized @NonNull ThroughputSamples getSamplesSince(@NonNull Resolution resolution, long sinceIndex) {
+        Ring ring = resolution == Resolution.SECOND ? seconds : minutes;
+        int capacity = resolution.getCapacity();
+        long first = Math.max(Math.max(sinceIndex, ring.nextIndex - capacity), 0L);
+        if (first > ring.nextIndex)
+            first = Math.max(ring.nextIndex - capacity, 0L); // the client knows a different series
+        int count = (int) (ring.nextIndex - first);
+
+        ThroughputSamples samples = new ThroughputSamples(startTime, resolution.getIntervalMillis(),
+                first, count);
+        for (int i = 0; i < count; i++) {
+            int pos = (int) ((first + i) % capacity);
+            samples.set(i,
+                    ring.bytesTransmitted[pos], ring.packetsTransmitted[pos],
+                    ring.bytesReceived[pos], ring.packetsReceived[pos],
+                    ring.reconnects[pos], ring.roundTripTime[pos]);
+        }
+        return samples;
+    }
+}
@@ -22,59 +22,91 @@
  */
 package de.flyingsnail.ipv6droid.android.statistics;
 
-import android.util.LruCache;
-
-import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
-
-import java.util.Date;
-
 /**
  * TransmissionStatistics keeps rolling averages of package transmission in a specific direction.
+ * <p>Updates are expected from a single thread, the one copying the packets, and never wait for
+ * readers. Readers never block the writer: they take their values optimistically and simply
+ * re-read in the rare case that an update ran concurrently (sequence lock). The fields protected
+ * by the sequence are volatile themselves, so that neither the writer's stores nor the readers'
+ * loads can be reordered across the sequence, and longs and doubles are never torn. Bursts that timed out
+ * are accounted by the next update; readers calculate the effect of such a pending completion
+ * on the fly, leaving the state untouched.</p>
+ * <p>Besides, the distributions of packet size, of the gap between packets, and of the time a
+ * packet takes from being read to being sent on are kept as histograms.</p>
  */
 public class TransmissionStatistics {
     private static final String TAG = TransmissionStatistics.class.getName();
 
     private static final double DECAY_TIME = 60000.0; // time of decay to 1/e in milliseconds
-    public static final long BURST_TIMEOUT = 1000l;
+    public static final long BURST_TIMEOUT = 1000L;
+
+    // decay factors are looked up as the product of a fine and a coarse table value
+    private static final int DECAY_FINE_BITS = 12;
+    private static final int DECAY_FINE_MASK = (1 << DECAY_FINE_BITS) - 1;
+    private static final double[] DECAY_FINE = new double[1 << DECAY_FINE_BITS];
+    private static final double[] DECAY_COARSE = new double[256];
+    static {
+        for (int i = 0; i < DECAY_FINE.length; i++)
+            DECAY_FINE[i] = Math.exp(-i / DECAY_TIME);
+        for (int i = 0; i < DECAY_COARSE.length; i++)
+            DECAY_COARSE[i] = Math.exp(-((long) i << DECAY_FINE_BITS) / DECAY_TIME);
+    }
+
+    // selectors of the rolling averages for readAverage
+    private static final int BURST_LENGTH = 0;
+    private static final int BURST_PAUSE = 1;
+    private static final int BURST_BYTES = 2;
+    private static final int BURST_PACKETS = 3;
+
+    // the largest packet size distinguished, in bytes
+    private static final long MAX_PACKET_SIZE = 65535L;
+    // the largest gap between packets distinguished, in microseconds (1 hour)
+    private static final long MAX_PACKET_GAP = 3600000000L;
+    // the largest processing time distinguished, in microseconds (1 minute)
+    private static final long MAX_PROCESSING_TIME = 60000000L;
+
+    // the distributions, each having a single writer of its own
+    private final LogLinearHistogram packetSizes = new LogLinearHistogram(MAX_PACKET_SIZE);
+    private final LogLinearHistogram packetGaps = new LogLinearHistogram(MAX_PACKET_GAP);
+    private final LogLinearHistogram processingTimes = new LogLinearHistogram(MAX_PROCESSING_TIME);
+
+    // incremented by the writer before and after each update, i.e. odd while updating
+    private volatile int sequence = 0;
+
+    // the nanoTime of the previous packet
+    private volatile long lastPacketNanos = 0L;
+
     // overall count of copied bytes
-    private long byteCount = 0l;
+    private volatile long byteCount = 0L;
     // overall count of copied packets
-    private long packetCount = 0l;
+    private volatile long packetCount = 0L;
 
+    // the info about the currently running burst; times in milliseconds of a monotonic clock
+    private volatile boolean inBurst = false;
+    private volatile long burstFirstPacket = 0L;
+    private volatile long burstLastPacket = 0L;
+    private volatile long burstByteCount = 0L;
+    private volatile long burstPacketCount = 0L;
     // the info about the last completed burst
-    private @Nullable Burstinfo lastCompletedBurst = null;
-    // the info about the currently running burst
-    private @Nullable Burstinfo currentBurst = null;
+    private volatile boolean burstCompleted = false;
+    private volatile long completedFirstPacket = 0L;
+    private volatile long completedLastPacket = 0L;
+
     // the average time span of a burst in seconds
-    private double averageBurstLength = 0.0;
+    private volatile double averageBurstLength = 0.0;
     // the average time span between two bursts in seconds
-    private double averageBurstPause = 0.0;
+    private volatile double averageBurstPause = 0.0;
     // the average number of bytes per burst
-    private double averageBurstBytes = 0.0;
+    private volatile double averageBurstBytes = 0.0;
     // the average number of packets per burst
-    private double averageBurstPackets = 0.0;
-    // helper cache for depletion values on time spans
-    final LruCache<Long, Double> depletionCache = new LruCache<Long, Double>(10) {
-        /**
-         * Calculate a new depletion factor from a given time lapse. This will be called by LruCache
-         * on cache misses.
-         * @param key a Long giving the time lapse in milliseconds
-         * @return a Double giving the depletion factor corresponding to the time lapse key.
-         */
-        @Override
-        protected Double create(Long key) {
-            return Math.exp(-((double) key) / DECAY_TIME);
-        }
-    };
+    private volatile double averageBurstPackets = 0.0;
 
     /**
      * Query the average number of bytes per burst.
      * @return a double giving the average number of bytes per burst
      */
     public double getAverageBurstBytes() {
-        checkBurstCompletion();
-        return averageBurstBytes;
+        return readAverage(BURST_BYTES);
     }
 
     /**
@@ -82,8 +114,7 @@ public class TransmissionStatistics {
      * @return a double giving the average number of packets per burst
      */
     public double getAverageBurstPackets() {
-        checkBurstCompletion();
-        return averageBurstPackets;
+        return readAverage(BURST_PACKETS);
     }
 
     /**
@@ -93,17 +124,7 @@ public class TransmissionStatistics {
      * @return a double giving the average time span between two bursts in seconds.
      */
     public double getAverageBurstPause() {
-        checkBurstCompletion();
-        // avoid race conditions
-        Burstinfo myCurrentBurst = currentBurst;
-        Burstinfo myLastCompletedBurst = lastCompletedBurst;
-        if (myCurrentBurst != null || myLastCompletedBurst == null)
-            return averageBurstPause; // we're currently inside a burst, so the average lapse doesn't change
-        else {
-            // return the value as if a burst was just started and ended right now
-            long lapse = dateDifference(new Date(), myLastCompletedBurst.lastPacketReceived);
-            return rollingAverage(lapse, averageBurstPause, lapse/1000);
-        }
+        return readAverage(BURST_PAUSE);
     }
 
     /**
@@ -111,57 +132,84 @@ public class TransmissionStatistics {
      * @return a double giving the average time span of a burst in seconds.
      */
     public double getAverageBurstLength() {
-        checkBurstCompletion();
-        if (currentBurst == null || lastCompletedBurst == null)
-            return averageBurstLength; // we're outside a burst, so the average length doesn't change
-        else {
-            // return the value as if a burst was just started and ended right now
-            return rollingAverage(
-                    dateDifference(currentBurst.firstPacketReceived, lastCompletedBurst.firstPacketReceived),
-                    averageBurstLength,
-                    dateDifference(new Date(), currentBurst.firstPacketReceived)/1000);
-        }
-    }
-
-    /**
-     * helper method that checks if the current burst is closed (by timeout), and in this case takes
-     * care to update the relevant statistics values by calling burstComplete, and rotating currentBurst
-     * to lastCompletedBurst. In timeout case, this method leaves currentBurst as null.
-     * @return a boolean as true if a timeout was detected, false if the currentBurst is yet to be used.
-     */
-    private synchronized boolean checkBurstCompletion() {
-        // update per-burst info
-        if (currentBurst != null && dateDifference(new Date(), currentBurst.lastPacketReceived) > BURST_TIMEOUT) {
-            // new burst
-            if (lastCompletedBurst != null)
-                burstCompleted(currentBurst, lastCompletedBurst);
-            lastCompletedBurst = currentBurst;
-            currentBurst = null;
-            return true;
-        }
-        return false;
+        return readAverage(BURST_LENGTH);
     }
 
     /**
      * Helper method to update statistics information on a received packet. This method should
-     * be called immediately after receiving a packet.
+     * be called immediately after receiving a packet, always from the same thread.
      * @param len the length of the packet that was received just now
      */
-    public synchronized void updateStatistics(long len) {
+    public void updateStatistics(long len) {
+        long nanos = System.nanoTime();
+        long now = nanos / 1000000L;
+        long previousNanos = lastPacketNanos;
+        packetSizes.record(len);
+        if (previousNanos != 0L)
+            packetGaps.record((nanos - previousNanos) / 1000L);
+
+        int seq = sequence;
+        sequence = seq + 1;
+
+        lastPacketNanos = nanos;
         byteCount += len;
         packetCount++;
 
         // update per-burst info
-        if (currentBurst == null || checkBurstCompletion()) {
+        if (inBurst && now - burstLastPacket > BURST_TIMEOUT) {
+            if (burstCompleted)
+                burstCompleted();
+            completedFirstPacket = burstFirstPacket;
+            completedLastPacket = burstLastPacket;
+            burstCompleted = true;
+            inBurst = false;
+        }
+        if (!inBurst) {
             // new burst
-            currentBurst = new Burstinfo();
-            currentBurst.byteCount = len;
-            currentBurst.packetCount = 1;
+            inBurst = true;
+            burstFirstPacket = now;
+            burstByteCount = len;
+            burstPacketCount = 1;
         } else {
-            currentBurst.lastPacketReceived = new Date();
-            currentBurst.byteCount += len;
-            currentBurst.packetCount++;
+            burstByteCount += len;
+            burstPacketCount++;
         }
+        burstLastPacket = now;
+
+        sequence = seq + 2;
+    }
+
+    /**
+     * Record the time a packet took from being read to being sent on. This may be called from
+     * a different thread than updateStatistics, but always from the same.
+     * @param nanos a long giving the processing time in nanoseconds
+     */
+    public void updateProcessingTime(long nanos) {
+        processingTimes.record(nanos / 1000L);
+    }
+
+    /**
+     * Query the distribution of packet sizes.
+     * @return the Percentiles of packet sizes in bytes
+     */
+    public Percentiles getPacketSizePercentiles() {
+        return packetSizes.getPercentiles();
+    }
+
+    /**
+     * Query the distribution of gaps between two packets.
+     * @return the Percentiles of packet gaps in microseconds
+     */
+    public Percentiles getPacketGapPercentiles() {
+        return packetGaps.getPercentiles();
+    }
+
+    /**
+     * Query the distribution of the time from reading a packet to sending it on.
+     * @return the Percentiles of processing times in microseconds
+     */
+    public Percentiles getProcessingTimePercentiles() {
+        return processingTimes.getPercentiles();
     }
 
     /**
@@ -169,7 +217,27 @@ public class TransmissionStatistics {
      * @return a long giving the number of bytes that was copied by this thread.
      */
     public long getByteCount() {
-        return byteCount;
+        long result;
+        int seq;
+        do {
+            seq = beginRead();
+            result = byteCount;
+        } while (sequence != seq);
+        return result;
+    }
+
+    /**
+     * Get the time the last packet was copied by this thread.
+     * @return a long giving the System.nanoTime of the last packet, or 0 if none was copied yet.
+     */
+    public long getLastPacketNanos() {
+        long result;
+        int seq;
+        do {
+            seq = beginRead();
+            result = lastPacketNanos;
+        } while (sequence != seq);
+        return result;
     }
 
     /**
@@ -177,40 +245,105 @@ public class TransmissionStatistics {
      * @return a long giving the number of packets that was copied by this thread.
      */
     public long getPacketCount() {
-        return packetCount;
+        long result;
+        int seq;
+        do {
+            seq = beginRead();
+            result = packetCount;
+        } while (sequence != seq);
+        return result;
     }
 
     /**
-     *
-     * @param minuend a Date giving the time from which to substract
-     * @param subtrahend a Date giving the time to substract
-     * @return a long indicating the time in milliseconds from subtrahend to minuend
+     * Wait for a running update to finish.
+     * @return an int giving the sequence number to check against after reading.
      */
-    private long dateDifference (Date minuend, Date subtrahend) {
-        return minuend.getTime() - subtrahend.getTime();
+    private int beginRead() {
+        int seq;
+        while (((seq = sequence) & 1) != 0)
+            Thread.yield();
+        return seq;
+    }
+
+    /**
+     * Read one of the rolling averages, taking into account the completion of a burst that timed
+     * out but was not yet accounted for by the writer.
+     * @param which an int selecting the average
+     * @return the double value of the average
+     */
+    private double readAverage(int which) {
+        final long now = now();
+        double result;
+        int seq;
+        do {
+            seq = beginRead();
+            boolean myInBurst = inBurst;
+            boolean myBurstCompleted = burstCompleted;
+            long myCompletedFirst = completedFirstPacket;
+            long myCompletedLast = completedLastPacket;
+            double length = averageBurstLength;
+            double pause = averageBurstPause;
+            double bytes = averageBurstBytes;
+            double packets = averageBurstPackets;
+
+            if (myInBurst && now - burstLastPacket > BURST_TIMEOUT) {
+                // the current burst is complete, though not yet accounted for
+                if (myBurstCompleted) {
+                    long timeLapse = burstLastPacket - myCompletedLast;
+                    length = rollingAverage(timeLapse, length, (burstLastPacket - burstFirstPacket) / 1000.0);
+                    pause = rollingAverage(timeLapse, pause, (burstFirstPacket - myCompletedLast) / 1000.0);
+                    bytes = rollingAverage(timeLapse, bytes, burstByteCount);
+                    packets = rollingAverage(timeLapse, packets, burstPacketCount);
+                }
+                myCompletedFirst = burstFirstPacket;
+                myCompletedLast = burstLastPacket;
+                myBurstCompleted = true;
+                myInBurst = false;
+            }
+
+            switch (which) {
+                case BURST_LENGTH:
+                    // while inside a burst, return the value as if it ended right now
+                    result = (myInBurst && myBurstCompleted) ?
+                            rollingAverage(burstFirstPacket - myCompletedFirst, length,
+                                    (now - burstFirstPacket) / 1000.0) :
+                            length;
+                    break;
+                case BURST_PAUSE:
+                    // outside a burst, return the value as if a burst was just started right now
+                    if (!myInBurst && myBurstCompleted) {
+                        long lapse = now - myCompletedLast;
+                        result = rollingAverage(lapse, pause, lapse / 1000.0);
+                    } else
+                        result = pause;
+                    break;
+                case BURST_BYTES:
+                    result = bytes;
+                    break;
+                default:
+                    result = packets;
+            }
+        } while (sequence != seq);
+        return result;
     }
+
     /**
-     * Helper method to update burst-related statistics values.
-     * Should be called by other methods of this class if a burst is considered completed.
-     * @param completedBurst the Burstinfo on the completed burst.
+     * Helper method to update burst-related statistics values from the current burst and the
+     * last completed burst. Called by the writer if the current burst is considered completed.
      */
-    private void burstCompleted (@NonNull Burstinfo completedBurst, @NonNull Burstinfo previousBurst) {
-        double burstSpan = (double)
-                dateDifference(completedBurst.lastPacketReceived, completedBurst.firstPacketReceived)
-            /1000.0;
-        double burstPause = (double)
-                dateDifference(completedBurst.firstPacketReceived, previousBurst.lastPacketReceived)
-            /1000.0;
-        long timeLapse = dateDifference(completedBurst.lastPacketReceived, previousBurst.lastPacketReceived);
+    private void burstCompleted() {
+        double burstSpan = (burstLastPacket - burstFirstPacket) / 1000.0;
+        double burstPause = (burstFirstPacket - completedLastPacket) / 1000.0;
+        long timeLapse = burstLastPacket - completedLastPacket;
 
         // rolling average of burst length
         averageBurstLength = rollingAverage(timeLapse, averageBurstLength, burstSpan);
         // rolling average of burst pause
         averageBurstPause = rollingAverage(timeLapse, averageBurstPause, burstPause);
         // rolling average of bytes per burst
-        averageBurstBytes = rollingAverage(timeLapse, averageBurstBytes, completedBurst.byteCount);
+        averageBurstBytes = rollingAverage(timeLapse, averageBurstBytes, burstByteCount);
         // rolling average of packets per burst
-        averageBurstPackets = rollingAverage(timeLapse, averageBurstPackets, completedBurst.packetCount);
+        averageBurstPackets = rollingAverage(timeLapse, averageBurstPackets, burstPacketCount);
     }
 
     /**
@@ -220,13 +353,32 @@ public class TransmissionStatistics {
      * @param newValue a long giving a new addon to the rolling average
      * @return updated rolling average
      */
-    private double rollingAverage(long timeLapse, double previousAverage, double newValue) {
+    private static double rollingAverage(long timeLapse, double previousAverage, double newValue) {
         // we implement a rolling average window
-        double decay = depletionCache.get(timeLapse);
+        double decay = decay(timeLapse);
         return (previousAverage == 0.0) ?
                 newValue :
                 (newValue * (1.0-decay) + decay*previousAverage);
     }
 
+    /**
+     * Look up the depletion factor for a time lapse.
+     * @param timeLapse a long giving the time lapse in milliseconds
+     * @return a double giving exp(-timeLapse/DECAY_TIME)
+     */
+    private static double decay(long timeLapse) {
+        if (timeLapse <= 0L)
+            return 1.0;
+        long coarse = timeLapse >>> DECAY_FINE_BITS;
+        if (coarse >= DECAY_COARSE.length)
+            return 0.0; // less than 1e-7
+        return DECAY_FINE[(int) (timeLapse & DECAY_FINE_MASK)] * DECAY_COARSE[(int) coarse];
+    }
 
+    /**
+     * @return a long giving the current time in milliseconds of a monotonic clock.
+     */
+    private static long now() {
+        return System.nanoTime() / 1000000L;
+    }
 }
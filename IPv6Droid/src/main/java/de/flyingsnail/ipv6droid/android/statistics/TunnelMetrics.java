@@ -0,0 +1,213 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.statistics;
+
+import androidx.annotation.NonNull;
+
+/**
+ * The metrics of tunnel health that are exported for scraping. One instance lives as long as the
+ * service, so counters keep growing across tunnel sessions.
+ */
+public class TunnelMetrics {
+    private static final String PREFIX = "ipv6droid_";
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+
+    private final MetricsRegistry.Counter bytesTransmitted = registry.addCounter(
+            PREFIX + "transmitted_bytes", "Bytes sent through the tunnel");
+    private final MetricsRegistry.Counter packetsTransmitted = registry.addCounter(
+            PREFIX + "transmitted_packets", "Packets sent through the tunnel");
+    private final MetricsRegistry.Counter bytesReceived = registry.addCounter(
+            PREFIX + "received_bytes", "Bytes received through the tunnel");
+    private final MetricsRegistry.Counter packetsReceived = registry.addCounter(
+            PREFIX + "received_packets", "Packets received through the tunnel");
+    private final MetricsRegistry.Counter invalidPackets = registry.addCounter(
+            PREFIX + "invalid_packets", "Packets received from the PoP that were discarded as invalid");
+    private final MetricsRegistry.Counter reconnects = registry.addCounter(
+            PREFIX + "reconnects", "Reconnects of the tunnel to the PoP");
+    private final MetricsRegistry.Counter handovers = registry.addCounter(
+            PREFIX + "handovers", "Changes of the tunnel to a new network without interruption");
+    private final MetricsRegistry.Counter popSwitches = registry.addCounter(
+            PREFIX + "pop_switches", "Changes of the tunnel to a PoP with better round trip time");
+    private final MetricsRegistry.Counter idleTeardowns = registry.addCounter(
+            PREFIX + "idle_teardowns", "Connections to the PoP closed because the tunnel was idle");
+    private final MetricsRegistry.Counter wakeups = registry.addCounter(
+            PREFIX + "wakeups", "Reconnects of an idle tunnel triggered by an outgoing packet");
+    private final MetricsRegistry.Counter networkEventsSuppressed = registry.addCounter(
+            PREFIX + "network_events_suppressed", "Network callbacks coalesced or without relevant change");
+    private final MetricsRegistry.Counter packetsHeld = registry.addCounter(
+            PREFIX + "held_packets", "Outgoing packets held while no transporter was attached");
+    private final MetricsRegistry.Counter packetsFlushed = registry.addCounter(
+            PREFIX + "flushed_packets", "Held packets sent after a transporter was attached");
+    private final MetricsRegistry.Counter packetsExpired = registry.addCounter(
+            PREFIX + "expired_packets", "Held packets dropped as too old to send");
+    private final MetricsRegistry.Counter heartbeats = registry.addCounter(
+            PREFIX + "heartbeats", "Heartbeats sent to the PoP");
+    private final MetricsRegistry.Counter probesSent = registry.addCounter(
+            PREFIX + "probes_sent", "Round trip probes sent to the PoP");
+    private final MetricsRegistry.Counter probesLost = registry.addCounter(
+            PREFIX + "probes_lost", "Round trip probes that timed out");
+    private final LogLinearHistogram handshakeDuration = registry.addSummary(
+            PREFIX + "handshake_duration_seconds", "Time to connect the transporter to the PoP",
+            120000L, 0.001);
+    private final LogLinearHistogram reconnectDuration = registry.addSummary(
+            PREFIX + "reconnect_duration_seconds", "Time from the decision to reconnect to the first packet received from the PoP",
+            600000L, 0.001);
+    private final MetricsRegistry.Gauge tunnelUp = registry.addGauge(
+            PREFIX + "tunnel_up", "1 if the tunnel is connected, 0 otherwise");
+    private final MetricsRegistry.Gauge queueDepth = registry.addGauge(
+            PREFIX + "queue_depth_packets", "Outgoing packets waiting in the scheduler");
+    private final MetricsRegistry.Gauge heldBytes = registry.addGauge(
+            PREFIX + "held_bytes", "Bytes of outgoing packets held while no transporter is attached");
+    private final MetricsRegistry.Gauge runtimeThreads = registry.addGauge(
+            PREFIX + "runtime_threads", "Threads run by the tunnel runtime");
+    private final MetricsRegistry.Gauge roundTripTime = registry.addGauge(
+            PREFIX + "round_trip_time_seconds", "Smoothed round trip time to the PoP");
+    private final MetricsRegistry.Gauge roundTripTimeVariation = registry.addGauge(
+            PREFIX + "round_trip_time_variation_seconds", "Variation of the round trip time to the PoP");
+    private final MetricsRegistry.Gauge probeLossRate = registry.addGauge(
+            PREFIX + "probe_loss_ratio", "Recent ratio of round trip probes lost");
+
+    public @NonNull MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    public MetricsRegistry.Counter getBytesTransmitted() {
+        return bytesTransmitted;
+    }
+
+    public MetricsRegistry.Counter getPacketsTransmitted() {
+        return packetsTransmitted;
+    }
+
+    public MetricsRegistry.Counter getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public MetricsRegistry.Counter getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    public MetricsRegistry.Counter getInvalidPackets() {
+        return invalidPackets;
+    }
+
+    public MetricsRegistry.Counter getReconnects() {
+        return reconnects;
+    }
+
+    public MetricsRegistry.Counter getHandovers() {
+        return handovers;
+    }
+
+    public MetricsRegistry.Counter getPopSwitches() {
+        return popSwitches;
+    }
+
+    public MetricsRegistry.Counter getIdleTeardowns() {
+        return idleTeardowns;
+    }
+
+    public MetricsRegistry.Counter getWakeups() {
+        return wakeups;
+    }
+
+    public MetricsRegistry.Counter getNetworkEventsSuppressed() {
+        return networkEventsSuppressed;
+    }
+
+    public MetricsRegistry.Counter getHeartbeats() {
+        return heartbeats;
+    }
+
+    public MetricsRegistry.Counter getProbesSent() {
+        return probesSent;
+    }
+
+    public MetricsRegistry.Counter getProbesLost() {
+        return probesLost;
+    }
+
+    /**
+     * @return the LogLinearHistogram of handshake durations in milliseconds. Only the tunnel
+     * thread records into it.
+     */
+    public LogLinearHistogram getHandshakeDuration() {
+        return handshakeDuration;
+    }
+
+    /**
+     * @return the LogLinearHistogram of reconnect durations in milliseconds. Only the copy
+     * thread receiving from the PoP records into it.
+     */
+    public LogLinearHistogram getReconnectDuration() {
+        return reconnectDuration;
+    }
+
+    public MetricsRegistry.Gauge getTunnelUp() {
+        return tunnelUp;
+    }
+
+    public MetricsRegistry.Gauge getQueueDepth() {
+        return queueDepth;
+    }
+
+    public MetricsRegistry.Counter getPacketsHeld() {
+        return packetsHeld;
+    }
+
+    public MetricsRegistry.Counter getPacketsFlushed() {
+        return packetsFlushed;
+    }
+
+    public MetricsRegistry.Counter getPacketsExpired() {
+        return packetsExpired;
+    }
+
+    public MetricsRegistry.Gauge getHeldBytes() {
+        return heldBytes;
+    }
+
+    public MetricsRegistry.Gauge getRuntimeThreads() {
+        return runtimeThreads;
+    }
+
+    /**
+     * @return the Gauge of the smoothed round trip time, to be set in seconds
+     */
+    public MetricsRegistry.Gauge getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    /**
+     * @return the Gauge of the round trip time variation, to be set in seconds
+     */
+    public MetricsRegistry.Gauge getRoundTripTimeVariation() {
+        return roundTripTimeVariation;
+    }
+
+    public MetricsRegistry.Gauge getProbeLossRate() {
+        return probeLossRate;
+    }
+}
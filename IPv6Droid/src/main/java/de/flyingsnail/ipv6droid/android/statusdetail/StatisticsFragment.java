@@ -38,18 +38,21 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
+import androidx.annotation.NonNull;
 import androidx.fragment.app.Fragment;
 
 import java.net.InetAddress;
 import java.text.DateFormat;
 import java.text.NumberFormat;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import de.flyingsnail.ipv6droid.R;
 import de.flyingsnail.ipv6droid.android.IPv6DroidVpnService;
+import de.flyingsnail.ipv6droid.android.statistics.NetworkStatistics;
+import de.flyingsnail.ipv6droid.android.statistics.Percentiles;
+import de.flyingsnail.ipv6droid.android.statistics.SessionStatistics;
 import de.flyingsnail.ipv6droid.android.statistics.Statistics;
+import de.flyingsnail.ipv6droid.android.statistics.StatisticsListener;
+import de.flyingsnail.ipv6droid.android.statistics.ThroughputSamples;
 
 /**
  * A simple {@link Fragment} subclass.
@@ -57,9 +60,14 @@ import de.flyingsnail.ipv6droid.android.statistics.Statistics;
  * create an instance of this fragment.
  */
 //@TargetApi(18)
-public class StatisticsFragment extends Fragment implements ServiceConnection {
+public class StatisticsFragment extends Fragment implements ServiceConnection, StatisticsListener {
     private static final String ARG_STATISTICS_BINDER = "StatisticsBinder";
     private static final String TAG = StatisticsFragment.class.getName();
+    private static final int MSG_TUNNEL_DOWN = 0;
+    private static final int MSG_THROUGHPUT = 1;
+    private static final int MSG_SESSION = 2;
+    private static final int MSG_NETWORK = 3;
+    private static final int MSG_TRAFFIC = 4;
 
 
     private IPv6DroidVpnService.StatisticsBinder statisticsBinder;
@@ -80,6 +88,17 @@ public class StatisticsFragment extends Fragment implements ServiceConnection {
     private TextView timeSpanPerBurstReceivedView;
     private TextView timeLapseBetweenBurstsTransmittedView;
     private TextView timeLapseBetweenBurstsReceivedView;
+    private TextView queueDelayTransmittedView;
+    private TextView queueDropsTransmittedView;
+    private TextView packetSizeTransmittedView;
+    private TextView packetSizeReceivedView;
+    private TextView packetGapTransmittedView;
+    private TextView packetGapReceivedView;
+    private TextView processingTimeTransmittedView;
+    private TextView processingTimeReceivedView;
+    private TextView roundTripTimeView;
+    private TextView availabilityView;
+    private TextView onDemandView;
     private TextView brokerIPv4View;
     private TextView brokerIPv6View;
     private TextView myIPv4View;
@@ -90,9 +109,10 @@ public class StatisticsFragment extends Fragment implements ServiceConnection {
     private TextView vpnDnsView;
     private TextView timestampView;
     private TextView isRoutedView;
-    private ScheduledThreadPoolExecutor executor;
+    private ThroughputGraphView throughputGraphView;
     private DateFormat timestampFormatter;
-    private Future<?> updaterFuture;
+    private Handler redrawHandler;
+    private boolean started = false;
 
     /**
      * Use this factory method to create a new instance of
@@ -105,15 +125,12 @@ public class StatisticsFragment extends Fragment implements ServiceConnection {
     }
 
     public StatisticsFragment() {
-        updaterFuture = null;
     }
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         Log.d(TAG, "onCreate started");
         super.onCreate(savedInstanceState);
-        // create scheduled executor
-        executor = new ScheduledThreadPoolExecutor(1);
         // bind to IPv6DroidVpnService for statistics
         bindToStatistics();
         timestampFormatter = android.text.format.DateFormat.getTimeFormat(getActivity());
@@ -140,12 +157,6 @@ public class StatisticsFragment extends Fragment implements ServiceConnection {
         if (myActivity != null) {
             myActivity.unbindService(this);
         }
-        if (updaterFuture != null) {
-            updaterFuture.cancel(true);
-            updaterFuture = null;
-        }
-        executor.shutdownNow();
-        executor = null;
         super.onDestroy();
         Log.i(TAG, "Destroyed");
     }
@@ -171,6 +182,17 @@ public class StatisticsFragment extends Fragment implements ServiceConnection {
         timeLapseBetweenBurstsTransmittedView = myView.findViewById(R.id.statistics_pause_between_bursts_transmitted);
         timeSpanPerBurstReceivedView = myView.findViewById(R.id.statistics_time_of_burst_received);
         timeSpanPerBurstTransmittedView = myView.findViewById(R.id.statistics_time_of_burst_transmitted);
+        queueDelayTransmittedView = myView.findViewById(R.id.statistics_queue_delay_transmitted);
+        queueDropsTransmittedView = myView.findViewById(R.id.statistics_queue_drops_transmitted);
+        packetSizeTransmittedView = myView.findViewById(R.id.statistics_packet_size_transmitted);
+        packetSizeReceivedView = myView.findViewById(R.id.statistics_packet_size_received);
+        packetGapTransmittedView = myView.findViewById(R.id.statistics_packet_gap_transmitted);
+        packetGapReceivedView = myView.findViewById(R.id.statistics_packet_gap_received);
+        processingTimeTransmittedView = myView.findViewById(R.id.statistics_processing_time_transmitted);
+        processingTimeReceivedView = myView.findViewById(R.id.statistics_processing_time_received);
+        roundTripTimeView = myView.findViewById(R.id.statistics_round_trip_time);
+        availabilityView = myView.findViewById(R.id.statistics_availability);
+        onDemandView = myView.findViewById(R.id.statistics_on_demand);
         mtuView = myView.findViewById(R.id.statistics_mtu);
         brokerIPv4View = myView.findViewById(R.id.statistics_brokeripv4);
         brokerIPv6View = myView.findViewById(R.id.statistics_brokeripv6);
@@ -182,6 +204,7 @@ public class StatisticsFragment extends Fragment implements ServiceConnection {
         vpnDnsView = myView.findViewById(R.id.statistics_vpn_dns);
         isRoutedView = myView.findViewById(R.id.statistics_isrouted);
         timestampView = myView.findViewById(R.id.statistics_timestamp);
+        throughputGraphView = myView.findViewById(R.id.statistics_throughput_graph);
         Log.i(TAG, "Successfully created view");
         return myView;
     }
@@ -193,33 +216,19 @@ public class StatisticsFragment extends Fragment implements ServiceConnection {
         super.onStart();
         // create the UI Handler
         Handler handler = new RedrawHandler();
-
-        // cancel an existing updater, should not happen
-        if (updaterFuture != null) {
-            Log.e(StatisticsFragment.TAG, "updaterFuture existing in onStart method, should never happen. Trying to cancel");
-            if (updaterFuture.cancel(true))
-                Log.i(StatisticsFragment.TAG, "succeeded to cancel previous updater");
-        }
-        updaterFuture = null;
-        // schedule an updater for execution, keeping the "Future" object returned (needed for cancellation)
-        try {
-            updaterFuture = executor.scheduleWithFixedDelay(new Updater(handler), 0, 1l, TimeUnit.SECONDS);
-        } catch (Exception e) {
-            Log.e(TAG, "Could not schedule statistics updates");
-            View myView = getView();
-            if (myView != null)
-                myView.setVisibility(View.INVISIBLE);
-        }
+        redrawHandler = handler;
+        started = true;
+        subscribeStatistics();
         Log.i(TAG, "Successfully started");
     }
 
     @Override
     public void onStop() {
         Log.d(TAG, "onStop");
-        if (updaterFuture != null) {
-            if (!updaterFuture.cancel(true))
-                Log.e(StatisticsFragment.TAG, "Failed to cancel updater job");
-        }
+        started = false;
+        final IPv6DroidVpnService.StatisticsBinder myBinder = statisticsBinder;
+        if (myBinder != null)
+            myBinder.unsubscribe(this);
         super.onStop();
         Log.i(TAG, "Gracefully stopped");
     }
@@ -228,46 +237,59 @@ public class StatisticsFragment extends Fragment implements ServiceConnection {
     public void onServiceConnected(ComponentName name, IBinder service) {
         Log.d(TAG, "Bound to statistics service of IPv6DroidVpnService");
         statisticsBinder = (IPv6DroidVpnService.StatisticsBinder)service;
+        if (started)
+            subscribeStatistics();
+    }
+
+    /**
+     * Subscribe to statistics changes if bound to the service.
+     */
+    private void subscribeStatistics() {
+        final IPv6DroidVpnService.StatisticsBinder myBinder = statisticsBinder;
+        if (myBinder != null)
+            myBinder.subscribe(this);
     }
 
     @Override
-    public void onServiceDisconnected(ComponentName name) {
-        Log.i(TAG, "Connection to statistics service of IPv6DroidVpnService lost");
-        statisticsBinder = null;
+    public void onSessionChanged(@NonNull SessionStatistics session) {
+        redraw(MSG_SESSION, session);
+    }
+
+    @Override
+    public void onNetworkChanged(@NonNull NetworkStatistics network) {
+        redraw(MSG_NETWORK, network);
+    }
+
+    @Override
+    public void onTrafficChanged(@NonNull Statistics traffic) {
+        redraw(MSG_TRAFFIC, traffic);
+    }
+
+    @Override
+    public void onThroughputSampled(@NonNull ThroughputSamples samples) {
+        redraw(MSG_THROUGHPUT, samples);
+    }
+
+    @Override
+    public void onTunnelDown() {
+        redraw(MSG_TUNNEL_DOWN, null);
     }
 
     /**
-     * a private class that is scheduled for regular execution
+     * Pass a change to the UI thread.
+     * @param what an int giving the MSG_ constant of the change
+     * @param obj the Object carrying the change
      */
-    private class Updater implements Runnable {
-        private final Handler handler;
-        private Statistics oldstats = null;
-
-        public Updater (Handler handler) {
-            this.handler = handler;
-        }
+    private void redraw(int what, Object obj) {
+        final Handler handler = redrawHandler;
+        if (handler != null && started)
+            handler.obtainMessage(what, obj).sendToTarget();
+    }
 
-        @Override
-        public void run() {
-            try {
-                Log.d(TAG, "Statistics refresh");
-                Statistics stats = null;
-                if (statisticsBinder != null) {
-                    stats = statisticsBinder.getStatistics();
-                } else {
-                    bindToStatistics();
-                }
-                // if the statistics differ, send a redraw message
-                if (stats != oldstats // this checks if not both are null
-                   ) {
-                    oldstats = stats;
-                    Message redrawMessage = handler.obtainMessage(0, stats);
-                    redrawMessage.sendToTarget();
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Updating statistics failed", e);
-            }
-        }
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        Log.i(TAG, "Connection to statistics service of IPv6DroidVpnService lost");
+        statisticsBinder = null;
     }
 
     /**
@@ -288,44 +310,88 @@ public class StatisticsFragment extends Fragment implements ServiceConnection {
             View myView = getView();
             if (myView == null)
                 return; // happens during reconstruction of view hierarchy, e.g. when device orientation changed
-            Log.d(TAG, "Redrawing Statistics");
-
-            Statistics stats = (Statistics)inputMessage.obj;
-            if (stats == null) {
-                myView.setVisibility(View.INVISIBLE);
-            } else {
-                myView.setVisibility(View.VISIBLE);
-                updateTextView(startedAt, timestampFormatter.format(stats.getStartedAt()));
-                updateTextView(reconnects, stats.getReconnectCount());
-                updateTextView(bytesTransmittedView, stats.getBytesTransmitted());
-                updateTextView(bytesReceivedView, stats.getBytesReceived());
-                updateTextView(packetsTransmittedView, stats.getPacketsTransmitted());
-                updateTextView(packetsReceivedView, stats.getPacketsReceived());
-                updateTextView(bytesPerBurstTransmittedView, stats.getBytesPerBurstTransmitted());
-                updateTextView(bytesPerBurstReceivedView, stats.getBytesPerBurstReceived());
-                updateTextView(packetsPerBurstTransmittedView, stats.getPacketsPerBurstTransmitted());
-                updateTextView(packetsPerBurstReceivedView, stats.getPacketsPerBurstReceived());
-                updateTextView(timeSpanPerBurstTransmittedView, stats.getTimeSpanPerBurstTransmitted());
-                updateTextView(timeSpanPerBurstReceivedView, stats.getTimeSpanPerBurstReceived());
-                updateTextView(timeLapseBetweenBurstsTransmittedView, stats.getTimeLapseBetweenBurstsTransmitted());
-                updateTextView(timeLapseBetweenBurstsReceivedView, stats.getTimeLapseBetweenBurstsReceived());
-                updateTextView(mtuView, stats.getMtu());
-                updateTextView(brokerIPv4View, stats.getBrokerIPv4());
-                updateTextView(brokerIPv6View, stats.getBrokerIPv6());
-                updateTextView(myIPv4View, stats.getMyIPv4());
-                updateTextView(myIPv6View, stats.getMyIPv6());
-                updateTextView(nativeRoutesView, stats.getNativeRouting());
-                updateTextView(vpnRoutesView, stats.getVpnRouting());
-                updateTextView(nativeDnsView, stats.getNativeDnsSetting());
-                updateTextView(vpnDnsView, stats.getVpnDnsSetting());
-                updateTextView(timestampView, stats.getTimestamp() == null ? "??" : timestampFormatter.format(stats.getTimestamp()));
-                updateTextView(isRoutedView, getString(
-                        stats.isTunnelRouted() ?
-                                R.string.statistics_isrouted_yes :
-                                R.string.statistics_isrouted_no));
+            switch (inputMessage.what) {
+                case MSG_THROUGHPUT:
+                    if (throughputGraphView != null)
+                        throughputGraphView.append((ThroughputSamples) inputMessage.obj);
+                    break;
+                case MSG_TUNNEL_DOWN:
+                    myView.setVisibility(View.INVISIBLE);
+                    break;
+                case MSG_SESSION:
+                    myView.setVisibility(View.VISIBLE);
+                    redrawSession((SessionStatistics) inputMessage.obj);
+                    break;
+                case MSG_NETWORK:
+                    redrawNetwork((NetworkStatistics) inputMessage.obj);
+                    break;
+                case MSG_TRAFFIC:
+                    redrawTraffic((Statistics) inputMessage.obj);
+                    break;
             }
         }
 
+        private void redrawSession(SessionStatistics session) {
+            Log.d(TAG, "Redrawing session statistics");
+            updateTextView(startedAt, timestampFormatter.format(session.getStartedAt()));
+            updateTextView(mtuView, session.getMtu());
+            updateTextView(brokerIPv4View, session.getBrokerIPv4());
+            updateTextView(brokerIPv6View, session.getBrokerIPv6());
+            updateTextView(myIPv6View, session.getMyIPv6());
+        }
+
+        private void redrawNetwork(NetworkStatistics network) {
+            Log.d(TAG, "Redrawing network statistics");
+            updateTextView(myIPv4View, network.getMyIPv4());
+            updateTextView(nativeRoutesView, network.getNativeRouting());
+            updateTextView(vpnRoutesView, network.getVpnRouting());
+            updateTextView(nativeDnsView, network.getNativeDnsSetting());
+            updateTextView(vpnDnsView, network.getVpnDnsSetting());
+            updateTextView(isRoutedView, getString(
+                    network.isTunnelRouted() ?
+                            R.string.statistics_isrouted_yes :
+                            R.string.statistics_isrouted_no));
+        }
+
+        private void redrawTraffic(Statistics stats) {
+            Log.d(TAG, "Redrawing traffic statistics");
+            updateTextView(reconnects, stats.getReconnectCount());
+            updateTextView(bytesTransmittedView, stats.getBytesTransmitted());
+            updateTextView(bytesReceivedView, stats.getBytesReceived());
+            updateTextView(packetsTransmittedView, stats.getPacketsTransmitted());
+            updateTextView(packetsReceivedView, stats.getPacketsReceived());
+            updateTextView(bytesPerBurstTransmittedView, stats.getBytesPerBurstTransmitted());
+            updateTextView(bytesPerBurstReceivedView, stats.getBytesPerBurstReceived());
+            updateTextView(packetsPerBurstTransmittedView, stats.getPacketsPerBurstTransmitted());
+            updateTextView(packetsPerBurstReceivedView, stats.getPacketsPerBurstReceived());
+            updateTextView(timeSpanPerBurstTransmittedView, stats.getTimeSpanPerBurstTransmitted());
+            updateTextView(timeSpanPerBurstReceivedView, stats.getTimeSpanPerBurstReceived());
+            updateTextView(timeLapseBetweenBurstsTransmittedView, stats.getTimeLapseBetweenBurstsTransmitted());
+            updateTextView(timeLapseBetweenBurstsReceivedView, stats.getTimeLapseBetweenBurstsReceived());
+            updateTextView(queueDelayTransmittedView, stats.getQueueDelayTransmitted());
+            updateTextView(queueDropsTransmittedView, stats.getQueueDropsTransmitted());
+            updateTextView(packetSizeTransmittedView, stats.getPacketSizeTransmitted());
+            updateTextView(packetSizeReceivedView, stats.getPacketSizeReceived());
+            updateTextView(packetGapTransmittedView, stats.getPacketGapTransmitted());
+            updateTextView(packetGapReceivedView, stats.getPacketGapReceived());
+            updateTextView(processingTimeTransmittedView, stats.getProcessingTimeTransmitted());
+            updateTextView(processingTimeReceivedView, stats.getProcessingTimeReceived());
+            updateTextView(roundTripTimeView, Double.isNaN(stats.getRoundTripTime()) ? "-" :
+                    getString(R.string.statistics_round_trip_time_value,
+                            numberFormat.format(stats.getRoundTripTime()),
+                            numberFormat.format(stats.getRoundTripTimeVariation()),
+                            numberFormat.format(100.0 * stats.getProbeLossRate())));
+            updateTextView(availabilityView, Double.isNaN(stats.getAvailability()) ? "-" :
+                    getString(R.string.statistics_availability_value,
+                            numberFormat.format(100.0 * stats.getAvailability()),
+                            Double.isNaN(stats.getMeanTimeToRepair()) ? "-" :
+                                    numberFormat.format(stats.getMeanTimeToRepair() / 1000.0),
+                            stats.getOutageCount()));
+            updateTextView(onDemandView, getString(R.string.statistics_on_demand_value,
+                    stats.getIdleCount(), stats.getWakeCount()));
+            updateTextView(timestampView, stats.getTimestamp() == null ? "??" : timestampFormatter.format(stats.getTimestamp()));
+        }
+
         /**
          * Helper method to update a TextView's text only if the text changed. Reason is that text
          * selection by the user is cancelled by TextView.setText.
@@ -350,6 +416,18 @@ public class StatisticsFragment extends Fragment implements ServiceConnection {
             }
         }
 
+        private boolean updateTextView (TextView textView, Percentiles newValue) {
+            if (newValue == null) {
+                return updateTextView(textView, "-");
+            } else {
+                return updateTextView(textView,
+                        numberFormat.format(newValue.getP50()) + " / " +
+                        numberFormat.format(newValue.getP90()) + " / " +
+                        numberFormat.format(newValue.getP99()) + " / " +
+                        numberFormat.format(newValue.getP999()));
+            }
+        }
+
         private boolean updateTextView (TextView textView, long newValue) {
             return updateTextView(textView, numberFormat.format(newValue));
         }
@@ -0,0 +1,188 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.statusdetail;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import de.flyingsnail.ipv6droid.android.statistics.ThroughputSamples;
+
+/**
+ * A View drawing the bytes per second transmitted and received over the last minutes, as
+ * delivered by the per-second {@link de.flyingsnail.ipv6droid.android.statistics.ThroughputSeries}.
+ * Reconnects are marked by vertical lines, the round trip time is drawn on a scale of its own.
+ * <p>The samples shown are kept in fixed-size local arrays; new samples are appended by
+ * {@link #append(ThroughputSamples)}.</p>
+ */
+public class ThroughputGraphView extends View {
+    /** The number of seconds shown */
+    private static final int CAPACITY = 300;
+
+    private final float[] bytesTransmitted = new float[CAPACITY];
+    private final float[] bytesReceived = new float[CAPACITY];
+    private final boolean[] reconnect = new boolean[CAPACITY];
+    private final float[] roundTripTime = new float[CAPACITY];
+    // the number of valid samples in the arrays
+    private int size = 0;
+    // the position of the next sample in the arrays
+    private int next = 0;
+
+    // the identity of the series that the samples came from
+    private long seriesStartTime = -1L;
+    // the index of the next sample to request from the series
+    private long nextIndex = 0L;
+
+    private final Paint transmittedPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint receivedPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint reconnectPaint = new Paint();
+    private final Paint rttPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint axisPaint = new Paint();
+    // the line segments to draw, allocated once: 4 coordinates per segment
+    private final float[] lines = new float[4 * CAPACITY];
+
+    public ThroughputGraphView(Context context) {
+        this(context, null);
+    }
+
+    public ThroughputGraphView(Context context, @Nullable AttributeSet attrs) {
+        super(context, attrs);
+        float density = context.getResources().getDisplayMetrics().density;
+        transmittedPaint.setColor(Color.rgb(0x21, 0x96, 0xf3));
+        transmittedPaint.setStrokeWidth(1.5f * density);
+        receivedPaint.setColor(Color.rgb(0x4c, 0xaf, 0x50));
+        receivedPaint.setStrokeWidth(1.5f * density);
+        reconnectPaint.setColor(Color.RED);
+        reconnectPaint.setStrokeWidth(density);
+        rttPaint.setColor(Color.GRAY);
+        rttPaint.setStrokeWidth(density);
+        axisPaint.setColor(Color.LTGRAY);
+        axisPaint.setTextSize(10f * density);
+    }
+
+    /**
+     * Get the index of the next sample that this view expects.
+     * @return a long giving the index to request samples since
+     */
+    public long getNextIndex() {
+        return nextIndex;
+    }
+
+    /**
+     * Append samples to the graph and redraw. If the samples are from a different series than
+     * those shown so far, the graph is cleared first.
+     * @param samples the per-second ThroughputSamples to append
+     */
+    public void append(@NonNull ThroughputSamples samples) {
+        if (samples.getSeriesStartTime() != seriesStartTime || samples.getFirstIndex() > nextIndex) {
+            // a new series, or we missed samples
+            size = 0;
+            next = 0;
+            seriesStartTime = samples.getSeriesStartTime();
+        }
+        float secondsPerSample = samples.getIntervalMillis() / 1000f;
+        for (int i = 0; i < samples.size(); i++) {
+            bytesTransmitted[next] = samples.getBytesTransmitted(i) / secondsPerSample;
+            bytesReceived[next] = samples.getBytesReceived(i) / secondsPerSample;
+            reconnect[next] = samples.getReconnects(i) > 0;
+            roundTripTime[next] = samples.getRoundTripTime(i);
+            next = (next + 1) % CAPACITY;
+            size = Math.min(size + 1, CAPACITY);
+        }
+        nextIndex = samples.getNextIndex();
+        if (samples.size() > 0)
+            invalidate();
+    }
+
+    @Override
+    protected void onDraw(@NonNull Canvas canvas) {
+        super.onDraw(canvas);
+        final int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        final int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        if (width <= 0 || height <= 0)
+            return;
+        final float left = getPaddingLeft();
+        final float bottom = getPaddingTop() + height;
+        canvas.drawLine(left, bottom, left + width, bottom, axisPaint);
+        if (size < 2)
+            return;
+
+        float maxBytes = 1f;
+        float maxRtt = 0f;
+        for (int i = 0; i < size; i++) {
+            maxBytes = Math.max(maxBytes, Math.max(bytesTransmitted[i], bytesReceived[i]));
+            if (!Float.isNaN(roundTripTime[i]))
+                maxRtt = Math.max(maxRtt, roundTripTime[i]);
+        }
+        final float xStep = (float) width / (CAPACITY - 1);
+        final float xStart = left + (CAPACITY - size) * xStep;
+        final int first = (next - size + CAPACITY) % CAPACITY;
+
+        for (int i = 0; i < size; i++) {
+            if (reconnect[(first + i) % CAPACITY]) {
+                float x = xStart + i * xStep;
+                canvas.drawLine(x, bottom, x, bottom - height, reconnectPaint);
+            }
+        }
+        if (maxRtt > 0f) {
+            // round trip times are measured rarely, so they are drawn as dots
+            final float rttScale = height / maxRtt;
+            final float radius = rttPaint.getStrokeWidth() * 2f;
+            for (int i = 0; i < size; i++) {
+                float rtt = roundTripTime[(first + i) % CAPACITY];
+                if (!Float.isNaN(rtt))
+                    canvas.drawCircle(xStart + i * xStep, bottom - rtt * rttScale, radius, rttPaint);
+            }
+        }
+        final float yScale = height / maxBytes;
+        drawSeries(canvas, bytesReceived, first, xStart, xStep, bottom, yScale, receivedPaint);
+        drawSeries(canvas, bytesTransmitted, first, xStart, xStep, bottom, yScale, transmittedPaint);
+        canvas.drawText(android.text.format.Formatter.formatShortFileSize(getContext(), (long) maxBytes) + "/s",
+                left, getPaddingTop() + axisPaint.getTextSize(), axisPaint);
+    }
+
+    /**
+     * Draw one of the value arrays as a polyline.
+     */
+    private void drawSeries(Canvas canvas, float[] values, int first, float xStart, float xStep,
+                            float bottom, float yScale, Paint paint) {
+        int count = 0;
+        for (int i = 1; i < size; i++) {
+            float v0 = values[(first + i - 1) % CAPACITY];
+            float v1 = values[(first + i) % CAPACITY];
+            lines[count++] = xStart + (i - 1) * xStep;
+            lines[count++] = bottom - v0 * yScale;
+            lines[count++] = xStart + i * xStep;
+            lines[count++] = bottom - v1 * yScale;
+        }
+        if (count > 0)
+            canvas.drawLines(lines, 0, count, paint);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Random;
+
+import de.flyingsnail.ipv6droid.android.statistics.OutageRecord;
+import de.flyingsnail.ipv6droid.transport.AuthenticationFailedException;
+import de.flyingsnail.ipv6droid.transport.TunnelRejectedException;
+
+/**
+ * The default ReconnectPolicy. A change of the network is retried immediately, as is the first
+ * failure after the tunnel worked. Further failures back off exponentially with jitter, so that
+ * a PoP that is down is not hammered by all its clients at once. A PoP rejecting the tunnel, e.g.
+ * for authentication or clock problems, is retried with a much longer backoff. Both backoffs
+ * are reset when the tunnel works again.
+ */
+class BackoffReconnectPolicy implements ReconnectPolicy {
+    /**
+     * The delay in milliseconds of the first backoff after a transient failure.
+     */
+    static final long TRANSIENT_BASE_MILLIS = 500L;
+
+    /**
+     * The maximum delay in milliseconds after transient failures.
+     */
+    static final long TRANSIENT_MAX_MILLIS = 5L * 60L * 1000L;
+
+    /**
+     * The delay in milliseconds after the first rejection by the PoP.
+     */
+    static final long REJECTED_BASE_MILLIS = 60L * 1000L;
+
+    /**
+     * The maximum delay in milliseconds after rejections by the PoP.
+     */
+    static final long REJECTED_MAX_MILLIS = 30L * 60L * 1000L;
+
+    private final Random random;
+
+    // the number of transient failures since the tunnel last worked
+    private int transientFailures = 0;
+
+    // the number of rejections since the tunnel last worked
+    private int rejections = 0;
+
+    BackoffReconnectPolicy() {
+        this(new Random());
+    }
+
+    /**
+     * Constructor.
+     * @param random the Random to draw the jitter from
+     */
+    BackoffReconnectPolicy(@NonNull Random random) {
+        this.random = random;
+    }
+
+    @Override
+    public synchronized long nextDelay(int trigger, @Nullable Throwable cause) {
+        if (isRejection(cause))
+            return backoff(REJECTED_BASE_MILLIS, REJECTED_MAX_MILLIS, rejections++);
+        switch (trigger) {
+            case OutageRecord.TRIGGER_NETWORK_LOST:
+            case OutageRecord.TRIGGER_NETWORK_CHANGED:
+            case OutageRecord.TRIGGER_ROUTING_CHANGED:
+                // a new network deserves a new attempt, waiting for connectivity is done elsewhere
+                return 0L;
+            default:
+                // a single blip is retried immediately
+                final int failures = transientFailures++;
+                return failures == 0 ? 0L : backoff(TRANSIENT_BASE_MILLIS, TRANSIENT_MAX_MILLIS, failures - 1);
+        }
+    }
+
+    @Override
+    public synchronized void connected() {
+        transientFailures = 0;
+        rejections = 0;
+    }
+
+    /**
+     * Calculate an exponential backoff with jitter. The result is drawn uniformly from the upper
+     * half of the nominal delay, so it never drops far below the nominal value.
+     * @param base a long giving the nominal delay of the first backoff
+     * @param max a long giving the maximum nominal delay
+     * @param exponent an int giving the number of doublings of the base
+     * @return a long giving the delay in milliseconds
+     */
+    private long backoff(long base, long max, int exponent) {
+        final long nominal = exponent >= Long.numberOfLeadingZeros(base) - 1 ?
+                max :
+                Math.min(max, base << exponent);
+        return nominal / 2 + (long) (random.nextDouble() * (nominal - nominal / 2));
+    }
+
+    /**
+     * Check if the PoP refused to serve the tunnel.
+     * @param cause the Throwable that made the tunnel go down, or null
+     * @return true if cause or one of its causes is a rejection by the PoP
+     */
+    private static boolean isRejection(@Nullable Throwable cause) {
+        for (Throwable t = cause; t != null; t = t.getCause()) {
+            if (t instanceof TunnelRejectedException || t instanceof AuthenticationFailedException)
+                return true;
+            if (t.getCause() == t)
+                break;
+        }
+        return false;
+    }
+}
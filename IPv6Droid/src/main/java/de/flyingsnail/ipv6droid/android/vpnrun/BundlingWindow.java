@@ -0,0 +1,151 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Decides how long outgoing packets may be held back to bundle them into a batch. Bundling
+ * saves radio wakeups and per-packet overhead, but adds latency. So the window adapts to the
+ * traffic: as long as packets arrive sparsely, as with interactive use, they are not held at
+ * all; when packets come at a bulk rate, or the screen is off and nobody waits for an answer,
+ * packets are held for the full period or until a batch is complete.
+ */
+class BundlingWindow {
+    private static final String TAG = BundlingWindow.class.getName();
+
+    /**
+     * Rolling average of the gap between packets below which traffic is considered bulk,
+     * in nanos. This corresponds to 100 packets per second.
+     */
+    private static final long BULK_PACKET_GAP = 10000000L;
+
+    /**
+     * Shift giving the weight of a new sample in the rolling average of packet gaps (1/8).
+     */
+    private static final int GAP_AVERAGE_SHIFT = 3;
+
+    /**
+     * The share of the scheduler's slots that a batch may take at most, as a divisor. The slots
+     * of a batch stay taken until it is sent, so the scheduler must keep room for new packets.
+     */
+    static final int BATCH_CAPACITY_DIVISOR = 4;
+
+    private final long periodNanos;
+    private final int maxPackets;
+
+    // the time of the last packet offered and the rolling average gap between packets
+    private long lastPacketTime = 0L;
+    private volatile long averagePacketGap = Long.MAX_VALUE;
+
+    // a flag set while the device is not interactive
+    private volatile boolean screenOff = false;
+
+    private final BroadcastReceiver screenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            screenOff = Intent.ACTION_SCREEN_OFF.equals(intent.getAction());
+            Log.d(TAG, "Screen state changed, screen off: " + screenOff);
+        }
+    };
+    private Context registeredContext = null;
+
+    /**
+     * Constructor.
+     * @param periodMillis an int giving the maximum time in milliseconds that packets are held
+     * @param maxPackets an int giving the number of packets that complete a batch
+     * @param schedulerCapacity an int giving the number of packets the scheduler can hold;
+     *                          maxPackets is limited to a quarter of it
+     */
+    BundlingWindow(int periodMillis, int maxPackets, int schedulerCapacity) {
+        this.periodNanos = Math.max(0, periodMillis) * 1000000L;
+        this.maxPackets = Math.max(1, Math.min(maxPackets, schedulerCapacity / BATCH_CAPACITY_DIVISOR));
+    }
+
+    /**
+     * Start following the screen state.
+     * @param context the Context to register the screen state receiver with
+     */
+    synchronized void start(Context context) {
+        if (registeredContext != null)
+            return;
+        IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_OFF);
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        context.registerReceiver(screenReceiver, filter);
+        registeredContext = context;
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        screenOff = powerManager != null && !powerManager.isInteractive();
+    }
+
+    /**
+     * Stop following the screen state. It is possible to use this object by a later call to
+     * #start(Context).
+     */
+    synchronized void stop() {
+        if (registeredContext == null)
+            return;
+        try {
+            registeredContext.unregisterReceiver(screenReceiver);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Unable to unregister screen state receiver", e);
+        } finally {
+            registeredContext = null;
+            screenOff = false;
+        }
+    }
+
+    /**
+     * Account for a packet to send. This must be called from one thread only.
+     */
+    void packetOffered() {
+        long now = System.nanoTime();
+        if (lastPacketTime != 0L) {
+            long gap = now - lastPacketTime;
+            long average = averagePacketGap;
+            averagePacketGap = (average == Long.MAX_VALUE) ? gap :
+                    average + ((gap - average) >> GAP_AVERAGE_SHIFT);
+        }
+        lastPacketTime = now;
+    }
+
+    /**
+     * Get the time that packets may currently be held to complete a batch.
+     * @return a long giving the time in nanos, 0 for interactive traffic.
+     */
+    long getHoldNanos() {
+        return (screenOff || averagePacketGap < BULK_PACKET_GAP) ? periodNanos : 0L;
+    }
+
+    /**
+     * @return an int giving the number of packets that complete a batch.
+     */
+    int getMaxPackets() {
+        return maxPackets;
+    }
+}
@@ -31,13 +31,13 @@ import androidx.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Date;
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.nio.ByteBuffer;
 
 import de.flyingsnail.ipv6droid.R;
 import de.flyingsnail.ipv6droid.android.UserNotificationCallback;
+import de.flyingsnail.ipv6droid.android.statistics.SpanTracer;
 import de.flyingsnail.ipv6droid.android.statistics.TransmissionStatistics;
+import de.flyingsnail.ipv6droid.transport.TransporterOutputStream;
 
 /**
  * A helper class that basically allows to run a thread that copies packets from an input
@@ -50,48 +50,84 @@ class CopyThread extends Thread {
     // the stream to write to
     private OutputStream out;
     // a flag that indicates that this thread should stop itself
-    private boolean stopCopy;
+    private volatile boolean stopCopy;
     private final int networkTag;
     // instance of the service controlling this thread
     private final UserNotificationCallback service;
-    // instance of the RemoteEnd controlling the copy threads.
-    private final RemoteEnd remoteEnd;
-    // time when last packet received
-    private Date lastPacketReceived;
+    // instance controlling the copy threads, i.e. the RemoteEnd
+    private final Controller remoteEnd;
+    // a flag that indicates that the first packet since the last expectFirstPacket was copied
+    private volatile boolean packetReceived;
     // the instance that will keep statistics for this copy thread
     private final TransmissionStatistics statisticsCollector;
 
     // the throwable that caused this thread to die
     private Throwable deathCause;
 
-    // The time to wait for additional packets until sending them out
-    private final long packetBundlingPeriod;
-    // The maximum size of packet buffer
+    // The decision on the time to wait for additional packets until sending them out, or null
+    private final @Nullable BundlingWindow bundlingWindow;
+    // The maximum number of packets written in one batch if no bundling window is given
     private final static int MAX_PACKET_BUFFER_LENGTH = 10;
-    // the outgoing packet queue
-    private final Queue<byte[]> packetQueue;
-    // the pool of unused packet buffers
-    private final Queue<byte[]> bufferPool;
+    // the buffer to read packets into
+    private final byte[] packetBuffer = new byte[32767];
+    // the scheduler that packets are passed to instead of writing them to out directly, or null
+    private final @Nullable FlowScheduler scheduler;
+    // the thread writing packets from the scheduler to out
+    private Thread schedulerDrain;
+    // the tap to pass packets read to the packet capture, or null
+    private final @Nullable PacketCapture.Tap captureTap;
+
+    /**
+     * The view of a copy thread on the instance controlling it. Implemented by RemoteEnd.
+     */
+    interface Controller {
+        /**
+         * @return the TunnelRuntime to create additional threads in
+         */
+        @NonNull TunnelRuntime getRuntime();
+
+        /**
+         * Called by a copy thread if its first packet, or the first after
+         * {@link CopyThread#expectFirstPacket()}, was copied.
+         * @param copyThread the CopyThread that copied the packet
+         */
+        void notifyFirstPacketReceived(@NonNull CopyThread copyThread);
+
+        /**
+         * Called by a copy thread when it ends.
+         * @param diedThread the CopyThread ending
+         */
+        void copyThreadDied(@NonNull CopyThread diedThread);
+    }
 
     /**
      * Instantiate and run(!) a thread that copies from in to out until interrupted.
      * @param in The stream to copy from.
      * @param out The stream to copy to.
      * @param service the service instance of the active IPv6DroidVpnService that controls this thread.
-     * @param remoteEnd the RemoteEnd controlling the copy threads.
+     * @param remoteEnd the Controller of the copy threads, i.e. the RemoteEnd.
      * @param threadName a String giving the name of the Thread (as shown in some logs and debuggers)
      * @param networkTag an int representing the tag for network statistics of this thread
-     * @param packetBundlingPeriod a long that gives the time in millisecs that the copy thread will try
-     *                             to delay until a packet is sent out, waiting for additional packets.
+     * @param bundlingWindow a BundlingWindow that gives the time that the copy thread will try
+     *                       to delay until a packet is sent out, waiting for additional packets,
+     *                       or null to send packets as soon as possible. Only effective with
+     *                       a scheduler.
+     * @param statisticsCollector the TransmissionStatistics to update on each packet copied
+     * @param scheduler a FlowScheduler that decides on the order of packets written to out, or null
+     *                  to write each packet immediately.
+     * @param captureTap a PacketCapture.Tap that each packet read is passed to, or null if
+     *                   packets are not captured.
      */
     public CopyThread(final @NonNull InputStream in,
                       final @NonNull OutputStream out,
                       final @NonNull UserNotificationCallback service,
-                      @NonNull RemoteEnd remoteEnd,
+                      @NonNull Controller remoteEnd,
                       @NonNull String threadName,
                       int networkTag,
-                      long packetBundlingPeriod,
-                      TransmissionStatistics statisticsCollector
+                      @Nullable BundlingWindow bundlingWindow,
+                      TransmissionStatistics statisticsCollector,
+                      @Nullable FlowScheduler scheduler,
+                      @Nullable PacketCapture.Tap captureTap
     ) {
         super();
         this.in = in;
@@ -100,14 +136,10 @@ class CopyThread extends Thread {
         this.setName(threadName);
         this.service = service;
         this.remoteEnd = remoteEnd;
-        this.packetBundlingPeriod = packetBundlingPeriod;
-        int packetBufferLength = (packetBundlingPeriod > 0) ? MAX_PACKET_BUFFER_LENGTH : 0;
+        this.bundlingWindow = bundlingWindow;
         this.statisticsCollector = statisticsCollector;
-        // allocate packet buffer
-        packetQueue = new ArrayBlockingQueue<>(packetBufferLength == 0 ? 1 : packetBufferLength);
-        bufferPool = new ArrayBlockingQueue<>(packetBufferLength + 1);
-        for (int i = 0; i <= packetBufferLength; i++)
-            bufferPool.add(new byte[32767]);
+        this.scheduler = scheduler;
+        this.captureTap = captureTap;
     }
 
     /**
@@ -116,9 +148,13 @@ class CopyThread extends Thread {
     public void stopCopy() {
         if (!stopCopy) {
             Log.i(TAG, "Stopping copy thread " + getName());
+            SpanTracer.instant("stop copy thread", "thread", getName());
             stopCopy = true;
             if (this.isAlive())
                 this.interrupt();
+            final Thread myDrain = schedulerDrain;
+            if (myDrain != null)
+                myDrain.interrupt();
             cleanAll();
             setName(getName() + " (shutting down)");
         }
@@ -150,34 +186,44 @@ class CopyThread extends Thread {
             }
             out = null;
         }
-        bufferPool.clear();
-        packetQueue.clear();
         deathCause = null;
         Log.i(TAG, "Cleanup of " + getName() + " finished");
     }
 
     @Override
     public void run() {
+        final long runSpan = SpanTracer.begin();
         try {
             TrafficStats.setThreadStatsTag(networkTag);
             Log.i(TAG, "Copy thread started");
 
             int recvZero = 0;
-            long lastWrite = new Date().getTime();
-            stopCopy = false;
-            boolean packetReceived = false;
+            if (scheduler != null) {
+                schedulerDrain = remoteEnd.getRuntime().newThread(this::drainScheduler, getName() + " (scheduler)");
+                schedulerDrain.start();
+            }
 
             // @TODO there *must* be a suitable utility class for that...?
             while (!stopCopy) {
-                byte[]packet = bufferPool.remove();
+                final byte[] packet = packetBuffer;
                 int len = in.read (packet); // actually, the thread might hang here for a loooong time
                 if (len < 0 || stopCopy || isInterrupted())
                     break;
                 if (len > 0) {
-                    out.write(packet, 0, len);
+                    final long readTime = System.nanoTime();
+                    if (captureTap != null)
+                        captureTap.capture(packet, len);
+                    if (scheduler != null) {
+                        if (bundlingWindow != null)
+                            bundlingWindow.packetOffered();
+                        scheduler.offer(packet, 0, len);
+                    } else {
+                        out.write(packet, 0, len);
+                        statisticsCollector.updateProcessingTime(System.nanoTime() - readTime);
+                    }
                     // statistics
                     if (!packetReceived) {
-                        remoteEnd.notifyFirstPacketReceived();
+                        remoteEnd.notifyFirstPacketReceived(this);
                         packetReceived = true;
                     }
 
@@ -194,7 +240,6 @@ class CopyThread extends Thread {
                     //noinspection BusyWait
                     Thread.sleep(100 + (Math.min(recvZero, 10000))); // wait minimum 0.1, maximum 10 seconds
                 }
-                bufferPool.add(packet);
             }
             Log.i(TAG, "Copy thread " + getName() + " ordinarily stopped");
         } catch (InterruptedException | IOException e) {
@@ -204,11 +249,71 @@ class CopyThread extends Thread {
             Log.e(TAG, "Copy thread " + getName() + " got exception", e);
             service.notifyUserOfError(R.string.copythreadexception, e);
         } finally {
+            final Thread myDrain = schedulerDrain;
+            if (myDrain != null)
+                myDrain.interrupt();
             cleanAll();
             remoteEnd.copyThreadDied(this);
+            SpanTracer.end("copy thread", runSpan, "deathCause", deathCause == null ? null : deathCause.toString());
         }
     }
 
+    /**
+     * Write packets in the order given by the scheduler to out. Packets are taken from the
+     * scheduler in batches, held back as long as the bundling window suggests, and each batch
+     * is written by a single call if out supports it. This runs in a separate thread
+     * as long as this copy thread runs; a failure to write terminates the copy thread.
+     */
+    private void drainScheduler() {
+        final FlowScheduler myScheduler = scheduler;
+        final OutputStream myOut = out; // avoid race condition with cleanAll
+        final BundlingWindow myWindow = bundlingWindow;
+        if (myScheduler == null || myOut == null)
+            return;
+        final long drainSpan = SpanTracer.begin();
+        final int[] slots = new int[myWindow != null ? myWindow.getMaxPackets() : MAX_PACKET_BUFFER_LENGTH];
+        final ByteBuffer[] batch = new ByteBuffer[slots.length];
+        try {
+            TrafficStats.setThreadStatsTag(networkTag);
+            while (!stopCopy) {
+                int count = myScheduler.takeBatch(slots, myWindow != null ? myWindow.getHoldNanos() : 0L);
+                try {
+                    if (myOut instanceof TransporterOutputStream) {
+                        for (int i = 0; i < count; i++)
+                            batch[i] = myScheduler.getBuffer(slots[i]);
+                        ((TransporterOutputStream) myOut).write(batch, count);
+                    } else {
+                        for (int i = 0; i < count; i++)
+                            myOut.write(myScheduler.getPacket(slots[i]), 0, myScheduler.getLength(slots[i]));
+                    }
+                    final long sentTime = System.nanoTime();
+                    for (int i = 0; i < count; i++)
+                        statisticsCollector.updateProcessingTime(sentTime - myScheduler.getEnqueueTime(slots[i]));
+                } finally {
+                    for (int i = 0; i < count; i++)
+                        myScheduler.release(slots[i]);
+                }
+            }
+        } catch (InterruptedException | IOException e) {
+            Log.i(TAG, "Scheduler drain of " + getName() + " ran into expected Exception, will end gracefully", e);
+        } catch (Exception e) {
+            Log.e(TAG, "Scheduler drain of " + getName() + " got exception", e);
+            service.notifyUserOfError(R.string.copythreadexception, e);
+        } finally {
+            if (!stopCopy)
+                stopCopy();
+            SpanTracer.end("scheduler drain", drainSpan);
+        }
+    }
+
+    /**
+     * Make this thread notify the remote end of the next packet copied, as it did for the first
+     * packet after it started. Used when a new transporter is attached to the running thread.
+     */
+    void expectFirstPacket() {
+        packetReceived = false;
+    }
+
     public @Nullable Throwable getDeathCause() {
         return deathCause;
     }
@@ -0,0 +1,538 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+/**
+ * A packet scheduler for the outgoing direction, following the ideas of fq_codel (RFC 8290).
+ * <p>Packets are hashed by their IPv6 5-tuple into a fixed number of flow queues which are
+ * served by deficit round robin. Flows that just became active are served before flows that
+ * keep a standing backlog, so that sparse, interactive traffic (DNS, TCP ACKs, keystrokes)
+ * overtakes bulk uploads. Each flow queue is managed by CoDel (RFC 8289), dropping packets
+ * whose sojourn time stays above the target delay for longer than an interval.</p>
+ * <p>All storage is allocated at construction time. Packets are copied into preallocated slots
+ * and referred to by slot index; a consumer obtains a number of slots by
+ * {@link #takeBatch(int[], long)} and must hand each back by {@link #release(int)} after
+ * sending the packet. The scheduler is intended for one producer and one consumer thread.</p>
+ */
+class FlowScheduler {
+    private static final String TAG = FlowScheduler.class.getName();
+
+    /** Marker for an empty index in the linked lists */
+    private static final int NONE = -1;
+
+    /** Flow list membership markers */
+    private static final byte LIST_NONE = 0;
+    private static final byte LIST_NEW = 1;
+    private static final byte LIST_OLD = 2;
+
+    /** IPv6 next header values of protocols having ports in their first four bytes */
+    private static final int IPPROTO_TCP = 6;
+    private static final int IPPROTO_UDP = 17;
+
+    /** Factor for the rolling average of queue delays */
+    private static final double DELAY_AVERAGE_WEIGHT = 0.05;
+
+    // packet slots
+    private final byte[][] slotData;
+    private final ByteBuffer[] slotBuffer;
+    private final int[] slotLength;
+    private final long[] slotEnqueueTime;
+    private final int[] slotNext;
+    private int freeHead;
+
+    // flow queues
+    private final int[] flowHead;
+    private final int[] flowTail;
+    private final int[] flowBacklog;
+    private final int[] flowDeficit;
+    private final int[] flowListNext;
+    private final byte[] flowList;
+    private int newFlowsHead = NONE;
+    private int newFlowsTail = NONE;
+    private int oldFlowsHead = NONE;
+    private int oldFlowsTail = NONE;
+
+    // CoDel state per flow
+    private final long[] codelFirstAboveTime;
+    private final long[] codelDropNext;
+    private final int[] codelCount;
+    private final int[] codelLastCount;
+    private final boolean[] codelDropping;
+    // result flag of the last doDequeue call
+    private boolean okToDrop;
+
+    private final int quantum;
+    private final int maxPacketLength;
+    private final long target;
+    private final long interval;
+    private final int hashPerturbation;
+
+    // nanoTime when the oldest packet not yet taken by a batch was queued
+    private long batchStartTime = 0L;
+    // the time in nanos that packets are currently held on purpose, not counted against target
+    private long holdAllowance = 0L;
+
+    // statistics
+    private int backlogPackets = 0;
+    private long codelDropCount = 0L;
+    private long overflowDropCount = 0L;
+    private double averageQueueDelay = 0.0;
+    private long maxQueueDelay = 0L;
+
+    /**
+     * Constructor.
+     * @param flowCount an int giving the number of flow queues
+     * @param capacity an int giving the total number of packets that can be queued
+     * @param maxPacketLength an int giving the maximum length of a single packet
+     * @param targetMillis an int giving the acceptable standing queue delay in milliseconds
+     * @param intervalMillis an int giving the time in milliseconds that the queue delay may
+     *                       stay above target before packets get dropped
+     */
+    FlowScheduler(int flowCount, int capacity, int maxPacketLength, int targetMillis, int intervalMillis) {
+        this(flowCount, capacity, maxPacketLength, targetMillis, intervalMillis, new SecureRandom().nextInt());
+    }
+
+    /**
+     * Constructor with a given perturbation of the flow hash, so that the mapping of packets to
+     * flow queues is reproducible.
+     * @param hashPerturbation an int mixed into the hash of each packet's 5-tuple
+     * @see #FlowScheduler(int, int, int, int, int)
+     */
+    FlowScheduler(int flowCount, int capacity, int maxPacketLength, int targetMillis, int intervalMillis,
+                  int hashPerturbation) {
+        if (flowCount <= 0 || capacity <= 0 || maxPacketLength <= 0)
+            throw new IllegalArgumentException("FlowScheduler requires positive sizes");
+        this.maxPacketLength = maxPacketLength;
+        this.quantum = maxPacketLength;
+        this.target = Math.max(1, targetMillis) * 1000000L;
+        this.interval = Math.max(targetMillis + 1, intervalMillis) * 1000000L;
+        this.hashPerturbation = hashPerturbation;
+
+        slotData = new byte[capacity][maxPacketLength];
+        slotBuffer = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++)
+            slotBuffer[i] = ByteBuffer.wrap(slotData[i]);
+        slotLength = new int[capacity];
+        slotEnqueueTime = new long[capacity];
+        slotNext = new int[capacity];
+
+        flowHead = new int[flowCount];
+        flowTail = new int[flowCount];
+        flowBacklog = new int[flowCount];
+        flowDeficit = new int[flowCount];
+        flowListNext = new int[flowCount];
+        flowList = new byte[flowCount];
+        codelFirstAboveTime = new long[flowCount];
+        codelDropNext = new long[flowCount];
+        codelCount = new int[flowCount];
+        codelLastCount = new int[flowCount];
+        codelDropping = new boolean[flowCount];
+
+        reset();
+    }
+
+    /**
+     * Drop all queued packets and reset the flow state. Must not be called while a consumer
+     * holds a slot.
+     */
+    synchronized void clear() {
+        reset();
+    }
+
+    private void reset() {
+        for (int i = 0; i < slotNext.length; i++)
+            slotNext[i] = (i + 1 < slotNext.length) ? i + 1 : NONE;
+        freeHead = 0;
+        for (int f = 0; f < flowHead.length; f++) {
+            flowHead[f] = NONE;
+            flowTail[f] = NONE;
+            flowBacklog[f] = 0;
+            flowDeficit[f] = 0;
+            flowListNext[f] = NONE;
+            flowList[f] = LIST_NONE;
+            codelFirstAboveTime[f] = 0L;
+            codelDropNext[f] = 0L;
+            codelCount[f] = 0;
+            codelLastCount[f] = 0;
+            codelDropping[f] = false;
+        }
+        newFlowsHead = newFlowsTail = oldFlowsHead = oldFlowsTail = NONE;
+        backlogPackets = 0;
+    }
+
+    /**
+     * Queue a packet for sending. The packet content is copied, so the caller may re-use its
+     * buffer immediately.
+     * @param packet a byte[] holding the packet
+     * @param offset an int giving the start of the packet within the buffer
+     * @param length an int giving the length of the packet
+     * @return true if the packet was queued, false if it had to be dropped.
+     */
+    synchronized boolean offer(byte[] packet, int offset, int length) {
+        if (length <= 0 || length > maxPacketLength) {
+            Log.w(TAG, "Dropping packet of unsupported length " + length);
+            overflowDropCount++;
+            return false;
+        }
+        if (freeHead == NONE && !dropFromFattestFlow()) {
+            // all slots are taken by the consumer, so the new packet is the one to drop
+            overflowDropCount++;
+            return false;
+        }
+
+        int slot = freeHead;
+        freeHead = slotNext[slot];
+        System.arraycopy(packet, offset, slotData[slot], 0, length);
+        slotLength[slot] = length;
+        slotEnqueueTime[slot] = System.nanoTime();
+        slotNext[slot] = NONE;
+
+        if (backlogPackets == 0)
+            batchStartTime = slotEnqueueTime[slot];
+        int flow = flowOf(packet, offset, length);
+        if (flowTail[flow] == NONE)
+            flowHead[flow] = slot;
+        else
+            slotNext[flowTail[flow]] = slot;
+        flowTail[flow] = slot;
+        flowBacklog[flow] += length;
+        backlogPackets++;
+
+        if (flowList[flow] == LIST_NONE) {
+            flowDeficit[flow] = quantum;
+            appendNew(flow);
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Wait for a batch of packets to send. The batch is handed out once it is complete, i.e.
+     * slots.length packets are queued, or once the oldest queued packet has been held for
+     * holdNanos. The delay caused by holding packets is not held against the CoDel target.
+     * @param slots an int[] to receive the slots of the packets, its length limiting the batch
+     * @param holdNanos a long giving the time in nanos that packets may be held to complete
+     *                  a batch; 0 hands out whatever is queued immediately.
+     * @return an int giving the number of slots filled in, at least 1.
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    synchronized int takeBatch(int[] slots, long holdNanos) throws InterruptedException {
+        while (true) {
+            if (backlogPackets == 0) {
+                wait();
+                continue;
+            }
+            long now = System.nanoTime();
+            long remaining = holdNanos - (now - batchStartTime);
+            if (backlogPackets < slots.length && remaining > 0) {
+                wait(remaining / 1000000L, (int) (remaining % 1000000L));
+                continue;
+            }
+            holdAllowance = holdNanos;
+            int count = 0;
+            int slot;
+            while (count < slots.length && (slot = dequeue(now)) != NONE)
+                slots[count++] = slot;
+            holdAllowance = 0L;
+            if (backlogPackets > 0)
+                batchStartTime = now;
+            if (count > 0)
+                return count;
+        }
+    }
+
+    /**
+     * Return a slot obtained by {@link #takeBatch(int[], long)} for re-use.
+     * @param slot the int identifying the slot
+     */
+    synchronized void release(int slot) {
+        slotNext[slot] = freeHead;
+        freeHead = slot;
+    }
+
+    byte[] getPacket(int slot) {
+        return slotData[slot];
+    }
+
+    int getLength(int slot) {
+        return slotLength[slot];
+    }
+
+    /**
+     * @param slot the int identifying the slot
+     * @return a long giving the nanoTime when the packet in the slot was queued
+     */
+    long getEnqueueTime(int slot) {
+        return slotEnqueueTime[slot];
+    }
+
+    /**
+     * Get the packet in a slot wrapped as a ByteBuffer, positioned and limited to the packet.
+     * @param slot the int identifying the slot
+     * @return the ByteBuffer, which is re-used for the slot and valid until release.
+     */
+    ByteBuffer getBuffer(int slot) {
+        ByteBuffer bb = slotBuffer[slot];
+        bb.clear();
+        bb.limit(slotLength[slot]);
+        return bb;
+    }
+
+    /**
+     * Select the next packet by deficit round robin over the new and the old flows.
+     * @param now a long giving the current nanoTime
+     * @return the slot of the selected packet, or NONE if all flows are empty.
+     */
+    private int dequeue(long now) {
+        while (true) {
+            boolean fromNew = newFlowsHead != NONE;
+            int flow = fromNew ? newFlowsHead : oldFlowsHead;
+            if (flow == NONE)
+                return NONE;
+
+            if (flowDeficit[flow] <= 0) {
+                flowDeficit[flow] += quantum;
+                removeHead(fromNew);
+                appendOld(flow);
+                continue;
+            }
+
+            int slot = codelDequeue(flow, now);
+            if (slot == NONE) {
+                removeHead(fromNew);
+                // a new flow that emptied is moved to the old list to prevent starvation
+                if (fromNew && oldFlowsHead != NONE)
+                    appendOld(flow);
+                else
+                    flowList[flow] = LIST_NONE;
+                continue;
+            }
+
+            flowDeficit[flow] -= slotLength[slot];
+            long sojourn = now - slotEnqueueTime[slot];
+            averageQueueDelay = averageQueueDelay * (1.0 - DELAY_AVERAGE_WEIGHT)
+                    + sojourn * DELAY_AVERAGE_WEIGHT;
+            if (sojourn > maxQueueDelay)
+                maxQueueDelay = sojourn;
+            return slot;
+        }
+    }
+
+    /**
+     * The CoDel dequeue procedure for one flow, see RFC 8289.
+     */
+    private int codelDequeue(int flow, long now) {
+        int slot = doDequeue(flow, now);
+        if (slot == NONE) {
+            codelDropping[flow] = false;
+            return NONE;
+        }
+        if (codelDropping[flow]) {
+            if (!okToDrop) {
+                codelDropping[flow] = false;
+            } else {
+                while (codelDropping[flow] && now - codelDropNext[flow] >= 0) {
+                    drop(slot);
+                    codelCount[flow]++;
+                    slot = doDequeue(flow, now);
+                    if (slot == NONE || !okToDrop) {
+                        codelDropping[flow] = false;
+                    } else {
+                        codelDropNext[flow] = controlLaw(codelDropNext[flow], codelCount[flow]);
+                    }
+                }
+            }
+        } else if (okToDrop) {
+            drop(slot);
+            slot = doDequeue(flow, now);
+            codelDropping[flow] = true;
+            int delta = codelCount[flow] - codelLastCount[flow];
+            codelCount[flow] = (delta > 1 && now - codelDropNext[flow] < 16 * interval) ? delta : 1;
+            codelDropNext[flow] = controlLaw(now, codelCount[flow]);
+            codelLastCount[flow] = codelCount[flow];
+        }
+        return slot;
+    }
+
+    /**
+     * Remove the head packet of a flow and determine if CoDel would like to drop it. The
+     * result of the latter is left in okToDrop.
+     */
+    private int doDequeue(int flow, long now) {
+        okToDrop = false;
+        int slot = popHead(flow);
+        if (slot == NONE) {
+            codelFirstAboveTime[flow] = 0L;
+            return NONE;
+        }
+        long sojourn = now - slotEnqueueTime[slot];
+        if (sojourn - holdAllowance < target || flowBacklog[flow] <= maxPacketLength) {
+            codelFirstAboveTime[flow] = 0L;
+        } else if (codelFirstAboveTime[flow] == 0L) {
+            codelFirstAboveTime[flow] = now + interval;
+        } else if (now - codelFirstAboveTime[flow] >= 0) {
+            okToDrop = true;
+        }
+        return slot;
+    }
+
+    private long controlLaw(long t, int count) {
+        return t + (long) (interval / Math.sqrt(count));
+    }
+
+    private int popHead(int flow) {
+        int slot = flowHead[flow];
+        if (slot != NONE) {
+            flowHead[flow] = slotNext[slot];
+            if (flowHead[flow] == NONE)
+                flowTail[flow] = NONE;
+            flowBacklog[flow] -= slotLength[slot];
+            backlogPackets--;
+        }
+        return slot;
+    }
+
+    private void drop(int slot) {
+        codelDropCount++;
+        release(slot);
+    }
+
+    /**
+     * Make room for a new packet by dropping the oldest packet of the flow with the largest
+     * backlog.
+     * @return true if a packet was dropped, false if no packet is queued
+     */
+    private boolean dropFromFattestFlow() {
+        int fattest = 0;
+        for (int f = 1; f < flowBacklog.length; f++) {
+            if (flowBacklog[f] > flowBacklog[fattest])
+                fattest = f;
+        }
+        int slot = popHead(fattest);
+        if (slot == NONE)
+            return false;
+        overflowDropCount++;
+        release(slot);
+        return true;
+    }
+
+    private void appendNew(int flow) {
+        flowList[flow] = LIST_NEW;
+        flowListNext[flow] = NONE;
+        if (newFlowsTail == NONE)
+            newFlowsHead = flow;
+        else
+            flowListNext[newFlowsTail] = flow;
+        newFlowsTail = flow;
+    }
+
+    private void appendOld(int flow) {
+        flowList[flow] = LIST_OLD;
+        flowListNext[flow] = NONE;
+        if (oldFlowsTail == NONE)
+            oldFlowsHead = flow;
+        else
+            flowListNext[oldFlowsTail] = flow;
+        oldFlowsTail = flow;
+    }
+
+    private void removeHead(boolean fromNew) {
+        if (fromNew) {
+            int flow = newFlowsHead;
+            newFlowsHead = flowListNext[flow];
+            if (newFlowsHead == NONE)
+                newFlowsTail = NONE;
+        } else {
+            int flow = oldFlowsHead;
+            oldFlowsHead = flowListNext[flow];
+            if (oldFlowsHead == NONE)
+                oldFlowsTail = NONE;
+        }
+    }
+
+    /**
+     * Calculate the flow queue of an IPv6 packet from addresses, next header and, for TCP and
+     * UDP, ports. Extension headers are not followed; such packets are classified by addresses
+     * and next header only.
+     */
+    private int flowOf(byte[] packet, int offset, int length) {
+        if (length < 40 || (packet[offset] & 0xF0) != 0x60)
+            return 0;
+        int nextHeader = packet[offset + 6] & 0xFF;
+        int hash = hashPerturbation ^ nextHeader;
+        for (int i = offset + 8; i < offset + 40; i++)
+            hash = hash * 31 + packet[i];
+        if ((nextHeader == IPPROTO_TCP || nextHeader == IPPROTO_UDP) && length >= 44) {
+            for (int i = offset + 40; i < offset + 44; i++)
+                hash = hash * 31 + packet[i];
+        }
+        hash ^= (hash >>> 16);
+        return (hash & 0x7FFFFFFF) % flowHead.length;
+    }
+
+    /**
+     * Query the rolling average of the time packets spent in this scheduler.
+     * @return a double giving the average queue delay in milliseconds
+     */
+    synchronized double getAverageQueueDelay() {
+        return averageQueueDelay / 1000000.0;
+    }
+
+    /**
+     * Query the maximum time a packet spent in this scheduler.
+     * @return a double giving the maximum queue delay in milliseconds
+     */
+    synchronized double getMaxQueueDelay() {
+        return maxQueueDelay / 1000000.0;
+    }
+
+    /**
+     * Query the number of packets dropped because they exceeded the target delay.
+     * @return a long giving the number of packets dropped by CoDel
+     */
+    synchronized long getCodelDropCount() {
+        return codelDropCount;
+    }
+
+    /**
+     * Query the number of packets dropped because the scheduler was full.
+     * @return a long giving the number of packets dropped on overflow
+     */
+    synchronized long getOverflowDropCount() {
+        return overflowDropCount;
+    }
+
+    /**
+     * Query the number of packets currently waiting.
+     * @return an int giving the number of queued packets
+     */
+    synchronized int getBacklog() {
+        return backlogPackets;
+    }
+}
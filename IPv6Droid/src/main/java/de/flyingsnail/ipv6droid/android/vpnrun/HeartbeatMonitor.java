@@ -28,7 +28,10 @@ import android.util.Log;
 import java.io.IOException;
 import java.util.Date;
 
+import de.flyingsnail.ipv6droid.android.statistics.OutageRecord;
+import de.flyingsnail.ipv6droid.android.statistics.TunnelMetrics;
 import de.flyingsnail.ipv6droid.transport.ConnectionFailedException;
+import de.flyingsnail.ipv6droid.transport.RoundTripEstimator;
 import de.flyingsnail.ipv6droid.transport.Transporter;
 import de.flyingsnail.ipv6droid.transport.TunnelBrokenException;
 import de.flyingsnail.ipv6droid.transport.TunnelSpec;
@@ -39,7 +42,9 @@ import de.flyingsnail.ipv6droid.transport.ayiya.TicTunnel;
  * interval. It detects tunnel defects by a number of means and exits by one of its
  * declared exceptions when either it is no longer intended to run or the given transporter doesn't
  * seem to work any more. It just exits if one of the copy threads terminated (see there).
- *
+ * <p>At a low rate, it also sends probes to measure round trip time and loss, unless packets
+ * received recently already prove that the tunnel is alive. A probe also serves as heartbeat.
+ * A series of lost probes is taken as a broken tunnel.</p>
  */
 class HeartbeatMonitor implements Monitor {
     private final String TAG = HeartbeatMonitor.class.getName();
@@ -47,17 +52,29 @@ class HeartbeatMonitor implements Monitor {
      * Time that we must wait before contacting TIC again. This applies to cached tunnels even!
      */
     private static final int TIC_RECHECK_BLOCKED_MILLISECONDS = 60 * 60 * 1000; // 60 minutes
+    /**
+     * Time between probes on unmetered networks, if not longer than the heartbeat interval.
+     */
+    private static final long PROBE_INTERVAL_MILLISECONDS = 30000L;
+    /**
+     * Number of probes lost in a row that make the tunnel count as broken.
+     */
+    private static final int MAX_CONSECUTIVE_PROBE_LOSSES = 3;
 
     private final CopyThread inThread;
     private final CopyThread outThread;
     private final RemoteEnd remoteEnd;
     private final Transporter transporter;
+    private final TransporterSwitch transporterSwitch;
+    private final TunnelMetrics metrics;
 
     HeartbeatMonitor(final RemoteEnd remoteEnd, CopyThread inThread, CopyThread outThread) {
         this.inThread = inThread;
         this.outThread = outThread;
         this.remoteEnd = remoteEnd;
         this.transporter = remoteEnd.getTransporter();
+        this.transporterSwitch = remoteEnd.getTransporterSwitch();
+        this.metrics = remoteEnd.getMetrics();
     }
 
     /**
@@ -77,18 +94,55 @@ class HeartbeatMonitor implements Monitor {
             Log.i(TAG, "Lifting heartbeat interval to 300 secs");
             heartbeatInterval = 300000L;
         }
-        while (remoteEnd.isIntendedToRun() && (inThread != null && inThread.isAlive()) && (outThread != null && outThread.isAlive())) {
-            // wait for the heartbeat interval to finish or until inThread dies.
+        // on mobile networks, probes are not sent more often than heartbeats to save battery
+        final long probeInterval = remoteEnd.isNetworkMobile() ?
+                heartbeatInterval :
+                Math.min(heartbeatInterval, PROBE_INTERVAL_MILLISECONDS);
+        final RoundTripEstimator estimator = transporter.getRoundTripEstimator();
+        long nextProbe = System.currentTimeMillis() + probeInterval;
+        boolean probing = true;
+        while (remoteEnd.isIntendedToRun() && !transporterSwitch.isEnded() &&
+                (inThread != null && inThread.isAlive()) && (outThread != null && outThread.isAlive())) {
+            // wait for the heartbeat interval or the next probe to be due, or until the transporter fails or is handed over.
             // Note: the inThread is reading from the network socket to the POP
             // in case of network changes, this socket breaks immediately, so
-            // inThread crashes on external network changes even if no transfer
+            // the transporter fails on external network changes even if no transfer
             // is active.
-            inThread.join(heartbeatInterval - lastPacketDelta);
-            if (!remoteEnd.isIntendedToRun())
+            transporterSwitch.awaitEnd(Math.max(1L, Math.min(heartbeatInterval - lastPacketDelta,
+                    nextProbe - System.currentTimeMillis())));
+            if (!remoteEnd.isIntendedToRun() || transporterSwitch.isEnded())
                 break;
             // re-check cached network information
             if (!remoteEnd.isCurrentSocketStillValid()) {
-                throw new IOException("IP address changed");
+                throw new OutageException(OutageRecord.TRIGGER_NETWORK_CHANGED, "IP address changed", null);
+            }
+
+            // probe the tunnel, unless received traffic proves it alive
+            long now = System.currentTimeMillis();
+            if (estimator.checkTimeout(System.nanoTime())) {
+                Log.i(TAG, "Probe lost, " + estimator.getConsecutiveLosses() + " in a row");
+                metrics.getProbesLost().increment();
+                if (estimator.getConsecutiveLosses() >= MAX_CONSECUTIVE_PROBE_LOSSES) {
+                    // only a PoP that answered probes before is taken as broken if it stops
+                    if (estimator.getSampleCount() > 0)
+                        throw new OutageException(OutageRecord.TRIGGER_HEARTBEAT_TIMEOUT, "Tunnel does not answer probes", null);
+                    Log.i(TAG, "PoP does not answer probes, probing disabled");
+                    probing = false;
+                }
+                nextProbe = now; // re-probe right away
+            }
+            if (probing && now >= nextProbe && inThread.isAlive() && outThread.isAlive()) {
+                if (now - transporter.getLastPacketReceivedTime().getTime() >= probeInterval) {
+                    try {
+                        if (transporter.probe())
+                            metrics.getProbesSent().increment();
+                    } catch (TunnelBrokenException e) {
+                        throw new OutageException(OutageRecord.TRIGGER_TUNNEL_BROKEN, "Transporter object claims it is broken: " + e.getMessage(), e);
+                    }
+                }
+                nextProbe = now + (estimator.isProbeOutstanding() ? estimator.getTimeoutMillis() : probeInterval);
+            } else if (!probing) {
+                nextProbe = Long.MAX_VALUE / 2;
             }
             // determine last package transmission time
             lastPacketDelta = new Date().getTime() - transporter.getLastPacketSentTime().getTime();
@@ -98,9 +152,10 @@ class HeartbeatMonitor implements Monitor {
                 try {
                     Log.i(TAG, "Sending heartbeat");
                     transporter.beat();
+                    metrics.getHeartbeats().increment();
                     lastPacketDelta = 0L;
                 } catch (TunnelBrokenException e) {
-                    throw new IOException ("Transporter object claims it is broken", e);
+                    throw new OutageException(OutageRecord.TRIGGER_TUNNEL_BROKEN, "Transporter object claims it is broken: " + e.getMessage(), e);
                 }
 
                /* See if we're receiving packets:
@@ -125,7 +180,7 @@ class HeartbeatMonitor implements Monitor {
                 Log.i(TAG, "Sent heartbeat.");
             }
         }
-        Log.i(TAG, "Terminated loop of current transporter object (interrupt or end of a copy thread)");
+        Log.i(TAG, "Terminated loop of current transporter object (interrupt, transporter failure, handover or end of a copy thread)");
         Throwable deathCause = null;
         final CopyThread myInThread = inThread;
         final CopyThread myOutThread = outThread;
@@ -135,11 +190,9 @@ class HeartbeatMonitor implements Monitor {
             deathCause = myOutThread.getDeathCause();
         if (deathCause != null) {
             if (deathCause instanceof TunnelBrokenException) {
-                throw new IOException("Ayiya claims it is broken", deathCause);
-            } else if (deathCause instanceof IOException) {
-                throw (IOException) deathCause;
+                throw new OutageException(OutageRecord.TRIGGER_TUNNEL_BROKEN, "Ayiya claims it is broken: " + deathCause.getMessage(), deathCause);
             } else {
-                throw new IOException(deathCause);
+                throw new OutageException(OutageRecord.TRIGGER_COPY_THREAD_DIED, String.valueOf(deathCause), deathCause);
             }
         }
     }
@@ -24,21 +24,29 @@
 package de.flyingsnail.ipv6droid.android.vpnrun;
 
 import android.content.Context;
+import android.net.Network;
 import android.net.VpnService;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import android.widget.Toast;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import java.io.FileDescriptor;
 import java.io.IOException;
-import java.util.Date;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import de.flyingsnail.ipv6droid.R;
+import de.flyingsnail.ipv6droid.android.TransmissionConfiguration;
 import de.flyingsnail.ipv6droid.android.UserNotificationCallback;
+import de.flyingsnail.ipv6droid.android.statistics.OutageRecord;
+import de.flyingsnail.ipv6droid.android.statistics.SpanTracer;
 import de.flyingsnail.ipv6droid.android.statistics.Statistics;
+import de.flyingsnail.ipv6droid.android.statistics.ThroughputSeries;
+import de.flyingsnail.ipv6droid.android.statistics.TunnelMetrics;
 import de.flyingsnail.ipv6droid.transport.ConnectionFailedException;
+import de.flyingsnail.ipv6droid.transport.Transporter;
 import de.flyingsnail.ipv6droid.transport.TunnelSpec;
 
 /**
@@ -57,32 +65,51 @@ public class LocalEnd {
     private final VpnStatusReport vpnStatus;
     private final TunnelSpec tunnel;
     private final UserNotificationCallback userNotificationCallback;
+    private final TransmissionConfiguration transmissionConfiguration;
     /**
      * A flag that is set if routes are set to the VPN tunnel.
      */
     private boolean tunnelRouted;
 
     /**
-     * A flag that is set if the tunnel should close down.
+     * The state of the tunnel session, closed if the tunnel should close down.
      */
-    private boolean intendedToRun = true;
+    private final TunnelLifecycle lifecycle;
 
     /**
      * The file descriptor representing the local tun socket.
      */
     private ParcelFileDescriptor vpnFD;
 
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final TunnelRuntime runtime;
 
     private RemoteEnd remoteEnd = null;
     private final boolean forcedRoute;
 
+    /**
+     * The policy deciding on the delay before rebuilding the tunnel, shared with the remote ends.
+     */
+    private final ReconnectPolicy reconnectPolicy;
+
+    /**
+     * The System.currentTimeMillis before which the tunnel should not be rebuilt.
+     */
+    private long retryAt = 0L;
+
+    /**
+     * A flag that is set if this tunnel should end to make way for a different tunnel.
+     */
+    private volatile boolean tunnelSwitched = false;
+
 
     /**
      * Constructor.
      *
      * @param builder the VpnService.Builder that is used to re-created the VPN Service in environments w/o IPv6
      * @param builderNotRouted the VpnService.Builder that is used in environments with IPv6
+     * @param transmissionConfiguration the TransmissionConfiguration to apply to packet handling
+     * @param reconnectPolicy the ReconnectPolicy deciding on the delay before reconnects
+     * @param runtime the TunnelRuntime to run asynchronous tasks of this tunnel
      */
     LocalEnd(final VpnThread vpnThread,
              final VpnService.Builder builder,
@@ -90,7 +117,10 @@ public class LocalEnd {
              final boolean forcedRoute,
              final VpnStatusReport vpnStatus,
              final TunnelSpec tunnel,
-             final UserNotificationCallback userNotificationCallback
+             final UserNotificationCallback userNotificationCallback,
+             final TransmissionConfiguration transmissionConfiguration,
+             final ReconnectPolicy reconnectPolicy,
+             final TunnelRuntime runtime
              ) {
         this.vpnThread = vpnThread;
         this.builder = builder;
@@ -99,6 +129,10 @@ public class LocalEnd {
         this.vpnStatus = vpnStatus;
         this.tunnel = tunnel;
         this.userNotificationCallback = userNotificationCallback;
+        this.transmissionConfiguration = transmissionConfiguration;
+        this.reconnectPolicy = reconnectPolicy;
+        this.runtime = runtime;
+        this.lifecycle = vpnThread.getLifecycle();
     }
     /**
      * Run the tunnel as long as it should be running. This method ends via one of its declared
@@ -106,22 +140,20 @@ public class LocalEnd {
      * @throws ConnectionFailedException in case that the current configuration seems permanently defective.
      */
     void refreshTunnelLoop() throws ConnectionFailedException {
-        intendedToRun = true;
-
-        Date lastStartAttempt = new Date(0L);
         // if we're called up, we assume the tunnel should be used as first assumption.
         tunnelRouted = true;
-        while (intendedToRun) {
+        while (!lifecycle.isClosed() && !tunnelSwitched) {
             try {
                 if (vpnThread.isInterrupted())
                     throw new InterruptedException("Tunnel loop has interrupted status set");
 
-                // timestamp base mechanism to prevent busy looping through e.g. IOException
-                long lastIterationRun = new Date().getTime() - lastStartAttempt.getTime();
-                if (lastIterationRun < 1000L)
-                    //noinspection BusyWait
-                    Thread.sleep(1000L - lastIterationRun);
-                lastStartAttempt = new Date();
+                // back off as the reconnect policy decided on the last iteration
+                long backoff = retryAt - System.currentTimeMillis();
+                if (backoff > 0L) {
+                    Log.i(TAG, "Backing off for " + backoff + " ms before rebuilding the tunnel");
+                    if (lifecycle.awaitClose(backoff))
+                        break;
+                }
 
                 // loop over IPv4 network changes
                 Log.i(TAG, "Constructing remote end");
@@ -129,13 +161,15 @@ public class LocalEnd {
                         vpnStatus,
                         forcedRoute,
                         tunnelRouted,
-                        executor,
+                        runtime,
                         userNotificationCallback,
-                        tunnel);
+                        tunnel,
+                        transmissionConfiguration);
 
                 // check current nativeRouting information for existing IPv6 default route
                 // then setup local tun and nativeRouting
                 Log.i(TAG, "Building new local TUN  object");
+                final long establishSpan = SpanTracer.begin();
                 try { // catching NPE to circumvent rare Android bug, see https://github.com/pelzvieh/IPv6Droid/issues/44
                     if (tunnelRouted) {
                         Log.i(TAG, "No native IPv6 to use, setting routes to tunnel");
@@ -150,7 +184,11 @@ public class LocalEnd {
                     vpnStatus.setActivity(R.string.vpnservice_activity_reconnect);
                     vpnStatus.setStatus(VpnStatusReport.Status.Disturbed);
                     vpnStatus.setCause(npe);
+                    scheduleRetry(OutageRecord.TRIGGER_IO_ERROR, npe);
                     continue; // just try again
+                } finally {
+                    SpanTracer.end("establish VPN interface", establishSpan,
+                            "routed", String.valueOf(tunnelRouted));
                 }
                 if (vpnFD == null)
                     throw new ConnectionFailedException("App is not correctly prepared to use VpnService calls", null);
@@ -174,24 +212,32 @@ public class LocalEnd {
                 switch (endCause) {
                     case INHIBITS_ROUTING:
                         tunnelRouted = false;
+                        scheduleRetry(OutageRecord.TRIGGER_ROUTING_CHANGED, null);
                         break;
                     case REQUIRES_ROUTIING:
                         tunnelRouted = true;
+                        scheduleRetry(OutageRecord.TRIGGER_ROUTING_CHANGED, null);
                         break;
                     case EXPIRED:
                         Log.i(TAG, "The tunnel we're using just expired");
-                        intendedToRun = false;
+                        lifecycle.close();
+                        break;
+                    case FD_INVALID:
+                        scheduleRetry(OutageRecord.TRIGGER_IO_ERROR, null);
                         break;
                 }
 
             } catch (InterruptedException e) {
                 userNotificationCallback.notifyUserOfError(R.string.vpnthread_interrupted, e);
                 Log.i(TAG, "Tunnel terminated by interrupt", e);
+                scheduleRetry(OutageRecord.TRIGGER_IO_ERROR, e);
             } catch (ConnectionFailedException e) {
+                lifecycle.close();
                 throw e;
             } catch (Throwable t) {
                 userNotificationCallback.notifyUserOfError(R.string.unexpected_runtime_exception, t);
                 Log.e(TAG, "Caught unexpected throwable", t);
+                scheduleRetry(OutageRecord.TRIGGER_IO_ERROR, t);
             } finally {
                 if (remoteEnd != null)
                     remoteEnd.stop();
@@ -210,11 +256,21 @@ public class LocalEnd {
         Log.i(TAG, "Tunnel thread gracefully shut down");
     }
 
+    /**
+     * Ask the reconnect policy when to rebuild the tunnel.
+     * @param trigger an int giving the reason the tunnel went down, one of the OutageRecord.TRIGGER_ constants
+     * @param cause the Throwable that made the tunnel go down, or null
+     */
+    private void scheduleRetry(int trigger, Throwable cause) {
+        lifecycle.moveTo(TunnelLifecycle.State.RECONNECTING);
+        retryAt = System.currentTimeMillis() + reconnectPolicy.nextDelay(trigger, cause);
+    }
+
     /**
      * Asynchronously stops the current tunnel and this object's attempts to rebuild it.
      */
     void stop() {
-        intendedToRun = false;
+        lifecycle.close();
 
         final RemoteEnd myRemoteEnd = remoteEnd;
         if (myRemoteEnd != null) {
@@ -224,20 +280,59 @@ public class LocalEnd {
 
         final ParcelFileDescriptor myVpnFD = vpnFD;
         if (myVpnFD != null) {
-            executor.submit(() -> {
+            final Runnable closeVpn = () -> {
                 try {
                     myVpnFD.close();
                 } catch (Exception e) {
                     Log.e(TAG, "Cannot close local socket", e);
                 }
                 Log.i(TAG, "VPN closed");
-            });
+            };
+            try {
+                runtime.submitBlocking(closeVpn);
+            } catch (RejectedExecutionException e) {
+                closeVpn.run(); // runtime is shut down already
+            }
         }
         vpnFD = null;
 
         vpnStatus.setStatus(VpnStatusReport.Status.Idle);
     }
 
+    /**
+     * Stop the current tunnel so that the caller of refreshTunnelLoop can replace it by a
+     * different tunnel. Unlike stop, this does not close the tunnel session.
+     */
+    void switchTunnel() {
+        tunnelSwitched = true;
+        final RemoteEnd myRemoteEnd = remoteEnd; // avoid race condition with stop
+        if (myRemoteEnd != null)
+            myRemoteEnd.stop();
+    }
+
+    /**
+     * @return true if refreshTunnelLoop ended because switchTunnel was called
+     */
+    boolean isTunnelSwitched() {
+        return tunnelSwitched;
+    }
+
+    /**
+     * @return the Transporter currently connecting the tunnel, or null if none
+     */
+    @Nullable Transporter getTransporter() {
+        final RemoteEnd myRemoteEnd = remoteEnd; // avoid race condition with stop
+        return myRemoteEnd == null ? null : myRemoteEnd.getTransporter();
+    }
+
+    /**
+     * @return the Network the tunnel currently uses, or null if none
+     */
+    @Nullable Network getCurrentNetwork() {
+        final RemoteEnd myRemoteEnd = remoteEnd; // avoid race condition with stop
+        return myRemoteEnd == null ? null : myRemoteEnd.getCurrentNetwork();
+    }
+
     private FileDescriptor extractFD() throws IOException {
         FileDescriptor localFD;
         if (vpnFD != null) {
@@ -255,8 +350,34 @@ public class LocalEnd {
     }
 
     public Statistics addStatistics(Statistics stats) {
-        return (remoteEnd == null ? stats : remoteEnd.addStatistics(stats))
-                .setTunnelRouted(tunnelRouted);
+        return remoteEnd == null ? stats : remoteEnd.addStatistics(stats);
+    }
+
+    /**
+     * Close the running second of the throughput series with the counters of the current
+     * remote end, if any.
+     * @param series the ThroughputSeries to sample into
+     */
+    void sampleThroughput(@NonNull ThroughputSeries series) {
+        final RemoteEnd myRemoteEnd = remoteEnd; // avoid race condition with stop
+        if (myRemoteEnd == null)
+            series.sampleIdle();
+        else
+            myRemoteEnd.sampleThroughput(series);
+    }
+
+    /**
+     * Update the gauges and counters of the current remote end in the exported metrics, if any.
+     * @param metrics the TunnelMetrics to update
+     */
+    void sampleMetrics(@NonNull TunnelMetrics metrics) {
+        final RemoteEnd myRemoteEnd = remoteEnd; // avoid race condition with stop
+        if (myRemoteEnd != null)
+            myRemoteEnd.sampleMetrics(metrics);
+    }
+
+    ReconnectPolicy getReconnectPolicy() {
+        return reconnectPolicy;
     }
 
     public VpnThread getVpnThread() {
@@ -32,17 +32,31 @@ import androidx.annotation.Nullable;
 
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A container for the relevant network information in the context of a running VPN tunnel.
+ * The information is versioned: each change renews the version, and the lists of routes
+ * and DNS servers are copied only once per version.
  */
 class NetworkDetails {
     private LinkProperties currentNativeProperties = null;
     private Network currentNativeNetwork;
     private LinkProperties vpnProperties;
-
-    public LinkProperties getNativeProperties() {
+    // the source of versions, shared by all instances so that versions are never reused
+    private static final AtomicInteger VERSIONS = new AtomicInteger();
+    // the version of the information, renewed on each change
+    private int version = VERSIONS.incrementAndGet();
+    // the version that the cached lists were built from
+    private int cachedVersion = -1;
+    private List<RouteInfo> nativeRouteInfos;
+    private List<RouteInfo> vpnRouteInfos;
+    private List<InetAddress> nativeDnsServers;
+    private List<InetAddress> vpnDnsServers;
+
+    public synchronized LinkProperties getNativeProperties() {
         return currentNativeNetwork == null ? null : currentNativeProperties;
     }
 
@@ -51,10 +65,11 @@ class NetworkDetails {
      * another one or set information that we have not current network.
      * @param network the Network to remove from properties store.
      */
-    public void unsetNetwork (@NonNull Network network) {
+    public synchronized void unsetNetwork (@NonNull Network network) {
         if (network.equals(currentNativeNetwork)) {
             currentNativeNetwork = null;
             currentNativeProperties = null;
+            version = VERSIONS.incrementAndGet();
         }
     }
 
@@ -64,12 +79,13 @@ class NetworkDetails {
      * @param network the Network that is now available
      * @param nativeProperties the LinkProperties of the Link associated with the given Network.
      */
-    public void setNativeProperties(@NonNull Network network, @Nullable LinkProperties nativeProperties) {
+    public synchronized void setNativeProperties(@NonNull Network network, @Nullable LinkProperties nativeProperties) {
         currentNativeNetwork = network;
         currentNativeProperties = nativeProperties;
+        version = VERSIONS.incrementAndGet();
     }
 
-    public LinkProperties getVpnProperties() {
+    public synchronized LinkProperties getVpnProperties() {
         return vpnProperties;
     }
 
@@ -78,16 +94,65 @@ class NetworkDetails {
      * for a VPN network only.
      * @param vpnProperties the LinkProperties for the current VPN
      */
-    public void setVpnProperties(LinkProperties vpnProperties) {
+    public synchronized void setVpnProperties(LinkProperties vpnProperties) {
         this.vpnProperties = vpnProperties;
+        version = VERSIONS.incrementAndGet();
+    }
+
+    /**
+     * Rebuild the cached lists if the information changed since they were built.
+     */
+    private void refreshCache() {
+        if (cachedVersion == version)
+            return;
+        nativeRouteInfos = Collections.unmodifiableList(buildNativeRouteInfos());
+        vpnRouteInfos = Collections.unmodifiableList(buildVpnRouteInfos());
+        nativeDnsServers = Collections.unmodifiableList(buildNativeDnsServers());
+        vpnDnsServers = Collections.unmodifiableList(buildVpnDnsServers());
+        cachedVersion = version;
     }
 
     /**
      * Query the routing table of the currently recommended native network(s) underlying the VPN.
-     * @return List&lt;RouteInfo&gt; containing route definitions. May be empty, if no network
-     * is connected or no information is available.
+     * @return an unmodifiable List&lt;RouteInfo&gt; containing route definitions. May be empty,
+     * if no network is connected or no information is available.
+     */
+    public synchronized List<RouteInfo> getNativeRouteInfos() {
+        refreshCache();
+        return nativeRouteInfos;
+    }
+
+    /**
+     * Query the routing table of the VPN network.
+     * @return an unmodifiable List&lt;RouteInfo&gt; containing route definitions. May be empty,
+     * if no network is connected or no information is available.
+     */
+    public synchronized List<RouteInfo> getVpnRouteInfos() {
+        refreshCache();
+        return vpnRouteInfos;
+    }
+
+    /**
+     * Query the DNS servers of all native network(s) underlying the VPN.
+     * @return an unmodifiable List&lt;InetAddress&gt; containing the DNS server's addresses.
+     * May be empty, if no network is connected, or no such information is available.
      */
-    public List<RouteInfo> getNativeRouteInfos() {
+    public synchronized List<InetAddress> getNativeDnsServers() {
+        refreshCache();
+        return nativeDnsServers;
+    }
+
+    /**
+     * Query the DNS servers of the VPN network.
+     * @return an unmodifiable List&lt;InetAddress&gt; containing the DNS server's addresses.
+     * May be empty, if no network is connected, or no such information is available.
+     */
+    public synchronized List<InetAddress> getVpnDnsServers() {
+        refreshCache();
+        return vpnDnsServers;
+    }
+
+    private List<RouteInfo> buildNativeRouteInfos() {
         List<RouteInfo> routeInfos = new ArrayList<>();
         if (currentNativeProperties != null) {
             routeInfos.addAll(currentNativeProperties.getRoutes());
@@ -95,12 +160,7 @@ class NetworkDetails {
         return routeInfos;
     }
 
-    /**
-     * Query the routing table of the VPN network.
-     * @return List&lt;RouteInfo&gt; containing route definitions. May be empty, if no network
-     * is connected or no information is available.
-     */
-    public List<RouteInfo> getVpnRouteInfos() {
+    private List<RouteInfo> buildVpnRouteInfos() {
         List<RouteInfo> routeInfos = (vpnProperties != null)
                 ? vpnProperties.getRoutes()
                 : null;
@@ -111,12 +171,7 @@ class NetworkDetails {
         return routeInfos;
     }
 
-    /**
-     * Query the DNS servers of all native network(s) underlying the VPN.
-     * @return List&lt;InetAddress&gt; containing the DNS server's addresses. May be null, if no
-     * network is connected, or no such information is available.
-     */
-    public List<InetAddress> getNativeDnsServers() {
+    private List<InetAddress> buildNativeDnsServers() {
         List<InetAddress> dnsServers = new ArrayList<>(0);
         if (currentNativeProperties != null) {
             dnsServers.addAll(currentNativeProperties.getDnsServers());
@@ -125,12 +180,7 @@ class NetworkDetails {
         return dnsServers;
     }
 
-    /**
-     * Query the DNS servers of the VPN network.
-     * @return List&lt;InetAddress&gt; containing the DNS server's addresses. May be null, if no
-     * network is connected, or no such information is available.
-     */
-    public List<InetAddress> getVpnDnsServers() {
+    private List<InetAddress> buildVpnDnsServers() {
         List<InetAddress> dnsServers = (vpnProperties != null)
                 ? vpnProperties.getDnsServers()
                 : null;
@@ -141,7 +191,7 @@ class NetworkDetails {
         return dnsServers;
     }
 
-    public Network getNativeNetwork() {
+    public synchronized Network getNativeNetwork() {
         return currentNativeNetwork;
     }
 }
@@ -38,7 +38,13 @@ import androidx.annotation.Nullable;
 
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+import de.flyingsnail.ipv6droid.android.statistics.MetricsRegistry;
+import de.flyingsnail.ipv6droid.android.statistics.SpanTracer;
 
 public class NetworkHelper  {
     /**
@@ -65,9 +71,57 @@ public class NetworkHelper  {
      */
     private final ConnectivityManager connectivityManager;
 
-    NetworkHelper(final NetworkChangeListener networkChangeListener, final ConnectivityManager connectivityManager) {
+    /**
+     * The time in milliseconds that network callbacks are collected before they are evaluated.
+     * A single association with a network produces a burst of them.
+     */
+    private static final long COALESCE_MILLIS = 250L;
+
+    /**
+     * The runtime to run the evaluation of collected network callbacks.
+     */
+    private final TunnelRuntime runtime;
+
+    /**
+     * The counter of network callbacks that did not lead to a notification of the listener.
+     */
+    private final MetricsRegistry.Counter suppressedEvents;
+
+    /**
+     * The network of the last callback not yet evaluated, or null.
+     */
+    private Network pendingNetwork;
+
+    /**
+     * The link properties passed with the last callback not yet evaluated, or null if they are to be queried.
+     */
+    private LinkProperties pendingLinkProperties;
+
+    /**
+     * The scheduled evaluation of collected callbacks, or null.
+     */
+    private ScheduledFuture<?> pendingEvaluation;
+
+    /**
+     * The properties relevant to the tunnel that the listener was last notified of.
+     */
+    private List<Object> notifiedProperties;
+
+    /**
+     * Constructor.
+     * @param networkChangeListener the NetworkChangeListener to notify of relevant network changes
+     * @param connectivityManager the system's ConnectivityManager
+     * @param runtime the TunnelRuntime to evaluate collected network callbacks
+     * @param suppressedEvents a MetricsRegistry.Counter to count callbacks that did not notify the listener
+     */
+    NetworkHelper(final NetworkChangeListener networkChangeListener,
+                  final ConnectivityManager connectivityManager,
+                  final TunnelRuntime runtime,
+                  final MetricsRegistry.Counter suppressedEvents) {
         this.networkChangeListener = networkChangeListener;
         this.connectivityManager = connectivityManager;
+        this.runtime = runtime;
+        this.suppressedEvents = suppressedEvents;
 
         Network currentlyActiveNetwork = connectivityManager.getActiveNetwork();
         if (currentlyActiveNetwork != null) {
@@ -80,6 +134,9 @@ public class NetworkHelper  {
         // get current link properties associated with network
         LinkProperties currentLinkProperties = currentlyActiveNetwork == null ? null : connectivityManager.getLinkProperties(currentlyActiveNetwork);
         updateNetworkDetails(currentlyActiveNetwork, currentLinkProperties);
+        // the callback for the current network on registration is nothing new
+        if (currentlyActiveNetwork != null)
+            notifiedProperties = relevantProperties(currentlyActiveNetwork, currentLinkProperties);
     }
 
     /**
@@ -96,6 +153,11 @@ public class NetworkHelper  {
     synchronized void stop() {
         if (networkCallback != null)
             unregisterConnectivityReceiver();
+        if (pendingEvaluation != null) {
+            pendingEvaluation.cancel(false);
+            pendingEvaluation = null;
+        }
+        pendingNetwork = null;
     }
 
     ConnectivityManager getConnectivityManager() {
@@ -111,24 +173,36 @@ public class NetworkHelper  {
             networkCallback = new ConnectivityManager.NetworkCallback () {
                 @Override
                 public void onAvailable(Network network) {
-                    LinkProperties linkProperties = connectivityManager.getLinkProperties(network);
-                    updateNetworkDetails(network, linkProperties);
-                    networkChangeListener.onNewConnection();
+                    SpanTracer.instant("network available", "network", String.valueOf(network));
+                    collectNetworkChange(network, null);
                 }
 
                 @Override
                 public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
-                    // update cached information so that our listener can query them immediately
-                    updateNetworkDetails(network, linkProperties);
+                    SpanTracer.instant("network link properties changed", "network", String.valueOf(network));
+                    collectNetworkChange(network, linkProperties);
+                }
 
-                    // notify caller on network connected
-                    networkChangeListener.onNewConnection();
+                @Override
+                public void onCapabilitiesChanged(Network network, NetworkCapabilities networkCapabilities) {
+                    SpanTracer.instant("network capabilities changed", "network", String.valueOf(network));
+                    collectNetworkChange(network, null);
                 }
 
                 @Override
                 public void onLost(Network network) {
+                    final long span = SpanTracer.begin();
+                    // a lost network is handled right away, dropping callbacks collected for it
+                    synchronized (NetworkHelper.this) {
+                        if (network.equals(pendingNetwork)) {
+                            pendingNetwork = null;
+                            pendingLinkProperties = null;
+                        }
+                        notifiedProperties = null;
+                    }
                     networkDetails.unsetNetwork(network);
                     networkChangeListener.onDisconnected();
+                    SpanTracer.end("network lost", span);
                 }
             };
 
@@ -156,6 +230,89 @@ public class NetworkHelper  {
         }
     }
 
+    /**
+     * Collect a network callback to be evaluated together with those following within
+     * COALESCE_MILLIS. Only the last network and its link properties are kept.
+     * @param network the Network the callback was about
+     * @param linkProperties the LinkProperties passed with the callback, or null to query them on evaluation
+     */
+    private synchronized void collectNetworkChange(@NonNull Network network, @Nullable LinkProperties linkProperties) {
+        if (pendingNetwork != null)
+            suppressedEvents.increment(); // coalesced with this one
+        if (linkProperties != null || !network.equals(pendingNetwork))
+            pendingLinkProperties = linkProperties;
+        pendingNetwork = network;
+        if (pendingEvaluation == null)
+            pendingEvaluation = runtime.schedule(this::evaluateNetworkChange, COALESCE_MILLIS);
+    }
+
+    /**
+     * Evaluate the collected network callbacks. The listener is notified only if the properties
+     * relevant to the tunnel changed since it was notified last.
+     */
+    private void evaluateNetworkChange() {
+        final Network network;
+        LinkProperties linkProperties;
+        synchronized (this) {
+            network = pendingNetwork;
+            linkProperties = pendingLinkProperties;
+            pendingNetwork = null;
+            pendingLinkProperties = null;
+            pendingEvaluation = null;
+        }
+        if (network == null)
+            return;
+        final long span = SpanTracer.begin();
+        if (linkProperties == null)
+            linkProperties = connectivityManager.getLinkProperties(network);
+        final List<Object> properties = relevantProperties(network, linkProperties);
+        synchronized (this) {
+            if (properties.equals(notifiedProperties)) {
+                suppressedEvents.increment();
+                SpanTracer.end("network change", span, "relevant", "false");
+                return;
+            }
+            notifiedProperties = properties;
+        }
+        // update cached information so that our listener can query them immediately
+        updateNetworkDetails(network, linkProperties);
+        networkChangeListener.onNewConnection();
+        SpanTracer.end("network change", span, "relevant", "true");
+    }
+
+    /**
+     * Collect the properties of a network that matter to the tunnel: its addresses, routes,
+     * DNS servers and validation, plus the routes and DNS servers of the VPN.
+     * @param network the Network
+     * @param linkProperties the Network's LinkProperties, or null if unknown
+     * @return a List of the properties, to be compared by equals
+     */
+    private @NonNull List<Object> relevantProperties(@NonNull Network network, @Nullable LinkProperties linkProperties) {
+        final NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(network);
+        final LinkProperties vpnProperties = findVpnProperties();
+        return Arrays.asList(
+                network,
+                linkProperties == null ? null : new HashSet<>(linkProperties.getLinkAddresses()),
+                linkProperties == null ? null : new HashSet<>(linkProperties.getRoutes()),
+                linkProperties == null ? null : linkProperties.getDnsServers(),
+                capabilities != null && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED),
+                vpnProperties == null ? null : new HashSet<>(vpnProperties.getRoutes()),
+                vpnProperties == null ? null : vpnProperties.getDnsServers());
+    }
+
+    /**
+     * Find the link properties of the VPN network.
+     * @return the LinkProperties of the VPN, or null if no VPN network is found
+     */
+    private @Nullable LinkProperties findVpnProperties() {
+        for (Network n : connectivityManager.getAllNetworks()) {
+            NetworkInfo ni = connectivityManager.getNetworkInfo(n);
+            if (ni != null && ni.getType() == ConnectivityManager.TYPE_VPN)
+                return connectivityManager.getLinkProperties(n);
+        }
+        return null;
+    }
+
     /**
      * Network changes are no longer handled by CONNECTIVITY_ACTION broadcast, but by requestNetwork
      * callback methods. These provide the required details as parameters.
@@ -178,15 +335,9 @@ public class NetworkHelper  {
         Log.i(TAG, "Updating cached network details");
         // force-set native link properties to supplied information
         networkDetails.setNativeProperties(network, newLinkProperties);
-        for (Network n : connectivityManager.getAllNetworks()) {
-            NetworkInfo ni = connectivityManager.getNetworkInfo(n);
-            if (ni != null) {
-                LinkProperties linkProperties = connectivityManager.getLinkProperties(n);
-                if (ni.getType() == ConnectivityManager.TYPE_VPN) {
-                    networkDetails.setVpnProperties(linkProperties);
-                }
-            }
-        }
+        final LinkProperties vpnProperties = findVpnProperties();
+        if (vpnProperties != null)
+            networkDetails.setVpnProperties(vpnProperties);
     }
 
     /**
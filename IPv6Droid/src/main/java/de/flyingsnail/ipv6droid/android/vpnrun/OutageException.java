@@ -0,0 +1,75 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+
+import de.flyingsnail.ipv6droid.android.statistics.OutageRecord;
+import de.flyingsnail.ipv6droid.transport.TunnelBrokenException;
+
+/**
+ * An IOException thrown by a Monitor when it detects that the tunnel broke, telling the
+ * trigger of the outage.
+ */
+class OutageException extends IOException {
+    private final int trigger;
+
+    /**
+     * Constructor.
+     * @param trigger an int giving the cause, one of the OutageRecord.TRIGGER_ constants
+     * @param message a String describing the problem
+     * @param cause the Throwable that caused the outage, or null
+     */
+    OutageException(int trigger, @NonNull String message, @Nullable Throwable cause) {
+        super(message, cause);
+        this.trigger = trigger;
+    }
+
+    /**
+     * @return an int giving the cause, one of the OutageRecord.TRIGGER_ constants
+     */
+    int getTrigger() {
+        return trigger;
+    }
+
+    /**
+     * Classify the cause of a tunnel breakdown.
+     * @param e the Throwable that ended a Monitor's loop or failed the current transporter
+     * @return an int giving the trigger, one of the OutageRecord.TRIGGER_ constants
+     */
+    static int triggerOf(@NonNull Throwable e) {
+        if (e instanceof OutageException)
+            return ((OutageException) e).getTrigger();
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof TunnelBrokenException)
+                return OutageRecord.TRIGGER_TUNNEL_BROKEN;
+            if (t.getCause() == t)
+                break;
+        }
+        return OutageRecord.TRIGGER_IO_ERROR;
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Captures the IPv6 packets passing the copy threads into a ring of pcapng files of limited
+ * size. Copy threads hand packets over through {@link Tap}s into a preallocated ring of slots,
+ * without locking or allocating; a writer thread of its own writes them with nanosecond
+ * timestamps and direction flags to the current file. When the file is full, the next file of
+ * the ring is overwritten. If the writer falls behind, packets are dropped from the capture,
+ * never from the tunnel.
+ */
+class PacketCapture implements Runnable {
+    private static final String TAG = PacketCapture.class.getName();
+
+    /** Direction of packets received from the PoP */
+    static final int DIRECTION_INBOUND = 1;
+    /** Direction of packets sent to the PoP */
+    static final int DIRECTION_OUTBOUND = 2;
+
+    /**
+     * The number of files in the ring.
+     */
+    private static final int FILE_COUNT = 4;
+    /**
+     * The total memory of the slots handing packets to the writer.
+     */
+    private static final int SLOT_MEMORY = 1024 * 1024;
+    /**
+     * Time in nanos that the writer waits when no packets are pending.
+     */
+    private static final long WRITER_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(20L);
+
+    // pcapng constants, see draft-ietf-opsawg-pcapng
+    private static final int BLOCK_SECTION_HEADER = 0x0A0D0D0A;
+    private static final int BLOCK_INTERFACE_DESCRIPTION = 1;
+    private static final int BLOCK_ENHANCED_PACKET = 6;
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final short LINKTYPE_IPV6 = 229;
+    private static final short OPTION_END = 0;
+    private static final short OPTION_IF_TSRESOL = 9;
+    private static final short OPTION_EPB_FLAGS = 2;
+    private static final int ENHANCED_PACKET_OVERHEAD = 44;
+
+    private final File directory;
+    private final int snapLength;
+    private final int sampling;
+    private final long maxFileBytes;
+
+    // the ring of slots; claimed by producers through tail, released by the writer through head
+    private final int slots;
+    private final byte[][] slotData;
+    private final int[] slotLength;
+    private final int[] slotDirection;
+    private final long[] slotTime;
+    private final AtomicLongArray published;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0L;
+
+    private final AtomicInteger sampleCounter = new AtomicInteger();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    // the mapping of System.nanoTime to wall clock, as nanoTime is cheaper on the copy threads
+    private final long epochNanosAtStart = System.currentTimeMillis() * 1000000L;
+    private final long nanoTimeAtStart = System.nanoTime();
+
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private final ByteBuffer buffer;
+    private FileChannel channel;
+    private int fileIndex = -1;
+    private long fileBytes;
+
+    /**
+     * A handle for one copy thread to pass packets of a fixed direction to the capture.
+     */
+    class Tap {
+        private final int direction;
+
+        private Tap(int direction) {
+            this.direction = direction;
+        }
+
+        /**
+         * Capture a packet. This copies at most snap length bytes, and returns immediately.
+         * @param packet the byte array holding the packet
+         * @param length the int number of bytes of the packet
+         */
+        void capture(@NonNull byte[] packet, int length) {
+            PacketCapture.this.capture(packet, length, direction);
+        }
+    }
+
+    /**
+     * Constructor. Starts the writer thread.
+     * @param directory the File giving the directory to write the ring of capture files into
+     * @param snapLength an int giving the maximum number of bytes captured per packet
+     * @param sampling an int n, so that every n-th packet is captured
+     * @param maxBytes a long giving the maximum size of all capture files together
+     * @param runtime the TunnelRuntime to create the writer thread
+     * @throws IOException if the directory cannot be created
+     */
+    PacketCapture(@NonNull File directory, int snapLength, int sampling, long maxBytes,
+                  @NonNull TunnelRuntime runtime) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create capture directory " + directory);
+        this.directory = directory;
+        this.snapLength = Math.max(40, Math.min(snapLength, 65535));
+        this.sampling = Math.max(1, sampling);
+        this.maxFileBytes = Math.max(64 * 1024L, maxBytes / FILE_COUNT);
+        this.slots = Math.max(64, SLOT_MEMORY / this.snapLength);
+        slotData = new byte[slots][this.snapLength];
+        slotLength = new int[slots];
+        slotDirection = new int[slots];
+        slotTime = new long[slots];
+        published = new AtomicLongArray(slots);
+        buffer = ByteBuffer.allocateDirect(Math.max(256 * 1024, 2 * (this.snapLength + ENHANCED_PACKET_OVERHEAD)))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        writer = runtime.newThread(this, "packet capture writer");
+        writer.setDaemon(true);
+        writer.start();
+        Log.i(TAG, "Capturing packets to " + directory + ", snap length " + this.snapLength +
+                ", every " + this.sampling + ". packet");
+    }
+
+    /**
+     * Get a handle to pass packets of one direction to the capture.
+     * @param direction an int giving the direction, DIRECTION_INBOUND or DIRECTION_OUTBOUND
+     * @return the Tap
+     */
+    @NonNull Tap tap(int direction) {
+        return new Tap(direction);
+    }
+
+    private void capture(byte[] packet, int length, int direction) {
+        if (sampling > 1 && sampleCounter.getAndIncrement() % sampling != 0)
+            return;
+        long entry;
+        do {
+            entry = tail.get();
+            if (entry - head >= slots) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(entry, entry + 1));
+        final int slot = (int) (entry % slots);
+        System.arraycopy(packet, 0, slotData[slot], 0, Math.min(length, snapLength));
+        slotLength[slot] = length;
+        slotDirection[slot] = direction;
+        slotTime[slot] = System.nanoTime();
+        published.set(slot, entry + 1);
+    }
+
+    @Override
+    public void run() {
+        try {
+            nextFile();
+            while (!closed) {
+                if (!drain())
+                    LockSupport.parkNanos(this, WRITER_IDLE_NANOS);
+            }
+            drain();
+        } catch (IOException e) {
+            Log.e(TAG, "Packet capture failed", e);
+            closed = true;
+        } finally {
+            closeFile();
+            Log.i(TAG, "Packet capture stopped, " + droppedCount.get() + " packets dropped");
+        }
+    }
+
+    /**
+     * Write all packets handed over.
+     * @return true if any packet was written
+     * @throws IOException if writing fails
+     */
+    private boolean drain() throws IOException {
+        long next = head;
+        final long first = next;
+        while (true) {
+            final int slot = (int) (next % slots);
+            if (published.get(slot) != next + 1)
+                break;
+            final int length = slotLength[slot];
+            final int captured = Math.min(length, snapLength);
+            final int blockLength = ENHANCED_PACKET_OVERHEAD + padded(captured);
+            if (fileBytes + blockLength > maxFileBytes) {
+                flush();
+                nextFile();
+            }
+            if (buffer.remaining() < blockLength)
+                flush();
+            final long timestamp = epochNanosAtStart + (slotTime[slot] - nanoTimeAtStart);
+            buffer.putInt(BLOCK_ENHANCED_PACKET).putInt(blockLength)
+                    .putInt(0) // interface
+                    .putInt((int) (timestamp >>> 32)).putInt((int) timestamp)
+                    .putInt(captured).putInt(length)
+                    .put(slotData[slot], 0, captured);
+            for (int i = captured; i < padded(captured); i++)
+                buffer.put((byte) 0);
+            buffer.putShort(OPTION_EPB_FLAGS).putShort((short) 4).putInt(slotDirection[slot])
+                    .putShort(OPTION_END).putShort((short) 0)
+                    .putInt(blockLength);
+            fileBytes += blockLength;
+            next++;
+            // release the slot to the producers
+            head = next;
+        }
+        flush();
+        return next != first;
+    }
+
+    private static int padded(int length) {
+        return (length + 3) & ~3;
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Switch to the next file of the ring, truncating it, and write the pcapng headers.
+     * @throws IOException if the file cannot be opened or written
+     */
+    private void nextFile() throws IOException {
+        closeFile();
+        fileIndex = (fileIndex + 1) % FILE_COUNT;
+        File file = new File(directory, "capture-" + fileIndex + ".pcapng");
+        channel = new FileOutputStream(file, false).getChannel();
+        buffer.putInt(BLOCK_SECTION_HEADER).putInt(28)
+                .putInt(BYTE_ORDER_MAGIC)
+                .putShort((short) 1).putShort((short) 0)
+                .putLong(-1L) // section length unknown
+                .putInt(28);
+        buffer.putInt(BLOCK_INTERFACE_DESCRIPTION).putInt(32)
+                .putShort(LINKTYPE_IPV6).putShort((short) 0)
+                .putInt(snapLength)
+                .putShort(OPTION_IF_TSRESOL).putShort((short) 1).put((byte) 9).put((byte) 0).putShort((short) 0)
+                .putShort(OPTION_END).putShort((short) 0)
+                .putInt(32);
+        fileBytes = 60;
+        flush();
+        Log.i(TAG, "Capturing into " + file);
+    }
+
+    private void closeFile() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot close capture file", e);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * @return a long giving the number of packets not captured because the writer fell behind
+     */
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Stop capturing. Packets already handed over are still written.
+     */
+    void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+    }
+}
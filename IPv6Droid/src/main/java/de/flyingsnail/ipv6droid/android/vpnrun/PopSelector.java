@@ -0,0 +1,331 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import android.net.Network;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import de.flyingsnail.ipv6droid.transport.ConnectionFailedException;
+import de.flyingsnail.ipv6droid.transport.RoundTripEstimator;
+import de.flyingsnail.ipv6droid.transport.Transporter;
+import de.flyingsnail.ipv6droid.transport.TransporterBuilder;
+import de.flyingsnail.ipv6droid.transport.TunnelBrokenException;
+import de.flyingsnail.ipv6droid.transport.TunnelSpec;
+
+/**
+ * Selects the tunnel, i.e. the PoP, that works best from the current network. Each candidate
+ * is probed in parallel by connecting a transporter and, where the transport supports it,
+ * sending a few probes; candidates that do not connect within the deadline are left out.
+ * Scores are cached per network, so that repeated evaluations on the same network do not
+ * probe again.
+ */
+class PopSelector {
+    private static final String TAG = PopSelector.class.getName();
+
+    /**
+     * The time in milliseconds that all probes of one evaluation are given.
+     */
+    static final long PROBE_DEADLINE_MILLIS = 5000L;
+    /**
+     * The time in milliseconds that a score is reused for the same network.
+     */
+    static final long CACHE_MILLIS = 30 * 60 * 1000L;
+    /**
+     * The interval in milliseconds in which an automatically selected tunnel is re-evaluated.
+     */
+    static final long REEVALUATION_MILLIS = 15 * 60 * 1000L;
+    /**
+     * The factor by which the current PoP's round trip time must exceed the best alternative's
+     * to switch to the alternative.
+     */
+    static final double SWITCH_THRESHOLD = 1.5;
+    /**
+     * The minimum gain in milliseconds of round trip time to switch to another PoP.
+     */
+    static final double MIN_SWITCH_GAIN_MILLIS = 20.0;
+    /**
+     * The number of probes sent to a PoP that supports probing.
+     */
+    private static final int PROBES = 3;
+    /**
+     * The socket timeout in milliseconds while waiting for probe responses.
+     */
+    private static final int PROBE_READ_TIMEOUT_MILLIS = 200;
+    /**
+     * The milliseconds added to the score of a PoP that lost all probes.
+     */
+    private static final double LOSS_PENALTY_MILLIS = 1000.0;
+    /**
+     * The weight of the handshake time in the score.
+     */
+    private static final double HANDSHAKE_WEIGHT = 0.25;
+    /**
+     * The number of round trips assumed for a handshake, to estimate the round trip time of
+     * a PoP that cannot be probed.
+     */
+    private static final int HANDSHAKE_ROUND_TRIPS = 2;
+
+    /**
+     * The result of probing one tunnel.
+     */
+    static class Score {
+        final TunnelSpec tunnel;
+        /** the round trip time in milliseconds, measured or estimated from the handshake */
+        final double rttMillis;
+        /** the rate of probes lost, between 0 and 1 */
+        final double lossRate;
+        /** the time in milliseconds to connect the transporter */
+        final long handshakeMillis;
+        /** the System.currentTimeMillis of the probe */
+        final long measuredAt;
+
+        Score(@NonNull TunnelSpec tunnel, double rttMillis, double lossRate, long handshakeMillis) {
+            this.tunnel = tunnel;
+            this.rttMillis = rttMillis;
+            this.lossRate = lossRate;
+            this.handshakeMillis = handshakeMillis;
+            this.measuredAt = System.currentTimeMillis();
+        }
+
+        /**
+         * @return a double giving the score in milliseconds; lower is better
+         */
+        double getValue() {
+            return rttMillis + lossRate * LOSS_PENALTY_MILLIS + handshakeMillis * HANDSHAKE_WEIGHT;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format("%s (%s): rtt %.1f ms, loss %.2f, handshake %d ms",
+                    tunnel.getTunnelName(), tunnel.getPopName(), rttMillis, lossRate, handshakeMillis);
+        }
+    }
+
+    /**
+     * The construction of a transporter to probe a tunnel.
+     */
+    interface TransporterFactory {
+        /**
+         * @param tunnel the TunnelSpec to construct a transporter for
+         * @return the new, unconnected Transporter
+         * @throws ConnectionFailedException in case that the tunnel type is not supported
+         * @throws NoSuchAlgorithmException in case that the transporter's crypto is not available
+         */
+        @NonNull Transporter create(@NonNull TunnelSpec tunnel)
+                throws ConnectionFailedException, NoSuchAlgorithmException;
+    }
+
+    // the cached scores by network and tunnel id; shared by the sessions of this process
+    private static final Map<String, Map<String, Score>> cache = new HashMap<>();
+
+    private final TunnelRuntime runtime;
+    private final TransporterFactory transporterFactory;
+    private final long cacheMillis;
+
+    /**
+     * Constructor.
+     * @param runtime the TunnelRuntime to run the probes in parallel
+     */
+    PopSelector(@NonNull TunnelRuntime runtime) {
+        this(runtime, TransporterBuilder::createTransporter, CACHE_MILLIS);
+    }
+
+    /**
+     * Constructor.
+     * @param runtime the TunnelRuntime to run the probes in parallel
+     * @param transporterFactory the TransporterFactory constructing the transporters to probe
+     * @param cacheMillis a long giving the time in milliseconds that a score is reused
+     */
+    PopSelector(@NonNull TunnelRuntime runtime, @NonNull TransporterFactory transporterFactory,
+                long cacheMillis) {
+        this.runtime = runtime;
+        this.transporterFactory = transporterFactory;
+        this.cacheMillis = cacheMillis;
+    }
+
+    /**
+     * Select the best of the given tunnels.
+     * @param tunnels the List of TunnelSpec to choose from; tunnels that are not enabled are ignored
+     * @param network the Network to probe via, or null to use the default network
+     * @return the Score of the best tunnel, or null if none could be connected
+     * @throws InterruptedException if the calling thread is interrupted while probing
+     */
+    @Nullable Score selectBest(@NonNull List<? extends TunnelSpec> tunnels, @Nullable Network network)
+            throws InterruptedException {
+        final List<Score> scores = evaluate(tunnels, network);
+        return scores.isEmpty() ? null : scores.get(0);
+    }
+
+    /**
+     * Score the given tunnels, taking cached scores where available and probing the others in
+     * parallel.
+     * @param tunnels the List of TunnelSpec to score; tunnels that are not enabled are ignored
+     * @param network the Network to probe via, or null to use the default network
+     * @return a List of Score, best first, of the tunnels that could be connected
+     * @throws InterruptedException if the calling thread is interrupted while probing
+     */
+    @NonNull List<Score> evaluate(@NonNull List<? extends TunnelSpec> tunnels, @Nullable Network network)
+            throws InterruptedException {
+        final String networkKey = String.valueOf(network);
+        final long now = System.currentTimeMillis();
+        final List<Score> scores = new ArrayList<>(tunnels.size());
+        final List<TunnelSpec> toProbe = new ArrayList<>(tunnels.size());
+        synchronized (cache) {
+            final Map<String, Score> cached = cache.get(networkKey);
+            for (TunnelSpec tunnel: tunnels) {
+                if (!tunnel.isEnabled())
+                    continue;
+                final Score score = cached == null ? null : cached.get(tunnel.getTunnelId());
+                if (score != null && now - score.measuredAt < cacheMillis)
+                    scores.add(score);
+                else
+                    toProbe.add(tunnel);
+            }
+        }
+        final Map<TunnelSpec, Future<Score>> probes = new HashMap<>();
+        for (TunnelSpec tunnel: toProbe)
+            probes.put(tunnel, runtime.submitBlocking(() -> probe(tunnel, network, now + PROBE_DEADLINE_MILLIS)));
+
+        final List<Score> probed = new ArrayList<>(probes.size());
+        try {
+            for (Map.Entry<TunnelSpec, Future<Score>> probe : probes.entrySet()) {
+                final long remaining = now + PROBE_DEADLINE_MILLIS - System.currentTimeMillis();
+                try {
+                    probed.add(probe.getValue().get(Math.max(0L, remaining), TimeUnit.MILLISECONDS));
+                } catch (ExecutionException e) {
+                    Log.i(TAG, "Tunnel " + probe.getKey().getTunnelName() + " failed the probe", e.getCause());
+                } catch (TimeoutException e) {
+                    Log.i(TAG, "Tunnel " + probe.getKey().getTunnelName() + " did not answer in time");
+                }
+            }
+        } finally {
+            for (Future<Score> probe : probes.values())
+                probe.cancel(true);
+        }
+
+        synchronized (cache) {
+            Map<String, Score> cached = cache.get(networkKey);
+            if (cached == null) {
+                cached = new HashMap<>();
+                cache.put(networkKey, cached);
+            }
+            for (Score score : probed)
+                cached.put(score.tunnel.getTunnelId(), score);
+        }
+        scores.addAll(probed);
+        Collections.sort(scores, (a, b) -> Double.compare(a.getValue(), b.getValue()));
+        for (Score score : scores)
+            Log.i(TAG, "Scored " + score + " = " + score.getValue());
+        return scores;
+    }
+
+    /**
+     * Connect a transporter to the given tunnel's PoP, measure the handshake and, if the
+     * transporter supports it, the round trip time and loss of a few probes.
+     * @param tunnel the TunnelSpec to probe
+     * @param network the Network to probe via, or null to use the default network
+     * @param deadline the System.currentTimeMillis by which probing must be finished
+     * @return the Score of the tunnel
+     */
+    private @NonNull Score probe(@NonNull TunnelSpec tunnel, @Nullable Network network, long deadline)
+            throws IOException, ConnectionFailedException, NoSuchAlgorithmException, TunnelBrokenException {
+        final Transporter transporter = transporterFactory.create(tunnel);
+        // stop waiting for responses early enough that the score is taken before the deadline
+        final long probingDeadline = deadline - 2L * PROBE_READ_TIMEOUT_MILLIS;
+        try {
+            final long start = System.currentTimeMillis();
+            final DatagramSocket socket = transporter.prepare();
+            if (network != null)
+                network.bindSocket(socket);
+            transporter.connect();
+            final long handshakeMillis = System.currentTimeMillis() - start;
+
+            final RoundTripEstimator estimator = transporter.getRoundTripEstimator();
+            final ByteBuffer bb = ByteBuffer.allocate(32767);
+            int sent = 0;
+            while (sent < PROBES && System.currentTimeMillis() < probingDeadline && transporter.probe()) {
+                sent++;
+                final long samples = estimator.getSampleCount();
+                final long probeDeadline = Math.min(probingDeadline,
+                        System.currentTimeMillis() + estimator.getTimeoutMillis());
+                transporter.getSocket().setSoTimeout(PROBE_READ_TIMEOUT_MILLIS);
+                while (estimator.getSampleCount() == samples && System.currentTimeMillis() < probeDeadline) {
+                    if (Thread.interrupted())
+                        throw new IOException("Probe of " + tunnel.getTunnelName() + " interrupted");
+                    try {
+                        bb.clear();
+                        transporter.read(bb); // echo responses are registered with the estimator
+                    } catch (SocketTimeoutException e) {
+                        // just check again
+                    }
+                }
+            }
+
+            final double rtt = estimator.getSmoothedRtt();
+            if (sent == 0 || Double.isNaN(rtt)) {
+                // no probe answered or none possible: judge by the handshake
+                return new Score(tunnel, (double)handshakeMillis / HANDSHAKE_ROUND_TRIPS,
+                        sent == 0 ? 0.0 : 1.0, handshakeMillis);
+            }
+            return new Score(tunnel, rtt, 1.0 - (double)estimator.getSampleCount() / sent, handshakeMillis);
+        } finally {
+            transporter.close();
+        }
+    }
+
+    /**
+     * Decide if the current tunnel degraded so far against the best alternative that the
+     * tunnel should switch.
+     * @param current the RoundTripEstimator of the current transporter
+     * @param best the Score of the best alternative
+     * @return true if the tunnel should switch to the alternative
+     */
+    static boolean shouldSwitch(@NonNull RoundTripEstimator current, @NonNull Score best) {
+        final double currentRtt = current.getSmoothedRtt();
+        if (Double.isNaN(currentRtt))
+            return false;
+        final double currentValue = currentRtt + current.getLossRate() * LOSS_PENALTY_MILLIS;
+        final double bestValue = best.rttMillis + best.lossRate * LOSS_PENALTY_MILLIS;
+        return currentValue > bestValue * SWITCH_THRESHOLD
+                && currentValue - bestValue > MIN_SWITCH_GAIN_MILLIS;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import androidx.annotation.Nullable;
+
+/**
+ * A policy deciding how long to wait before the tunnel is reconnected after it went down.
+ * Implementations work on delays only, so they do not depend on the real clock.
+ */
+interface ReconnectPolicy {
+    /**
+     * Decide on the delay before the next attempt to connect, and account for the failure.
+     * @param trigger an int giving the reason the tunnel went down, one of the
+     *                OutageRecord.TRIGGER_ constants
+     * @param cause the Throwable that made the tunnel go down, or null
+     * @return a long giving the delay in milliseconds, 0 to reconnect immediately
+     */
+    long nextDelay(int trigger, @Nullable Throwable cause);
+
+    /**
+     * Note that the tunnel proved working again.
+     */
+    void connected();
+}
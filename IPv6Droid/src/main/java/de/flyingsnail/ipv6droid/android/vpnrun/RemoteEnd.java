@@ -30,26 +30,39 @@ import android.net.NetworkInfo;
 import android.net.RouteInfo;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.DatagramSocket;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.security.NoSuchAlgorithmException;
 import java.util.Date;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
 import de.flyingsnail.ipv6droid.R;
+import de.flyingsnail.ipv6droid.android.TransmissionConfiguration;
 import de.flyingsnail.ipv6droid.android.UserNotificationCallback;
+import de.flyingsnail.ipv6droid.android.statistics.HistoryRecord;
+import de.flyingsnail.ipv6droid.android.statistics.NetworkStatistics;
+import de.flyingsnail.ipv6droid.android.statistics.OutageRecord;
+import de.flyingsnail.ipv6droid.android.statistics.OutageTracker;
+import de.flyingsnail.ipv6droid.android.statistics.SpanTracer;
 import de.flyingsnail.ipv6droid.android.statistics.Statistics;
+import de.flyingsnail.ipv6droid.android.statistics.ThroughputSeries;
+import de.flyingsnail.ipv6droid.android.statistics.TunnelMetrics;
 import de.flyingsnail.ipv6droid.android.statistics.TransmissionStatistics;
 import de.flyingsnail.ipv6droid.transport.ConnectionFailedException;
+import de.flyingsnail.ipv6droid.transport.TrafficClassMapper;
+import de.flyingsnail.ipv6droid.transport.RoundTripEstimator;
 import de.flyingsnail.ipv6droid.transport.Transporter;
 import de.flyingsnail.ipv6droid.transport.TransporterBuilder;
+import de.flyingsnail.ipv6droid.transport.TunnelBrokenException;
 import de.flyingsnail.ipv6droid.transport.TunnelSpec;
 import de.flyingsnail.ipv6droid.transport.ayiya.Ayiya;
 
@@ -59,17 +72,21 @@ import de.flyingsnail.ipv6droid.transport.ayiya.Ayiya;
  *
  * @author pelzi
  */
-public class RemoteEnd implements NetworkChangeListener {
+public class RemoteEnd implements NetworkChangeListener, CopyThread.Controller {
     static final String TAG = RemoteEnd.class.getName();
     private final LocalEnd localEnd;
     private final VpnStatusReport vpnStatus;
     private final Date expiryDate;
-    private boolean intendedToRun;
+    private volatile boolean intendedToRun;
+    /**
+     * The state of the tunnel session, also signalling threads waiting for connectivity or backoff.
+     */
+    private final TunnelLifecycle lifecycle;
     private final boolean forcedRoute;
     private final boolean isRouted;
     private final NetworkHelper networkHelper;
     private Inet4Address localIp = null;
-    private final ExecutorService executor;
+    private final TunnelRuntime runtime;
     /**
      * The incoming statistics collector.
      */
@@ -79,6 +96,31 @@ public class RemoteEnd implements NetworkChangeListener {
      */
     private final TransmissionStatistics outgoingStatistics;
 
+    /**
+     * The scheduler of outgoing packets, or null if packets are sent in order of arrival.
+     */
+    private final FlowScheduler outgoingScheduler;
+
+    /**
+     * The decision on holding back outgoing packets for sending them in batches, or null.
+     */
+    private final BundlingWindow bundlingWindow;
+
+    /**
+     * The number of flow queues of the outgoing scheduler.
+     */
+    private static final int SCHEDULER_FLOWS = 64;
+
+    /**
+     * The number of packets the outgoing scheduler can hold.
+     */
+    private static final int SCHEDULER_CAPACITY = 256;
+
+    /**
+     * The minimum MTU of an IPv6 link.
+     */
+    private static final int MIN_IPV6_MTU = 1280;
+
     /**
      * The thread that copies from PoP to local.
      */
@@ -103,12 +145,118 @@ public class RemoteEnd implements NetworkChangeListener {
      * (i.e. since "startedAt").
      */
     private int reconnectCount;
-    private Network currentNetwork = null;
+    private volatile Network currentNetwork = null;
+
+    /**
+     * The tunnel protocol object. Apart from the overlap of a handover, this is the only session
+     * kept with the PoP: an AYIYA PoP sends inbound traffic to the source of the last heartbeat,
+     * and a second DTLS handshake for the same tunnel may supersede the first, so a warm standby
+     * session would take the tunnel away from this one.
+     */
+    private volatile Transporter transporter;
 
     /**
-     * The tunnel protocol object
+     * The specification of the tunnel, required to construct further transporters.
      */
-    private final Transporter transporter;
+    private final TunnelSpec tunnel;
+
+    /**
+     * The configuration of packet handling, applied to each transporter constructed.
+     */
+    private final TransmissionConfiguration transmissionConfiguration;
+
+    /**
+     * The time in milliseconds that a newly connected transporter has to prove working.
+     */
+    private static final long VERIFICATION_TIMEOUT_MILLIS = 10000L;
+
+    /**
+     * The interval in milliseconds in which the verification checks for a response.
+     */
+    private static final long VERIFICATION_POLL_MILLIS = 100L;
+
+    /**
+     * The minimum time in milliseconds that a transporter replaced by a handover is still read from.
+     */
+    private static final long MIN_DRAIN_MILLIS = 50L;
+
+    /**
+     * The maximum time in milliseconds that a transporter replaced by a handover is still read from.
+     */
+    private static final long MAX_DRAIN_MILLIS = 1000L;
+
+    /**
+     * The minimum time in milliseconds before a failed handover is tried again.
+     */
+    private static final long MIN_HANDOVER_RETRY_MILLIS = 1000L;
+
+    /**
+     * The interval in milliseconds in which an on-demand tunnel is checked for idleness.
+     */
+    private static final long IDLE_CHECK_MILLIS = 5000L;
+
+    /**
+     * The time in nanoseconds without packets after which the transporter is closed until the
+     * next outgoing packet, or 0 if the tunnel is not run on demand.
+     */
+    private final long idleTimeoutNanos;
+
+    /**
+     * The periodic check for idleness, or null if the tunnel is not run on demand.
+     */
+    private ScheduledFuture<?> idleCheck;
+
+    /**
+     * The request of a handover again after a failed one, or null if none is pending.
+     */
+    private volatile ScheduledFuture<?> handoverRetry;
+
+    /**
+     * The System.nanoTime when the current transporter was attached.
+     */
+    private volatile long attachedNanos = 0L;
+
+    /**
+     * The number of times the transporter was closed because the tunnel was idle.
+     */
+    private volatile int idleCount;
+
+    /**
+     * The number of times an outgoing packet woke the idle tunnel.
+     */
+    private volatile int wakeCount;
+
+    /**
+     * The switch that connects the copy threads to the transporter while it is connected.
+     */
+    private final TransporterSwitch transporterSwitch;
+
+    /**
+     * The System.nanoTime of the last decision to reconnect, or 0 if no reconnect is pending.
+     */
+    private volatile long reconnectDecisionTime = 0L;
+
+    /**
+     * The policy deciding on the delay before reconnecting.
+     */
+    private final ReconnectPolicy reconnectPolicy;
+
+    /**
+     * The System.currentTimeMillis before which no reconnect should be attempted.
+     */
+    private long retryAt = 0L;
+    // the number of round trip times measured by the transporter when last sampled
+    private long sampledRttCount = 0L;
+    /**
+     * The invalid packet count of the transporter already added to the exported metrics.
+     */
+    private int sampledInvalidPacketCount = 0;
+    /**
+     * The counts of the transporter switch's hold queue already added to the exported metrics.
+     */
+    private long sampledHeldCount = 0L;
+    private long sampledFlushedCount = 0L;
+    private long sampledExpiredCount = 0L;
 
     private final UserNotificationCallback service;
 
@@ -124,18 +272,20 @@ public class RemoteEnd implements NetworkChangeListener {
      * @param forcedRoute a boolean indicating if route through VPN should set up even if local
      *                    network is IPv6 capable
      * @param isRouted a boolean indicating if the VPN is going to be set up routed
-     * @param executor an ExecutorService to be used for asnychronous tasks.
+     * @param runtime the TunnelRuntime to be used for asynchronous tasks and timers.
      * @param userNotificationCallback a UserNotificationCallback to generate user notifications to
      * @param tunnel a TunnelSpec specifying the tunnel to be set up
+     * @param transmissionConfiguration the TransmissionConfiguration to apply to packet handling
      * @throws ConnectionFailedException in case of a permanent problem with the tunnel
      */
     RemoteEnd(final LocalEnd localEnd,
               final VpnStatusReport vpnStatus,
               final boolean forcedRoute,
               final boolean isRouted,
-              final ExecutorService executor,
+              final TunnelRuntime runtime,
               final UserNotificationCallback userNotificationCallback,
-              final TunnelSpec tunnel) throws ConnectionFailedException {
+              final TunnelSpec tunnel,
+              final TransmissionConfiguration transmissionConfiguration) throws ConnectionFailedException {
         this.localEnd = localEnd;
         this.vpnStatus = vpnStatus;
 
@@ -143,149 +293,284 @@ public class RemoteEnd implements NetworkChangeListener {
         this.forcedRoute = forcedRoute;
         this.isRouted = isRouted;
         this.reconnectCount = 0;
-        this.executor = executor;
+        this.runtime = runtime;
+        this.transporterSwitch = new TransporterSwitch(runnable -> runtime.newThread(runnable, "drain reader"));
         this.service = userNotificationCallback;
         this.expiryDate = tunnel.getExpiryDate();
+        this.tunnel = tunnel;
+        this.transmissionConfiguration = transmissionConfiguration;
+        this.reconnectPolicy = localEnd.getReconnectPolicy();
+        this.lifecycle = localEnd.getVpnThread().getLifecycle();
+        this.idleTimeoutNanos = transmissionConfiguration.isOnDemandEnabled() ?
+                Math.max(1, transmissionConfiguration.getOnDemandIdleTimeout()) * 1000000000L :
+                0L;
 
         // Prepare the tunnel to PoP
-        try {
-            transporter = TransporterBuilder.createTransporter(tunnel);
-        } catch (NoSuchAlgorithmException e) {
-            throw new ConnectionFailedException("Cannot construct a transporter for this tunnel type", e);
-        }
+        transporter = createTransporter();
 
         // the statistics collector
         this.ingoingStatistics = new TransmissionStatistics();
         this.outgoingStatistics = new TransmissionStatistics();
+        // the scheduler of outgoing packets; TUN reads never exceed the tunnel's MTU
+        this.outgoingScheduler = transmissionConfiguration.isSchedulerEnabled() ?
+                new FlowScheduler(SCHEDULER_FLOWS, SCHEDULER_CAPACITY,
+                        Math.max(tunnel.getMtu(), MIN_IPV6_MTU),
+                        transmissionConfiguration.getCodelTarget(),
+                        transmissionConfiguration.getCodelInterval()) :
+                null;
+        // bundling relies on the scheduler's queue
+        this.bundlingWindow = (outgoingScheduler != null && transmissionConfiguration.isBundlingEnabled()) ?
+                new BundlingWindow(transmissionConfiguration.getBundlingPeriod(),
+                        transmissionConfiguration.getBundlingMaxPackets(), SCHEDULER_CAPACITY) :
+                null;
         networkHelper = new NetworkHelper(this,
-                (ConnectivityManager) localEnd.getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE));
+                (ConnectivityManager) localEnd.getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE),
+                runtime,
+                localEnd.getVpnThread().getMetrics().getNetworkEventsSuppressed());
+    }
+
+    /**
+     * Construct a transporter for the tunnel, configured as given by the transmission configuration.
+     * @return the new Transporter
+     * @throws ConnectionFailedException in case that the tunnel type is not supported
+     */
+    private Transporter createTransporter() throws ConnectionFailedException {
+        final Transporter newTransporter;
+        try {
+            newTransporter = TransporterBuilder.createTransporter(tunnel);
+        } catch (NoSuchAlgorithmException e) {
+            throw new ConnectionFailedException("Cannot construct a transporter for this tunnel type", e);
+        }
+        if (transmissionConfiguration.getPropagatedTrafficClasses() != 0 || transmissionConfiguration.isEcnPropagated())
+            newTransporter.setTrafficClassMapper(new TrafficClassMapper(
+                    transmissionConfiguration.getPropagatedTrafficClasses(),
+                    transmissionConfiguration.isEcnPropagated()));
+        return newTransporter;
     }
 
     /**
      * Run tunnels with a given local end (vpnFD remaining constant, local IP remaining constant,
      * all connections staying up. In effect, this method will (re-)connect the transporter part and run
-     * a suitable Monitor on it.
+     * a suitable Monitor on it. The copy threads are started once and keep running while the
+     * transporter is reconnected. On a change of the native network, a second transporter may be
+     * connected via the new network while the current one still carries traffic (handover).
      *
      * @throws ConnectionFailedException in case that the current configuration seems permanently defective
      */
     EndCause refreshRemoteEnd(FileDescriptor localFD) throws ConnectionFailedException, InterruptedException {
-        Date lastStartAttempt = new Date(0L);
         EndCause endCause = null;
         networkHelper.start();
-
-        while (intendedToRun && localFD.valid()) {
+        if (bundlingWindow != null)
+            bundlingWindow.start(localEnd.getApplicationContext());
+
+        // the copy threads live as long as the TUN device, reconnects only swap the transporter
+        startCopyThreads(localFD);
+        if (idleTimeoutNanos > 0L)
+            idleCheck = runtime.scheduleAtFixedRate(this::checkIdle, IDLE_CHECK_MILLIS);
+
+        final OutageTracker outages = localEnd.getVpnThread().getOutageTracker();
+        // set if the monitor ended to hand over the current transporter to a new network
+        boolean handover = false;
+        // the network of the transporter to be replaced by the handover
+        Network handoverSource = null;
+        // set if the current transporter is kept after a failed handover, to be monitored again
+        boolean keepCurrent = false;
+        while (intendedToRun && localFD.valid() && areCopyThreadsAlive()) {
+            int reconnectCause = HistoryRecord.CAUSE_MONITOR_ENDED;
+            // set if the monitor ended as the tunnel went idle
+            boolean idled = false;
+            long monitorSpan = 0L;
+            final boolean handingOver = handover;
+            handover = false;
+            final boolean resuming = keepCurrent;
+            keepCurrent = false;
+            // the transporter to connect, if a second one is required for a handover
+            Transporter candidate = null;
+            outages.phaseStarted(OutageRecord.PHASE_CONNECTIVITY, System.currentTimeMillis());
             try {
                 // make sure we can connect to any network
                 networkHelper.getConnectivityManager().bindProcessToNetwork(null);
 
-                // Packets to be sent are queued in this input stream.
-                FileInputStream localIn = new FileInputStream(localFD);
-
-                // Packets received need to be written to this output stream.
-                FileOutputStream localOut = new FileOutputStream(localFD);
-
                 if (Thread.interrupted())
                     throw new InterruptedException("Tunnel loop has interrupted status set");
 
-                // ensure we're online
-                waitOnConnectivity();
-
-                // Re-Check if we should close down, as this can easily happen when waiting on connectivity
-                if (!intendedToRun) {
-                    break;
-                }
-                // Check if our tunnel is still valid, as this can easily change whilst waiting on connectivity
-                if (new Date().after(expiryDate)) {
-                    endCause = EndCause.EXPIRED;
-                    break;
+                final CopyThread myInThread;
+                final CopyThread myOutThread;
+                if (resuming) {
+                    // the handover failed, but the current transporter still works via its network
+                    Log.i(TAG, "Monitoring the current transporter again until the handover is retried");
+                    myInThread = inThread; // avoid race condition with stop
+                    myOutThread = outThread;
+                    if (myInThread == null || myOutThread == null)
+                        break;
+                } else {
+                    cancelHandoverRetry();
+
+                    // back off as the reconnect policy decided on the last failure
+                    if (!handingOver)
+                        awaitRetry();
+
+                    // ensure we're online
+                    final long connectivitySpan = SpanTracer.begin();
+                    waitOnConnectivity();
+                    SpanTracer.end("wait for connectivity", connectivitySpan);
+
+                    // Re-Check if we should close down, as this can easily happen when waiting on connectivity
+                    if (!intendedToRun) {
+                        break;
+                    }
+                    // Check if our tunnel is still valid, as this can easily change whilst waiting on connectivity
+                    if (new Date().after(expiryDate)) {
+                        endCause = EndCause.EXPIRED;
+                        break;
+                    }
+
+                    if (isTunnelRoutingRequired() ^ isRouted) {
+                        endCause = isRouted ? EndCause.INHIBITS_ROUTING : EndCause.REQUIRES_ROUTIING;
+                        outages.setTrigger(OutageRecord.TRIGGER_ROUTING_CHANGED, endCause.toString());
+                        break;
+                    }
+
+                    if (!handingOver) {
+                        vpnStatus.setStatus(VpnStatusReport.Status.Connecting);
+                        vpnStatus.setActivity(R.string.vpnservice_activity_reconnect);
+                    }
+
+                    // setup tunnel to PoP; in a handover, the current transporter keeps running meanwhile
+                    Log.i(TAG, "Connecting transporter object");
+                    if (handingOver) {
+                        candidate = createTransporter();
+                    } else {
+                        vpnStatus.setStatus(VpnStatusReport.Status.Connecting);
+                        vpnStatus.setActivity(R.string.vpnservice_activity_connecting);
+                    }
+                    final Transporter connecting = handingOver ? candidate : transporter;
+                    // a handover keeps the session's state, as the current transporter is still up
+                    if (!handingOver && !lifecycle.moveTo(TunnelLifecycle.State.RESOLVING) && lifecycle.isClosed())
+                        break;
+
+                    outages.phaseStarted(OutageRecord.PHASE_RESOLVE, System.currentTimeMillis());
+                    final long prepareSpan = SpanTracer.begin();
+                    DatagramSocket popSocket = connecting.prepare();
+                    SpanTracer.end("prepare transporter", prepareSpan);
+                    currentNetwork.bindSocket(popSocket);  // use the given Network explicitly
+                    // the certification revocation check will open its own socket, needs to be bound to native
+                    networkHelper.getConnectivityManager().bindProcessToNetwork(currentNetwork);
+                    /* this is from Android VpnService how-to. Let's try without, as we've bound
+                       this socket to the OS native network above.
+                    localEnd.getVpnThread().getService().protect(popSocket); // do not redirect to VPN
+                     */
+
+                    Log.i(TAG, "Connecting transporter");
+                    if (!handingOver)
+                        lifecycle.transition(TunnelLifecycle.State.RESOLVING, TunnelLifecycle.State.HANDSHAKING);
+                    outages.phaseStarted(OutageRecord.PHASE_HANDSHAKE, System.currentTimeMillis());
+                    final long connectSpan = SpanTracer.begin();
+                    final long connectStart = System.nanoTime();
+                    try {
+                        connecting.connect();
+                    } finally {
+                        SpanTracer.end("connect transporter", connectSpan, "handover", String.valueOf(handingOver));
+                    }
+                    localEnd.getVpnThread().getMetrics().getHandshakeDuration().record(
+                            (System.nanoTime() - connectStart) / 1000000L);
+                    outages.phaseStarted(OutageRecord.PHASE_FIRST_PACKET, System.currentTimeMillis());
+
+                    Log.i(TAG, "Transporter connected");
+                    vpnStatus.setProgressPerCent(75);
+                    vpnStatus.setStatus(VpnStatusReport.Status.Connected);
+                    vpnStatus.setCause(null);
+
+                    // update network info
+                    try {
+                        localIp = (Inet4Address) popSocket.getLocalAddress();
+                    } catch (ClassCastException e) {
+                        Log.e(TAG, "local address is not Inet4Address", e);
+                        // affects only statistics display
+                    }
+                    publishNetworkStatistics();
+
+                    // hand the transporter to the running copy threads
+                    Log.i (TAG, "Attaching transporter to copy threads");
+                    myInThread = inThread; // avoid race condition with stop
+                    myOutThread = outThread;
+                    if (myInThread == null || myOutThread == null)
+                        break;
+                    myInThread.expectFirstPacket();
+                    myOutThread.expectFirstPacket();
+                    // only packets received after the attach verify the transporter
+                    final long validPackets = (handingOver ? candidate : transporter).getValidPacketCount();
+                    if (handingOver) {
+                        final Transporter replaced = transporterSwitch.handover(connecting);
+                        transporter = connecting;
+                        candidate = null;
+                        localEnd.getVpnThread().getMetrics().getHandovers().increment();
+                        if (replaced != null)
+                            drainTransporter(replaced);
+                        Log.i(TAG, "Handover to network " + currentNetwork + " completed");
+                    } else {
+                        transporterSwitch.attach(transporter);
+                    }
+                    attachedNanos = System.nanoTime();
+                    lifecycle.moveTo(TunnelLifecycle.State.UP);
+                    vpnStatus.setCause(null);
+
+                    // the tunnel is verified in the background while it is monitored already
+                    verifyTransporter(transporter, validPackets);
                 }
 
-                if (isTunnelRoutingRequired() ^ isRouted) {
-                    endCause = isRouted ? EndCause.INHIBITS_ROUTING : EndCause.REQUIRES_ROUTIING;
-                    break;
-                }
-
-                vpnStatus.setStatus(VpnStatusReport.Status.Connecting);
-                vpnStatus.setActivity(R.string.vpnservice_activity_reconnect);
-
-                // timestamp base mechanism to prevent busy looping through e.g. IOException
-                Date now = new Date();
-                long lastIterationRun = now.getTime() - lastStartAttempt.getTime();
-                if (lastIterationRun < 1000L)
-                    //noinspection BusyWait
-                    Thread.sleep(1000L - lastIterationRun);
-                lastStartAttempt = new Date();
-
-                // setup tunnel to PoP
-                Log.i(TAG, "Connecting transporter object");
-                vpnStatus.setStatus(VpnStatusReport.Status.Connecting);
-                vpnStatus.setActivity(R.string.vpnservice_activity_connecting);
-
-                DatagramSocket popSocket = transporter.prepare();
-                currentNetwork.bindSocket(popSocket);  // use the given Network explicitly
-                // the certification revocation check will open its own socket, needs to be bound to native
-                networkHelper.getConnectivityManager().bindProcessToNetwork(currentNetwork);
-                /* this is from Android VpnService how-to. Let's try without, as we've bound
-                   this socket to the OS native network above.
-                localEnd.getVpnThread().getService().protect(popSocket); // do not redirect to VPN
-                 */
-
-                Log.i(TAG, "Connecting transporter");
-                transporter.connect();
-
-                Log.i(TAG, "Transporter connected");
-                vpnStatus.setProgressPerCent(75);
-                vpnStatus.setStatus(VpnStatusReport.Status.Connected);
-                vpnStatus.setCause(null);
-
-                // Initialize the input and output streams from the transporter socket
-                InputStream popIn = transporter.getInputStream();
-                OutputStream popOut = transporter.getOutputStream();
-
-                // update network info
-                try {
-                    localIp = (Inet4Address) popSocket.getLocalAddress();
-                } catch (ClassCastException e) {
-                    Log.e(TAG, "local address is not Inet4Address", e);
-                    // affects only statistics display
-                }
-
-                // start the copying threads
-                Log.i (TAG, "Starting copy threads");
-                synchronized (this) {
-                    outThread = new CopyThread(localIn, popOut, service, this, "Transport from local to POP", TAG_OUTGOING_THREAD, 0, outgoingStatistics);
-                    inThread = new CopyThread(popIn, localOut, service, this, "Transport from POP to local", TAG_INCOMING_THREAD, 0, ingoingStatistics);
-                    outThread.start();
-                    inThread.start();
-                }
-                vpnStatus.setActivity(R.string.vpnservice_activity_ping_pop);
-                vpnStatus.setCause(null);
-
                 Monitor vpnMonitor =
                         transporter instanceof Ayiya ?
-                                new HeartbeatMonitor(this, inThread, outThread) :
-                                new SimpleMonitor(this, inThread, outThread);
+                                new HeartbeatMonitor(this, myInThread, myOutThread) :
+                                new SimpleMonitor(this, myInThread, myOutThread);
 
                 // now the tunnel is expected to work so future sockets are no longer bound to native
                 networkHelper.getConnectivityManager().bindProcessToNetwork(null);
 
-                // now do a ping on IPv6 level. This should involve receiving one packet
-                if (!Inet6Address.getByName(localEnd.getApplicationContext().getString(R.string.ipv6_test_host)).isReachable(10000)) {
-                    Log.e(TAG, "Warning: couldn't ping pop via ipv6!");
-                }
-
                 vpnStatus.setActivity(R.string.vpnservice_activity_online);
 
                 // loop until interrupted or tunnel defective
+                monitorSpan = SpanTracer.begin();
                 vpnMonitor.loop();
+                SpanTracer.end("monitor", monitorSpan);
+                monitorSpan = 0L;
                 Log.i(TAG, "monitored heartbeat loop ended");
+                if (intendedToRun && transporterSwitch.isIdle()) {
+                    idled = true;
+                    awaitWake();
+                } else if (intendedToRun && transporterSwitch.isHandoverRequested() && !transporterSwitch.isFailed()) {
+                    // keep the current transporter attached until its successor is connected
+                    Log.i(TAG, "Preparing handover to new network");
+                    handover = true;
+                    handoverSource = currentNetwork;
+                } else if (intendedToRun) {
+                    reconnectDecisionTime = System.nanoTime();
+                    final Throwable failure = transporterSwitch.getFailure();
+                    final int trigger = classifyFailure(failure);
+                    outages.outageStarted(trigger, failure == null ? "Monitor ended" : String.valueOf(failure.getMessage()),
+                            System.currentTimeMillis());
+                    scheduleRetry(trigger, failure);
+                }
             } catch (IOException e) {
+                SpanTracer.end("monitor", monitorSpan, "exception", e.toString());
+                if (candidate != null && isHandoverSourceUsable(handoverSource)) {
+                    keepCurrent = true;
+                    retryHandover(handoverSource, e);
+                    continue;
+                }
+                reconnectDecisionTime = System.nanoTime();
+                outages.outageStarted(OutageException.triggerOf(e), e.getMessage(), System.currentTimeMillis());
+                scheduleRetry(OutageException.triggerOf(e), e);
+                reconnectCause = HistoryRecord.CAUSE_IO_ERROR;
                 Log.i(TAG, "Tunnel connection broke down, closing and reconnecting transporter (remote end)", e);
                 vpnStatus.setProgressPerCent(50);
                 vpnStatus.setCause(e);
                 vpnStatus.setStatus(VpnStatusReport.Status.Disturbed);
             } catch (InterruptedException e) {
                 networkHelper.stop();
+                if (bundlingWindow != null)
+                    bundlingWindow.stop();
+                stopCopyThreads();
                 Log.i(TAG, "refresh remote end loop received interrupt");
                 throw e;
             } catch (RuntimeException | ConnectionFailedException e) {
@@ -293,11 +578,28 @@ public class RemoteEnd implements NetworkChangeListener {
                 stop();
                 throw e;
             } finally {
-                cleanCopyThreads();
-                localIp = null;
+                if (candidate != null) {
+                    // the handover failed, either the current transporter is kept or reconnected
+                    Log.i(TAG, "Handover failed, closing new transporter");
+                    candidate.close();
+                }
+                if (!handover && !keepCurrent) {
+                    final long detachSpan = SpanTracer.begin();
+                    detachTransporter();
+                    SpanTracer.end("detach transporter", detachSpan);
+                    localIp = null;
+                    publishNetworkStatistics();
+                }
+            }
+            if (!handover && !idled) {
+                reconnectCount++;
+                localEnd.getVpnThread().notifyReconnect(reconnectCause);
             }
-            reconnectCount++;
         }
+        if (idleCheck != null)
+            idleCheck.cancel(false);
+        cancelHandoverRetry();
+        stopCopyThreads();
         if (endCause == null) {
             endCause = intendedToRun ? EndCause.FD_INVALID : EndCause.ON_REQUEST;
         }
@@ -308,24 +610,169 @@ public class RemoteEnd implements NetworkChangeListener {
 
     void stop() {
         networkHelper.stop();
+        if (bundlingWindow != null)
+            bundlingWindow.stop();
         intendedToRun = false;
-        cleanCopyThreads();
+        // unless the session closes, a new remote end will rebuild the tunnel
+        lifecycle.moveTo(TunnelLifecycle.State.RECONNECTING);
+        lifecycle.signal();
+        final ScheduledFuture<?> myIdleCheck = idleCheck; // avoid race condition with refreshRemoteEnd
+        if (myIdleCheck != null)
+            myIdleCheck.cancel(false);
+        cancelHandoverRetry();
+        detachTransporter();
+        stopCopyThreads();
+    }
+
+    /**
+     * Check if the current transporter can keep carrying traffic while a failed handover is
+     * retried.
+     * @param source the Network the current transporter is connected via, or null
+     * @return true if that network is still available and the transporter did not fail
+     */
+    private boolean isHandoverSourceUsable(@Nullable Network source) {
+        final Transporter myTransporter = transporter; // avoid race condition
+        return intendedToRun && isNetworkAvailable(source) &&
+                myTransporter != null && myTransporter.isAlive() && !transporterSwitch.isFailed();
+    }
+
+    /**
+     * Keep the current transporter after its successor failed to connect, and request the
+     * handover again once the delay decided by the reconnect policy has passed.
+     * @param source the Network the current transporter is connected via
+     * @param cause the Throwable that made the successor fail
+     */
+    private void retryHandover(@NonNull Network source, @NonNull Throwable cause) {
+        currentNetwork = source;
+        transporterSwitch.cancelHandover();
+        final long delay = Math.max(MIN_HANDOVER_RETRY_MILLIS,
+                reconnectPolicy.nextDelay(OutageException.triggerOf(cause), cause));
+        Log.i(TAG, "Keeping the current transporter, retrying the handover in " + delay + " ms", cause);
+        handoverRetry = runtime.schedule(() -> {
+            // the handover is obsolete if the device went back to the current network
+            if (intendedToRun && isDeviceConnected() && !isCurrentSocketStillValid())
+                transporterSwitch.requestHandover();
+        }, delay);
+    }
+
+    private void cancelHandoverRetry() {
+        final ScheduledFuture<?> myHandoverRetry = handoverRetry; // avoid race condition
+        if (myHandoverRetry != null)
+            myHandoverRetry.cancel(false);
+        handoverRetry = null;
+    }
+
+    /**
+     * Suspend the tunnel if it is up or degraded and no packet was copied in either direction for
+     * the idle timeout. Suspending ends the monitor of the current transporter.
+     */
+    private void checkIdle() {
+        final TunnelLifecycle.State state = lifecycle.getState();
+        if (!intendedToRun || (state != TunnelLifecycle.State.UP && state != TunnelLifecycle.State.DEGRADED))
+            return;
+        final long lastPacket = Math.max(attachedNanos,
+                Math.max(ingoingStatistics.getLastPacketNanos(), outgoingStatistics.getLastPacketNanos()));
+        if (System.nanoTime() - lastPacket < idleTimeoutNanos)
+            return;
+        if (transporterSwitch.suspend() == null)
+            return;
+        Log.i(TAG, "Tunnel idle for " + idleTimeoutNanos / 1000000000L + " s, closing transporter until the next outgoing packet");
+        SpanTracer.instant("tunnel idle", "idleCount", String.valueOf(idleCount + 1));
+        idleCount++;
+        getMetrics().getIdleTeardowns().increment();
+    }
+
+    /**
+     * Close the transporter of the idle tunnel and wait for the next outgoing packet, which is
+     * held until the tunnel is reconnected.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void awaitWake() throws InterruptedException {
+        lifecycle.moveTo(TunnelLifecycle.State.IDLE);
+        final Transporter myTransporter = transporter; // avoid race condition
+        if (myTransporter != null)
+            myTransporter.close();
+        localIp = null;
+        publishNetworkStatistics();
+        vpnStatus.setActivity(R.string.vpnservice_activity_idle);
+        final long idleSpan = SpanTracer.begin();
+        final boolean woken = transporterSwitch.awaitWake();
+        SpanTracer.end("idle", idleSpan, "woken", String.valueOf(woken));
+        if (woken) {
+            Log.i(TAG, "Idle tunnel woken by outgoing packet, reconnecting");
+            wakeCount++;
+            getMetrics().getWakeups().increment();
+        }
+    }
+
+    /**
+     * Classify why the current transporter failed. A failure telling its trigger is taken as is;
+     * otherwise, a loss or change of the network explains the failure before the failure itself.
+     * @param failure the Throwable that failed the current transporter, or null if none failed
+     * @return an int giving the trigger, one of the OutageRecord.TRIGGER_ constants
+     */
+    private int classifyFailure(@Nullable Throwable failure) {
+        if (failure instanceof OutageException)
+            return ((OutageException) failure).getTrigger();
+        if (!isDeviceConnected())
+            return OutageRecord.TRIGGER_NETWORK_LOST;
+        if (!isCurrentSocketStillValid())
+            return OutageRecord.TRIGGER_NETWORK_CHANGED;
+        return failure == null ? OutageRecord.TRIGGER_COPY_THREAD_DIED : OutageException.triggerOf(failure);
+    }
+
+    /**
+     * Ask the reconnect policy when to retry after a failure.
+     * @param trigger an int giving the reason the tunnel went down, one of the OutageRecord.TRIGGER_ constants
+     * @param cause the Throwable that made the tunnel go down, or null
+     */
+    private void scheduleRetry(int trigger, Throwable cause) {
+        lifecycle.moveTo(TunnelLifecycle.State.RECONNECTING);
+        final long delay = reconnectPolicy.nextDelay(trigger, cause);
+        retryAt = System.currentTimeMillis() + delay;
+        Log.i(TAG, "Reconnect policy decided on a delay of " + delay + " ms");
     }
 
     /**
-     * Waits until the device's active connection is connected.
+     * Waits until the time decided by the reconnect policy has come. A change to a new network
+     * ends the wait immediately.
+     */
+    private void awaitRetry() throws InterruptedException {
+        final long myRetryAt = retryAt;
+        long remaining = myRetryAt - System.currentTimeMillis();
+        if (remaining <= 0)
+            return;
+        Log.i(TAG, "Backing off for " + remaining + " ms before reconnecting");
+        vpnStatus.setStatus(VpnStatusReport.Status.Disturbed);
+        vpnStatus.setActivity(R.string.vpnservice_activity_backoff);
+        while (remaining > 0 && intendedToRun) {
+            final long signals = lifecycle.getSignalCount();
+            if (isDeviceConnected() && !isCurrentSocketStillValid()) {
+                Log.i(TAG, "Network changed while backing off, reconnecting immediately");
+                break;
+            }
+            lifecycle.awaitSignal(signals, remaining);
+            remaining = myRetryAt - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Waits until the device's active connection is connected, or this remote end is stopped.
      *
      */
     private void waitOnConnectivity() throws InterruptedException {
-        while (!isDeviceConnected()) {
+        while (intendedToRun) {
+            final long signals = lifecycle.getSignalCount();
+            if (isDeviceConnected())
+                break;
             Log.i(TAG, "Waiting for device to connect to a network");
             vpnStatus.setProgressPerCent(45);
             vpnStatus.setStatus(VpnStatusReport.Status.NoNetwork);
             vpnStatus.setActivity(R.string.vpnservice_activity_connectivity);
-            synchronized (this) {
-                this.wait();
-            }
+            lifecycle.awaitSignal(signals, 0L);
         }
+        if (!intendedToRun)
+            return;
         currentNetwork = networkHelper.getNativeNetwork();
         Log.i(TAG, "We're connected to network " + currentNetwork.toString());
     }
@@ -361,24 +808,24 @@ public class RemoteEnd implements NetworkChangeListener {
                    Reason is probably that the formerly used network can still be used for a limited
                    time period.
                  */
-                if (!(myTransporter.isAlive() && isCurrentSocketStillValid())) {
+                if (!isCurrentSocketStillValid() && transmissionConfiguration.isHandoverEnabled() &&
+                        isNetworkAvailable(currentNetwork) && myTransporter.isAlive()) {
+                    // make before break: the old network keeps carrying traffic until the new one is connected
+                    Log.i(TAG, "native network changed, requesting handover");
+                    lifecycle.transition(TunnelLifecycle.State.UP, TunnelLifecycle.State.DEGRADED);
+                    transporterSwitch.requestHandover();
+                } else if (!(myTransporter.isAlive() && isCurrentSocketStillValid())) {
                     Log.i(TAG, "transporter object no longer functional after connectivity change - reconnecting");
-                    executor.submit(() -> {
-                        try {
-                            cleanCopyThreads();
-                        } catch (Throwable t) {
-                            Log.e(TAG, "stopping copy threads failed", t);
-                        }
-                        return null;
-                    });
+                    transporterSwitch.fail(new OutageException(OutageRecord.TRIGGER_NETWORK_CHANGED,
+                            "Connectivity changed", null));
                 }
             } // vpn copy threads are still running
         }
 
+        publishNetworkStatistics();
+
         // wake up threads waiting on connectivity
-        synchronized (this) {
-            notifyAll();
-        }
+        lifecycle.signal();
 
     }
 
@@ -392,6 +839,7 @@ public class RemoteEnd implements NetworkChangeListener {
             return;
 
         currentNetwork = networkHelper.getNativeNetwork(); // usually null at this point...
+        publishNetworkStatistics();
 
         Log.i(TAG, "We're no longer connected.");
         vpnStatus.setProgressPerCent(45);
@@ -405,17 +853,20 @@ public class RemoteEnd implements NetworkChangeListener {
      * A copy thread calls back to state that it is gone.
      * @param diedThread the CopyThread that died.
      */
-    protected void copyThreadDied(CopyThread diedThread) {
-        // if one copy thread died, the transporter is useless anyway.
-        Log.i(TAG, "A copy thread died, closing transporter out-of-sync");
-        transporter.close();
-        // no special treatment for inThread required, a dying inThread is immediately noticed
-        // by VpnThread.
+    @Override
+    public void copyThreadDied(@NonNull CopyThread diedThread) {
+        // the copy threads live as long as the TUN device, so the session ends with one of them
+        Log.i(TAG, "A copy thread died, ending the current session");
+        transporterSwitch.fail(new OutageException(OutageRecord.TRIGGER_COPY_THREAD_DIED,
+                "Copy thread " + diedThread.getName() + " died", diedThread.getDeathCause()));
         final CopyThread myInThread = inThread; // Race-Conditions vermeiden
-        if (diedThread != inThread && diedThread == outThread && myInThread != null) {
+        final CopyThread myOutThread = outThread;
+        if (diedThread == myOutThread && myInThread != null) {
             Log.i(TAG, "outThread notified us of its death, killing inThread as well");
             myInThread.stopCopy();
-            // inThread is now dying as well, not going unnoticed by monitoredHeartbeatLoop
+        } else if (diedThread == myInThread && myOutThread != null) {
+            Log.i(TAG, "inThread notified us of its death, killing outThread as well");
+            myOutThread.stopCopy();
         }
     }
 
@@ -431,6 +882,15 @@ public class RemoteEnd implements NetworkChangeListener {
 
 
 
+    /**
+     * Check if a network is still connected, even if it is not the default network any more.
+     * @param network the Network to check, or null
+     * @return true if the network is known to the system
+     */
+    private boolean isNetworkAvailable(Network network) {
+        return network != null && networkHelper.getConnectivityManager().getNetworkCapabilities(network) != null;
+    }
+
     /**
      * Check if we're on mobile network
      * @return true if we're on a mobile network currently
@@ -444,6 +904,23 @@ public class RemoteEnd implements NetworkChangeListener {
         return transporter;
     }
 
+    Network getCurrentNetwork() {
+        return currentNetwork;
+    }
+
+    @Override
+    public @NonNull TunnelRuntime getRuntime() {
+        return runtime;
+    }
+
+    TransporterSwitch getTransporterSwitch() {
+        return transporterSwitch;
+    }
+
+    TunnelMetrics getMetrics() {
+        return localEnd.getVpnThread().getMetrics();
+    }
+
     /**
      * Check if we're on the network we think we are
      * @return true if we're online on the right network
@@ -454,9 +931,41 @@ public class RemoteEnd implements NetworkChangeListener {
     }
 
     /**
-     * Request copy threads to close, reset thread fields, and close transporter object
+     * Start the copy threads between the TUN device and the transporter switch.
+     * @param localFD the FileDescriptor of the TUN device
      */
-    private void cleanCopyThreads() {
+    private synchronized void startCopyThreads(FileDescriptor localFD) {
+        // Packets to be sent are queued in this input stream.
+        FileInputStream localIn = new FileInputStream(localFD);
+
+        // Packets received need to be written to this output stream.
+        FileOutputStream localOut = new FileOutputStream(localFD);
+
+        Log.i (TAG, "Starting copy threads");
+        final PacketCapture capture = localEnd.getVpnThread().getPacketCapture();
+        outThread = new CopyThread(localIn, transporterSwitch.getOutputStream(), service, this, "Transport from local to POP", TAG_OUTGOING_THREAD, bundlingWindow, outgoingStatistics, outgoingScheduler,
+                capture == null ? null : capture.tap(PacketCapture.DIRECTION_OUTBOUND));
+        inThread = new CopyThread(transporterSwitch.getInputStream(), localOut, service, this, "Transport from POP to local", TAG_INCOMING_THREAD, null, ingoingStatistics, null,
+                capture == null ? null : capture.tap(PacketCapture.DIRECTION_INBOUND));
+        outThread.start();
+        inThread.start();
+    }
+
+    /**
+     * @return true if both copy threads are running
+     */
+    private boolean areCopyThreadsAlive() {
+        final CopyThread myInThread = inThread; // avoid race condition with stop
+        final CopyThread myOutThread = outThread;
+        return myInThread != null && myInThread.isAlive() && myOutThread != null && myOutThread.isAlive();
+    }
+
+    /**
+     * Detach the transporter from the copy threads and close it. Packets read from the TUN
+     * device are held until the next transporter is attached.
+     */
+    private void detachTransporter() {
+        transporterSwitch.detach();
         final Transporter myTransporter = transporter; // avoid race condition
         if (myTransporter != null) {
             try {
@@ -465,7 +974,81 @@ public class RemoteEnd implements NetworkChangeListener {
                 Log.e(TAG, "Cannot close transporter object", e);
             }
         }
-        // by closing the transporter, we were shooting the copy threads in their feet anyway
+    }
+
+    /**
+     * Verify asynchronously that a newly connected transporter works. It is taken as working with
+     * the first valid packet received from the PoP after its attach, which is provoked by a probe
+     * if the transporter supports it. A measured round trip, e.g. of a DTLS heartbeat, proves it
+     * working as well. The result is logged and traced when it arrives; a working tunnel is
+     * reported to the status.
+     * @param verified the Transporter to verify
+     * @param validPackets a long giving the number of valid packets the transporter received
+     *                     before its attach
+     */
+    private void verifyTransporter(@NonNull Transporter verified, long validPackets) {
+        final long verifySpan = SpanTracer.begin();
+        final long verifyStart = System.nanoTime();
+        final RoundTripEstimator estimator = verified.getRoundTripEstimator();
+        final long rttSamples = estimator.getSampleCount();
+        final long deadline = System.currentTimeMillis() + VERIFICATION_TIMEOUT_MILLIS;
+        runtime.submit(() -> {
+            try {
+                if (verified.probe())
+                    getMetrics().getProbesSent().increment();
+            } catch (IOException | TunnelBrokenException e) {
+                Log.i(TAG, "Cannot send probe to verify transporter", e);
+            }
+        });
+        final AtomicReference<ScheduledFuture<?>> poll = new AtomicReference<>();
+        poll.set(runtime.scheduleAtFixedRate(() -> {
+            final ScheduledFuture<?> myPoll = poll.get();
+            if (myPoll == null || myPoll.isCancelled())
+                return; // not registered yet, or finished
+            final boolean working = verified.getValidPacketCount() != validPackets ||
+                    estimator.getSampleCount() != rttSamples;
+            final boolean current = intendedToRun && transporter == verified;
+            if (working) {
+                Log.i(TAG, "Transporter verified after " + (System.nanoTime() - verifyStart) / 1000000L + " ms");
+                lifecycle.transition(TunnelLifecycle.State.DEGRADED, TunnelLifecycle.State.UP);
+                tunnelWorking();
+                reportTunnelProvedWorking();
+            } else if (current && System.currentTimeMillis() < deadline) {
+                return; // keep polling
+            } else if (current) {
+                Log.e(TAG, "Warning: no valid response from PoP within " + VERIFICATION_TIMEOUT_MILLIS + " ms");
+                lifecycle.transition(TunnelLifecycle.State.UP, TunnelLifecycle.State.DEGRADED);
+                // the next packet from the PoP proves the tunnel working after all
+                final CopyThread myInThread = inThread;
+                if (myInThread != null)
+                    myInThread.expectFirstPacket();
+            }
+            SpanTracer.end("verify transporter", verifySpan, "working", String.valueOf(working));
+            myPoll.cancel(false);
+        }, VERIFICATION_POLL_MILLIS));
+    }
+
+    /**
+     * Keep reading packets still in flight on a transporter replaced by a handover for about two
+     * round trip times, then close it.
+     * @param replaced the Transporter replaced
+     */
+    private void drainTransporter(@NonNull Transporter replaced) {
+        final double rtt = replaced.getRoundTripEstimator().getSmoothedRtt();
+        final long drainMillis = Double.isNaN(rtt) ? MAX_DRAIN_MILLIS :
+                Math.max(MIN_DRAIN_MILLIS, Math.min(MAX_DRAIN_MILLIS, (long) (2 * rtt)));
+        runtime.schedule(() -> {
+            transporterSwitch.endDrain(replaced);
+            replaced.close();
+            Log.i(TAG, "Replaced transporter closed after " + drainMillis + " ms drain");
+        }, drainMillis);
+    }
+
+    /**
+     * Request copy threads to close and reset thread fields.
+     */
+    private void stopCopyThreads() {
+        transporterSwitch.close();
         final CopyThread myInThread = inThread; // Race-Conditions vermeiden
         if (myInThread != null) {
             inThread = null;
@@ -503,32 +1086,125 @@ public class RemoteEnd implements NetworkChangeListener {
     }
 
     /**
-     * Method called by the inbound copy thread if the first packet was transmitted.
+     * Method called by a copy thread if its first packet was transmitted.
+     * @param copyThread the CopyThread that transmitted the packet
+     */
+    @Override
+    public void notifyFirstPacketReceived(@NonNull CopyThread copyThread) {
+        // only a packet from the PoP proves the tunnel working
+        if (copyThread == inThread) {
+            // unless it is about to lose its network, a degraded tunnel is up again
+            if (!transporterSwitch.isHandoverRequested())
+                lifecycle.transition(TunnelLifecycle.State.DEGRADED, TunnelLifecycle.State.UP);
+            tunnelWorking();
+        }
+        if (transporter.isValidPacketReceived())
+            reportTunnelProvedWorking();
+    }
+
+    /**
+     * Record that a response from the PoP proved the tunnel working, ending the current outage.
      */
-    void notifyFirstPacketReceived() {
-        if (transporter.isValidPacketReceived()) {
-            // major status update, just once per session
-            vpnStatus.setTunnelProvedWorking();
-            vpnStatus.setStatus(VpnStatusReport.Status.Connected);
-            vpnStatus.setProgressPerCent(100);
-            vpnStatus.setCause(null);
+    private void tunnelWorking() {
+        reconnectPolicy.connected();
+        localEnd.getVpnThread().getOutageTracker().tunnelWorking(System.currentTimeMillis());
+        final long decisionTime = reconnectDecisionTime;
+        if (decisionTime != 0L) {
+            reconnectDecisionTime = 0L;
+            getMetrics().getReconnectDuration().record((System.nanoTime() - decisionTime) / 1000000L);
         }
     }
 
+    /**
+     * Report to the status that the tunnel proved working.
+     */
+    private void reportTunnelProvedWorking() {
+        // major status update, just once per session
+        vpnStatus.setTunnelProvedWorking();
+        vpnStatus.setStatus(VpnStatusReport.Status.Connected);
+        vpnStatus.setProgressPerCent(100);
+        vpnStatus.setCause(null);
+    }
+
     public boolean isIntendedToRun() {
         return intendedToRun;
     }
 
     Statistics addStatistics(Statistics stats) {
+        final FlowScheduler myScheduler = outgoingScheduler;
+        if (myScheduler != null) {
+            stats.setQueueDelayTransmitted(myScheduler.getAverageQueueDelay())
+                    .setQueueDropsTransmitted(myScheduler.getCodelDropCount() + myScheduler.getOverflowDropCount());
+        }
+        final RoundTripEstimator estimator = transporter.getRoundTripEstimator();
         return stats
+                .setRoundTripTime(estimator.getSmoothedRtt())
+                .setRoundTripTimeVariation(estimator.getRttVariation())
+                .setProbeLossRate(estimator.getLossRate())
                 .addIngoingStatistics(ingoingStatistics)
                 .addOutgoingStatistics(outgoingStatistics)
-                .setMyIPv4(getLocalIp())
-                .setNativeDnsSetting(networkHelper.getNativeDnsServers())
-                .setVpnDnsSetting(networkHelper.getVpnDnsServers())
-                .setNativeRouting(networkHelper.getNativeRouteInfos())
-                .setVpnRouting(networkHelper.getVpnRouteInfos())
-                .setReconnectCount(reconnectCount);
+                .setReconnectCount(reconnectCount)
+                .setIdleCount(idleCount)
+                .setWakeCount(wakeCount);
+    }
+
+    /**
+     * Publish the network figures to the statistics screen. Called where they change: on a
+     * change of the device's networks and of the local address of the connection to the PoP.
+     */
+    private void publishNetworkStatistics() {
+        localEnd.getVpnThread().getStatisticsPublisher().publishNetwork(new NetworkStatistics(
+                getLocalIp(),
+                networkHelper.getNativeRouteInfos(),
+                networkHelper.getVpnRouteInfos(),
+                networkHelper.getNativeDnsServers(),
+                networkHelper.getVpnDnsServers(),
+                isRouted));
+    }
+
+    /**
+     * Close the running second of the throughput series with the traffic counters of this
+     * remote end.
+     * @param series the ThroughputSeries to sample into
+     */
+    void sampleThroughput(@NonNull ThroughputSeries series) {
+        final RoundTripEstimator estimator = transporter.getRoundTripEstimator();
+        final long rttCount = estimator.getSampleCount();
+        if (rttCount != sampledRttCount) {
+            series.recordRoundTripTime(estimator.getLastRtt());
+            sampledRttCount = rttCount;
+        }
+        series.sample(outgoingStatistics.getByteCount(), outgoingStatistics.getPacketCount(),
+                ingoingStatistics.getByteCount(), ingoingStatistics.getPacketCount());
+    }
+
+    /**
+     * Update the exported metrics with the queue, probing and invalid packet state of this
+     * remote end.
+     * @param metrics the TunnelMetrics to update
+     */
+    void sampleMetrics(@NonNull TunnelMetrics metrics) {
+        final FlowScheduler myScheduler = outgoingScheduler;
+        metrics.getQueueDepth().set(myScheduler == null ? 0.0 : myScheduler.getBacklog());
+        final RoundTripEstimator estimator = transporter.getRoundTripEstimator();
+        metrics.getRoundTripTime().set(estimator.getSmoothedRtt() / 1000.0);
+        metrics.getRoundTripTimeVariation().set(estimator.getRttVariation() / 1000.0);
+        metrics.getProbeLossRate().set(estimator.getLossRate());
+        final int invalidPackets = transporter.getInvalidPacketCounter();
+        // a transporter may restart its counter
+        metrics.getInvalidPackets().add(invalidPackets >= sampledInvalidPacketCount ?
+                invalidPackets - sampledInvalidPacketCount : invalidPackets);
+        sampledInvalidPacketCount = invalidPackets;
+        final long held = transporterSwitch.getHeldCount();
+        final long flushed = transporterSwitch.getFlushedCount();
+        final long expired = transporterSwitch.getExpiredCount();
+        metrics.getPacketsHeld().add(held - sampledHeldCount);
+        metrics.getPacketsFlushed().add(flushed - sampledFlushedCount);
+        metrics.getPacketsExpired().add(expired - sampledExpiredCount);
+        sampledHeldCount = held;
+        sampledFlushedCount = flushed;
+        sampledExpiredCount = expired;
+        metrics.getHeldBytes().set(transporterSwitch.getHeldBytes());
     }
 
 }
@@ -27,6 +27,7 @@ import android.util.Log;
 
 import java.io.IOException;
 
+import de.flyingsnail.ipv6droid.android.statistics.OutageRecord;
 import de.flyingsnail.ipv6droid.transport.Transporter;
 import de.flyingsnail.ipv6droid.transport.TunnelSpec;
 
@@ -43,12 +44,14 @@ class SimpleMonitor implements Monitor {
     private final CopyThread outThread;
     private final RemoteEnd remoteEnd;
     private final Transporter transporter;
+    private final TransporterSwitch transporterSwitch;
 
     SimpleMonitor(RemoteEnd remoteEnd, CopyThread inThread, CopyThread outThread) {
         this.inThread = inThread;
         this.outThread = outThread;
         this.remoteEnd = remoteEnd;
         this.transporter = remoteEnd.getTransporter();
+        this.transporterSwitch = remoteEnd.getTransporterSwitch();
     }
 
     /**
@@ -60,22 +63,23 @@ class SimpleMonitor implements Monitor {
     public void loop() throws InterruptedException, IOException {
         TunnelSpec activeTunnel = transporter.getTunnelSpec();
         long heartbeatInterval = activeTunnel.getHeartbeatInterval() * 1000L;
-        while (remoteEnd.isIntendedToRun() && (inThread != null && inThread.isAlive()) && (outThread != null && outThread.isAlive())) {
-            // wait for the heartbeat interval to finish or until inThread dies.
+        while (remoteEnd.isIntendedToRun() && !transporterSwitch.isEnded() &&
+                (inThread != null && inThread.isAlive()) && (outThread != null && outThread.isAlive())) {
+            // wait for the heartbeat interval to finish or until the transporter fails or is handed over.
             // Note: the inThread is reading from the network socket to the POP
             // in case of network changes, this socket breaks immediately, so
-            // inThread crashes on external network changes even if no transfer
+            // the transporter fails on external network changes even if no transfer
             // is active.
-            inThread.join(heartbeatInterval);
-            if (!remoteEnd.isIntendedToRun())
+            transporterSwitch.awaitEnd(heartbeatInterval);
+            if (!remoteEnd.isIntendedToRun() || transporterSwitch.isEnded())
                 break;
             // re-check cached network information
             if (!remoteEnd.isCurrentSocketStillValid()) {
-                throw new IOException("Network changed");
+                throw new OutageException(OutageRecord.TRIGGER_NETWORK_CHANGED, "Network changed", null);
             }
 
         }
-        Log.i(TAG, "Terminated loop of current transporter object (interrupt or end of a copy thread)");
+        Log.i(TAG, "Terminated loop of current transporter object (interrupt, transporter failure, handover or end of a copy thread)");
         Throwable deathCause = null;
         final CopyThread myInThread = inThread;
         final CopyThread myOutThread = outThread;
@@ -84,11 +88,7 @@ class SimpleMonitor implements Monitor {
         if (deathCause == null && myOutThread != null && !myOutThread.isAlive())
             deathCause = myOutThread.getDeathCause();
         if (deathCause != null) {
-            if (deathCause instanceof IOException) {
-                throw (IOException) deathCause;
-            } else {
-                throw new IOException(deathCause);
-            }
+            throw new OutageException(OutageRecord.TRIGGER_COPY_THREAD_DIED, String.valueOf(deathCause), deathCause);
         }
     }
 }
@@ -0,0 +1,816 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadFactory;
+
+import de.flyingsnail.ipv6droid.transport.Transporter;
+import de.flyingsnail.ipv6droid.transport.TransporterOutputStream;
+
+/**
+ * The point where the long-lived copy threads of a TUN device meet the transporter that is
+ * currently connected to the PoP. A reconnect attaches the newly connected transporter to this
+ * switch, instead of recreating the copy threads and their streams.
+ * <p>
+ * While no transporter is attached, reads wait for the next one. Writes never wait, so that the
+ * TUN device keeps being read during a reconnect: their packets are copied to a preallocated
+ * ring, bounded by {@link #HOLD_MAX_BYTES} and {@link #HOLD_MAX_PACKETS}, and sent in order after
+ * the next attach, before any packet written later. Packets held longer than
+ * {@link #HOLD_MAX_AGE_MILLIS} are dropped as stale instead. Writes are serialized by a lock of
+ * their own, so that sending never happens while holding the lock of the switch. A transporter failing during a read or
+ * write is detached, and the failure is signalled to the monitor waiting in
+ * {@link #awaitEnd(long)}. Failures of a transporter that was already detached are
+ * expected during a swap, and the read or write is retried with the next transporter.
+ * <p>
+ * A handover replaces the attached transporter by another one that is already connected.
+ * Writes go to the new transporter at once. Until {@link #endDrain(Transporter)}, both
+ * transporters are read by drain readers of their own, which pass the packets to the reading
+ * copy thread through a small ring of preallocated slots, so that neither the packets still in
+ * flight on the old transporter nor the first ones on the new transporter wait for the other.
+ * <p>
+ * An idle tunnel may be suspended, detaching its transporter until the next outgoing packet
+ * wakes it. That packet is held like any other until the tunnel is reconnected.
+ */
+class TransporterSwitch {
+    private static final String TAG = TransporterSwitch.class.getName();
+
+    /**
+     * The maximum time in milliseconds that a packet to send is held while no transporter is
+     * attached. Older packets would mostly be retransmitted by their senders already.
+     */
+    static final long HOLD_MAX_AGE_MILLIS = 5000L;
+
+    /**
+     * The maximum number of bytes of packets held while no transporter is attached.
+     */
+    static final int HOLD_MAX_BYTES = 128 * 1024;
+
+    /**
+     * The maximum number of packets held while no transporter is attached.
+     */
+    static final int HOLD_MAX_PACKETS = 256;
+
+    /**
+     * The number of packets read during a drain that may wait for the reading copy thread.
+     */
+    static final int DRAIN_SLOTS = 4;
+
+    /**
+     * The size of a slot for a packet read during a drain, as big as a copy thread's buffer.
+     */
+    private static final int DRAIN_SLOT_BYTES = 32767;
+
+    /**
+     * A transporter as attached to this switch, with the streams used on it. Each attach creates
+     * a new association, so that stale failures can be told by identity.
+     */
+    private static final class Association {
+        final Transporter transporter;
+        final InputStream in;
+        final OutputStream out;
+        // a flag set while a thread reads from in; guarded by the switch
+        boolean reading;
+
+        Association(Transporter transporter) {
+            this.transporter = transporter;
+            this.in = transporter.getInputStream();
+            this.out = transporter.getOutputStream();
+        }
+    }
+
+    // the currently attached transporter, or null
+    private Association current;
+    // the transporter replaced by a handover that is still read from, or null
+    private Association draining;
+    // a flag set if a handover to a new network is requested
+    private boolean handoverRequested;
+    // the cause of the current association failing, or null
+    private Throwable failure;
+    // a flag set if this switch is closed for good
+    private boolean closed;
+    // the number of packets dropped because the hold queue was full, sending failed twice, or this switch is closed
+    private long droppedCount;
+    // a flag set while suspended for idleness, until the next outgoing packet
+    private boolean idle;
+    // a flag set if an outgoing packet woke the suspended tunnel
+    private boolean woken;
+    // the bytes of the packets written while no transporter is attached, stored in order and
+    // wrapping around, allocated on the first hold
+    private byte[] holdData;
+    // the position, length and System.nanoTime of holding of each held packet, indexed by slot
+    private final int[] holdOffsets = new int[HOLD_MAX_PACKETS];
+    private final int[] holdLengths = new int[HOLD_MAX_PACKETS];
+    private final long[] holdTimes = new long[HOLD_MAX_PACKETS];
+    // the slot of the oldest held packet and the number of held packets, used as a ring
+    private int holdHead;
+    private volatile int holdCount;
+    // the position in holdData after the newest held packet
+    private int holdEnd;
+    // the number of bytes held
+    private int heldBytes;
+    // the number of packets held, sent after an attach, and dropped as stale
+    private long heldCount;
+    private long flushedCount;
+    private long expiredCount;
+
+    // the factory of the drain readers
+    private final ThreadFactory threadFactory;
+    // the slots for packets read during a drain, allocated on the first handover
+    private byte[][] drainSlots;
+    // the length of the packet in each slot
+    private final int[] drainLengths = new int[DRAIN_SLOTS];
+    // the indices of the free slots, used as a stack
+    private final int[] freeSlots = new int[DRAIN_SLOTS];
+    private int freeCount;
+    // the indices of the slots holding packets, oldest first, used as a ring
+    private final int[] readySlots = new int[DRAIN_SLOTS];
+    private int readyHead;
+    private int readyCount;
+    // the number of drain readers running
+    private int drainReaders;
+
+    // the lock serializing writes, including the sending of held packets
+    private final Object writeLock = new Object();
+
+    private final InputStream inputStream = new SwitchInputStream();
+    private final TransporterOutputStream outputStream = new SwitchOutputStream();
+
+    TransporterSwitch() {
+        this(runnable -> new Thread(runnable, "drain reader"));
+    }
+
+    /**
+     * Constructor.
+     * @param threadFactory the ThreadFactory creating the threads that read during a drain
+     */
+    TransporterSwitch(@NonNull ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Attach a connected transporter, releasing reads and writes waiting for it.
+     * @param transporter the Transporter to attach
+     */
+    void attach(@NonNull Transporter transporter) {
+        synchronized (this) {
+            if (closed)
+                return;
+            Log.i(TAG, "Attaching transporter, " + droppedCount + " packets dropped so far");
+            current = new Association(transporter);
+            failure = null;
+            handoverRequested = false;
+            notifyAll();
+        }
+        flushHeld();
+    }
+
+    /**
+     * Replace the attached transporter by a connected one, keeping the replaced transporter
+     * readable until {@link #endDrain(Transporter)}.
+     * @param transporter the Transporter to attach
+     * @return the Transporter that was replaced, or null
+     */
+    @Nullable Transporter handover(@NonNull Transporter transporter) {
+        final Association old;
+        synchronized (this) {
+            if (closed)
+                return null;
+            Log.i(TAG, "Handing over to new transporter");
+            old = current;
+            draining = old;
+            current = new Association(transporter);
+            failure = null;
+            handoverRequested = false;
+            if (old != null) {
+                startDrainReader(old);
+                startDrainReader(current);
+            }
+            notifyAll();
+        }
+        flushHeld();
+        return old == null ? null : old.transporter;
+    }
+
+    /**
+     * Stop reading from a transporter replaced by a handover. Must be called before that
+     * transporter is closed.
+     * @param replaced the Transporter replaced
+     */
+    synchronized void endDrain(@NonNull Transporter replaced) {
+        if (draining != null && draining.transporter == replaced) {
+            draining = null;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Request that the monitor hands back control to prepare a handover, while the attached
+     * transporter keeps carrying traffic.
+     */
+    synchronized void requestHandover() {
+        if (current != null && failure == null) {
+            handoverRequested = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Withdraw a requested handover, e.g. because the new transporter failed to connect. The
+     * current transporter stays attached, and its monitoring may go on.
+     */
+    synchronized void cancelHandover() {
+        handoverRequested = false;
+        notifyAll();
+    }
+
+    /**
+     * Detach the current transporter. Subsequent reads and writes wait for the next one.
+     * @return the Transporter that was attached, or null
+     */
+    synchronized @Nullable Transporter detach() {
+        final Association association = current;
+        current = null;
+        draining = null;
+        handoverRequested = false;
+        idle = false;
+        notifyAll();
+        return association == null ? null : association.transporter;
+    }
+
+    /**
+     * Detach the current transporter of an idle tunnel, ending its monitor. The next packet
+     * written wakes the tunnel.
+     * @return the Transporter that was attached, or null if none was attached without failure
+     */
+    synchronized @Nullable Transporter suspend() {
+        final Association association = current;
+        if (association == null || failure != null || handoverRequested || closed)
+            return null;
+        Log.i(TAG, "Suspending idle transporter");
+        current = null;
+        draining = null;
+        idle = true;
+        woken = false;
+        notifyAll();
+        return association.transporter;
+    }
+
+    /**
+     * Wait until a packet is written to the suspended tunnel.
+     * @return true if a packet woke the tunnel, false if the wait ended by a detach or close
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized boolean awaitWake() throws InterruptedException {
+        while (idle && !closed)
+            wait();
+        return woken && !closed;
+    }
+
+    /**
+     * @return true if the tunnel is suspended for idleness and not woken yet
+     */
+    synchronized boolean isIdle() {
+        return idle;
+    }
+
+    /**
+     * Detach the current transporter and signal its failure to the monitor.
+     * @param cause the Throwable that makes the current transporter useless
+     */
+    synchronized void fail(@NonNull Throwable cause) {
+        failed(current, cause);
+    }
+
+    /**
+     * Close this switch for good. Reads return end of stream, writes drop their packets.
+     */
+    synchronized void close() {
+        closed = true;
+        current = null;
+        draining = null;
+        droppedCount += holdCount;
+        holdCount = 0;
+        heldBytes = 0;
+        while (readyCount > 0)
+            freeSlots[freeCount++] = takeReadySlot();
+        notifyAll();
+    }
+
+    /**
+     * @return true if the current transporter failed since its attach, or this switch is closed
+     */
+    synchronized boolean isFailed() {
+        return failure != null || closed;
+    }
+
+    /**
+     * @return the Throwable that made the current transporter fail, or null
+     */
+    synchronized @Nullable Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return true if a handover was requested since the current transporter was attached
+     */
+    synchronized boolean isHandoverRequested() {
+        return handoverRequested;
+    }
+
+    /**
+     * @return true if monitoring of the current transporter should end, because it failed, a
+     * handover was requested, or this switch is closed
+     */
+    synchronized boolean isEnded() {
+        return isFailed() || handoverRequested || idle;
+    }
+
+    /**
+     * Wait until monitoring of the current transporter should end.
+     * @param millis a long giving the maximum time to wait
+     * @return true if monitoring of the current transporter should end
+     * @throws InterruptedException if interrupted while waiting
+     * @see #isEnded()
+     */
+    synchronized boolean awaitEnd(long millis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + millis;
+        long remaining = millis;
+        while (!isEnded() && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return isEnded();
+    }
+
+    synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return a long giving the number of packets held while no transporter was attached
+     */
+    synchronized long getHeldCount() {
+        return heldCount;
+    }
+
+    /**
+     * @return a long giving the number of held packets sent after a transporter was attached
+     */
+    synchronized long getFlushedCount() {
+        return flushedCount;
+    }
+
+    /**
+     * @return a long giving the number of held packets dropped for being older than
+     * {@link #HOLD_MAX_AGE_MILLIS}
+     */
+    synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * @return an int giving the number of bytes currently held
+     */
+    synchronized int getHeldBytes() {
+        return heldBytes;
+    }
+
+    /**
+     * @return the InputStream of packets received by any transporter attached
+     */
+    @NonNull InputStream getInputStream() {
+        return inputStream;
+    }
+
+    /**
+     * @return the TransporterOutputStream sending packets by any transporter attached
+     */
+    @NonNull TransporterOutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Wait until a packet read during a drain is ready, or a transporter to read from directly
+     * is attached while no drain is running.
+     * @param buffer the byte[] to receive a packet read during a drain
+     * @param offset an int giving the position in buffer to start at
+     * @param length an int giving the maximum number of bytes to receive
+     * @param association an Association[] of length 1 receiving the association to read directly
+     * @return the number of bytes received from a drain, 0 if association should be read, or -1
+     * if this switch is closed
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    private synchronized int awaitRead(@NonNull byte[] buffer, int offset, int length,
+                                       @NonNull Association[] association) throws InterruptedIOException {
+        try {
+            while (!closed && readyCount == 0 && (drainReaders > 0 || current == null))
+                wait();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a transporter");
+        }
+        if (closed)
+            return -1;
+        if (readyCount > 0) {
+            final int slot = takeReadySlot();
+            final int count = Math.min(length, drainLengths[slot]);
+            System.arraycopy(drainSlots[slot], 0, buffer, offset, count);
+            freeSlots[freeCount++] = slot;
+            notifyAll();
+            return count;
+        }
+        current.reading = true;
+        association[0] = current;
+        return 0;
+    }
+
+    /**
+     * Note that a direct read from association ended. If a drain started meanwhile, association
+     * is handed to a drain reader.
+     */
+    private synchronized void endRead(@NonNull Association association) {
+        association.reading = false;
+        startDrainReader(association);
+    }
+
+    /**
+     * @return true if association is one of the transporters read by drain readers
+     */
+    private synchronized boolean isDrained(@NonNull Association association) {
+        return !closed && draining != null && (association == draining || association == current);
+    }
+
+    /**
+     * Start a drain reader for association, unless it is read already or not drained.
+     */
+    private synchronized void startDrainReader(@NonNull Association association) {
+        if (association.reading || !isDrained(association))
+            return;
+        if (drainSlots == null) {
+            drainSlots = new byte[DRAIN_SLOTS][DRAIN_SLOT_BYTES];
+            for (int i = 0; i < DRAIN_SLOTS; i++)
+                freeSlots[i] = i;
+            freeCount = DRAIN_SLOTS;
+        }
+        association.reading = true;
+        drainReaders++;
+        threadFactory.newThread(() -> drain(association)).start();
+    }
+
+    /**
+     * Read packets from association into the drain slots as long as it is drained.
+     */
+    private void drain(@NonNull Association association) {
+        int slot = -1;
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (freeCount == 0 && isDrained(association))
+                        wait();
+                    if (!isDrained(association))
+                        break;
+                    slot = freeSlots[--freeCount];
+                }
+                final int length;
+                try {
+                    length = association.in.read(drainSlots[slot], 0, DRAIN_SLOT_BYTES);
+                } catch (IOException | IllegalStateException e) {
+                    failed(association, e);
+                    break;
+                }
+                if (length < 0)
+                    break;
+                synchronized (this) {
+                    if (length > 0 && !closed) {
+                        drainLengths[slot] = length;
+                        readySlots[(readyHead + readyCount) % DRAIN_SLOTS] = slot;
+                        readyCount++;
+                        notifyAll();
+                    } else {
+                        freeSlots[freeCount++] = slot;
+                    }
+                    slot = -1;
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.i(TAG, "Drain reader interrupted");
+        } finally {
+            synchronized (this) {
+                if (slot >= 0)
+                    freeSlots[freeCount++] = slot;
+                association.reading = false;
+                drainReaders--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the index of the oldest slot holding a packet read during a drain
+     */
+    private synchronized int takeReadySlot() {
+        final int slot = readySlots[readyHead];
+        readyHead = (readyHead + 1) % DRAIN_SLOTS;
+        readyCount--;
+        return slot;
+    }
+
+    /**
+     * Get the association to write a packet to, or hold the packet if none is attached.
+     * @return the current Association, or null if the packet was held or dropped
+     */
+    private synchronized @Nullable Association associationOrHold(@NonNull byte[] buffer, int offset, int count) {
+        if (current != null)
+            return current;
+        hold(buffer, offset, count);
+        return null;
+    }
+
+    /**
+     * Get the association to write a batch of packets to, or hold the packets if none is attached.
+     * @return the current Association, or null if the packets were held or dropped
+     */
+    private synchronized @Nullable Association associationOrHold(@NonNull ByteBuffer[] buffers, int count) {
+        if (current != null)
+            return current;
+        for (int i = 0; i < count; i++)
+            hold(buffers[i].array(), buffers[i].arrayOffset() + buffers[i].position(), buffers[i].remaining());
+        return null;
+    }
+
+    /**
+     * Hold a packet until the next attach, waking the tunnel if it is suspended. The oldest
+     * packets are dropped if the hold ring is full.
+     */
+    private synchronized void hold(@NonNull byte[] buffer, int offset, int count) {
+        if (closed || count > HOLD_MAX_BYTES) {
+            droppedCount++;
+            return;
+        }
+        if (idle) {
+            Log.i(TAG, "Outgoing packet wakes idle tunnel");
+            idle = false;
+            woken = true;
+            notifyAll();
+        }
+        final long now = System.nanoTime();
+        expireHeld(now);
+        if (holdData == null)
+            holdData = new byte[HOLD_MAX_BYTES];
+        int position;
+        while ((position = holdPosition(count)) < 0) {
+            removeHeld();
+            droppedCount++;
+        }
+        System.arraycopy(buffer, offset, holdData, position, count);
+        final int slot = (holdHead + holdCount) % HOLD_MAX_PACKETS;
+        holdOffsets[slot] = position;
+        holdLengths[slot] = count;
+        holdTimes[slot] = now;
+        holdEnd = position + count;
+        heldBytes += count;
+        holdCount++;
+        heldCount++;
+    }
+
+    /**
+     * Find the position in the hold ring to store a packet at. A packet is never split, so it
+     * starts over at the beginning of the ring if it does not fit behind the newest one.
+     * @param count an int giving the length of the packet
+     * @return an int giving the position, or -1 if the oldest held packet must be dropped first
+     */
+    private synchronized int holdPosition(int count) {
+        if (holdCount == 0)
+            return 0;
+        if (holdCount == HOLD_MAX_PACKETS)
+            return -1;
+        final int oldest = holdOffsets[holdHead];
+        if (holdEnd > oldest) {
+            if (count <= HOLD_MAX_BYTES - holdEnd)
+                return holdEnd;
+            return count <= oldest ? 0 : -1;
+        }
+        // wrapped around, up to the oldest packet
+        return count <= oldest - holdEnd ? holdEnd : -1;
+    }
+
+    /**
+     * Remove the oldest held packet from the hold ring.
+     */
+    private synchronized void removeHeld() {
+        heldBytes -= holdLengths[holdHead];
+        holdHead = (holdHead + 1) % HOLD_MAX_PACKETS;
+        holdCount--;
+    }
+
+    /**
+     * Drop the held packets older than the maximum age.
+     * @param now a long giving the current System.nanoTime
+     */
+    private synchronized void expireHeld(long now) {
+        while (holdCount > 0 && now - holdTimes[holdHead] > HOLD_MAX_AGE_MILLIS * 1000000L) {
+            removeHeld();
+            expiredCount++;
+        }
+    }
+
+    /**
+     * Send the held packets that are not stale by the attached transporter, if any. The packets
+     * are sent outside the lock of this switch, but under the write lock, which keeps them
+     * unchanged and sent before any packet written later. If sending fails, the remaining
+     * packets stay held for the next attach.
+     */
+    private void flushHeld() {
+        synchronized (writeLock) {
+            boolean logged = false;
+            while (holdCount > 0) {
+                final Association association;
+                final int slot;
+                synchronized (this) {
+                    expireHeld(System.nanoTime());
+                    association = current;
+                    if (association == null || holdCount == 0)
+                        return;
+                    if (!logged) {
+                        Log.i(TAG, "Sending " + holdCount + " held packets");
+                        logged = true;
+                    }
+                    slot = holdHead;
+                }
+                try {
+                    association.out.write(holdData, holdOffsets[slot], holdLengths[slot]);
+                } catch (IOException | IllegalStateException e) {
+                    failed(association, e);
+                    return;
+                }
+                flushed(slot);
+            }
+        }
+    }
+
+    /**
+     * Remove a held packet that was sent, unless a close dropped it meanwhile.
+     * @param slot an int giving the slot of the packet sent
+     */
+    private synchronized void flushed(int slot) {
+        if (holdCount > 0 && holdHead == slot) {
+            removeHeld();
+            flushedCount++;
+        }
+    }
+
+    /**
+     * Handle a read or write on association that failed. If association is still attached, it
+     * is detached and its failure signalled; otherwise, the failure is the expected result of
+     * a swap.
+     */
+    private synchronized void failed(@Nullable Association association, @NonNull Throwable cause) {
+        if (association != null && association == draining) {
+            // the end of a drain
+            draining = null;
+            return;
+        }
+        if (association == null || association != current)
+            return;
+        Log.i(TAG, "Current transporter failed, detaching", cause);
+        current = null;
+        failure = cause;
+        notifyAll();
+    }
+
+    private synchronized void dropped(int count) {
+        droppedCount += count;
+    }
+
+    private class SwitchInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        // the association to read from directly, as found by awaitRead
+        private final Association[] direct = new Association[1];
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+            while (true) {
+                final int drained = awaitRead(buffer, offset, length, direct);
+                if (drained != 0)
+                    return drained;
+                final Association association = direct[0];
+                direct[0] = null;
+                try {
+                    return association.in.read(buffer, offset, length);
+                } catch (IOException | IllegalStateException e) {
+                    failed(association, e);
+                } finally {
+                    endRead(association);
+                }
+            }
+        }
+    }
+
+    private class SwitchOutputStream extends TransporterOutputStream {
+        // the packets of a failed batch that are still to send
+        private ByteBuffer[] unsent = new ByteBuffer[0];
+
+        @Override
+        public void write(@NonNull byte[] buffer) throws IOException {
+            write(buffer, 0, buffer.length);
+        }
+
+        @Override
+        public void write(@NonNull byte[] buffer, int offset, int count) throws IOException {
+            synchronized (writeLock) {
+                flushHeld();
+                // at most one retry, on the transporter replacing the one that failed
+                for (int attempt = 0; attempt < 2; attempt++) {
+                    final Association association = associationOrHold(buffer, offset, count);
+                    if (association == null)
+                        return;
+                    try {
+                        association.out.write(buffer, offset, count);
+                        return;
+                    } catch (IOException | IllegalStateException e) {
+                        failed(association, e);
+                    }
+                }
+                dropped(1);
+            }
+        }
+
+        @Override
+        public void write(@NonNull ByteBuffer[] buffers, int count) throws IOException {
+            synchronized (writeLock) {
+                flushHeld();
+                ByteBuffer[] pending = buffers;
+                for (int attempt = 0; attempt < 2; attempt++) {
+                    final Association association = associationOrHold(pending, count);
+                    if (association == null)
+                        return;
+                    try {
+                        if (association.out instanceof TransporterOutputStream) {
+                            ((TransporterOutputStream) association.out).write(pending, count);
+                        } else {
+                            for (int i = 0; i < count; i++) {
+                                association.out.write(pending[i].array(),
+                                        pending[i].arrayOffset() + pending[i].position(), pending[i].remaining());
+                                pending[i].position(pending[i].limit());
+                            }
+                        }
+                        return;
+                    } catch (IOException | IllegalStateException e) {
+                        failed(association, e);
+                        // only the packets not consumed by the failed transporter are sent again
+                        if (unsent.length < count)
+                            unsent = new ByteBuffer[count];
+                        int remaining = 0;
+                        for (int i = 0; i < count; i++) {
+                            if (pending[i].hasRemaining())
+                                unsent[remaining++] = pending[i];
+                        }
+                        pending = unsent;
+                        count = remaining;
+                    }
+                }
+                dropped(count);
+            }
+        }
+
+        @Override
+        public void write(int i) throws IOException {
+            write(new byte[] {(byte) i}, 0, 1);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The state of a tunnel session. Transitions are made by compare-and-set, so that of concurrent
+ * attempts, e.g. a stop request racing a network change, exactly one wins and the others see
+ * the state it left. CLOSED is final.
+ * <p>
+ * Threads that wait for something to happen, like connectivity or the end of a backoff, wait for
+ * a signal of this lifecycle. Every transition signals, as does {@link #signal()}. The waiting is
+ * based on a counter of signals taken before checking the condition waited for, so that a signal
+ * given between the check and the wait is never lost.
+ */
+class TunnelLifecycle {
+    private static final String TAG = TunnelLifecycle.class.getName();
+
+    enum State {
+        /** The session is set up, no tunnel is attempted yet, or the tunnel was closed as idle. */
+        IDLE,
+        /** The PoP's address is resolved and the transporter prepared. */
+        RESOLVING,
+        /** The transporter connects to the PoP. */
+        HANDSHAKING,
+        /** The tunnel is connected. */
+        UP,
+        /** The tunnel is connected, but did not prove working or is about to lose its network. */
+        DEGRADED,
+        /** The tunnel broke and is waiting to be rebuilt. */
+        RECONNECTING,
+        /** The session ended. */
+        CLOSED
+    }
+
+    /**
+     * A receiver of state changes.
+     */
+    interface Listener {
+        /**
+         * The state changed. Called by the thread that made the transition, after the change.
+         * @param from the State left
+         * @param to the State entered
+         */
+        void onStateChanged(@NonNull State from, @NonNull State to);
+    }
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.IDLE);
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong signals = new AtomicLong();
+    private final Object signalMonitor = new Object();
+
+    /**
+     * Check if a transition is part of the state machine.
+     * @param from the State to leave
+     * @param to the State to enter
+     * @return true if the transition is allowed
+     */
+    static boolean isAllowed(@NonNull State from, @NonNull State to) {
+        if (from == State.CLOSED || from == to)
+            return false;
+        switch (to) {
+            case CLOSED:
+            case RECONNECTING:
+                return true;
+            case RESOLVING:
+                return from == State.IDLE || from == State.RECONNECTING;
+            case HANDSHAKING:
+                return from == State.RESOLVING;
+            case UP:
+                return from == State.HANDSHAKING || from == State.DEGRADED;
+            case DEGRADED:
+                return from == State.UP;
+            case IDLE:
+                // an on-demand tunnel closed for lack of traffic
+                return from == State.UP || from == State.DEGRADED;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Change the state if it is the expected one.
+     * @param from the State expected
+     * @param to the State to enter
+     * @return true if the state changed, false if it was not the expected one or the transition is not allowed
+     */
+    boolean transition(@NonNull State from, @NonNull State to) {
+        if (!isAllowed(from, to) || !state.compareAndSet(from, to))
+            return false;
+        changed(from, to);
+        return true;
+    }
+
+    /**
+     * Change the state from whatever state it is in, if the transition is allowed.
+     * @param to the State to enter
+     * @return true if the state changed, false if the transition from the current state is not allowed
+     */
+    boolean moveTo(@NonNull State to) {
+        while (true) {
+            final State from = state.get();
+            if (!isAllowed(from, to))
+                return false;
+            if (state.compareAndSet(from, to)) {
+                changed(from, to);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * End the session.
+     * @return true if this call closed it, false if it was closed before
+     */
+    boolean close() {
+        return moveTo(State.CLOSED);
+    }
+
+    private void changed(@NonNull State from, @NonNull State to) {
+        Log.i(TAG, "Tunnel state " + from + " -> " + to);
+        for (Listener listener : listeners) {
+            try {
+                listener.onStateChanged(from, to);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Lifecycle listener failed", e);
+            }
+        }
+        signal();
+    }
+
+    @NonNull State getState() {
+        return state.get();
+    }
+
+    boolean isClosed() {
+        return state.get() == State.CLOSED;
+    }
+
+    void addListener(@NonNull Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(@NonNull Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Wake up all threads waiting for a signal, e.g. as something they might wait for changed.
+     */
+    void signal() {
+        synchronized (signalMonitor) {
+            signals.incrementAndGet();
+            signalMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Get the number of signals so far, to be taken before checking the condition to wait for.
+     * @return a long identifying the last signal given
+     */
+    long getSignalCount() {
+        return signals.get();
+    }
+
+    /**
+     * Wait for a signal after the given one.
+     * @param since the long signal count taken before checking the condition waited for
+     * @param millis the maximum time to wait in milliseconds, or 0 to wait without limit
+     * @return true if a signal came, false if the time passed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitSignal(long since, long millis) throws InterruptedException {
+        final long deadline = millis > 0 ? System.currentTimeMillis() + millis : Long.MAX_VALUE;
+        synchronized (signalMonitor) {
+            while (signals.get() == since) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return false;
+                signalMonitor.wait(millis > 0 ? remaining : 0L);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait until the session is closed or the time passed.
+     * @param millis the time to wait in milliseconds
+     * @return true if the session is closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitClose(long millis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + millis;
+        long remaining = millis;
+        while (remaining > 0) {
+            final long since = getSignalCount();
+            if (isClosed())
+                return true;
+            awaitSignal(since, remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return isClosed();
+    }
+}
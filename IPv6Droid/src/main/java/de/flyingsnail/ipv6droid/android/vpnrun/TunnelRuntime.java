@@ -0,0 +1,272 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads that run the asynchronous work of one tunnel session: a bounded pool of workers
+ * for short tasks, and a single timer for everything that is due at some time, like throughput
+ * sampling, verification probes or the end of a drain. Timer deadlines are rounded up to a
+ * coarse tick, so that timers due at about the same time are run by a single wakeup; the timer
+ * only hands them to the workers and never runs them itself.
+ * <p>
+ * The workers must never block, so that the timers are served in time. Work that waits on the
+ * network, like handshakes, PoP probes or tasks waiting on other tasks, is run by a separate,
+ * likewise bounded pool of blocking workers instead. Blocking tasks beyond its size wait in a queue.
+ * <p>
+ * All threads are named and counted, and shut down together with the runtime.
+ */
+class TunnelRuntime {
+    private static final String TAG = TunnelRuntime.class.getName();
+
+    /**
+     * The maximum number of workers running tasks in parallel.
+     */
+    static final int MAX_WORKERS = 4;
+
+    /**
+     * The maximum number of blocking workers running tasks in parallel. A task waiting on other
+     * blocking tasks takes one of them, so this must leave room for the tasks it waits on.
+     */
+    static final int MAX_BLOCKING_WORKERS = 8;
+
+    /**
+     * The granularity in milliseconds of timer deadlines.
+     */
+    static final long TICK_MILLIS = 50L;
+
+    /**
+     * The time in seconds that an idle worker is kept.
+     */
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30L;
+
+    private final String name;
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final AtomicInteger threadNumber = new AtomicInteger();
+    private final ThreadPoolExecutor workers;
+    private final ThreadPoolExecutor blockingWorkers;
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * Constructor.
+     * @param name a String giving the prefix of the names of all threads of this runtime
+     */
+    TunnelRuntime(@NonNull String name) {
+        this.name = name;
+        workers = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                threadFactory("worker"));
+        workers.allowCoreThreadTimeOut(true);
+        blockingWorkers = new ThreadPoolExecutor(MAX_BLOCKING_WORKERS, MAX_BLOCKING_WORKERS,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                threadFactory("blocking worker"));
+        blockingWorkers.allowCoreThreadTimeOut(true);
+        timer = new ScheduledThreadPoolExecutor(1, threadFactory("timer"));
+        timer.setRemoveOnCancelPolicy(true);
+        timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    private ThreadFactory threadFactory(@NonNull String role) {
+        return runnable -> newThread(runnable, role + " #" + threadNumber.incrementAndGet());
+    }
+
+    /**
+     * Create a named thread that is counted as part of this runtime as long as it runs. To be used
+     * for work that blocks for the lifetime of a tunnel and therefore must not occupy a worker.
+     * @param runnable the Runnable to run in the new thread
+     * @param threadName a String giving the role of the thread
+     * @return the Thread, not yet started
+     */
+    @NonNull Thread newThread(@NonNull Runnable runnable, @NonNull String threadName) {
+        return new Thread(() -> {
+            threadCount.incrementAndGet();
+            try {
+                runnable.run();
+            } finally {
+                threadCount.decrementAndGet();
+            }
+        }, name + " " + threadName);
+    }
+
+    /**
+     * Run a task by the next free worker.
+     * @param task the Runnable to run
+     * @return a Future representing the task
+     */
+    @NonNull Future<?> submit(@NonNull Runnable task) {
+        return workers.submit(task);
+    }
+
+    /**
+     * Run a task by the next free worker.
+     * @param task the Callable to run
+     * @param <T> the type of the task's result
+     * @return a Future representing the task
+     */
+    @NonNull <T> Future<T> submit(@NonNull Callable<T> task) {
+        return workers.submit(task);
+    }
+
+    /**
+     * Run a task that may block, e.g. on the network, by a blocking worker.
+     * @param task the Runnable to run
+     * @return a Future representing the task
+     */
+    @NonNull Future<?> submitBlocking(@NonNull Runnable task) {
+        return blockingWorkers.submit(task);
+    }
+
+    /**
+     * Run a task that may block, e.g. on the network, by a blocking worker.
+     * @param task the Callable to run
+     * @param <T> the type of the task's result
+     * @return a Future representing the task
+     */
+    @NonNull <T> Future<T> submitBlocking(@NonNull Callable<T> task) {
+        return blockingWorkers.submit(task);
+    }
+
+    /**
+     * Run a task by a worker once the delay has passed, give or take a tick.
+     * @param task the Runnable to run
+     * @param delayMillis the minimum delay in milliseconds
+     * @return a ScheduledFuture that allows to cancel the timer
+     */
+    @NonNull ScheduledFuture<?> schedule(@NonNull Runnable task, long delayMillis) {
+        return timer.schedule(() -> dispatch(task), toTick(delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run a task by a worker repeatedly at the given period. A run is skipped if the previous
+     * one did not finish yet.
+     * @param task the Runnable to run
+     * @param periodMillis the period in milliseconds
+     * @return a ScheduledFuture that allows to cancel the timer
+     */
+    @NonNull ScheduledFuture<?> scheduleAtFixedRate(@NonNull Runnable task, long periodMillis) {
+        return scheduleAtFixedRate(task, periodMillis, workers);
+    }
+
+    /**
+     * Run a task that may block by a blocking worker repeatedly at the given period. A run is
+     * skipped if the previous one did not finish yet.
+     * @param task the Runnable to run
+     * @param periodMillis the period in milliseconds
+     * @return a ScheduledFuture that allows to cancel the timer
+     */
+    @NonNull ScheduledFuture<?> scheduleBlockingAtFixedRate(@NonNull Runnable task, long periodMillis) {
+        return scheduleAtFixedRate(task, periodMillis, blockingWorkers);
+    }
+
+    /**
+     * Run a task by an executor repeatedly. Only the first run is aligned to a tick; the period
+     * is a fixed multiple of the tick, so that the runs keep their distance.
+     */
+    private @NonNull ScheduledFuture<?> scheduleAtFixedRate(@NonNull Runnable task, long periodMillis,
+                                                             @NonNull ThreadPoolExecutor executor) {
+        final AtomicInteger running = new AtomicInteger();
+        final long period = Math.max(1L, (periodMillis + TICK_MILLIS - 1) / TICK_MILLIS) * TICK_MILLIS;
+        return timer.scheduleAtFixedRate(() -> {
+            if (running.compareAndSet(0, 1))
+                dispatch(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        running.set(0);
+                    }
+                }, executor);
+        }, toTick(period), period, TimeUnit.MILLISECONDS);
+    }
+
+    private void dispatch(@NonNull Runnable task) {
+        dispatch(task, workers);
+    }
+
+    private static void dispatch(@NonNull Runnable task, @NonNull ThreadPoolExecutor executor) {
+        if (!executor.isShutdown())
+            executor.execute(task);
+    }
+
+    /**
+     * Round a delay up to the next full tick, counted from the epoch, so that deadlines of
+     * different timers coincide.
+     * @param delayMillis the delay in milliseconds
+     * @return the delay to the end of the tick in which delayMillis ends
+     */
+    private static long toTick(long delayMillis) {
+        final long now = System.currentTimeMillis();
+        final long deadline = now + Math.max(0L, delayMillis);
+        return ((deadline + TICK_MILLIS - 1) / TICK_MILLIS) * TICK_MILLIS - now;
+    }
+
+    /**
+     * @return the number of threads of this runtime currently running
+     */
+    int getThreadCount() {
+        return threadCount.get();
+    }
+
+    /**
+     * Stop all timers and workers. Tasks already running are interrupted if they do not finish
+     * within the given time.
+     * @param timeoutMillis the time in milliseconds to wait for running tasks
+     */
+    void shutdown(long timeoutMillis) {
+        timer.shutdownNow();
+        workers.shutdown();
+        blockingWorkers.shutdown();
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            if (!workers.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                Log.i(TAG, "Interrupting workers of " + name + " that did not finish in time");
+                workers.shutdownNow();
+            }
+            if (!blockingWorkers.awaitTermination(Math.max(0L, deadline - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS)) {
+                Log.i(TAG, "Interrupting blocking workers of " + name + " that did not finish in time");
+                blockingWorkers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            blockingWorkers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        Log.i(TAG, "Runtime " + name + " shut down, " + threadCount.get() + " threads still running");
+    }
+}
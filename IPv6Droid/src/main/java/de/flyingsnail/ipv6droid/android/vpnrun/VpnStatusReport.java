@@ -38,6 +38,7 @@ import java.util.Objects;
 import de.flyingsnail.ipv6droid.R;
 import de.flyingsnail.ipv6droid.android.IPv6DroidVpnService;
 import de.flyingsnail.ipv6droid.android.Tunnels;
+import de.flyingsnail.ipv6droid.android.statistics.SpanTracer;
 import de.flyingsnail.ipv6droid.transport.TunnelSpec;
 
 /**
@@ -283,6 +284,7 @@ public class VpnStatusReport implements Serializable, Cloneable {
     protected void reportStatus() {
         if (context == null)
             return; // we're outside any Android context
+        final long span = SpanTracer.begin();
         try {
             Intent statusBroadcast = new Intent(BC_STATUS)
                     .putExtra(EDATA_STATUS_REPORT, (VpnStatusReport) this.clone());
@@ -291,6 +293,7 @@ public class VpnStatusReport implements Serializable, Cloneable {
         } catch (CloneNotSupportedException e) {
             Log.wtf(TAG, "CloneNotSupported on VpnStatusReport", e);
         }
+        SpanTracer.end("status broadcast", span, "status", String.valueOf(status));
     }
 
 
@@ -37,13 +37,16 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.Inet6Address;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.ScheduledFuture;
 
 import de.flyingsnail.ipv6droid.R;
 import de.flyingsnail.ipv6droid.android.DTLSTunnelReader;
@@ -51,11 +54,22 @@ import de.flyingsnail.ipv6droid.android.IPv6DroidVpnService;
 import de.flyingsnail.ipv6droid.android.MainActivity;
 import de.flyingsnail.ipv6droid.android.RoutingConfiguration;
 import de.flyingsnail.ipv6droid.android.SubscriptionTunnelReader;
+import de.flyingsnail.ipv6droid.android.TransmissionConfiguration;
 import de.flyingsnail.ipv6droid.android.TunnelReader;
 import de.flyingsnail.ipv6droid.android.Tunnels;
+import de.flyingsnail.ipv6droid.android.statistics.HistoryRecord;
+import de.flyingsnail.ipv6droid.android.statistics.SessionStatistics;
 import de.flyingsnail.ipv6droid.android.statistics.Statistics;
+import de.flyingsnail.ipv6droid.android.statistics.OutageTracker;
+import de.flyingsnail.ipv6droid.android.statistics.SpanTracer;
+import de.flyingsnail.ipv6droid.android.statistics.StatisticsHistory;
+import de.flyingsnail.ipv6droid.android.statistics.StatisticsPublisher;
+import de.flyingsnail.ipv6droid.android.statistics.TunnelMetrics;
+import de.flyingsnail.ipv6droid.android.statistics.ThroughputSamples;
+import de.flyingsnail.ipv6droid.android.statistics.ThroughputSeries;
 import de.flyingsnail.ipv6droid.transport.AuthenticationFailedException;
 import de.flyingsnail.ipv6droid.transport.ConnectionFailedException;
+import de.flyingsnail.ipv6droid.transport.Transporter;
 import de.flyingsnail.ipv6droid.transport.TunnelSpec;
 
 /**
@@ -110,6 +124,11 @@ public class VpnThread extends Thread {
      */
     private final RoutingConfiguration routingConfiguration;
 
+    /**
+     * The configuration of packet handling within the tunnel.
+     */
+    private final TransmissionConfiguration transmissionConfiguration;
+
     /**
      * The cached Tunnels object containing the previously working configuration.
      */
@@ -124,9 +143,9 @@ public class VpnThread extends Thread {
 
 
     /**
-     * A flag that is set if the tunnel should close down.
+     * The state of this thread's tunnel session; closed if the tunnel should close down.
      */
-    private boolean closeTunnel;
+    private final TunnelLifecycle lifecycle = new TunnelLifecycle();
 
     /**
      * An int used to tag socket traffic initiated from the parent thread
@@ -142,17 +161,55 @@ public class VpnThread extends Thread {
      */
     private Date startedAt;
     private LocalEnd localEnd;
+    /**
+     * The time series of throughput, sampled each second while this thread runs.
+     */
+    private final ThroughputSeries throughputSeries = new ThroughputSeries();
+    /**
+     * The outages of the tunnel in this thread's session.
+     */
+    private final OutageTracker outageTracker = new OutageTracker();
+    /**
+     * The capture of packets passing the tunnel, or null if not configured.
+     */
+    private PacketCapture packetCapture = null;
+    /**
+     * The threads running the asynchronous work of this thread's session.
+     */
+    private TunnelRuntime runtime;
+    /**
+     * The time in milliseconds that the runtime's running tasks are given to finish at session end.
+     */
+    private static final long RUNTIME_SHUTDOWN_MILLIS = 2000L;
+    /**
+     * The name of the directory in the app's private files dir that packets are captured to.
+     */
+    private static final String DIR_CAPTURE = "capture";
+    /**
+     * The session of this thread in the persistent statistics history.
+     */
+    private long historySession = -1L;
+    /**
+     * The index of the next throughput sample to add to the statistics history.
+     */
+    private long historyIndex = 0L;
+    /**
+     * The resolved address of the IPv6 test host, or null if not yet resolved.
+     */
+    private Inet6Address testHostAddress = null;
 
     /**
      * The constructor setting all required fields.
      * @param service the Service that created this thread
      * @param cachedTunnels the previously working tunnel spec, or null if none
      * @param routingConfiguration the nativeRouting configuration
+     * @param transmissionConfiguration the packet handling configuration
      * @param sessionName the name of this thread
      */
     public VpnThread(@NonNull IPv6DroidVpnService service,
                      @Nullable Tunnels cachedTunnels,
                      @NonNull RoutingConfiguration routingConfiguration,
+                     @NonNull TransmissionConfiguration transmissionConfiguration,
                      @NonNull String sessionName) {
         setName(sessionName);
         this.service = service;
@@ -162,19 +219,43 @@ public class VpnThread extends Thread {
         } catch (CloneNotSupportedException e) {
             throw new IllegalStateException("Cloning of RoutingConfiguration failed", e);
         }
+        try {
+            this.transmissionConfiguration = (TransmissionConfiguration)transmissionConfiguration.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("Cloning of TransmissionConfiguration failed", e);
+        }
         this.tunnels = cachedTunnels;
         // extract the application context
         this.applicationContext = service.getApplicationContext();
         this.startedAt = new Date(0L);
-        this.closeTunnel = false;
     }
 
 
     @Override
     public void run() {
-        if (closeTunnel)
+        if (lifecycle.isClosed())
             throw new IllegalStateException("Starting a VpnThread that should close");
         startedAt = new Date();
+        final long runSpan = SpanTracer.begin();
+        final StatisticsHistory history = service.getStatisticsHistory();
+        historySession = history.startSession(startedAt.getTime());
+        int historyEndCause = HistoryRecord.CAUSE_FAILED;
+        final TunnelRuntime myRuntime = new TunnelRuntime(getName());
+        runtime = myRuntime;
+        lifecycle.addListener((from, to) -> SpanTracer.instant("tunnel state", "state", to.name()));
+        if (transmissionConfiguration.isCaptureEnabled()) {
+            try {
+                packetCapture = new PacketCapture(new File(applicationContext.getFilesDir(), DIR_CAPTURE),
+                        transmissionConfiguration.getCaptureSnapLength(),
+                        transmissionConfiguration.getCaptureSampling(),
+                        transmissionConfiguration.getCaptureMaxSize() * 1024L * 1024L,
+                        myRuntime);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot start packet capture", e);
+            }
+        }
+        final ScheduledFuture<?> sampler = myRuntime.scheduleAtFixedRate(this::sampleThroughput, 1000L);
+        ScheduledFuture<?> reevaluation = null;
         try {
 
             TrafficStats.setThreadStatsTag(TAG_PARENT_THREAD);
@@ -184,13 +265,14 @@ public class VpnThread extends Thread {
             vpnStatus.setActivity(R.string.vpnservice_activity_reconnect);
 
             // startup process during which no parallel shutdown is allowed
-            VpnService.Builder builder;
-            VpnService.Builder builderNotRouted;
+            boolean autoSelected = false;
             synchronized (this) {
                 if (tunnels == null || !tunnels.checkCachedTunnelAvailability() || !tunnels.isTunnelActive()) {
                     // some status reporting...
                     vpnStatus.setActivity(R.string.vpnservice_activity_query_tic);
+                    final long readSpan = SpanTracer.begin();
                     readTunnels(); // ensures tunnels to be set, preserves active tunnel if still valid
+                    SpanTracer.end("read tunnels", readSpan);
                     vpnStatus.setTunnels(tunnels);
                     // check for active tunnel
                     if (!tunnels.isTunnelActive()) {
@@ -201,7 +283,8 @@ public class VpnThread extends Thread {
                                 tunnels.setActiveTunnel(tunnels.get(0));
                                 break;
                             default:
-                                throw new ConnectionFailedException("You must select a tunnel from list", null);
+                                selectBestTunnel(myRuntime);
+                                autoSelected = true;
                         }
                     }
                 } else {
@@ -210,21 +293,32 @@ public class VpnThread extends Thread {
                 vpnStatus.setTunnels(tunnels);
                 vpnStatus.setProgressPerCent(25);
                 vpnStatus.setActivity(R.string.vpnservice_activity_selected_tunnel);
-
-                // build vpn device on local machine
-                builder = service.createBuilder();
-                TunnelSpec activeTunnel = tunnels.getActiveTunnel();
-                //noinspection ConstantConditions
-                configureBuilderFromTunnelSpecification(builder, activeTunnel, false);
-                builderNotRouted = service.createBuilder();
-                configureBuilderFromTunnelSpecification(builderNotRouted, activeTunnel, true);
             }
-            LocalEnd myLocalEnd = new LocalEnd(this, builder, builderNotRouted,
-                    routingConfiguration.isForceRouting(), vpnStatus, tunnels.getActiveTunnel(),
-                    service);
-            localEnd = myLocalEnd; // avoid race condition with next statements
-            myLocalEnd.refreshTunnelLoop();
-            closeTunnel = true;
+            if (autoSelected)
+                reevaluation = myRuntime.scheduleBlockingAtFixedRate(this::reevaluateTunnel,
+                        PopSelector.REEVALUATION_MILLIS);
+
+            LocalEnd myLocalEnd;
+            do {
+                VpnService.Builder builder;
+                VpnService.Builder builderNotRouted;
+                TunnelSpec activeTunnel;
+                synchronized (this) {
+                    // build vpn device on local machine
+                    builder = service.createBuilder();
+                    activeTunnel = tunnels.getActiveTunnel();
+                    //noinspection ConstantConditions
+                    configureBuilderFromTunnelSpecification(builder, activeTunnel, false);
+                    builderNotRouted = service.createBuilder();
+                    configureBuilderFromTunnelSpecification(builderNotRouted, activeTunnel, true);
+                }
+                myLocalEnd = new LocalEnd(this, builder, builderNotRouted,
+                        routingConfiguration.isForceRouting(), vpnStatus, activeTunnel,
+                        service, transmissionConfiguration, new BackoffReconnectPolicy(), myRuntime);
+                localEnd = myLocalEnd; // avoid race condition with next statements
+                myLocalEnd.refreshTunnelLoop();
+            } while (myLocalEnd.isTunnelSwitched() && !lifecycle.isClosed());
+            lifecycle.close();
             myLocalEnd.stop();
             localEnd = null;
 
@@ -233,6 +327,7 @@ public class VpnThread extends Thread {
             vpnStatus.setStatus(VpnStatusReport.Status.Idle);
             vpnStatus.setActivity(R.string.vpnservice_activity_closing);
             vpnStatus.setCause(null);
+            historyEndCause = HistoryRecord.CAUSE_NONE;
         } catch (AuthenticationFailedException e) {
             Log.e(TAG, "Authentication step failed", e);
             service.notifyUserOfError(R.string.vpnservice_authentication_failed, e);
@@ -251,19 +346,86 @@ public class VpnThread extends Thread {
             service.notifyUserOfError(R.string.vpnservice_unexpected_problem, t);
             vpnStatus.setCause(t);
         } finally {
-            closeTunnel = true;
+            lifecycle.close();
+            sampler.cancel(false);
+            if (reevaluation != null)
+                reevaluation.cancel(false);
+            history.endSession(historySession, historyEndCause);
+            outageTracker.sessionEnded(System.currentTimeMillis());
+            service.getTunnelMetrics().getTunnelUp().set(0.0);
+            service.getTunnelMetrics().getQueueDepth().set(0.0);
+            service.getTunnelMetrics().getHeldBytes().set(0.0);
+            if (packetCapture != null)
+                packetCapture.close();
+            myRuntime.shutdown(RUNTIME_SHUTDOWN_MILLIS);
+            service.getTunnelMetrics().getRuntimeThreads().set(0.0);
+            getStatisticsPublisher().publishTunnelDown();
+            SpanTracer.end("VpnThread", runSpan);
         }
         vpnStatus.clear(); // back at zero
     }
 
 
+    /**
+     * Probe the tunnels read and make the best one the active tunnel.
+     * @param myRuntime the TunnelRuntime to run the probes
+     * @throws ConnectionFailedException if none of the tunnels could be connected
+     * @throws InterruptedException if this thread is interrupted while probing
+     */
+    private void selectBestTunnel(@NonNull TunnelRuntime myRuntime)
+            throws ConnectionFailedException, InterruptedException {
+        vpnStatus.setActivity(R.string.vpnservice_activity_select_pop);
+        final long selectSpan = SpanTracer.begin();
+        final PopSelector.Score best = new PopSelector(myRuntime).selectBest(tunnels, null);
+        SpanTracer.end("select PoP", selectSpan, "tunnel", best == null ? null : best.tunnel.getTunnelName());
+        if (best == null)
+            throw new ConnectionFailedException("None of the tunnels could be connected, you must select a tunnel from list", null);
+        Log.i(TAG, "Automatically selected tunnel " + best);
+        tunnels.setActiveTunnel(best.tunnel);
+    }
+
+    /**
+     * Probe the alternatives to the automatically selected tunnel, and switch to the best one
+     * if the current tunnel's PoP degraded too far against it.
+     */
+    private void reevaluateTunnel() {
+        final LocalEnd myLocalEnd = localEnd; // avoid race condition with cleanAll
+        final TunnelRuntime myRuntime = runtime;
+        if (myLocalEnd == null || myRuntime == null || lifecycle.getState() != TunnelLifecycle.State.UP)
+            return;
+        final Transporter current = myLocalEnd.getTransporter();
+        final TunnelSpec activeTunnel = tunnels.getActiveTunnel();
+        if (current == null || activeTunnel == null)
+            return;
+        final List<TunnelSpec> alternatives = new ArrayList<>(tunnels);
+        alternatives.remove(activeTunnel);
+        try {
+            final PopSelector.Score best = new PopSelector(myRuntime).selectBest(alternatives,
+                    myLocalEnd.getCurrentNetwork());
+            if (best == null || !PopSelector.shouldSwitch(current.getRoundTripEstimator(), best))
+                return;
+            synchronized (this) {
+                if (localEnd != myLocalEnd || lifecycle.isClosed())
+                    return;
+                Log.i(TAG, "Switching from tunnel " + activeTunnel.getTunnelName() + " to " + best);
+                SpanTracer.instant("switch PoP", "tunnel", best.tunnel.getTunnelName());
+                tunnels.setActiveTunnel(best.tunnel);
+                vpnStatus.setTunnels(tunnels);
+                myLocalEnd.switchTunnel();
+            }
+            getMetrics().getPopSwitches().increment();
+        } catch (InterruptedException e) {
+            Log.i(TAG, "Re-evaluation of tunnels interrupted", e);
+        }
+    }
+
     /**
      * Request the tunnel control loop (running in a different thread) to stop.
      */
     public void requestTunnelClose() {
-        if (isIntendedToRun()) {
+        // of concurrent requests, only the one that closes the lifecycle shuts down
+        if (isAlive() && lifecycle.close()) {
             Log.i(TAG, "Shutting down");
-            closeTunnel = true;
             cleanAll();
             setName(getName() + " (shutting down)");
             this.interrupt();
@@ -391,32 +553,165 @@ public class VpnThread extends Thread {
     }
 
     /**
-     * Read out current statistics values
-     * @return the Statistics object with current values
+     * Read out current session values
+     * @return the SessionStatistics object with current values
      */
     @SuppressLint("Assert")
-    public synchronized Statistics getStatistics() {
-        Log.d(VpnThread.TAG, "getStatistics() called");
+    public synchronized SessionStatistics getSessionStatistics() {
         if (!isTunnelUp()) {
             throw new IllegalStateException("Attempt to get Statistics on a non-running tunnel");
         }
 
         TunnelSpec activeTunnel = tunnels.getActiveTunnel();
         assert(activeTunnel != null);
-        Statistics stats = null;
         try {
-            stats = new Statistics(
-                    startedAt,
-                    activeTunnel.getIPv4Pop(),
-                    (Inet6Address)Inet6Address.getByName(applicationContext.getString(R.string.ipv6_test_host)),
-                    activeTunnel.getIpv6Endpoint(),
-                    activeTunnel.getMtu());
+            // the test host is resolved once only
+            if (testHostAddress == null)
+                testHostAddress = (Inet6Address)Inet6Address.getByName(applicationContext.getString(R.string.ipv6_test_host));
         } catch (UnknownHostException e) {
             e.printStackTrace();
         }
+        return new SessionStatistics(
+                startedAt,
+                activeTunnel.getIPv4Pop(),
+                testHostAddress,
+                activeTunnel.getIpv6Endpoint(),
+                activeTunnel.getMtu());
+    }
+
+    /**
+     * Read out current statistics values
+     * @return the Statistics object with current values
+     */
+    public synchronized Statistics getStatistics() {
+        Log.d(VpnThread.TAG, "getStatistics() called");
+        if (!isTunnelUp()) {
+            throw new IllegalStateException("Attempt to get Statistics on a non-running tunnel");
+        }
+
+        final long now = System.currentTimeMillis();
+        Statistics stats = new Statistics()
+                .setAvailability(outageTracker.getAvailability(now))
+                .setMeanTimeToRepair(outageTracker.getMeanTimeToRepair())
+                .setOutageCount(outageTracker.getOutageCount())
+                .setDowntime(outageTracker.getTotalDowntime(now))
+                .setOutages(outageTracker.getRecords());
         return localEnd == null ? stats : localEnd.addStatistics(stats);
     }
 
+    /**
+     * Close the running second of the throughput series, and update the exported metrics.
+     * Called by a timer each second.
+     */
+    private void sampleThroughput() {
+        final LocalEnd myLocalEnd = localEnd; // avoid race condition with cleanAll
+        final TunnelMetrics metrics = service.getTunnelMetrics();
+        try {
+            if (myLocalEnd == null)
+                throughputSeries.sampleIdle();
+            else {
+                myLocalEnd.sampleThroughput(throughputSeries);
+                myLocalEnd.sampleMetrics(metrics);
+            }
+            final boolean tunnelUp = isTunnelUp();
+            metrics.getTunnelUp().set(tunnelUp ? 1.0 : 0.0);
+            final TunnelRuntime myRuntime = runtime; // avoid race condition with run
+            if (myRuntime != null)
+                metrics.getRuntimeThreads().set(myRuntime.getThreadCount());
+
+            // persist and count the traffic of the new samples
+            final StatisticsHistory history = service.getStatisticsHistory();
+            final ThroughputSamples samples = throughputSeries.getSamplesSince(
+                    ThroughputSeries.Resolution.SECOND, historyIndex);
+            historyIndex = samples.getNextIndex();
+            for (int i = 0; i < samples.size(); i++) {
+                history.addTraffic(historySession,
+                        samples.getBytesTransmitted(i), samples.getPacketsTransmitted(i),
+                        samples.getBytesReceived(i), samples.getPacketsReceived(i));
+                metrics.getBytesTransmitted().add(samples.getBytesTransmitted(i));
+                metrics.getPacketsTransmitted().add(samples.getPacketsTransmitted(i));
+                metrics.getBytesReceived().add(samples.getBytesReceived(i));
+                metrics.getPacketsReceived().add(samples.getPacketsReceived(i));
+            }
+
+            // push the changes to the statistics screen
+            final StatisticsPublisher publisher = getStatisticsPublisher();
+            publisher.publishThroughput(throughputSeries);
+            if (!tunnelUp)
+                publisher.publishTunnelDown();
+            else if (publisher.hasListeners()) {
+                try {
+                    publisher.publishSession(getSessionStatistics());
+                    publisher.publishTraffic(getStatistics());
+                } catch (IllegalStateException e) {
+                    publisher.publishTunnelDown(); // tunnel went down in the meantime
+                }
+            }
+        } catch (RuntimeException e) {
+            // an exception would silently cancel the timer
+            Log.e(TAG, "Failed to sample throughput", e);
+        }
+    }
+
+    /**
+     * Record a reconnect of the tunnel in the throughput series, the statistics history and
+     * the exported metrics.
+     * @param cause an int giving the cause of the reconnect, one of the HistoryRecord.CAUSE_ constants
+     */
+    void notifyReconnect(int cause) {
+        throughputSeries.markReconnect();
+        service.getStatisticsHistory().recordReconnect(historySession, cause);
+        service.getTunnelMetrics().getReconnects().increment();
+    }
+
+    /**
+     * Get the capture of packets passing the tunnel.
+     * @return the PacketCapture, or null if packets are not captured
+     */
+    @Nullable PacketCapture getPacketCapture() {
+        return packetCapture;
+    }
+
+    /**
+     * Get the state of the tunnel in this session.
+     * @return the TunnelLifecycle
+     */
+    @NonNull TunnelLifecycle getLifecycle() {
+        return lifecycle;
+    }
+
+    /**
+     * Get the outages of the tunnel in this session.
+     * @return the OutageTracker
+     */
+    @NonNull OutageTracker getOutageTracker() {
+        return outageTracker;
+    }
+
+    /**
+     * Get the metrics of tunnel health exported by the service.
+     * @return the TunnelMetrics
+     */
+    @NonNull TunnelMetrics getMetrics() {
+        return service.getTunnelMetrics();
+    }
+
+    /**
+     * Get the publisher of statistics to the statistics screen.
+     * @return the StatisticsPublisher
+     */
+    @NonNull StatisticsPublisher getStatisticsPublisher() {
+        return service.getStatisticsPublisher();
+    }
+
+    /**
+     * Get the time series of throughput of this thread.
+     * @return the ThroughputSeries
+     */
+    public @NonNull ThroughputSeries getThroughputSeries() {
+        return throughputSeries;
+    }
+
     /**
      * Query if the tunnel is currently running
      * @return true if the tunnel is running
@@ -431,7 +726,7 @@ public class VpnThread extends Thread {
      * @return a boolean, true if this thread is active and trying to keep a tunnel up.
      */
     public boolean isIntendedToRun() {
-        return isAlive() && !closeTunnel;
+        return isAlive() && !lifecycle.isClosed();
     }
 
     Context getApplicationContext() {
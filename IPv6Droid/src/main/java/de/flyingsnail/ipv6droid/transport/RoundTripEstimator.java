@@ -0,0 +1,171 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.transport;
+
+/**
+ * Keeps smoothed estimates of the round trip time to the PoP, its variation, and the rate of
+ * lost probes, from the timing of probes and their responses. Smoothing follows RFC 6298:
+ * the round trip time has a gain of 1/8, the variation a gain of 1/4. The loss rate is smoothed
+ * with a gain of 1/8 as well.
+ * <p>Only a single probe is expected to be outstanding at a time. A probe that is not answered
+ * before the next probe is sent or its timeout expires, counts as lost.</p>
+ */
+public class RoundTripEstimator {
+    /** The timeout of a probe before any round trip time was measured */
+    private static final long INITIAL_TIMEOUT_MILLIS = 3000L;
+    /** The lower bound of the timeout of a probe */
+    private static final long MIN_TIMEOUT_MILLIS = 1000L;
+
+    // the smoothed round trip time in nanoseconds, or -1 before the first sample
+    private long smoothedRtt = -1L;
+    // the smoothed mean deviation of the round trip time in nanoseconds
+    private long rttVariation = 0L;
+    // the smoothed loss rate of probes
+    private double lossRate = 0.0;
+    // the time when the outstanding probe was sent, or -1 if none is outstanding
+    private long probeSentTime = -1L;
+    private int consecutiveLosses = 0;
+    private long sampleCount = 0L;
+    private long lastRtt = 0L;
+
+    /**
+     * Note that a probe was sent.
+     * @param now a long giving the time in nanoseconds as returned by System.nanoTime()
+     */
+    public synchronized void probeSent(long now) {
+        if (probeSentTime >= 0)
+            probeLost();
+        probeSentTime = now;
+    }
+
+    /**
+     * Note that a probe response was received. This is ignored if no probe is outstanding.
+     * @param now a long giving the time in nanoseconds as returned by System.nanoTime()
+     */
+    public synchronized void responseReceived(long now) {
+        if (probeSentTime < 0)
+            return;
+        long rtt = now - probeSentTime;
+        probeSentTime = -1L;
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariation = rtt / 2;
+        } else {
+            rttVariation += (Math.abs(smoothedRtt - rtt) - rttVariation) / 4;
+            smoothedRtt += (rtt - smoothedRtt) / 8;
+        }
+        lossRate -= lossRate / 8;
+        consecutiveLosses = 0;
+        lastRtt = rtt;
+        sampleCount++;
+    }
+
+    /**
+     * Check if the outstanding probe, if any, has timed out, and count it as lost if so.
+     * @param now a long giving the time in nanoseconds as returned by System.nanoTime()
+     * @return true if a probe was found lost
+     */
+    public synchronized boolean checkTimeout(long now) {
+        if (probeSentTime < 0 || now - probeSentTime < getTimeoutMillis() * 1000000L)
+            return false;
+        probeSentTime = -1L;
+        probeLost();
+        return true;
+    }
+
+    /**
+     * Forget an outstanding probe without counting it as lost, e.g. because the connection that
+     * it was sent on is replaced.
+     */
+    public synchronized void cancelProbe() {
+        probeSentTime = -1L;
+    }
+
+    private void probeLost() {
+        lossRate += (1.0 - lossRate) / 8;
+        consecutiveLosses++;
+    }
+
+    /**
+     * @return true if a probe was sent and neither answered nor found lost yet
+     */
+    public synchronized boolean isProbeOutstanding() {
+        return probeSentTime >= 0;
+    }
+
+    /**
+     * Get the time to wait for a probe response. This is the retransmission timeout of
+     * RFC 6298, i.e. the smoothed round trip time plus four times its variation.
+     * @return a long giving the timeout in milliseconds
+     */
+    public synchronized long getTimeoutMillis() {
+        if (smoothedRtt < 0)
+            return INITIAL_TIMEOUT_MILLIS;
+        return Math.max(MIN_TIMEOUT_MILLIS, (smoothedRtt + 4 * rttVariation) / 1000000L);
+    }
+
+    /**
+     * @return a double giving the smoothed round trip time in milliseconds, or NaN if not
+     * measured yet
+     */
+    public synchronized double getSmoothedRtt() {
+        return smoothedRtt < 0 ? Double.NaN : smoothedRtt / 1000000.0;
+    }
+
+    /**
+     * @return a double giving the smoothed mean deviation of the round trip time in
+     * milliseconds, i.e. the jitter, or NaN if not measured yet
+     */
+    public synchronized double getRttVariation() {
+        return smoothedRtt < 0 ? Double.NaN : rttVariation / 1000000.0;
+    }
+
+    /**
+     * @return a double between 0 and 1 giving the smoothed rate of probes lost
+     */
+    public synchronized double getLossRate() {
+        return lossRate;
+    }
+
+    /**
+     * @return an int giving the number of probes lost since the last response
+     */
+    public synchronized int getConsecutiveLosses() {
+        return consecutiveLosses;
+    }
+
+    /**
+     * @return a long giving the number of round trip times measured so far
+     */
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return a double giving the round trip time last measured in milliseconds
+     */
+    public synchronized double getLastRtt() {
+        return lastRtt / 1000000.0;
+    }
+}
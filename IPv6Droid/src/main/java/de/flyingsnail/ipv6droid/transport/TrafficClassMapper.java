@@ -0,0 +1,135 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Maps the traffic class of an IPv6 packet to the traffic class (IPv4 TOS) of the datagram
+ * carrying it through the tunnel. This allows Wi-Fi WMM and carrier networks to give the
+ * carrying datagram the treatment requested by the inner packet.
+ * <p>The DSCP is copied only for the groups of service classes selected, see RFC 4594; other
+ * packets are sent with default DSCP. The ECN field is copied as a whole if requested, following
+ * the normal mode of RFC 6040.</p>
+ */
+public class TrafficClassMapper {
+    /** Telephony: EF and VOICE-ADMIT */
+    public static final int CLASS_VOICE = 0x01;
+    /** Multimedia and real-time interactive: AF4x, CS4 and CS5 */
+    public static final int CLASS_VIDEO = 0x02;
+    /** Network control: CS6 and CS7 */
+    public static final int CLASS_NETWORK_CONTROL = 0x04;
+    /** All other non-default DSCP values, i.e. AF1x to AF3x, CS1 to CS3 */
+    public static final int CLASS_OTHER = 0x08;
+
+    private static final int ECN_MASK = 0x03;
+
+    /** The outer traffic class by inner traffic class */
+    private final int[] outerTrafficClass = new int[256];
+
+    /**
+     * Constructor.
+     * @param propagatedClasses an int giving the bitwise or of the CLASS_ constants whose DSCP
+     *                          should be copied to the outer header
+     * @param ecnPropagated a boolean indicating if the ECN field should be copied
+     */
+    public TrafficClassMapper(int propagatedClasses, boolean ecnPropagated) {
+        for (int tc = 0; tc < outerTrafficClass.length; tc++) {
+            int dscp = tc >> 2;
+            int outer = (dscp != 0 && (classOf(dscp) & propagatedClasses) != 0) ? tc & ~ECN_MASK : 0;
+            if (ecnPropagated)
+                outer |= tc & ECN_MASK;
+            outerTrafficClass[tc] = outer;
+        }
+    }
+
+    private static int classOf(int dscp) {
+        switch (dscp) {
+            case 46: // EF
+            case 44: // VOICE-ADMIT
+                return CLASS_VOICE;
+            case 32: // CS4
+            case 34: // AF41
+            case 36: // AF42
+            case 38: // AF43
+            case 40: // CS5
+                return CLASS_VIDEO;
+            case 48: // CS6
+            case 56: // CS7
+                return CLASS_NETWORK_CONTROL;
+            default:
+                return CLASS_OTHER;
+        }
+    }
+
+    /**
+     * Get the traffic class to set on the datagram carrying a packet.
+     * @param packet a ByteBuffer holding the packet from its position to its limit; unchanged.
+     * @return an int giving the traffic class as expected by DatagramSocket.setTrafficClass;
+     * 0 for packets that are no IPv6 packets.
+     */
+    public int getOuterTrafficClass(ByteBuffer packet) {
+        int start = packet.position();
+        if (packet.limit() - start < 2)
+            return 0;
+        int b0 = packet.get(start) & 0xff;
+        if ((b0 >> 4) != 6)
+            return 0;
+        int tc = ((b0 & 0x0f) << 4) | ((packet.get(start + 1) & 0xf0) >> 4);
+        return outerTrafficClass[tc];
+    }
+
+    /**
+     * Order a batch of packets so that the traffic class of the socket sending them changes at
+     * most once per class in the batch. Packets of the same outer traffic class keep their
+     * order; those of the class currently set on the socket come first, the other classes follow
+     * in the order they first appear in the batch.
+     * @param packets the ByteBuffers holding the packets, each from its position to its limit;
+     *                unchanged.
+     * @param count an int giving the number of packets from the start of packets
+     * @param currentClass an int giving the traffic class currently set on the socket
+     * @param order an int[] of at least count elements, receiving the packets in sending order.
+     *              Each element holds the index of the packet in its lower 16 bits and its
+     *              outer traffic class above.
+     */
+    public void orderByClass(ByteBuffer[] packets, int count, int currentClass, int[] order) {
+        for (int i = 0; i < count; i++)
+            order[i] = (getOuterTrafficClass(packets[i]) << 16) | i;
+        int placed = 0;
+        int trafficClass = currentClass;
+        while (placed < count) {
+            int next = -1;
+            for (int i = placed; i < count; i++) {
+                final int entry = order[i];
+                if (entry >>> 16 == trafficClass) {
+                    System.arraycopy(order, placed, order, placed + 1, i - placed);
+                    order[placed++] = entry;
+                } else if (next < 0) {
+                    next = entry >>> 16;
+                }
+            }
+            trafficClass = next;
+        }
+    }
+}
@@ -81,6 +81,13 @@ public interface Transporter {
    */
   boolean isValidPacketReceived();
 
+  /**
+   * Get the number of valid packets received by this instance. Unlike
+   * {@link #isValidPacketReceived()}, this tells if a valid packet arrived since a given moment.
+   * @return a long giving the number of valid packets received
+   */
+  long getValidPacketCount();
+
   /**
    * Return the number of invalid packages received yet.
    * @return an int representing the number.
@@ -98,6 +105,22 @@ public interface Transporter {
    */
   void beat() throws IOException, TunnelBrokenException;
 
+  /**
+   * Send a probe to the PoP that the PoP answers, to measure round trip time and loss. The
+   * response is registered with the {@link RoundTripEstimator} of this transporter when it is
+   * read.
+   * @return true if a probe was sent, false if this transporter cannot probe on demand
+   * @throws IOException in case of network problems (probably temporary in nature)
+   * @throws TunnelBrokenException in case that this tunnel is no longer usable and must be restarted
+   */
+  boolean probe() throws IOException, TunnelBrokenException;
+
+  /**
+   * Get the estimator of round trip time and probe loss fed by this transporter.
+   * @return the RoundTripEstimator
+   */
+  RoundTripEstimator getRoundTripEstimator();
+
   /**
    * Read next packet from the tunnel.
    * @return a ByteBuffer representing a read packets, with current position set to beginning of the <b>payload</b> and end set to end of payload.
@@ -114,6 +137,26 @@ public interface Transporter {
    */
   void write(ByteBuffer bb) throws IOException, TunnelBrokenException;
 
+  /**
+   * Writes a batch of packets to the tunnel, back to back. Each packet is still sent as a
+   * datagram of its own, but the state of the tunnel is checked only once for the batch. Each
+   * payload sent is consumed, i.e. its position is set to its limit, so that the payloads not
+   * sent can be told if the batch fails part way.
+   * @param bbs the payloads to send, each defined by position and limit
+   * @param count an int giving the number of payloads from the start of bbs to send
+   * @throws IOException in case of network problems (probably temporary in nature)
+   * @throws TunnelBrokenException in case that this tunnel is no longer usable and must be restarted
+   */
+  void write(ByteBuffer[] bbs, int count) throws IOException, TunnelBrokenException;
+
+  /**
+   * Set the mapping of the traffic class of packets written to the traffic class of the
+   * datagrams carrying them.
+   * @param mapper the TrafficClassMapper to apply, or null to send all datagrams with the
+   *               default traffic class
+   */
+  void setTrafficClassMapper(TrafficClassMapper mapper);
+
   /**
    * Provides an InputStream on the tunnel's payload. Only sensible use is to provide enough
    * buffer to read one datagram at a time. In this case, each call will receive one packet
@@ -37,6 +37,14 @@ public class TransporterOutputStream extends OutputStream {
     this.transporter = transporter;
   }
 
+  /**
+   * Constructor for subclasses that pick the transporter for each write themselves. Such a
+   * subclass must override all write methods.
+   */
+  protected TransporterOutputStream() {
+    this.transporter = null;
+  }
+
   @Override
     public void write(@NonNull byte[] buffer) throws IOException {
         try {
@@ -55,6 +63,20 @@ public class TransporterOutputStream extends OutputStream {
       }
     }
 
+    /**
+     * Write a batch of packets, each given by a ByteBuffer's position and limit.
+     * @param buffers the ByteBuffer[] holding the packets
+     * @param count an int giving the number of packets to write from the start of buffers
+     * @throws IOException in case of network problems or a broken tunnel
+     */
+    public void write(@NonNull ByteBuffer[] buffers, int count) throws IOException {
+      try {
+        transporter.write(buffers, count);
+      } catch (TunnelBrokenException e) {
+        throw new IOException(e);
+      }
+    }
+
     @Override
     public void write(int i) throws IOException {
         this.write(new byte[] {(byte)i});
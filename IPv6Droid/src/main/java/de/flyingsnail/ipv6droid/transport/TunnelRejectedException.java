@@ -1,6 +1,6 @@
 /*
  *
- *  * Copyright (c) 2021 Dr. Andreas Feldner.
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
  *  *
  *  *     This program is free software; you can redistribute it and/or modify
  *  *     it under the terms of the GNU General Public License as published by
@@ -20,27 +20,16 @@
  *
  *
  */
-package de.flyingsnail.ipv6droid.android.statistics;
 
-import java.util.Date;
+package de.flyingsnail.ipv6droid.transport;
 
 /**
- * A Burstinfo instance encapsulates data on a specific burst of packages.
+ * This represents the PoP refusing to serve an existing tunnel, e.g. because authentication
+ * failed or the clocks differ too much. Unlike other problems that break a tunnel, this is not
+ * expected to resolve by reconnecting right away.
  */
-public class Burstinfo {
-    // count of bytes in a specific burst
-    public long byteCount;
-    // count of packets in a specific burst
-    public long packetCount;
-    // the start timestamp of the burst
-    public final Date firstPacketReceived;
-    // the timestamp of the last packet received in that burst
-    public Date lastPacketReceived;
-
-    public Burstinfo() {
-        firstPacketReceived = new Date();
-        lastPacketReceived = firstPacketReceived;
-        byteCount = 0l;
-        packetCount = 0l;
+public class TunnelRejectedException extends TunnelBrokenException {
+    public TunnelRejectedException (String msg, Throwable cause) {
+        super (msg, cause);
     }
 }
@@ -31,12 +31,12 @@ import androidx.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.math.BigInteger;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetSocketAddress;
+import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -47,10 +47,13 @@ import java.util.Arrays;
 import java.util.Date;
 
 import de.flyingsnail.ipv6droid.transport.ConnectionFailedException;
+import de.flyingsnail.ipv6droid.transport.RoundTripEstimator;
+import de.flyingsnail.ipv6droid.transport.TrafficClassMapper;
 import de.flyingsnail.ipv6droid.transport.Transporter;
 import de.flyingsnail.ipv6droid.transport.TransporterInputStream;
 import de.flyingsnail.ipv6droid.transport.TransporterOutputStream;
 import de.flyingsnail.ipv6droid.transport.TunnelBrokenException;
+import de.flyingsnail.ipv6droid.transport.TunnelRejectedException;
 import de.flyingsnail.ipv6droid.transport.TunnelSpec;
 
 /**
@@ -120,6 +123,9 @@ public class Ayiya implements Transporter {
      */
     private boolean validPacketReceived = false;
 
+    /** The number of valid packets received, written by the reading thread only. */
+    private volatile long validPacketCount = 0L;
+
     /**
      * Count the number of invalid packets received.
      */
@@ -128,6 +134,26 @@ public class Ayiya implements Transporter {
     private Date lastPacketReceivedTime = new Date();
     private Date lastPacketSentTime = new Date();
 
+    /**
+     * The mapping of inner to outer traffic class, or null.
+     */
+    private TrafficClassMapper trafficClassMapper = null;
+
+    /**
+     * The traffic class currently set on the socket. Only changed by the thread writing packets.
+     */
+    private volatile int currentTrafficClass = 0;
+
+    /**
+     * The sending order of the last batch written, see TrafficClassMapper.orderByClass.
+     */
+    private int[] batchOrder = new int[0];
+
+    /**
+     * The estimator of round trip time fed by echo requests and responses.
+     */
+    private final RoundTripEstimator roundTripEstimator = new RoundTripEstimator();
+
     /**
      * Get the specification of the tunnel that this transporter runs.
      *
@@ -286,6 +312,8 @@ public class Ayiya implements Transporter {
         }
         // UDP connection
         socket = new DatagramSocket();
+        currentTrafficClass = 0;
+        roundTripEstimator.cancelProbe();
         return socket;
     }
 
@@ -336,6 +364,11 @@ public class Ayiya implements Transporter {
         return validPacketReceived;
     }
 
+    @Override
+    public long getValidPacketCount() {
+        return validPacketCount;
+    }
+
     /**
      * Return the number of invalid packages received yet.
      * @return an int representing the number.
@@ -377,6 +410,36 @@ public class Ayiya implements Transporter {
         lastPacketSentTime = new Date();
     }
 
+    /**
+     * Send an echo request to the PoP. Its response is timed when read.
+     * @return true, as AYIYA supports probing
+     */
+    @Override
+    public boolean probe() throws IOException, TunnelBrokenException {
+        final DatagramSocket mySocket = socket; // avoid race condition with close
+        if (mySocket == null)
+            throw new IOException("probe() called on unconnected Ayiya");
+        if (!mySocket.isConnected())
+            throw new TunnelBrokenException("Socket to PoP is not connected", null);
+        byte[] ayiyaPacket;
+        try {
+            ayiyaPacket = buildAyiyaStruct(ByteBuffer.wrap(new byte[0]), OpCode.ECHO_REQUEST, IPPROTO_NONE);
+        } catch (NoSuchAlgorithmException e) {
+            Log.wtf(TAG, "SHA1 no longer available???", e);
+            throw new TunnelBrokenException("Cannot build ayiya struct", e);
+        }
+        DatagramPacket dgPacket = new DatagramPacket(ayiyaPacket, ayiyaPacket.length, new InetSocketAddress(ipv4Pop, port));
+        roundTripEstimator.probeSent(System.nanoTime());
+        mySocket.send(dgPacket);
+        lastPacketSentTime = new Date();
+        return true;
+    }
+
+    @Override
+    public RoundTripEstimator getRoundTripEstimator() {
+        return roundTripEstimator;
+    }
+
     /**
      * Create a byte from to 4 bit values.
      */
@@ -478,10 +541,13 @@ public class Ayiya implements Transporter {
                 OpCode opCode = getSupportedOpCode(bb.array(), bb.arrayOffset(), bb.limit());
                 validPacketReceived = validPacketReceived || (opCode != null);
                      // note: this flag must never be reset to false!
+                if (opCode != null)
+                    validPacketCount++;
                 validResult =
                         (opCode == OpCode.FORWARD) || (opCode == OpCode.ECHO_REQUEST_FORWARD);
                 if (opCode == OpCode.ECHO_RESPONSE) {
-                    Log.i(TAG, "Received valid echo response");
+                    roundTripEstimator.responseReceived(System.nanoTime());
+                    Log.d(TAG, "Received valid echo response");
                 }
                 if (opCode == OpCode.FORWARD_RESPONSE) {
                     Log.w(TAG, "Received high level error code from peer");
@@ -492,9 +558,9 @@ public class Ayiya implements Transporter {
                     } else {
                         switch (error) {
                             case AUTHENTICATION_FAILED:
-                                throw new TunnelBrokenException("Received error code authentication failed from peer", null);
+                                throw new TunnelRejectedException("Received error code authentication failed from peer", null);
                             case TIMELAPSE:
-                                throw new TunnelBrokenException("Please check clock and timezone setting", null);
+                                throw new TunnelRejectedException("Please check clock and timezone setting", null);
                             default:
                                 invalidPacketCounter++;
                         }
@@ -504,7 +570,7 @@ public class Ayiya implements Transporter {
                 ErrorCode errorCode = checkErrorPacket(bb.array(), bb.arrayOffset(), bb.limit());
                 if (errorCode != null) {
                     Log.i(TAG, "Received low-level error packet, aborting tunnel");
-                    throw new TunnelBrokenException(
+                    throw new TunnelRejectedException(
                             errorCode == ErrorCode.TIMELAPSE
                                     ? "Please check clock and timezone setting"
                                     : "Server unwilling to serve us", null);
@@ -607,9 +673,6 @@ public class Ayiya implements Transporter {
             return false;
         }
 
-        // print packet to android log
-        Log.v(TAG, "Valid packet: " + new BigInteger(1, packet).toString(16));
-
         // this packet appears to be valid!
         return true;
     }
@@ -658,6 +721,9 @@ public class Ayiya implements Transporter {
         if (!socket.isConnected())
             throw new TunnelBrokenException("Socket to PoP is closed", null);
 
+        final TrafficClassMapper myMapper = trafficClassMapper;
+        if (myMapper != null)
+            applyTrafficClass(socket, myMapper.getOuterTrafficClass(payload));
         byte[] ayiyaPacket;
         try {
             ayiyaPacket = buildAyiyaStruct(payload, OpCode.FORWARD, IPPROTO_IPv6);
@@ -673,6 +739,80 @@ public class Ayiya implements Transporter {
         lastPacketSentTime = new Date();
     }
 
+    /**
+     * Writes a batch of packets to the tunnel, re-using one DatagramPacket for all of them.
+     * @param payloads the payloads to send
+     * @param count an int giving the number of payloads to send
+     * @throws IOException in case of network problems (probably temporary in nature)
+     * @throws TunnelBrokenException in case that this tunnel is no longer usable and must be restarted
+     */
+    @Override
+    public void write(ByteBuffer[] payloads, int count) throws IOException, TunnelBrokenException {
+        final DatagramSocket mySocket = socket; // avoid race condition with close
+        if (mySocket == null)
+            throw new IllegalStateException("write(byte[]) called on unconnected Ayiya");
+        if (!mySocket.isConnected())
+            throw new TunnelBrokenException("Socket to PoP is closed", null);
+
+        final TrafficClassMapper myMapper = trafficClassMapper;
+        if (myMapper != null) {
+            // send the batch grouped by traffic class, changing the socket option once per group
+            if (batchOrder.length < count)
+                batchOrder = new int[count];
+            myMapper.orderByClass(payloads, count, currentTrafficClass, batchOrder);
+        }
+        DatagramPacket dgPacket = null;
+        for (int k = 0; k < count; k++) {
+            final int i = myMapper != null ? batchOrder[k] & 0xffff : k;
+            if (myMapper != null)
+                applyTrafficClass(mySocket, batchOrder[k] >>> 16);
+            final ByteBuffer payload = payloads[i];
+            final int start = payload.position();
+            byte[] ayiyaPacket;
+            try {
+                ayiyaPacket = buildAyiyaStruct(payload, OpCode.FORWARD, IPPROTO_IPv6);
+            } catch (NoSuchAlgorithmException e) {
+                Log.wtf(TAG, "SHA1 no longer available???", e);
+                throw new TunnelBrokenException("Cannot build ayiya struct", e);
+            } finally {
+                // the payload counts as consumed only once it is sent
+                payload.position(start);
+            }
+            if (dgPacket == null)
+                dgPacket = new DatagramPacket(ayiyaPacket, ayiyaPacket.length, mySocket.getRemoteSocketAddress());
+            else
+                dgPacket.setData(ayiyaPacket);
+            mySocket.send(dgPacket);
+            payload.position(payload.limit());
+        }
+        if (count > 0)
+            lastPacketSentTime = new Date();
+    }
+
+    @Override
+    public void setTrafficClassMapper(TrafficClassMapper mapper) {
+        this.trafficClassMapper = mapper;
+    }
+
+    /**
+     * Set the socket's traffic class for the next payload. The socket option is changed only if
+     * it differs from the previous payload's. Heartbeats and probes are sent with whatever
+     * traffic class is set, so this is only called by the thread writing packets.
+     * @param mySocket the DatagramSocket to send the payload
+     * @param trafficClass an int giving the traffic class as mapped for the payload
+     */
+    private void applyTrafficClass(DatagramSocket mySocket, int trafficClass) {
+        if (trafficClass != currentTrafficClass) {
+            try {
+                mySocket.setTrafficClass(trafficClass);
+                currentTrafficClass = trafficClass;
+            } catch (SocketException e) {
+                Log.w(TAG, "Cannot set traffic class, disabling traffic class mapping", e);
+                trafficClassMapper = null;
+            }
+        }
+    }
+
   /**
      * Provides an InputStream on the tunnel's payload. Only sensible use is to provide enough
      * buffer to read one datagram at a time. In this case, each call will receive one packet
@@ -32,7 +32,7 @@ import org.bouncycastle.tls.DTLSClientProtocol;
 import org.bouncycastle.tls.DTLSTransport;
 import org.bouncycastle.tls.DatagramTransport;
 import org.bouncycastle.tls.SignatureAlgorithm;
-import org.bouncycastle.tls.TlsClient;
+import org.bouncycastle.tls.TlsSession;
 import org.bouncycastle.tls.crypto.TlsCrypto;
 import org.bouncycastle.tls.crypto.impl.bc.BcTlsCrypto;
 
@@ -41,11 +41,14 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.DatagramSocket;
 import java.net.Inet4Address;
+import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.Date;
 
 import de.flyingsnail.ipv6droid.android.dtlsrequest.AndroidBackedKeyPair;
+import de.flyingsnail.ipv6droid.transport.RoundTripEstimator;
+import de.flyingsnail.ipv6droid.transport.TrafficClassMapper;
 import de.flyingsnail.ipv6droid.transport.Transporter;
 import de.flyingsnail.ipv6droid.transport.TransporterInputStream;
 import de.flyingsnail.ipv6droid.transport.TransporterOutputStream;
@@ -60,11 +63,22 @@ public class DTLSTransporter implements Transporter {
   private final String dnsName;
   private Date lastPacketReceivedTime;
   private Date lastPacketSentTime;
+  private TrafficClassMapper trafficClassMapper = null;
+  // the traffic class currently set on the socket, only changed by the thread writing packets
+  private volatile int currentTrafficClass = 0;
+  // the sending order of the last batch written, see TrafficClassMapper.orderByClass
+  private int[] batchOrder = new int[0];
+  // the estimator fed by the timing of DTLS heartbeats
+  private final RoundTripEstimator roundTripEstimator = new RoundTripEstimator();
   private DatagramSocket socket;
   private int port;
   private DTLSTransport dtls = null;
+  // the session of the last handshake, resumed by the next connect
+  private TlsSession session = null;
   private int maxPacketSize = 0;
   private boolean validPacketReceived = false;
+  // the number of valid packets received, written by the reading thread only
+  private volatile long validPacketCount = 0L;
 
   final static int OVERHEAD = 92;
 
@@ -162,6 +176,8 @@ public class DTLSTransporter implements Transporter {
 
     // UDP connection
     socket = new DatagramSocket();
+    currentTrafficClass = 0;
+    roundTripEstimator.cancelProbe();
     return socket;
   }
 
@@ -188,12 +204,18 @@ public class DTLSTransporter implements Transporter {
     // we need a timeout for the connect phase, otherwise we're facing infinite hangs
     socket.setSoTimeout(10000);
 
-    DatagramTransport transport = new SelfCheckingUDPTransport(socket, mtu + 2 * DTLSTransporter.OVERHEAD);
-    TlsClient client = new IPv6DTlsClient(crypto, heartbeat, certChain, keyPair, dnsName);
+    DatagramTransport transport = new SelfCheckingUDPTransport(socket, mtu + 2 * DTLSTransporter.OVERHEAD, roundTripEstimator);
+    IPv6DTlsClient client = new IPv6DTlsClient(crypto, heartbeat, certChain, keyPair, dnsName, session);
     DTLSClientProtocol protocol = new DTLSClientProtocol();
-    dtls = protocol.connect(client, transport);
+    try {
+      dtls = protocol.connect(client, transport);
+    } catch (IOException e) {
+      session = null; // do not offer a session again that may be the cause
+      throw e;
+    }
+    session = client.getResumableSession();
 
-    Log.i(TAG, "DTLS tunnel to POP IP " + ipv4Pop + " created.");
+    Log.i(TAG, "DTLS tunnel to POP IP " + ipv4Pop + " created" + (client.isResumed() ? " by resumed session." : "."));
   }
 
   /**
@@ -217,6 +239,11 @@ public class DTLSTransporter implements Transporter {
     return validPacketReceived;
   }
 
+  @Override
+  public long getValidPacketCount() {
+    return validPacketCount;
+  }
+
   /**
    * Return the number of invalid packages received yet.
    *
@@ -254,6 +281,21 @@ public class DTLSTransporter implements Transporter {
       throw new TunnelBrokenException("Socket to PoP is not connected", null);
   }
 
+  /**
+   * DTLS heartbeats are sent by the DTLS implementation whenever the connection is idle for the
+   * heartbeat interval, and cannot be requested on demand. Their timing is measured, however.
+   * @return false, as probes are not sent on demand
+   */
+  @Override
+  public boolean probe() {
+    return false;
+  }
+
+  @Override
+  public RoundTripEstimator getRoundTripEstimator() {
+    return roundTripEstimator;
+  }
+
   /**
    * Read next packet from the tunnel.
    *
@@ -293,6 +335,7 @@ public class DTLSTransporter implements Transporter {
       lastPacketReceivedTime = new Date();
       validResult = true;
       validPacketReceived = true;
+      validPacketCount++;
 
       // prepare and fill the ByteBuffer
       bb.limit(bytecount);
@@ -318,11 +361,78 @@ public class DTLSTransporter implements Transporter {
     if (payload.remaining() > mtu)
       throw new IOException("Too big packet received: " + payload.remaining() + " (MTU: " + mtu + ")");
 
+    final TrafficClassMapper myMapper = trafficClassMapper;
+    if (myMapper != null)
+      applyTrafficClass(myMapper.getOuterTrafficClass(payload));
     dtls.send(payload.array(), payload.arrayOffset()+payload.position(), payload.remaining());
 
     lastPacketSentTime = new Date();
   }
 
+  /**
+   * Writes a batch of packets to the tunnel.
+   *
+   * @param payloads the payloads to send
+   * @param count an int giving the number of payloads to send
+   * @throws IOException           in case of network problems (probably temporary in nature)
+   * @throws TunnelBrokenException in case that this tunnel is no longer usable and must be restarted
+   */
+  @Override
+  public void write(ByteBuffer[] payloads, int count) throws IOException, TunnelBrokenException {
+    final DTLSTransport myDtls = dtls; // avoid race condition with close
+    if (socket == null || myDtls == null)
+      throw new IllegalStateException("write(byte[]) called on unconnected DTLSTransporter");
+    if (!socket.isConnected())
+      throw new TunnelBrokenException("Socket to PoP is closed", null);
+
+    final TrafficClassMapper myMapper = trafficClassMapper;
+    if (myMapper != null) {
+      // send the batch grouped by traffic class, changing the socket option once per group
+      if (batchOrder.length < count)
+        batchOrder = new int[count];
+      myMapper.orderByClass(payloads, count, currentTrafficClass, batchOrder);
+    }
+    for (int k = 0; k < count; k++) {
+      final int i = myMapper != null ? batchOrder[k] & 0xffff : k;
+      ByteBuffer payload = payloads[i];
+      if (payload.remaining() > mtu)
+        throw new IOException("Too big packet received: " + payload.remaining() + " (MTU: " + mtu + ")");
+      if (myMapper != null)
+        applyTrafficClass(batchOrder[k] >>> 16);
+      myDtls.send(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+      payload.position(payload.limit());
+    }
+    if (count > 0)
+      lastPacketSentTime = new Date();
+  }
+
+  @Override
+  public void setTrafficClassMapper(TrafficClassMapper mapper) {
+    this.trafficClassMapper = mapper;
+  }
+
+  /**
+   * Set the socket's traffic class for the next payload. The socket option is changed only if
+   * it differs from the previous payload's. Heartbeats are sent with whatever traffic class is
+   * set, so this is only called by the thread writing packets.
+   *
+   * @param trafficClass an int giving the traffic class as mapped for the payload
+   */
+  private void applyTrafficClass(int trafficClass) {
+    final DatagramSocket mySocket = socket;
+    if (mySocket == null)
+      return;
+    if (trafficClass != currentTrafficClass) {
+      try {
+        mySocket.setTrafficClass(trafficClass);
+        currentTrafficClass = trafficClass;
+      } catch (SocketException e) {
+        Log.w(TAG, "Cannot set traffic class, disabling traffic class mapping", e);
+        trafficClassMapper = null;
+      }
+    }
+  }
+
   /**
    * Provides an InputStream on the tunnel's payload. Only sensible use is to provide enough
    * buffer to read one datagram at a time. In this case, each call will receive one packet
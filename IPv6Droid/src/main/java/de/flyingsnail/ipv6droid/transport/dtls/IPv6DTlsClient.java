@@ -33,6 +33,7 @@ import org.bouncycastle.tls.ProtocolVersion;
 import org.bouncycastle.tls.SignatureAndHashAlgorithm;
 import org.bouncycastle.tls.TlsAuthentication;
 import org.bouncycastle.tls.TlsHeartbeat;
+import org.bouncycastle.tls.TlsSession;
 import org.bouncycastle.tls.crypto.TlsCertificate;
 import org.bouncycastle.tls.crypto.TlsCrypto;
 
@@ -60,6 +61,7 @@ class IPv6DTlsClient extends AbstractTlsClient {
 
     private final Logger logger = Logger.getLogger(DTLSUtils.class.getName());
     private final String dnsName;
+    private final TlsSession sessionToResume;
 
     /**
      * Constructor.
@@ -68,18 +70,47 @@ class IPv6DTlsClient extends AbstractTlsClient {
      * @param certChain a Certificate object carrying the complete client certificate chain.
      * @param androidBackedKeyPair an AndroidBackedKeyPair object referring to the RSA keypair to use
      * @param dnsName a String giving the host name of the server, used for cert verification
+     * @param sessionToResume the TlsSession of a previous connection to offer for resumption, or null
      */
     public IPv6DTlsClient(final TlsCrypto crypto,
                           final int heartbeat,
                           final Certificate certChain,
                           final AndroidBackedKeyPair androidBackedKeyPair,
-                          final String dnsName) {
+                          final String dnsName,
+                          final TlsSession sessionToResume) {
         super(crypto);
         this.heartbeat = heartbeat;
         this.androidBackedKeyPair = androidBackedKeyPair;
         this.trustedCA = certChain.getCertificateAt(certChain.getLength()-1);
         this.myCertChain = certChain;
         this.dnsName = dnsName;
+        this.sessionToResume = sessionToResume;
+    }
+
+    /**
+     * Offer the session of a previous connection to the server, saving the full handshake if
+     * the server still knows it. The server may refuse, a full handshake follows then.
+     * @return the TlsSession to resume, or null
+     */
+    @Override
+    public TlsSession getSessionToResume() {
+        return sessionToResume != null && sessionToResume.isResumable() ? sessionToResume : null;
+    }
+
+    /**
+     * @return the TlsSession established by the handshake that can be resumed by a later
+     * connection, or null
+     */
+    TlsSession getResumableSession() {
+        return context == null ? null : context.getResumableSession();
+    }
+
+    /**
+     * @return true if the handshake resumed the session offered
+     */
+    boolean isResumed() {
+        return context != null && context.getSecurityParametersConnection() != null &&
+                context.getSecurityParametersConnection().isResumedSession();
     }
 
     /**
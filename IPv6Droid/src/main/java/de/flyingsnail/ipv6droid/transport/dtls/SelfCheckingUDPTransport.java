@@ -28,6 +28,7 @@ import android.util.Log;
 import androidx.annotation.Nullable;
 
 import org.bouncycastle.tls.AlertDescription;
+import org.bouncycastle.tls.ContentType;
 import org.bouncycastle.tls.TlsFatalAlert;
 import org.bouncycastle.tls.UDPTransport;
 
@@ -35,12 +36,16 @@ import java.io.IOException;
 import java.net.DatagramSocket;
 import java.util.Date;
 
+import de.flyingsnail.ipv6droid.transport.RoundTripEstimator;
+
 /**
  * This is an @ref {org.bouncycastle.tls.UDPTransport} performing self-checks
  * regarding silent session loss. Such session loss occurs with Android's
  * Doze mode disturbing the heartbeat mechanism implemented by BC. To compensate,
  * this UDPTransport maintains timestamps of last received package on low-level and
  * will force-close a stale socket.
+ * It also times the heartbeat records passing, as these are not observable through the
+ * DTLS API: the plain record header tells their content type.
  */
 class SelfCheckingUDPTransport extends UDPTransport {
 
@@ -53,8 +58,19 @@ class SelfCheckingUDPTransport extends UDPTransport {
   @Nullable
   private Date lastReadTimeout;
 
-  public SelfCheckingUDPTransport(DatagramSocket socket, int mtu) throws IOException {
+  /**
+   * The estimator to feed with heartbeat timings.
+   */
+  private final RoundTripEstimator roundTripEstimator;
+
+  /**
+   * Set if a heartbeat request of the peer was received that is not yet answered.
+   */
+  private boolean peerHeartbeatPending = false;
+
+  public SelfCheckingUDPTransport(DatagramSocket socket, int mtu, RoundTripEstimator roundTripEstimator) throws IOException {
     super(socket, mtu);
+    this.roundTripEstimator = roundTripEstimator;
   }
 
   @Override
@@ -66,6 +82,13 @@ class SelfCheckingUDPTransport extends UDPTransport {
   @Override
   public void send(byte[] buf, int off, int len) throws IOException {
     forceAbortOnTimeoutExcess();
+    if (len > 0 && buf[off] == ContentType.heartbeat) {
+      // either our response to the peer's request, or our own request
+      if (peerHeartbeatPending)
+        peerHeartbeatPending = false;
+      else
+        roundTripEstimator.probeSent(System.nanoTime());
+    }
     super.send(buf, off, len);
   }
 
@@ -100,6 +123,13 @@ class SelfCheckingUDPTransport extends UDPTransport {
     lastReadTimeout.setTime(lastReadTimeout.getTime() + waitMillis + 1000L);
     try {
       int read = super.receive(buf, off, len, waitMillis);
+      if (read > 0 && buf[off] == ContentType.heartbeat) {
+        // either the response to our request, or the peer's request
+        if (roundTripEstimator.isProbeOutstanding())
+          roundTripEstimator.responseReceived(System.nanoTime());
+        else
+          peerHeartbeatPending = true;
+      }
       return read;
     } finally {
       lastReadTimeout = null;
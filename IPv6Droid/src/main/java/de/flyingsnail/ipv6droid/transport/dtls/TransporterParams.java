@@ -48,16 +48,30 @@ import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import de.flyingsnail.ipv6droid.android.dtlsrequest.AndroidBackedKeyPair;
 import de.flyingsnail.ipv6droid.transport.TunnelSpec;
 
 public class TransporterParams implements TunnelSpec, Serializable {
     private static final String TAG = TransporterParams.class.getName();
-    private static final ExecutorService resolverPool = Executors.newCachedThreadPool();
+    /**
+     * The threads resolving PoP names. Bounded, as resolving is rare and must not pile up threads
+     * if DNS hangs; idle threads end after a while.
+     */
+    private static final ThreadPoolExecutor resolverPool = new ThreadPoolExecutor(2, 2,
+            30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            runnable -> {
+                final Thread thread = new Thread(runnable, "PoP name resolver");
+                thread.setDaemon(true);
+                return thread;
+            });
+    static {
+        resolverPool.allowCoreThreadTimeOut(true);
+    }
     static final String TUNNEL_TYPE = "DTLSTunnel";
     private TlsCrypto crypto;
 
@@ -0,0 +1,93 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+package de.flyingsnail.ipv6droid.android.statistics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests of LogLinearHistogram, including snapshots taken concurrently to the writer.
+ */
+public class LogLinearHistogramTest {
+
+    @Test
+    public void reportsPercentilesWithinRelativeError() {
+        final LogLinearHistogram histogram = new LogLinearHistogram(1000000L);
+        for (long value = 1; value <= 10000; value++)
+            histogram.record(value);
+        final Percentiles percentiles = histogram.getPercentiles();
+        assertEquals(10000L, histogram.getTotalCount());
+        assertEquals(5000.0, percentiles.getP50(), 5000.0 / 32);
+        assertEquals(9000.0, percentiles.getP90(), 9000.0 / 32);
+        assertEquals(9900.0, percentiles.getP99(), 9900.0 / 32);
+        assertEquals(9990.0, percentiles.getP999(), 9990.0 / 32);
+    }
+
+    @Test
+    public void clampsValuesOutOfRange() {
+        final LogLinearHistogram histogram = new LogLinearHistogram(100L);
+        histogram.record(-5L);
+        histogram.record(100000L);
+        final Percentiles percentiles = histogram.getPercentiles();
+        assertEquals(0L, percentiles.getP50());
+        assertEquals(100L, percentiles.getP999(), 100.0 / 32);
+    }
+
+    @Test
+    public void snapshotsAreConsistentUnderContention() throws InterruptedException {
+        final LogLinearHistogram histogram = new LogLinearHistogram(65535L);
+        final int records = 1000000;
+        final AtomicReference<String> violation = new AtomicReference<>();
+        final Thread writer = new Thread(() -> {
+            for (int i = 0; i < records; i++)
+                histogram.record(i % 2 == 0 ? 100L : 1000L);
+        });
+        final Thread reader = new Thread(() -> {
+            long lastTotal = 0L;
+            while (writer.isAlive()) {
+                final long total = histogram.getTotalCount();
+                final Percentiles percentiles = histogram.getPercentiles();
+                if (total < lastTotal)
+                    violation.compareAndSet(null, "total decreased: " + total);
+                if (percentiles.getP50() > percentiles.getP90()
+                        || percentiles.getP90() > percentiles.getP99()
+                        || percentiles.getP99() > percentiles.getP999()
+                        || percentiles.getP999() > 1000L + 1000L / 32)
+                    violation.compareAndSet(null, "inconsistent snapshot: " + percentiles);
+                lastTotal = total;
+            }
+        });
+        reader.start();
+        writer.start();
+        writer.join();
+        reader.join(10000L);
+
+        assertEquals(null, violation.get());
+        assertEquals(records, histogram.getTotalCount());
+        assertTrue(histogram.getPercentiles().getP999() >= 1000L);
+    }
+}
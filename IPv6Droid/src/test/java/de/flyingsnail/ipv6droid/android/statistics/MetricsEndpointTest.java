@@ -0,0 +1,142 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+package de.flyingsnail.ipv6droid.android.statistics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Scrapes a MetricsEndpoint on the loopback interface like a local Prometheus would.
+ */
+public class MetricsEndpointTest {
+    private static final String TOKEN = "0123456789abcdef0123456789abcdef";
+
+    private MetricsRegistry registry;
+    private MetricsEndpoint endpoint;
+
+    @Before
+    public void setUp() throws IOException {
+        registry = new MetricsRegistry();
+        endpoint = new MetricsEndpoint(registry, 0, TOKEN);
+    }
+
+    @After
+    public void tearDown() {
+        endpoint.stop();
+    }
+
+    private HttpURLConnection open(String path, String token) throws IOException {
+        final URL url = new URL("http", "127.0.0.1", endpoint.getPort(), path);
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(5000);
+        if (token != null)
+            connection.setRequestProperty("Authorization", "Bearer " + token);
+        return connection;
+    }
+
+    private static String readBody(HttpURLConnection connection) throws IOException {
+        try (InputStream in = connection.getInputStream()) {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int len;
+            while ((len = in.read(buffer)) >= 0)
+                body.write(buffer, 0, len);
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void servesMetricsToScraperWithToken() throws IOException {
+        final MetricsRegistry.Counter reconnects = registry.addCounter("tunnel_reconnects", "Reconnects");
+        final MetricsRegistry.Gauge queueDepth = registry.addGauge("tunnel_queue_depth", "Queue depth");
+        registry.addSummary("tunnel_handshake_seconds", "Handshakes", 60000L, 0.001).record(250L);
+        reconnects.add(3L);
+        queueDepth.set(17.0);
+
+        final HttpURLConnection connection = open("/metrics", TOKEN);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(MetricsRegistry.CONTENT_TYPE, connection.getContentType());
+        final String body = readBody(connection);
+        assertTrue(body, body.contains("# TYPE tunnel_reconnects counter\n"));
+        assertTrue(body, body.contains("\ntunnel_reconnects_total 3\n"));
+        assertTrue(body, body.contains("\ntunnel_queue_depth 17\n"));
+        assertTrue(body, body.contains("# TYPE tunnel_handshake_seconds summary\n"));
+        assertTrue(body, body.endsWith("# EOF\n"));
+
+        // a second scrape sees updates
+        reconnects.increment();
+        final String next = readBody(open("/metrics", TOKEN));
+        assertTrue(next, next.contains("\ntunnel_reconnects_total 4\n"));
+    }
+
+    @Test
+    public void rejectsScraperWithoutToken() throws IOException {
+        registry.addCounter("tunnel_reconnects", "Reconnects");
+        final HttpURLConnection connection = open("/metrics", null);
+        assertEquals(401, connection.getResponseCode());
+        assertEquals("Bearer", connection.getHeaderField("WWW-Authenticate"));
+    }
+
+    @Test
+    public void rejectsScraperWithWrongToken() throws IOException {
+        assertEquals(401, open("/metrics", "fedcba9876543210fedcba9876543210").getResponseCode());
+        assertEquals(401, open("/metrics", TOKEN.substring(1)).getResponseCode());
+    }
+
+    @Test
+    public void answersOtherRequests() throws IOException {
+        assertEquals(404, open("/other", TOKEN).getResponseCode());
+        final HttpURLConnection post = open("/metrics", TOKEN);
+        post.setRequestMethod("POST");
+        assertEquals(405, post.getResponseCode());
+        final HttpURLConnection head = open("/metrics", TOKEN);
+        head.setRequestMethod("HEAD");
+        assertEquals(200, head.getResponseCode());
+    }
+
+    @Test
+    public void createsDistinctTokens() {
+        final String token = MetricsEndpoint.newToken();
+        assertEquals(32, token.length());
+        assertTrue(token.matches("[0-9a-f]{32}"));
+        assertNotEquals(token, MetricsEndpoint.newToken());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresToken() throws IOException {
+        new MetricsEndpoint(registry, 0, "");
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+package de.flyingsnail.ipv6droid.android.statistics;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Tests of StatisticsPublisher: each group is delivered only when it changed, and a new
+ * listener receives the current state at once.
+ */
+public class StatisticsPublisherTest {
+    private static final SessionStatistics SESSION = new SessionStatistics(new Date(1000L),
+            null, null, null, 1280);
+    private static final NetworkStatistics NETWORK = new NetworkStatistics(null,
+            Collections.emptyList(), Collections.emptyList(),
+            Collections.emptyList(), Collections.emptyList(), true);
+
+    /**
+     * A listener recording the names of the calls received.
+     */
+    private static class Recorder implements StatisticsListener {
+        final List<String> calls = new ArrayList<>();
+        long samples = 0L;
+
+        @Override
+        public void onSessionChanged(@NonNull SessionStatistics session) {
+            calls.add("session");
+        }
+
+        @Override
+        public void onNetworkChanged(@NonNull NetworkStatistics network) {
+            calls.add("network");
+        }
+
+        @Override
+        public void onTrafficChanged(@NonNull Statistics traffic) {
+            calls.add("traffic");
+        }
+
+        @Override
+        public void onThroughputSampled(@NonNull ThroughputSamples samples) {
+            calls.add("throughput");
+            this.samples += samples.size();
+        }
+
+        @Override
+        public void onTunnelDown() {
+            calls.add("down");
+        }
+    }
+
+    @Test
+    public void deliversOnlyChangedGroups() {
+        final StatisticsPublisher publisher = new StatisticsPublisher();
+        final Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        assertEquals(Collections.singletonList("down"), recorder.calls);
+
+        // network figures known before the tunnel is up are delivered with the session
+        publisher.publishNetwork(NETWORK);
+        publisher.publishSession(SESSION);
+        publisher.publishTraffic(new Statistics().setBytesTransmitted(100L));
+        assertEquals(Arrays.asList("down", "session", "network", "traffic"), recorder.calls);
+
+        // unchanged groups are not delivered again
+        recorder.calls.clear();
+        publisher.publishSession(new SessionStatistics(new Date(1000L), null, null, null, 1280));
+        publisher.publishNetwork(NETWORK);
+        publisher.publishTraffic(new Statistics().setBytesTransmitted(100L));
+        assertEquals(Collections.emptyList(), recorder.calls);
+
+        publisher.publishTraffic(new Statistics().setBytesTransmitted(200L));
+        publisher.publishTunnelDown();
+        publisher.publishTunnelDown();
+        assertEquals(Arrays.asList("traffic", "down"), recorder.calls);
+    }
+
+    @Test
+    public void deliversCurrentStateToNewListener() {
+        final StatisticsPublisher publisher = new StatisticsPublisher();
+        publisher.publishSession(SESSION);
+        publisher.publishNetwork(NETWORK);
+        publisher.publishTraffic(new Statistics().setBytesTransmitted(100L));
+
+        final Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        assertEquals(Arrays.asList("session", "network", "traffic"), recorder.calls);
+
+        publisher.unsubscribe(recorder);
+        publisher.publishTunnelDown();
+        assertEquals(3, recorder.calls.size());
+    }
+
+    @Test
+    public void deliversEachThroughputSampleOnce() {
+        final StatisticsPublisher publisher = new StatisticsPublisher();
+        final ThroughputSeries series = new ThroughputSeries();
+        series.sample(100L, 1L, 200L, 2L);
+        series.sample(300L, 3L, 400L, 4L);
+
+        final Recorder first = new Recorder();
+        publisher.subscribe(first);
+        publisher.publishThroughput(series);
+        assertEquals(2L, first.samples);
+
+        // a later listener receives the samples kept so far
+        series.sample(500L, 5L, 600L, 6L);
+        final Recorder second = new Recorder();
+        publisher.subscribe(second);
+        publisher.publishThroughput(series);
+        publisher.publishThroughput(series);
+        assertEquals(3L, first.samples);
+        assertEquals(3L, second.samples);
+
+        // a new series starts from its first sample
+        final ThroughputSeries next = new ThroughputSeries();
+        next.sample(100L, 1L, 200L, 2L);
+        publisher.publishThroughput(next);
+        assertEquals(4L, first.samples);
+        assertEquals(4L, second.samples);
+    }
+}
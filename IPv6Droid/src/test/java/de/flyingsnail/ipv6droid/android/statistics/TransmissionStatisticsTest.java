@@ -0,0 +1,117 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+package de.flyingsnail.ipv6droid.android.statistics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests of TransmissionStatistics, including readers running concurrently to the writer.
+ */
+public class TransmissionStatisticsTest {
+    private static final int PACKET_SIZE = 1280;
+
+    @Test
+    public void countsPacketsAndBytes() {
+        final TransmissionStatistics statistics = new TransmissionStatistics();
+        assertEquals(0L, statistics.getLastPacketNanos());
+        final long before = System.nanoTime();
+        for (int i = 0; i < 100; i++)
+            statistics.updateStatistics(PACKET_SIZE);
+        assertEquals(100L, statistics.getPacketCount());
+        assertEquals(100L * PACKET_SIZE, statistics.getByteCount());
+        assertTrue(statistics.getLastPacketNanos() >= before);
+        assertEquals(1280L, statistics.getPacketSizePercentiles().getP50(), 1280L / 32);
+    }
+
+    @Test
+    public void completesBurstAfterTimeout() throws InterruptedException {
+        final TransmissionStatistics statistics = new TransmissionStatistics();
+        for (int i = 0; i < 10; i++)
+            statistics.updateStatistics(PACKET_SIZE);
+        Thread.sleep(TransmissionStatistics.BURST_TIMEOUT + 100L);
+        // the first burst is complete, but not accounted before the next one completes
+        assertEquals(0.0, statistics.getAverageBurstPackets(), 0.0);
+        for (int i = 0; i < 10; i++)
+            statistics.updateStatistics(PACKET_SIZE);
+        Thread.sleep(TransmissionStatistics.BURST_TIMEOUT + 100L);
+        // the reader accounts the second burst on the fly, leaving the state untouched
+        assertEquals(10.0, statistics.getAverageBurstPackets(), 0.0);
+        assertEquals(10.0 * PACKET_SIZE, statistics.getAverageBurstBytes(), 0.0);
+        assertTrue(statistics.getAverageBurstPause() >= 1.0);
+        assertEquals(20L, statistics.getPacketCount());
+    }
+
+    /**
+     * Readers running concurrently to a writer must see consistent values, i.e. counts that
+     * never decrease and are never torn, and the writer must not be held up by them.
+     */
+    @Test
+    public void readersSeeConsistentValuesUnderContention() throws InterruptedException {
+        final TransmissionStatistics statistics = new TransmissionStatistics();
+        final int updates = 2000000;
+        final AtomicReference<String> violation = new AtomicReference<>();
+        final Thread[] readers = new Thread[3];
+        final Thread writer = new Thread(() -> {
+            for (int i = 0; i < updates; i++)
+                statistics.updateStatistics(PACKET_SIZE);
+        });
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                long lastPackets = 0L;
+                long lastBytes = 0L;
+                while (writer.isAlive() || lastPackets < updates) {
+                    final long packets = statistics.getPacketCount();
+                    final long bytes = statistics.getByteCount();
+                    final double burstBytes = statistics.getAverageBurstBytes();
+                    if (packets < lastPackets || bytes < lastBytes)
+                        violation.compareAndSet(null, "counts decreased: " + packets + "/" + bytes);
+                    if (bytes % PACKET_SIZE != 0 || packets > updates)
+                        violation.compareAndSet(null, "torn counts: " + packets + "/" + bytes);
+                    if (burstBytes < 0.0 || Double.isNaN(burstBytes))
+                        violation.compareAndSet(null, "torn average: " + burstBytes);
+                    lastPackets = packets;
+                    lastBytes = bytes;
+                }
+            });
+        }
+        for (Thread reader : readers)
+            reader.start();
+        final long start = System.nanoTime();
+        writer.start();
+        writer.join();
+        final long writerNanos = System.nanoTime() - start;
+        for (Thread reader : readers)
+            reader.join(10000L);
+
+        assertEquals(null, violation.get());
+        assertEquals(updates, statistics.getPacketCount());
+        assertEquals((long) updates * PACKET_SIZE, statistics.getByteCount());
+        // a rough bound only, to detect readers blocking the writer
+        assertTrue("writer took " + writerNanos / 1000000L + " ms", writerNanos < 30000000000L);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import de.flyingsnail.ipv6droid.android.statistics.OutageRecord;
+import de.flyingsnail.ipv6droid.transport.TunnelRejectedException;
+
+/**
+ * Tests of BackoffReconnectPolicy. The policy works on delays only, so the tests run on a
+ * virtual clock that advances by each delay decided.
+ */
+public class BackoffReconnectPolicyTest {
+    /**
+     * A Random always drawing the same double, to pin the jitter.
+     */
+    private static final class FixedRandom extends Random {
+        private final double value;
+
+        FixedRandom(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return value;
+        }
+    }
+
+    private static final IOException REJECTED = new OutageException(OutageRecord.TRIGGER_TUNNEL_BROKEN,
+            "Ayiya claims it is broken", new TunnelRejectedException("clock skew", null));
+
+    /**
+     * Fail the tunnel until the virtual clock reaches outageMillis.
+     * @return an int giving the number of attempts to reconnect
+     */
+    private static int runOutage(ReconnectPolicy policy, int trigger, Throwable cause, long outageMillis) {
+        long now = 0L;
+        int attempts = 0;
+        while (now < outageMillis) {
+            now += policy.nextDelay(trigger, cause);
+            attempts++;
+        }
+        return attempts;
+    }
+
+    @Test
+    public void retriesFirstBlipImmediately() {
+        final BackoffReconnectPolicy policy = new BackoffReconnectPolicy(new FixedRandom(0.0));
+        assertEquals(0L, policy.nextDelay(OutageRecord.TRIGGER_IO_ERROR, null));
+        assertTrue(policy.nextDelay(OutageRecord.TRIGGER_IO_ERROR, null) > 0L);
+    }
+
+    @Test
+    public void escalatesTransientFailures() {
+        final BackoffReconnectPolicy policy = new BackoffReconnectPolicy(new FixedRandom(0.0));
+        policy.nextDelay(OutageRecord.TRIGGER_HEARTBEAT_TIMEOUT, null);
+        long nominal = BackoffReconnectPolicy.TRANSIENT_BASE_MILLIS;
+        for (int i = 0; i < 8; i++) {
+            assertEquals(nominal / 2, policy.nextDelay(OutageRecord.TRIGGER_HEARTBEAT_TIMEOUT, null));
+            nominal *= 2;
+        }
+    }
+
+    @Test
+    public void capsTransientBackoff() {
+        final BackoffReconnectPolicy policy = new BackoffReconnectPolicy(new FixedRandom(0.999999));
+        long delay = 0L;
+        for (int i = 0; i < 100; i++) {
+            delay = policy.nextDelay(OutageRecord.TRIGGER_COPY_THREAD_DIED, null);
+            assertTrue(delay <= BackoffReconnectPolicy.TRANSIENT_MAX_MILLIS);
+        }
+        assertTrue(delay >= BackoffReconnectPolicy.TRANSIENT_MAX_MILLIS - 1);
+    }
+
+    @Test
+    public void keepsJitterInUpperHalf() {
+        final BackoffReconnectPolicy policy = new BackoffReconnectPolicy(new Random(42));
+        policy.nextDelay(OutageRecord.TRIGGER_IO_ERROR, null);
+        long nominal = BackoffReconnectPolicy.TRANSIENT_BASE_MILLIS;
+        for (int i = 0; i < 20; i++) {
+            final long delay = policy.nextDelay(OutageRecord.TRIGGER_IO_ERROR, null);
+            assertTrue(delay >= nominal / 2);
+            assertTrue(delay <= nominal);
+            nominal = Math.min(BackoffReconnectPolicy.TRANSIENT_MAX_MILLIS, nominal * 2);
+        }
+    }
+
+    @Test
+    public void retriesNewNetworkImmediately() {
+        final BackoffReconnectPolicy policy = new BackoffReconnectPolicy(new FixedRandom(0.5));
+        runOutage(policy, OutageRecord.TRIGGER_IO_ERROR, null, 60000L);
+        assertEquals(0L, policy.nextDelay(OutageRecord.TRIGGER_NETWORK_LOST, null));
+        assertEquals(0L, policy.nextDelay(OutageRecord.TRIGGER_NETWORK_CHANGED, null));
+        assertEquals(0L, policy.nextDelay(OutageRecord.TRIGGER_ROUTING_CHANGED, null));
+        // a new network does not reset the escalation of a PoP that is down
+        assertTrue(policy.nextDelay(OutageRecord.TRIGGER_IO_ERROR, null) > 10000L);
+    }
+
+    @Test
+    public void backsOffLongerOnRejection() {
+        final BackoffReconnectPolicy policy = new BackoffReconnectPolicy(new FixedRandom(0.0));
+        // a rejection is told by the cause, whatever the trigger
+        assertEquals(BackoffReconnectPolicy.REJECTED_BASE_MILLIS / 2,
+                policy.nextDelay(OutageRecord.TRIGGER_NETWORK_CHANGED, REJECTED));
+        assertEquals(BackoffReconnectPolicy.REJECTED_BASE_MILLIS,
+                policy.nextDelay(OutageRecord.TRIGGER_TUNNEL_BROKEN, REJECTED));
+        for (int i = 0; i < 20; i++)
+            assertTrue(policy.nextDelay(OutageRecord.TRIGGER_TUNNEL_BROKEN, REJECTED) <=
+                    BackoffReconnectPolicy.REJECTED_MAX_MILLIS);
+        // rejections do not escalate transient failures
+        assertEquals(0L, policy.nextDelay(OutageRecord.TRIGGER_IO_ERROR, null));
+    }
+
+    @Test
+    public void resetsWhenConnected() {
+        final BackoffReconnectPolicy policy = new BackoffReconnectPolicy(new FixedRandom(0.0));
+        runOutage(policy, OutageRecord.TRIGGER_IO_ERROR, null, 600000L);
+        policy.nextDelay(OutageRecord.TRIGGER_TUNNEL_BROKEN, REJECTED);
+        policy.connected();
+        assertEquals(0L, policy.nextDelay(OutageRecord.TRIGGER_IO_ERROR, null));
+        assertEquals(BackoffReconnectPolicy.TRANSIENT_BASE_MILLIS / 2,
+                policy.nextDelay(OutageRecord.TRIGGER_IO_ERROR, null));
+        assertEquals(BackoffReconnectPolicy.REJECTED_BASE_MILLIS / 2,
+                policy.nextDelay(OutageRecord.TRIGGER_TUNNEL_BROKEN, REJECTED));
+    }
+
+    @Test
+    public void boundsAttemptsDuringLongOutage() {
+        // a PoP down for an hour sees a few dozen attempts
+        final int attempts = runOutage(new BackoffReconnectPolicy(new Random(7)),
+                OutageRecord.TRIGGER_HEARTBEAT_TIMEOUT, null, 3600000L);
+        assertTrue("attempts " + attempts, attempts >= 12);
+        assertTrue("attempts " + attempts, attempts <= 40);
+    }
+
+    @Test
+    public void escalatesOnlyWithoutConnection() {
+        // a tunnel that fails right after each reconnect, without ever proving working, escalates
+        final BackoffReconnectPolicy failing = new BackoffReconnectPolicy(new FixedRandom(0.0));
+        long failingTime = 0L;
+        // a tunnel that proves working after each reconnect retries the next blip immediately
+        final BackoffReconnectPolicy flapping = new BackoffReconnectPolicy(new FixedRandom(0.0));
+        long flappingTime = 0L;
+        for (int i = 0; i < 10; i++) {
+            failingTime += failing.nextDelay(OutageRecord.TRIGGER_IO_ERROR, null);
+            flappingTime += flapping.nextDelay(OutageRecord.TRIGGER_IO_ERROR, null);
+            flapping.connected();
+        }
+        assertEquals(0L, flappingTime);
+        assertTrue(failingTime > 60000L);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests of BundlingWindow, without following the screen state.
+ */
+public class BundlingWindowTest {
+    private static final int CAPACITY = 256;
+
+    @Test
+    public void limitsBatchToShareOfSchedulerCapacity() {
+        assertEquals(10, new BundlingWindow(20, 10, CAPACITY).getMaxPackets());
+        assertEquals(CAPACITY / BundlingWindow.BATCH_CAPACITY_DIVISOR,
+                new BundlingWindow(20, 1000, CAPACITY).getMaxPackets());
+        assertEquals(1, new BundlingWindow(20, 0, CAPACITY).getMaxPackets());
+        assertEquals(1, new BundlingWindow(20, 10, 2).getMaxPackets());
+    }
+
+    @Test
+    public void holdsBulkTraffic() {
+        final BundlingWindow window = new BundlingWindow(20, 10, CAPACITY);
+        for (int i = 0; i < 20; i++)
+            window.packetOffered();
+        assertEquals(20000000L, window.getHoldNanos());
+    }
+
+    @Test
+    public void sendsSparseTrafficAtOnce() throws InterruptedException {
+        final BundlingWindow window = new BundlingWindow(20, 10, CAPACITY);
+        window.packetOffered();
+        assertEquals(0L, window.getHoldNanos());
+        Thread.sleep(30);
+        window.packetOffered();
+        assertEquals(0L, window.getHoldNanos());
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import de.flyingsnail.ipv6droid.transport.RoundTripEstimator;
+import de.flyingsnail.ipv6droid.transport.TrafficClassMapper;
+import de.flyingsnail.ipv6droid.transport.Transporter;
+import de.flyingsnail.ipv6droid.transport.TransporterOutputStream;
+import de.flyingsnail.ipv6droid.transport.TunnelBrokenException;
+import de.flyingsnail.ipv6droid.transport.TunnelSpec;
+
+/**
+ * A Transporter without a network, for tests of the classes driving transporters. Packets to
+ * receive are queued by {@link #deliver(byte[])}, packets sent are recorded, and sending can be
+ * made to fail after a given number of packets. The handshake can be made to take some time,
+ * and probes to be answered after a given round trip time, never, or not to be supported at all.
+ */
+class FakeTransporter implements Transporter {
+    // a packet of no bytes that makes a blocked read fail, as if the socket was closed
+    private static final byte[] CLOSED = new byte[0];
+
+    private final LinkedBlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+    private final List<byte[]> sent = new ArrayList<>();
+    private int sendsBeforeFailure = Integer.MAX_VALUE;
+    private volatile boolean closed;
+    private volatile boolean validPacketReceived;
+    private volatile long validPacketCount;
+    private final RoundTripEstimator roundTripEstimator = new RoundTripEstimator();
+    private volatile long handshakeMillis = 0L;
+    private volatile boolean probing = true;
+    private volatile double probeRttMillis = 10.0;
+    private volatile DatagramSocket socket;
+    // the System.nanoTime when the unanswered probe was sent, or -1 if none is
+    private volatile long probeSentNanos = -1L;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            final byte[] packet;
+            try {
+                packet = received.take();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (packet == CLOSED) {
+                received.add(CLOSED);
+                throw new IOException("Fake transporter closed");
+            }
+            validPacketReceived = true;
+            validPacketCount++;
+            final int count = Math.min(length, packet.length);
+            System.arraycopy(packet, 0, buffer, offset, count);
+            return count;
+        }
+    };
+
+    private final OutputStream outputStream = new TransporterOutputStream(this);
+
+    /**
+     * Queue a packet to be read from this transporter.
+     * @param packet the byte[] to receive
+     */
+    void deliver(byte[] packet) {
+        received.add(packet);
+    }
+
+    /**
+     * Make sending fail after the given number of further packets.
+     * @param count an int giving the number of packets still sent
+     */
+    synchronized void failAfter(int count) {
+        sendsBeforeFailure = count;
+    }
+
+    /**
+     * @return a List of the packets sent so far
+     */
+    synchronized List<byte[]> getSent() {
+        return new ArrayList<>(sent);
+    }
+
+    /**
+     * Make connecting take the given time.
+     * @param millis a long giving the milliseconds that connect() takes
+     */
+    void setHandshakeMillis(long millis) {
+        handshakeMillis = millis;
+    }
+
+    /**
+     * Set how probes are answered.
+     * @param probing a boolean, false if this transporter cannot send probes
+     * @param rttMillis a double giving the round trip time of the responses, or NaN if probes
+     *                  are never answered
+     */
+    void setProbes(boolean probing, double rttMillis) {
+        this.probing = probing;
+        probeRttMillis = rttMillis;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    private synchronized void send(ByteBuffer payload) throws IOException {
+        if (closed)
+            throw new IOException("Fake transporter closed");
+        if (sendsBeforeFailure == 0)
+            throw new IOException("Fake transporter failed to send");
+        sendsBeforeFailure--;
+        final byte[] packet = new byte[payload.remaining()];
+        payload.get(packet);
+        sent.add(packet);
+    }
+
+    @Override
+    public TunnelSpec getTunnelSpec() {
+        return null;
+    }
+
+    @Override
+    public Date getLastPacketReceivedTime() {
+        return new Date();
+    }
+
+    @Override
+    public Date getLastPacketSentTime() {
+        return new Date();
+    }
+
+    @Override
+    public boolean isAlive() {
+        return !closed;
+    }
+
+    @Override
+    public DatagramSocket prepare() throws IOException {
+        // never bound, so that timeouts can be set without using the network
+        socket = new DatagramSocket(null);
+        return socket;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        try {
+            Thread.sleep(handshakeMillis);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void reconnect() {
+    }
+
+    @Override
+    public boolean isValidPacketReceived() {
+        return validPacketReceived;
+    }
+
+    @Override
+    public long getValidPacketCount() {
+        return validPacketCount;
+    }
+
+    @Override
+    public int getInvalidPacketCounter() {
+        return 0;
+    }
+
+    @Override
+    public int getMtu() {
+        return 1280;
+    }
+
+    @Override
+    public void beat() {
+    }
+
+    @Override
+    public boolean probe() {
+        if (!probing)
+            return false;
+        probeSentNanos = System.nanoTime();
+        roundTripEstimator.probeSent(probeSentNanos);
+        return true;
+    }
+
+    @Override
+    public RoundTripEstimator getRoundTripEstimator() {
+        return roundTripEstimator;
+    }
+
+    @Override
+    public ByteBuffer read(ByteBuffer bb) throws IOException {
+        final long sentNanos = probeSentNanos;
+        if (sentNanos >= 0 && !Double.isNaN(probeRttMillis)) {
+            // the response to the probe, taken as arriving exactly one round trip after it
+            probeSentNanos = -1L;
+            roundTripEstimator.responseReceived(sentNanos + (long) (probeRttMillis * 1000000.0));
+            bb.limit(bb.position());
+            return bb;
+        }
+        try {
+            Thread.sleep(10L);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        throw new SocketTimeoutException("No datagram from fake transporter");
+    }
+
+    @Override
+    public void write(ByteBuffer bb) throws IOException, TunnelBrokenException {
+        send(bb);
+    }
+
+    @Override
+    public void write(ByteBuffer[] bbs, int count) throws IOException, TunnelBrokenException {
+        for (int i = 0; i < count; i++)
+            send(bbs[i]);
+    }
+
+    @Override
+    public void setTrafficClassMapper(TrafficClassMapper mapper) {
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public DatagramSocket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        received.add(CLOSED);
+        final DatagramSocket mySocket = socket;
+        if (mySocket != null)
+            mySocket.close();
+    }
+
+    @Override
+    public void setPort(int port) {
+    }
+
+    @Override
+    public int getOverhead() {
+        return 0;
+    }
+}
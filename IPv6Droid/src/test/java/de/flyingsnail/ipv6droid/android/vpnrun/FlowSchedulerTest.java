@@ -0,0 +1,206 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of FlowScheduler. Timing is checked with generous bounds, as the tests run on real time.
+ */
+public class FlowSchedulerTest {
+    private static final int MTU = 1280;
+    // a fixed hash perturbation, under which the ports used here map to distinct flow queues
+    private static final int PERTURBATION = 0;
+
+    /**
+     * Build a UDP packet over IPv6.
+     * @param sourcePort an int giving the source port, which tells the flows apart
+     * @param length an int giving the length of the packet, at least 48
+     * @param id a byte identifying the packet within its flow
+     */
+    static byte[] udpPacket(int sourcePort, int length, int id) {
+        final byte[] packet = new byte[length];
+        packet[0] = 0x60;
+        packet[6] = 17;
+        packet[23] = 1;
+        packet[39] = 2;
+        packet[40] = (byte) (sourcePort >> 8);
+        packet[41] = (byte) sourcePort;
+        packet[47] = (byte) id;
+        return packet;
+    }
+
+    private static boolean offer(FlowScheduler scheduler, byte[] packet) {
+        return scheduler.offer(packet, 0, packet.length);
+    }
+
+    @Test
+    public void handsOutCompleteBatchAtOnce() throws InterruptedException {
+        final FlowScheduler scheduler = new FlowScheduler(16, 16, MTU, 5, 100, PERTURBATION);
+        for (int i = 0; i < 3; i++)
+            assertTrue(offer(scheduler, udpPacket(1000, 100, i)));
+        final int[] slots = new int[3];
+        final long start = System.nanoTime();
+        assertEquals(3, scheduler.takeBatch(slots, 10000000000L));
+        assertTrue(System.nanoTime() - start < 1000000000L);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, scheduler.getPacket(slots[i])[47]);
+            scheduler.release(slots[i]);
+        }
+    }
+
+    @Test
+    public void handsOutIncompleteBatchAfterHold() throws InterruptedException {
+        final FlowScheduler scheduler = new FlowScheduler(16, 16, MTU, 5, 100, PERTURBATION);
+        assertTrue(offer(scheduler, udpPacket(1000, 100, 0)));
+        final int[] slots = new int[4];
+        final long start = System.nanoTime();
+        assertEquals(1, scheduler.takeBatch(slots, 50000000L));
+        assertTrue(System.nanoTime() - start >= 40000000L);
+        scheduler.release(slots[0]);
+    }
+
+    @Test
+    public void dropsNewPacketWhileBatchHoldsAllSlots() throws InterruptedException {
+        final FlowScheduler scheduler = new FlowScheduler(16, 4, MTU, 5, 100, PERTURBATION);
+        for (int i = 0; i < 4; i++)
+            assertTrue(offer(scheduler, udpPacket(1000 + i, 100, i)));
+        final int[] slots = new int[4];
+        assertEquals(4, scheduler.takeBatch(slots, 0L));
+
+        assertFalse(offer(scheduler, udpPacket(2000, 100, 9)));
+        assertEquals(1, scheduler.getOverflowDropCount());
+        assertEquals(0, scheduler.getBacklog());
+
+        scheduler.release(slots[0]);
+        assertTrue(offer(scheduler, udpPacket(2000, 100, 9)));
+        assertEquals(1, scheduler.getBacklog());
+    }
+
+    /**
+     * Take the next packet with no hold.
+     * @return the byte[] copy of the packet
+     */
+    private static byte[] takeOne(FlowScheduler scheduler) throws InterruptedException {
+        final int[] slots = new int[1];
+        assertEquals(1, scheduler.takeBatch(slots, 0L));
+        final byte[] packet = new byte[scheduler.getLength(slots[0])];
+        System.arraycopy(scheduler.getPacket(slots[0]), 0, packet, 0, packet.length);
+        scheduler.release(slots[0]);
+        return packet;
+    }
+
+    private static int portOf(byte[] packet) {
+        return ((packet[40] & 0xff) << 8) | (packet[41] & 0xff);
+    }
+
+    @Test
+    public void newFlowOvertakesBacklog() throws InterruptedException {
+        // a target far above the test's run time keeps CoDel out of the way
+        final FlowScheduler scheduler = new FlowScheduler(64, 64, MTU, 10000, 20000, PERTURBATION);
+        for (int i = 0; i < 10; i++)
+            assertTrue(offer(scheduler, udpPacket(1000, MTU, i)));
+        assertEquals(1000, portOf(takeOne(scheduler)));
+        // the bulk flow used up its quantum, so the sparse flow comes next
+        assertTrue(offer(scheduler, udpPacket(2000, 72, 0)));
+        assertEquals(2000, portOf(takeOne(scheduler)));
+        for (int i = 1; i < 10; i++)
+            assertEquals(i, takeOne(scheduler)[47]);
+    }
+
+    @Test
+    public void sharesBytesByQuantum() throws InterruptedException {
+        final FlowScheduler scheduler = new FlowScheduler(64, 64, MTU, 10000, 20000, PERTURBATION);
+        for (int i = 0; i < 5; i++)
+            assertTrue(offer(scheduler, udpPacket(1000, MTU, i)));
+        for (int i = 0; i < 40; i++)
+            assertTrue(offer(scheduler, udpPacket(2000, 100, i)));
+        // one packet of MTU per round against as many small packets as fit in a quantum, the
+        // last one overdrawing it: 13 in the first round, then 13 again from 1260 bytes deficit
+        final StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 29; i++)
+            order.append(portOf(takeOne(scheduler)) == 1000 ? 'B' : 's');
+        assertEquals("Bsssssssssssss" + "Bsssssssssssss" + "B", order.toString());
+    }
+
+    @Test
+    public void dropsOnCodelSchedule() throws InterruptedException {
+        final FlowScheduler scheduler = new FlowScheduler(64, 64, MTU, 5, 100, PERTURBATION);
+        for (int i = 0; i < 50; i++)
+            assertTrue(offer(scheduler, udpPacket(1000, 200, i)));
+        Thread.sleep(20);
+        // above target for the first time: the interval starts, nothing is dropped
+        assertEquals(0, takeOne(scheduler)[47]);
+        assertEquals(0L, scheduler.getCodelDropCount());
+        Thread.sleep(120);
+        // above target for a whole interval: one packet dropped, the next one sent
+        assertEquals(2, takeOne(scheduler)[47]);
+        assertEquals(1L, scheduler.getCodelDropCount());
+        // the next drop is due an interval later
+        assertEquals(3, takeOne(scheduler)[47]);
+        assertEquals(1L, scheduler.getCodelDropCount());
+        Thread.sleep(120);
+        assertEquals(5, takeOne(scheduler)[47]);
+        assertEquals(2L, scheduler.getCodelDropCount());
+        // then after interval / sqrt(2)
+        Thread.sleep(80);
+        assertEquals(7, takeOne(scheduler)[47]);
+        assertEquals(3L, scheduler.getCodelDropCount());
+    }
+
+    @Test
+    public void keepsSparseFlowBelowTarget() throws InterruptedException {
+        final FlowScheduler scheduler = new FlowScheduler(64, 64, MTU, 5, 100, PERTURBATION);
+        // a single small packet is never dropped, however long it waits
+        assertTrue(offer(scheduler, udpPacket(2000, 72, 0)));
+        Thread.sleep(20);
+        assertEquals(0, takeOne(scheduler)[47]);
+        assertTrue(offer(scheduler, udpPacket(2000, 72, 1)));
+        Thread.sleep(120);
+        assertEquals(1, takeOne(scheduler)[47]);
+        assertEquals(0L, scheduler.getCodelDropCount());
+    }
+
+    @Test
+    public void dropsFromFattestFlowOnOverflow() throws InterruptedException {
+        final FlowScheduler scheduler = new FlowScheduler(64, 4, MTU, 10000, 20000, PERTURBATION);
+        for (int i = 0; i < 3; i++)
+            assertTrue(offer(scheduler, udpPacket(1000, MTU, i)));
+        assertTrue(offer(scheduler, udpPacket(2000, 72, 0)));
+        assertTrue(offer(scheduler, udpPacket(2000, 72, 1)));
+        assertEquals(1L, scheduler.getOverflowDropCount());
+        assertEquals(4, scheduler.getBacklog());
+
+        // the oldest packet of the bulk flow is gone, the small flow is complete
+        final StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            final byte[] packet = takeOne(scheduler);
+            order.append(portOf(packet) == 1000 ? 'B' : 's').append(packet[47]);
+        }
+        assertEquals("B1s0s1B2", order.toString());
+    }
+}
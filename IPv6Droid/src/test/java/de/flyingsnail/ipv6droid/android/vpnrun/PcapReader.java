@@ -0,0 +1,301 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import androidx.annotation.NonNull;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the IPv6 packets of a pcap or pcapng file, as written by tcpdump, Wireshark or
+ * {@link PacketCapture}. Packets of other protocols are skipped, link layer headers of
+ * Ethernet and Linux cooked captures are removed. Packets captured truncated are padded with
+ * zeros to their original length, so that the mix of packet sizes is kept.
+ */
+class PcapReader {
+    /** Direction of a packet not recorded by the capture. */
+    static final int DIRECTION_UNKNOWN = 0;
+    /** Direction of a packet received by the capturing host, i.e. from the PoP. */
+    static final int DIRECTION_INBOUND = 1;
+    /** Direction of a packet sent by the capturing host, i.e. to the PoP. */
+    static final int DIRECTION_OUTBOUND = 2;
+
+    private static final int PCAP_MAGIC_MICROS = 0xa1b2c3d4;
+    private static final int PCAP_MAGIC_NANOS = 0xa1b23c4d;
+    private static final int BLOCK_SECTION_HEADER = 0x0A0D0D0A;
+    private static final int BLOCK_INTERFACE_DESCRIPTION = 1;
+    private static final int BLOCK_SIMPLE_PACKET = 3;
+    private static final int BLOCK_ENHANCED_PACKET = 6;
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final int OPTION_END = 0;
+    private static final int OPTION_IF_TSRESOL = 9;
+    private static final int OPTION_EPB_FLAGS = 2;
+
+    private static final int LINKTYPE_ETHERNET = 1;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int LINKTYPE_LINUX_SLL = 113;
+    private static final int LINKTYPE_IPV6 = 229;
+    private static final int LINKTYPE_LINUX_SLL2 = 276;
+    private static final int ETHERTYPE_IPV6 = 0x86DD;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+
+    /**
+     * A packet read from a capture.
+     */
+    static final class Packet {
+        /** The IPv6 packet, starting with the IPv6 header */
+        final byte[] data;
+        /** The capture time in nanoseconds since the epoch */
+        final long nanos;
+        /** One of the DIRECTION_ constants */
+        final int direction;
+
+        Packet(@NonNull byte[] data, long nanos, int direction) {
+            this.data = data;
+            this.nanos = nanos;
+            this.direction = direction;
+        }
+    }
+
+    // the link type and timestamp resolution in nanos per unit of each pcapng interface
+    private final List<Integer> linkTypes = new ArrayList<>();
+    private final List<Long> resolutions = new ArrayList<>();
+    private final List<Packet> packets = new ArrayList<>();
+
+    /**
+     * Read all IPv6 packets of a capture file.
+     * @param file the pcap or pcapng File to read
+     * @return the List of Packets in the order of the file
+     * @throws IOException if the file cannot be read or is no valid capture
+     */
+    static @NonNull List<Packet> read(@NonNull File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Read all IPv6 packets of a capture.
+     * @param in the InputStream of a pcap or pcapng capture
+     * @return the List of Packets in the order of the capture
+     * @throws IOException if the capture cannot be read or is invalid
+     */
+    static @NonNull List<Packet> read(@NonNull InputStream in) throws IOException {
+        final PcapReader reader = new PcapReader();
+        final DataInputStream data = new DataInputStream(in);
+        final int magic = data.readInt();
+        if (magic == BLOCK_SECTION_HEADER)
+            reader.readPcapng(data);
+        else
+            reader.readPcap(data, magic);
+        return reader.packets;
+    }
+
+    private void readPcap(@NonNull DataInputStream in, int magic) throws IOException {
+        final ByteOrder order;
+        final long nanosPerFraction;
+        if (magic == PCAP_MAGIC_MICROS || magic == PCAP_MAGIC_NANOS) {
+            order = ByteOrder.BIG_ENDIAN;
+        } else if (Integer.reverseBytes(magic) == PCAP_MAGIC_MICROS || Integer.reverseBytes(magic) == PCAP_MAGIC_NANOS) {
+            order = ByteOrder.LITTLE_ENDIAN;
+            magic = Integer.reverseBytes(magic);
+        } else {
+            throw new IOException("Not a pcap or pcapng file");
+        }
+        nanosPerFraction = magic == PCAP_MAGIC_NANOS ? 1L : 1000L;
+        final ByteBuffer header = readFully(in, 20, order);
+        final int linkType = header.getInt(16) & 0x0fffffff;
+        while (true) {
+            final ByteBuffer record;
+            try {
+                record = readFully(in, 16, order);
+            } catch (EOFException e) {
+                return;
+            }
+            final long nanos = (record.getInt(0) & 0xffffffffL) * 1000000000L
+                    + (record.getInt(4) & 0xffffffffL) * nanosPerFraction;
+            final int capturedLength = record.getInt(8);
+            final int originalLength = record.getInt(12);
+            final byte[] frame = readFully(in, capturedLength, order).array();
+            add(linkType, frame, capturedLength, originalLength, nanos, DIRECTION_UNKNOWN);
+        }
+    }
+
+    private void readPcapng(@NonNull DataInputStream in) throws IOException {
+        int blockType = BLOCK_SECTION_HEADER;
+        ByteOrder order = ByteOrder.BIG_ENDIAN;
+        while (true) {
+            // the block length is written in the byte order of the section
+            final byte[] lengthBytes = new byte[4];
+            in.readFully(lengthBytes);
+            if (blockType == BLOCK_SECTION_HEADER) {
+                final byte[] bom = new byte[4];
+                in.readFully(bom);
+                order = ByteBuffer.wrap(bom).getInt() == BYTE_ORDER_MAGIC ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+                final int blockLength = ByteBuffer.wrap(lengthBytes).order(order).getInt();
+                readFully(in, blockLength - 12, order);
+                linkTypes.clear();
+                resolutions.clear();
+            } else {
+                final int blockLength = ByteBuffer.wrap(lengthBytes).order(order).getInt();
+                final ByteBuffer body = readFully(in, blockLength - 8, order);
+                readBlock(blockType, body, blockLength - 12);
+            }
+            final byte[] typeBytes = new byte[4];
+            try {
+                in.readFully(typeBytes);
+            } catch (EOFException e) {
+                return;
+            }
+            blockType = ByteBuffer.wrap(typeBytes).order(order).getInt();
+            if (blockType == BLOCK_SECTION_HEADER)
+                order = ByteOrder.BIG_ENDIAN; // the SHB type is a palindrome
+        }
+    }
+
+    private void readBlock(int blockType, @NonNull ByteBuffer body, int bodyLength) {
+        switch (blockType) {
+            case BLOCK_INTERFACE_DESCRIPTION: {
+                final int linkType = body.getShort(0) & 0xffff;
+                long resolution = 1000L; // microseconds by default
+                int position = 8;
+                while (position + 4 <= bodyLength) {
+                    final int code = body.getShort(position) & 0xffff;
+                    final int length = body.getShort(position + 2) & 0xffff;
+                    if (code == OPTION_END)
+                        break;
+                    if (code == OPTION_IF_TSRESOL && length == 1) {
+                        final int tsresol = body.get(position + 4) & 0xff;
+                        final double unit = (tsresol & 0x80) != 0 ? Math.pow(2, -(tsresol & 0x7f)) : Math.pow(10, -tsresol);
+                        resolution = Math.max(1L, Math.round(unit * 1e9));
+                    }
+                    position += 4 + ((length + 3) & ~3);
+                }
+                linkTypes.add(linkType);
+                resolutions.add(resolution);
+                break;
+            }
+            case BLOCK_ENHANCED_PACKET: {
+                final int interfaceId = body.getInt(0);
+                final long timestamp = ((body.getInt(4) & 0xffffffffL) << 32) | (body.getInt(8) & 0xffffffffL);
+                final int capturedLength = body.getInt(12);
+                final int originalLength = body.getInt(16);
+                final byte[] frame = Arrays.copyOfRange(body.array(), 20, 20 + capturedLength);
+                int direction = DIRECTION_UNKNOWN;
+                int position = 20 + ((capturedLength + 3) & ~3);
+                while (position + 4 <= bodyLength) {
+                    final int code = body.getShort(position) & 0xffff;
+                    final int length = body.getShort(position + 2) & 0xffff;
+                    if (code == OPTION_END)
+                        break;
+                    if (code == OPTION_EPB_FLAGS && length == 4)
+                        direction = body.getInt(position + 4) & 0x3;
+                    position += 4 + ((length + 3) & ~3);
+                }
+                if (interfaceId < linkTypes.size())
+                    add(linkTypes.get(interfaceId), frame, capturedLength, originalLength,
+                            timestamp * resolutions.get(interfaceId), direction);
+                break;
+            }
+            case BLOCK_SIMPLE_PACKET: {
+                final int originalLength = body.getInt(0);
+                final int capturedLength = Math.min(originalLength, bodyLength - 4);
+                final byte[] frame = Arrays.copyOfRange(body.array(), 4, 4 + capturedLength);
+                final long nanos = packets.isEmpty() ? 0L : packets.get(packets.size() - 1).nanos;
+                if (!linkTypes.isEmpty())
+                    add(linkTypes.get(0), frame, capturedLength, originalLength, nanos, DIRECTION_UNKNOWN);
+                break;
+            }
+            default:
+                // other blocks carry no packets
+        }
+    }
+
+    /**
+     * Add the IPv6 packet of a frame, if it carries one.
+     */
+    private void add(int linkType, @NonNull byte[] frame, int capturedLength, int originalLength,
+                     long nanos, int direction) {
+        int offset;
+        switch (linkType) {
+            case LINKTYPE_RAW:
+            case LINKTYPE_IPV6:
+                offset = 0;
+                break;
+            case LINKTYPE_ETHERNET: {
+                offset = 12;
+                int etherType = etherType(frame, offset, capturedLength);
+                while (etherType == ETHERTYPE_VLAN) {
+                    offset += 4;
+                    etherType = etherType(frame, offset, capturedLength);
+                }
+                if (etherType != ETHERTYPE_IPV6)
+                    return;
+                offset += 2;
+                break;
+            }
+            case LINKTYPE_LINUX_SLL:
+                if (etherType(frame, 14, capturedLength) != ETHERTYPE_IPV6)
+                    return;
+                offset = 16;
+                break;
+            case LINKTYPE_LINUX_SLL2:
+                if (etherType(frame, 0, capturedLength) != ETHERTYPE_IPV6)
+                    return;
+                offset = 20;
+                break;
+            default:
+                return;
+        }
+        if (capturedLength <= offset || (frame[offset] & 0xf0) != 0x60)
+            return;
+        // pad truncated packets to their original length
+        final byte[] packet = new byte[originalLength - offset];
+        System.arraycopy(frame, offset, packet, 0, Math.min(capturedLength - offset, packet.length));
+        packets.add(new Packet(packet, nanos, direction));
+    }
+
+    private static int etherType(@NonNull byte[] frame, int offset, int length) {
+        if (offset + 2 > length)
+            return -1;
+        return ((frame[offset] & 0xff) << 8) | (frame[offset + 1] & 0xff);
+    }
+
+    private static @NonNull ByteBuffer readFully(@NonNull DataInputStream in, int length, @NonNull ByteOrder order) throws IOException {
+        if (length < 0)
+            throw new IOException("Invalid block length in capture");
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return ByteBuffer.wrap(bytes).order(order);
+    }
+}
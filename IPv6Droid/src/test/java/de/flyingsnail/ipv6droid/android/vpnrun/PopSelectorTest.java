@@ -0,0 +1,177 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.flyingsnail.ipv6droid.transport.ConnectionFailedException;
+import de.flyingsnail.ipv6droid.transport.RoundTripEstimator;
+import de.flyingsnail.ipv6droid.transport.ayiya.TicTunnel;
+
+/**
+ * Tests of PopSelector, probing FakeTransporters. Each test uses tunnel ids of its own, as the
+ * cache of scores is shared.
+ */
+public class PopSelectorTest {
+    private final TunnelRuntime runtime = new TunnelRuntime("test");
+    // the transporters to probe by tunnel id; a tunnel without one fails to connect
+    private final Map<String, FakeTransporter> transporters = new HashMap<>();
+    private final AtomicInteger created = new AtomicInteger();
+
+    @After
+    public void tearDown() {
+        runtime.shutdown(1000L);
+    }
+
+    private PopSelector selector(long cacheMillis) {
+        return new PopSelector(runtime, tunnel -> {
+            created.incrementAndGet();
+            final FakeTransporter transporter = transporters.get(tunnel.getTunnelId());
+            if (transporter == null)
+                throw new ConnectionFailedException("No PoP for " + tunnel.getTunnelId(), null);
+            return transporter;
+        }, cacheMillis);
+    }
+
+    private TicTunnel tunnel(String id, long handshakeMillis, boolean probing, double rttMillis) {
+        final FakeTransporter transporter = new FakeTransporter();
+        transporter.setHandshakeMillis(handshakeMillis);
+        transporter.setProbes(probing, rttMillis);
+        transporters.put(id, transporter);
+        return unreachableTunnel(id);
+    }
+
+    private static TicTunnel unreachableTunnel(String id) {
+        final TicTunnel tunnel = new TicTunnel(id);
+        tunnel.setTunnelId(id);
+        tunnel.setTunnelName(id);
+        tunnel.setPopName("pop-" + id);
+        tunnel.setEnabled(true);
+        return tunnel;
+    }
+
+    private static List<String> idsOf(List<PopSelector.Score> scores) {
+        final List<String> ids = new ArrayList<>();
+        for (PopSelector.Score score : scores)
+            ids.add(score.tunnel.getTunnelId());
+        return ids;
+    }
+
+    private static RoundTripEstimator estimatorWithRtt(double rttMillis) {
+        final RoundTripEstimator estimator = new RoundTripEstimator();
+        estimator.probeSent(0L);
+        estimator.responseReceived((long) (rttMillis * 1000000.0));
+        return estimator;
+    }
+
+    @Test
+    public void ordersByScore() throws InterruptedException {
+        final TicTunnel disabled = tunnel("order-disabled", 0L, true, 1.0);
+        disabled.setUserState("disabled");
+        final List<TicTunnel> tunnels = Arrays.asList(
+                tunnel("order-slow", 0L, true, 80.0),
+                tunnel("order-fast", 0L, true, 10.0),
+                disabled,
+                unreachableTunnel("order-unreachable"),
+                tunnel("order-medium", 0L, true, 40.0));
+        final List<PopSelector.Score> scores = selector(PopSelector.CACHE_MILLIS).evaluate(tunnels, null);
+        assertEquals(Arrays.asList("order-fast", "order-medium", "order-slow"), idsOf(scores));
+        assertEquals(10.0, scores.get(0).rttMillis, 1.0);
+        assertEquals(0.0, scores.get(0).lossRate, 0.0);
+        for (FakeTransporter transporter : transporters.values())
+            if (transporter != transporters.get("order-disabled"))
+                assertTrue(transporter.isClosed());
+    }
+
+    @Test
+    public void judgesByHandshakeWithoutProbeResponses() throws InterruptedException {
+        // a DTLS transporter cannot probe, the other PoP does not answer its probes
+        final List<TicTunnel> tunnels = Arrays.asList(
+                tunnel("handshake-silent", 100L, true, Double.NaN),
+                tunnel("handshake-dtls", 200L, false, Double.NaN));
+        final long start = System.currentTimeMillis();
+        final List<PopSelector.Score> scores = selector(PopSelector.CACHE_MILLIS).evaluate(tunnels, null);
+        assertTrue(System.currentTimeMillis() - start < PopSelector.PROBE_DEADLINE_MILLIS + 500L);
+        assertEquals(Arrays.asList("handshake-dtls", "handshake-silent"), idsOf(scores));
+
+        final PopSelector.Score dtls = scores.get(0);
+        assertEquals(0.0, dtls.lossRate, 0.0);
+        assertTrue(dtls.handshakeMillis >= 200L);
+        assertEquals(dtls.handshakeMillis / 2.0, dtls.rttMillis, 0.001);
+
+        // an unanswered PoP is still scored, but ranks behind one that cannot be probed
+        final PopSelector.Score silent = scores.get(1);
+        assertEquals(1.0, silent.lossRate, 0.0);
+        assertTrue(silent.handshakeMillis >= 100L);
+        assertEquals(silent.handshakeMillis / 2.0, silent.rttMillis, 0.001);
+    }
+
+    @Test
+    public void reusesScoresUntilExpiry() throws InterruptedException {
+        final List<TicTunnel> tunnels = Arrays.asList(tunnel("cache-only", 0L, true, 10.0));
+        final PopSelector selector = selector(300L);
+        final PopSelector.Score first = selector.selectBest(tunnels, null);
+        assertEquals(1, created.get());
+        assertEquals(first, selector.selectBest(tunnels, null));
+        assertEquals(1, created.get());
+
+        Thread.sleep(400L);
+        final PopSelector.Score renewed = selector.selectBest(tunnels, null);
+        assertEquals(2, created.get());
+        assertTrue(renewed != first);
+        assertTrue(renewed.measuredAt > first.measuredAt);
+    }
+
+    @Test
+    public void switchesOnlyForClearGain() {
+        final PopSelector.Score best = new PopSelector.Score(unreachableTunnel("switch-best"), 60.0, 0.0, 10L);
+        // more than SWITCH_THRESHOLD times and MIN_SWITCH_GAIN_MILLIS worse
+        assertTrue(PopSelector.shouldSwitch(estimatorWithRtt(100.0), best));
+        // worse, but within the threshold
+        assertFalse(PopSelector.shouldSwitch(estimatorWithRtt(85.0), best));
+        // not measured yet
+        assertFalse(PopSelector.shouldSwitch(new RoundTripEstimator(), best));
+
+        // beyond the threshold, but the gain in milliseconds is too small to matter
+        final PopSelector.Score close = new PopSelector.Score(unreachableTunnel("switch-close"), 10.0, 0.0, 10L);
+        assertFalse(PopSelector.shouldSwitch(estimatorWithRtt(25.0), close));
+        assertTrue(PopSelector.shouldSwitch(estimatorWithRtt(35.0), close));
+
+        // lost probes count against the alternative
+        final PopSelector.Score lossy = new PopSelector.Score(unreachableTunnel("switch-lossy"), 10.0, 0.5, 10L);
+        assertFalse(PopSelector.shouldSwitch(estimatorWithRtt(100.0), lossy));
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A stand-in for an AYIYA PoP on the loopback interface. It checks the framing and signature of
+ * each datagram received, passes the payload of forwarded packets to a receiver, and sends
+ * packets to the tunnel client framed as the PoP would.
+ */
+class PopStandIn implements AutoCloseable {
+    /** The size of the AYIYA header */
+    static final int OVERHEAD = 44;
+
+    private static final int OPCODE_NOOP = 0;
+    private static final int OPCODE_FORWARD = 1;
+    private static final byte IPPROTO_IPV6 = 41;
+
+    /**
+     * The receiver of the payloads forwarded by the tunnel client.
+     */
+    interface Receiver {
+        /**
+         * @param payload the byte[] holding the payload, only valid during the call
+         * @param offset the int offset of the payload
+         * @param length the int length of the payload
+         * @param nanos the long System.nanoTime when the datagram was received
+         */
+        void received(@NonNull byte[] payload, int offset, int length, long nanos);
+    }
+
+    private final DatagramSocket socket;
+    private final byte[] popIdentity;
+    private final byte[] hashedPassword;
+    private final MessageDigest receiveDigest;
+    private final MessageDigest sendDigest;
+    private final Thread thread;
+    private final byte[] sendBuffer = new byte[65535 + OVERHEAD];
+    private volatile Receiver receiver;
+    private volatile SocketAddress client;
+    private volatile long invalidCount;
+
+    /**
+     * Constructor. Binds to a free port on the loopback interface and starts receiving.
+     * @param popAddress the Inet6Address of the PoP's tunnel end, its AYIYA identity
+     * @param password the String giving the tunnel password
+     * @throws IOException if the socket cannot be bound
+     */
+    PopStandIn(@NonNull Inet6Address popAddress, @NonNull String password) throws IOException {
+        try {
+            receiveDigest = MessageDigest.getInstance("SHA1");
+            sendDigest = MessageDigest.getInstance("SHA1");
+            hashedPassword = MessageDigest.getInstance("SHA1").digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA1 not available", e);
+        }
+        popIdentity = popAddress.getAddress();
+        socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        socket.setReceiveBufferSize(4 * 1024 * 1024);
+        socket.setSendBufferSize(4 * 1024 * 1024);
+        thread = new Thread(this::receive, "PoP stand-in");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the int UDP port of this PoP
+     */
+    int getPort() {
+        return socket.getLocalPort();
+    }
+
+    void setReceiver(@NonNull Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    /**
+     * @return a long giving the number of datagrams received that were no valid AYIYA packets
+     */
+    long getInvalidCount() {
+        return invalidCount;
+    }
+
+    /**
+     * Wait for the tunnel client to announce itself by a heartbeat.
+     * @param millis a long giving the maximum time to wait
+     * @return true if the client is known
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitClient(long millis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + millis;
+        while (client == null && System.currentTimeMillis() < deadline)
+            Thread.sleep(10L);
+        return client != null;
+    }
+
+    /**
+     * Send a packet to the tunnel client as forwarded by the PoP. Must be called by a single
+     * thread.
+     * @param packet the byte[] holding the IPv6 packet
+     * @throws IOException if sending fails
+     */
+    void send(@NonNull byte[] packet) throws IOException {
+        final SocketAddress myClient = client;
+        if (myClient == null)
+            throw new IOException("No tunnel client known yet");
+        final int length = frame(sendBuffer, OPCODE_FORWARD, packet);
+        socket.send(new DatagramPacket(sendBuffer, length, myClient));
+    }
+
+    private int frame(@NonNull byte[] buffer, int opCode, @NonNull byte[] payload) {
+        buffer[0] = 0x41; // identity length 2^4, identity type integer
+        buffer[1] = 0x52; // signature length 5*4, SHA1
+        buffer[2] = (byte) (0x10 | opCode); // shared secret authentication
+        buffer[3] = IPPROTO_IPV6;
+        final int epoch = (int) (System.currentTimeMillis() / 1000L);
+        buffer[4] = (byte) (epoch >>> 24);
+        buffer[5] = (byte) (epoch >>> 16);
+        buffer[6] = (byte) (epoch >>> 8);
+        buffer[7] = (byte) epoch;
+        System.arraycopy(popIdentity, 0, buffer, 8, 16);
+        System.arraycopy(payload, 0, buffer, OVERHEAD, payload.length);
+        sendDigest.reset();
+        sendDigest.update(buffer, 0, 24);
+        sendDigest.update(hashedPassword);
+        sendDigest.update(payload);
+        System.arraycopy(sendDigest.digest(), 0, buffer, 24, 20);
+        return OVERHEAD + payload.length;
+    }
+
+    private void receive() {
+        final byte[] buffer = new byte[65535 + OVERHEAD];
+        final DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+        while (!socket.isClosed()) {
+            try {
+                datagram.setLength(buffer.length);
+                socket.receive(datagram);
+            } catch (IOException e) {
+                return;
+            }
+            final long nanos = System.nanoTime();
+            final int length = datagram.getLength();
+            if (!isValid(buffer, length)) {
+                invalidCount++;
+                continue;
+            }
+            client = datagram.getSocketAddress();
+            final Receiver myReceiver = receiver;
+            if ((buffer[2] & 0x0f) == OPCODE_FORWARD && myReceiver != null)
+                myReceiver.received(buffer, OVERHEAD, length - OVERHEAD, nanos);
+        }
+    }
+
+    private boolean isValid(@NonNull byte[] packet, int length) {
+        if (length < OVERHEAD || packet[0] != 0x41 || packet[1] != 0x52 || (packet[2] & 0xf0) != 0x10)
+            return false;
+        final int opCode = packet[2] & 0x0f;
+        if (opCode != OPCODE_NOOP && opCode != OPCODE_FORWARD)
+            return false;
+        receiveDigest.reset();
+        receiveDigest.update(packet, 0, 24);
+        receiveDigest.update(hashedPassword);
+        receiveDigest.update(packet, OVERHEAD, length - OVERHEAD);
+        return Arrays.equals(receiveDigest.digest(), Arrays.copyOfRange(packet, 24, 44));
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+        try {
+            thread.join(1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
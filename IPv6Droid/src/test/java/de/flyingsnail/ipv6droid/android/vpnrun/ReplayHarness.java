@@ -0,0 +1,654 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import de.flyingsnail.ipv6droid.android.UserNotificationCallback;
+import de.flyingsnail.ipv6droid.android.statistics.LogLinearHistogram;
+import de.flyingsnail.ipv6droid.android.statistics.Percentiles;
+import de.flyingsnail.ipv6droid.android.statistics.TransmissionStatistics;
+import de.flyingsnail.ipv6droid.transport.TransporterOutputStream;
+import de.flyingsnail.ipv6droid.transport.ayiya.Ayiya;
+import de.flyingsnail.ipv6droid.transport.ayiya.TicTunnel;
+
+/**
+ * Replays captured IPv6 packets through the packet pipeline of a tunnel session: a fake TUN
+ * device feeds a CopyThread, which passes the packets through the flow scheduler, the bundling
+ * window, the TransporterSwitch and the AYIYA framing to a {@link PopStandIn} on loopback. The
+ * inbound direction runs the other way, from the PoP stand-in to a fake TUN device.
+ * <p>
+ * Each replay reports the throughput, the bytes allocated by the pipeline threads, and the
+ * percentiles of the latency from TUN to PoP receive, or from PoP send to TUN write, for all
+ * packets and for small packets like acknowledgements and DNS queries. Outbound packets replayed
+ * with their original timing are counted from the time they are due at the TUN device, so that
+ * the latency includes the time spent waiting for the copy thread. An uplink of limited rate may
+ * be set, to show how packets queue up in front of a slow network.
+ */
+class ReplayHarness {
+    /**
+     * How the packets are timed.
+     */
+    enum Timing {
+        /** Keep the gaps between packets as captured */
+        ORIGINAL,
+        /**
+         * Offer each packet as soon as the pipeline can take it: outbound when the copy thread
+         * read the previous one, inbound while fewer than {@link #INBOUND_WINDOW} are in flight
+         */
+        AS_FAST_AS_POSSIBLE
+    }
+
+    // the time that a replay waits for stragglers after the last packet was offered
+    private static final long SETTLE_NANOS = TimeUnit.SECONDS.toNanos(2L);
+    // the packets that the PoP stand-in keeps in flight when replaying inbound as fast as
+    // possible. UDP has no flow control, so without a limit the replay would measure the
+    // overflow of the socket's receive buffer; 64 full-sized packets fit the default one.
+    static final int INBOUND_WINDOW = 64;
+    private static final String PASSWORD = "replay";
+    // the capacity of the flow scheduler, as in RemoteEnd
+    private static final int SCHEDULER_CAPACITY = 256;
+    // the maximum length of the packets counted as small
+    static final int SMALL_PACKET_BYTES = 128;
+
+    /**
+     * The result of one replay.
+     */
+    static final class Report {
+        final String direction;
+        final Timing timing;
+        final int offered;
+        final int delivered;
+        final long bytes;
+        final long nanos;
+        final long allocatedBytes;
+        final Percentiles latencyMicros;
+        final int smallOffered;
+        final int smallDelivered;
+        final Percentiles smallLatencyMicros;
+
+        Report(String direction, Timing timing, int offered, int delivered, long bytes, long nanos,
+               long allocatedBytes, Percentiles latencyMicros,
+               int smallOffered, int smallDelivered, Percentiles smallLatencyMicros) {
+            this.direction = direction;
+            this.timing = timing;
+            this.offered = offered;
+            this.delivered = delivered;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+            this.latencyMicros = latencyMicros;
+            this.smallOffered = smallOffered;
+            this.smallDelivered = smallDelivered;
+            this.smallLatencyMicros = smallLatencyMicros;
+        }
+
+        double getPacketsPerSecond() {
+            return delivered * 1e9 / Math.max(1L, nanos);
+        }
+
+        double getMegabitsPerSecond() {
+            return bytes * 8e3 / Math.max(1L, nanos);
+        }
+
+        /**
+         * @return a double giving the bytes allocated per packet, or NaN if the JVM cannot tell
+         */
+        double getAllocatedBytesPerPacket() {
+            return allocatedBytes < 0 ? Double.NaN : (double) allocatedBytes / Math.max(1, offered);
+        }
+
+        double getAllocatedMegabytesPerSecond() {
+            return allocatedBytes < 0 ? Double.NaN : allocatedBytes * 1e3 / Math.max(1L, nanos);
+        }
+
+        @Override
+        public @NonNull String toString() {
+            return String.format(Locale.ROOT,
+                    "replay %s %s: %d/%d packets, %.0f pps, %.2f Mbit/s, %.1f B/packet, %.2f MB/s allocated, latency us %s, small packets %d/%d, latency us %s",
+                    direction, timing, delivered, offered, getPacketsPerSecond(), getMegabitsPerSecond(),
+                    getAllocatedBytesPerPacket(), getAllocatedMegabytesPerSecond(), latencyMicros,
+                    smallDelivered, smallOffered, smallLatencyMicros);
+        }
+    }
+
+    private final List<byte[]> outbound = new ArrayList<>();
+    private final List<Long> outboundNanos = new ArrayList<>();
+    private final List<byte[]> inbound = new ArrayList<>();
+    private final List<Long> inboundNanos = new ArrayList<>();
+    private final int mtu;
+    private final boolean schedulerEnabled;
+    private final int bundlingPeriodMillis;
+    private final int bundlingMaxPackets;
+    // the rate of the uplink in kbit/s, or 0 for an unlimited one
+    private int uplinkKilobits = 0;
+
+    /**
+     * Constructor.
+     * @param packets the captured packets. Packets without a direction are replayed in both.
+     * @param schedulerEnabled a boolean telling if outgoing packets pass the flow scheduler
+     * @param bundlingPeriodMillis an int giving the bundling window's period, or 0 for none
+     * @param bundlingMaxPackets an int giving the number of packets completing a batch
+     */
+    ReplayHarness(@NonNull List<PcapReader.Packet> packets, boolean schedulerEnabled,
+                  int bundlingPeriodMillis, int bundlingMaxPackets) {
+        int maxLength = 1280;
+        for (PcapReader.Packet packet : packets) {
+            if (packet.direction != PcapReader.DIRECTION_INBOUND) {
+                outbound.add(packet.data);
+                outboundNanos.add(packet.nanos);
+            }
+            if (packet.direction != PcapReader.DIRECTION_OUTBOUND) {
+                inbound.add(packet.data);
+                inboundNanos.add(packet.nanos);
+            }
+            maxLength = Math.max(maxLength, packet.data.length);
+        }
+        this.mtu = maxLength;
+        this.schedulerEnabled = schedulerEnabled;
+        this.bundlingPeriodMillis = bundlingPeriodMillis;
+        this.bundlingMaxPackets = bundlingMaxPackets;
+    }
+
+    /**
+     * Limit the rate of the uplink that outbound packets are sent by. A write blocks until the
+     * uplink has sent the previous packets, as a socket with a full send buffer does.
+     * @param kilobits an int giving the rate in kbit/s, or 0 for an unlimited uplink
+     */
+    void setUplinkKilobits(int kilobits) {
+        this.uplinkKilobits = kilobits;
+    }
+
+    /**
+     * Replay the packets sent to the PoP.
+     * @param timing the Timing of the replay
+     * @return the Report of the replay
+     * @throws Exception if the pipeline cannot be set up
+     */
+    @NonNull Report replayOutbound(@NonNull Timing timing) throws Exception {
+        final int count = outbound.size();
+        final long[] dueNanos = dueTimes(outboundNanos, timing);
+        final long[] sentNanos = new long[count];
+        final long[] arrivalNanos = new long[count];
+        final PacketIndex index = new PacketIndex(outbound);
+        final CountDownLatch allDelivered = new CountDownLatch(count);
+        try (Session session = new Session()) {
+            session.pop.setReceiver((payload, offset, length, nanos) -> {
+                final int i = index.take(payload, offset, length);
+                if (i >= 0) {
+                    arrivalNanos[i] = nanos;
+                    allDelivered.countDown();
+                }
+            });
+            final FakeTunInput tun = new FakeTunInput(outbound, dueNanos, sentNanos, timing == Timing.ORIGINAL);
+            final FlowScheduler scheduler = schedulerEnabled ?
+                    new FlowScheduler(64, SCHEDULER_CAPACITY, mtu, 5, 100) : null;
+            final BundlingWindow window = bundlingPeriodMillis > 0 ?
+                    new BundlingWindow(bundlingPeriodMillis, bundlingMaxPackets, SCHEDULER_CAPACITY) : null;
+            final OutputStream uplink = uplinkKilobits > 0 ?
+                    new PacedUplink(session.transporterSwitch.getOutputStream(), uplinkKilobits) :
+                    session.transporterSwitch.getOutputStream();
+            final CopyThread copyThread = new CopyThread(tun, uplink,
+                    notifications, session, "replay outbound", 0, window,
+                    new TransmissionStatistics(), scheduler, null);
+            final long start = System.nanoTime();
+            tun.start(start);
+            copyThread.start();
+            tun.awaitEnd();
+            allDelivered.await(SETTLE_NANOS, TimeUnit.NANOSECONDS);
+            final long end = lastOf(arrivalNanos, start);
+            final long allocated = allocatedBytes("replay outbound");
+            copyThread.stopCopy();
+            checkPipeline();
+            return report("outbound", timing, outbound, sentNanos, arrivalNanos, start, end, allocated);
+        }
+    }
+
+    /**
+     * Replay the packets received from the PoP.
+     * @param timing the Timing of the replay
+     * @return the Report of the replay
+     * @throws Exception if the pipeline cannot be set up
+     */
+    @NonNull Report replayInbound(@NonNull Timing timing) throws Exception {
+        final int count = inbound.size();
+        final long[] dueNanos = dueTimes(inboundNanos, timing);
+        final long[] sentNanos = new long[count];
+        final long[] arrivalNanos = new long[count];
+        final PacketIndex index = new PacketIndex(inbound);
+        final CountDownLatch allDelivered = new CountDownLatch(count);
+        final Semaphore inFlight = new Semaphore(INBOUND_WINDOW);
+        try (Session session = new Session()) {
+            final OutputStream tun = new OutputStream() {
+                @Override
+                public void write(int b) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void write(@NonNull byte[] buffer, int offset, int length) {
+                    final long nanos = System.nanoTime();
+                    final int i = index.take(buffer, offset, length);
+                    if (i >= 0) {
+                        arrivalNanos[i] = nanos;
+                        allDelivered.countDown();
+                        inFlight.release();
+                    }
+                }
+            };
+            final CopyThread copyThread = new CopyThread(session.transporterSwitch.getInputStream(), tun,
+                    notifications, session, "replay inbound", 0, null,
+                    new TransmissionStatistics(), null, null);
+            copyThread.start();
+            final long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                final long wait = start + dueNanos[i] - System.nanoTime();
+                if (wait > 0L)
+                    LockSupport.parkNanos(wait);
+                if (timing == Timing.AS_FAST_AS_POSSIBLE
+                        && !inFlight.tryAcquire(SETTLE_NANOS, TimeUnit.NANOSECONDS))
+                    break; // the packets in flight were lost
+                sentNanos[i] = System.nanoTime();
+                session.pop.send(inbound.get(i));
+            }
+            allDelivered.await(SETTLE_NANOS, TimeUnit.NANOSECONDS);
+            final long end = lastOf(arrivalNanos, start);
+            final long allocated = allocatedBytes("replay inbound");
+            copyThread.stopCopy();
+            checkPipeline();
+            return report("inbound", timing, inbound, sentNanos, arrivalNanos, start, end, allocated);
+        }
+    }
+
+    /**
+     * Fail the replay if a pipeline thread died of an unexpected error.
+     */
+    private void checkPipeline() {
+        if (pipelineError != null)
+            throw new AssertionError("Unexpected error in pipeline", pipelineError);
+    }
+
+    private static long[] dueTimes(@NonNull List<Long> captureNanos, @NonNull Timing timing) {
+        final long[] due = new long[captureNanos.size()];
+        if (timing == Timing.ORIGINAL) {
+            for (int i = 0; i < due.length; i++)
+                due[i] = Math.max(0L, captureNanos.get(i) - captureNanos.get(0));
+        }
+        return due;
+    }
+
+    private static long lastOf(@NonNull long[] nanos, long start) {
+        long last = start;
+        for (long value : nanos)
+            last = Math.max(last, value);
+        return last;
+    }
+
+    private static @NonNull Report report(@NonNull String direction, @NonNull Timing timing,
+                                          @NonNull List<byte[]> packets, @NonNull long[] sentNanos,
+                                          @NonNull long[] arrivalNanos, long start, long end,
+                                          long allocatedBytes) {
+        final LogLinearHistogram latency = new LogLinearHistogram(TimeUnit.SECONDS.toMicros(60L));
+        final LogLinearHistogram smallLatency = new LogLinearHistogram(TimeUnit.SECONDS.toMicros(60L));
+        int delivered = 0;
+        int smallOffered = 0;
+        int smallDelivered = 0;
+        long bytes = 0L;
+        for (int i = 0; i < arrivalNanos.length; i++) {
+            final boolean small = packets.get(i).length <= SMALL_PACKET_BYTES;
+            if (small)
+                smallOffered++;
+            if (arrivalNanos[i] == 0L)
+                continue;
+            delivered++;
+            bytes += packets.get(i).length;
+            final long micros = (arrivalNanos[i] - sentNanos[i]) / 1000L;
+            latency.record(micros);
+            if (small) {
+                smallDelivered++;
+                smallLatency.record(micros);
+            }
+        }
+        return new Report(direction, timing, packets.size(), delivered, bytes, end - start,
+                allocatedBytes, latency.getPercentiles(),
+                smallOffered, smallDelivered, smallLatency.getPercentiles());
+    }
+
+    /**
+     * Sum up the bytes allocated so far by the threads of the pipeline, i.e. the copy thread
+     * and its helpers, whose names all start with the copy thread's name.
+     * @return a long giving the number of bytes, or -1 if the JVM does not tell
+     */
+    private static long allocatedBytes(@NonNull String threadName) {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+            return -1L;
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0L;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().contains(threadName)) {
+                final long allocated = threads.getThreadAllocatedBytes(thread.getId());
+                if (allocated > 0L)
+                    total += allocated;
+            }
+        }
+        return total;
+    }
+
+    // the first error that a pipeline thread notified, or null
+    private volatile Throwable pipelineError;
+
+    private final UserNotificationCallback notifications = new UserNotificationCallback() {
+        @Override
+        public void notifyUserOfError(int resourceId, @NonNull Throwable e) {
+            if (pipelineError == null)
+                pipelineError = e;
+        }
+
+        @Override
+        public void notifyUserOfErrorCancel() {
+        }
+
+        @Override
+        public void postToast(int resId, int duration) {
+        }
+    };
+
+    /**
+     * A connected AYIYA tunnel to a PoP stand-in, attached to a TransporterSwitch.
+     */
+    private final class Session implements CopyThread.Controller, AutoCloseable {
+        final TunnelRuntime runtime = new TunnelRuntime("replay");
+        final PopStandIn pop;
+        final Ayiya ayiya;
+        final TransporterSwitch transporterSwitch = new TransporterSwitch();
+
+        Session() throws Exception {
+            final Inet6Address popAddress = (Inet6Address) InetAddress.getByName("2001:db8::1");
+            final TicTunnel tunnel = new TicTunnel("replay");
+            tunnel.setType(Ayiya.TUNNEL_TYPE);
+            tunnel.setIPv4Pop((Inet4Address) InetAddress.getByName("127.0.0.1"));
+            tunnel.setIpv6Pop(popAddress);
+            tunnel.setIpv6Endpoint((Inet6Address) InetAddress.getByName("2001:db8::2"));
+            tunnel.setPassword(PASSWORD);
+            tunnel.setMtu(mtu);
+            tunnel.setEnabled(true);
+            pop = new PopStandIn(popAddress, PASSWORD);
+            ayiya = new Ayiya(tunnel);
+            ayiya.setPort(pop.getPort());
+            ayiya.prepare().setReceiveBufferSize(4 * 1024 * 1024);
+            ayiya.connect();
+            if (!pop.awaitClient(5000L))
+                throw new IOException("Tunnel client did not reach the PoP stand-in");
+            transporterSwitch.attach(ayiya);
+        }
+
+        @Override
+        public @NonNull TunnelRuntime getRuntime() {
+            return runtime;
+        }
+
+        @Override
+        public void notifyFirstPacketReceived(@NonNull CopyThread copyThread) {
+        }
+
+        @Override
+        public void copyThreadDied(@NonNull CopyThread diedThread) {
+        }
+
+        @Override
+        public void close() {
+            transporterSwitch.close();
+            ayiya.close();
+            pop.close();
+            runtime.shutdown(1000L);
+        }
+    }
+
+    /**
+     * A TUN device that yields the packets to replay, each when it is due, and blocks after the
+     * last one until closed.
+     */
+    private static final class FakeTunInput extends InputStream {
+        private final List<byte[]> packets;
+        private final long[] dueNanos;
+        private final long[] sentNanos;
+        private final boolean sentWhenDue;
+        private final CountDownLatch end = new CountDownLatch(1);
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private volatile long start;
+        private int next = 0;
+
+        /**
+         * Constructor.
+         * @param sentWhenDue a boolean telling if a packet counts as sent when it is due, rather
+         *                    than when it is read
+         */
+        FakeTunInput(@NonNull List<byte[]> packets, @NonNull long[] dueNanos, @NonNull long[] sentNanos,
+                     boolean sentWhenDue) {
+            this.packets = packets;
+            this.dueNanos = dueNanos;
+            this.sentNanos = sentNanos;
+            this.sentWhenDue = sentWhenDue;
+        }
+
+        void start(long start) {
+            this.start = start;
+        }
+
+        void awaitEnd() throws InterruptedException {
+            end.await();
+        }
+
+        @Override
+        public int read() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+            if (next >= packets.size()) {
+                end.countDown();
+                try {
+                    closed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted at end of replay", e);
+                }
+                return -1;
+            }
+            final long wait = start + dueNanos[next] - System.nanoTime();
+            if (wait > 0L)
+                LockSupport.parkNanos(wait);
+            final byte[] packet = packets.get(next);
+            System.arraycopy(packet, 0, buffer, offset, packet.length);
+            sentNanos[next] = sentWhenDue ? start + dueNanos[next] : System.nanoTime();
+            next++;
+            return packet.length;
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    /**
+     * An uplink of limited rate in front of the tunnel. Each write waits until the packets
+     * written before are sent at the uplink's rate.
+     */
+    private static final class PacedUplink extends TransporterOutputStream {
+        private final TransporterOutputStream out;
+        private final long nanosPerKilobyte;
+        // the nanoTime when the uplink has sent all packets written so far
+        private long idleAt = 0L;
+
+        PacedUplink(@NonNull TransporterOutputStream out, int kilobits) {
+            this.out = out;
+            this.nanosPerKilobyte = TimeUnit.SECONDS.toNanos(8L) / kilobits;
+        }
+
+        private void pace(long bytes) {
+            final long now = System.nanoTime();
+            final long start = Math.max(now, idleAt);
+            if (start > now)
+                LockSupport.parkNanos(start - now);
+            idleAt = start + bytes * nanosPerKilobyte / 1000L;
+        }
+
+        @Override
+        public void write(@NonNull byte[] buffer) throws IOException {
+            write(buffer, 0, buffer.length);
+        }
+
+        @Override
+        public void write(@NonNull byte[] buffer, int offset, int count) throws IOException {
+            pace(count);
+            out.write(buffer, offset, count);
+        }
+
+        @Override
+        public void write(@NonNull ByteBuffer[] buffers, int count) throws IOException {
+            long bytes = 0L;
+            for (int i = 0; i < count; i++)
+                bytes += buffers[i].remaining();
+            pace(bytes);
+            out.write(buffers, count);
+        }
+
+        @Override
+        public void write(int i) throws IOException {
+            write(new byte[] {(byte) i}, 0, 1);
+        }
+    }
+
+    /**
+     * Finds the index of a packet by its content without allocation, so that packets can be
+     * told even if reordered or dropped. Identical packets are taken in their original order.
+     */
+    private static final class PacketIndex {
+        private final long[] keys;
+        private final int[] heads;
+        private final int[] nextSame;
+        private final int mask;
+
+        PacketIndex(@NonNull List<byte[]> packets) {
+            int size = Integer.highestOneBit(Math.max(1, packets.size()) * 2) * 2;
+            keys = new long[size];
+            heads = new int[size];
+            mask = size - 1;
+            Arrays.fill(heads, -1);
+            nextSame = new int[packets.size()];
+            final int[] tails = new int[size];
+            for (int i = 0; i < packets.size(); i++) {
+                final byte[] packet = packets.get(i);
+                final long key = hash(packet, 0, packet.length);
+                final int slot = find(key);
+                nextSame[i] = -1;
+                if (heads[slot] == -1 && keys[slot] == 0L) {
+                    keys[slot] = key;
+                    heads[slot] = i;
+                } else {
+                    nextSame[tails[slot]] = i;
+                }
+                tails[slot] = i;
+            }
+        }
+
+        /**
+         * Take the index of the next packet of the given content.
+         * @return the int index, or -1 if there is no more packet of this content
+         */
+        int take(@NonNull byte[] buffer, int offset, int length) {
+            final int slot = find(hash(buffer, offset, length));
+            final int i = heads[slot];
+            if (i >= 0)
+                heads[slot] = nextSame[i];
+            return i;
+        }
+
+        private int find(long key) {
+            int slot = (int) (key ^ (key >>> 32)) & mask;
+            while (keys[slot] != 0L && keys[slot] != key)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        private static long hash(@NonNull byte[] buffer, int offset, int length) {
+            // FNV-1a, never 0 for the packets of a replay
+            long hash = 0xcbf29ce484222325L;
+            for (int i = offset; i < offset + length; i++) {
+                hash ^= buffer[i] & 0xff;
+                hash *= 0x100000001b3L;
+            }
+            return hash == 0L ? 1L : hash;
+        }
+    }
+
+    /**
+     * Replay a capture file from the command line.
+     * @param args the path of the pcap or pcapng file, optionally followed by "original" to keep
+     *             the timing of the capture
+     * @throws Exception if the replay fails
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: ReplayHarness <capture.pcap|capture.pcapng> [original]");
+            return;
+        }
+        final Timing timing = args.length > 1 && "original".equals(args[1]) ? Timing.ORIGINAL : Timing.AS_FAST_AS_POSSIBLE;
+        final ReplayHarness harness = new ReplayHarness(PcapReader.read(new File(args[0])), true, 2, 10);
+        System.out.println(harness.replayOutbound(timing));
+        System.out.println(harness.replayInbound(timing));
+    }
+
+    /**
+     * @return the int number of packets replayed outbound
+     */
+    int getOutboundCount() {
+        return outbound.size();
+    }
+
+    /**
+     * @return the int number of packets replayed inbound
+     */
+    int getInboundCount() {
+        return inbound.size();
+    }}
@@ -0,0 +1,272 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs the replay benchmark on a synthetic traffic mix, and on a real capture if the system
+ * property ipv6droid.replay.pcap names one, e.g.
+ * <pre>./gradlew testDebugUnitTest --tests '*ReplayHarnessTest' -Dipv6droid.replay.pcap=capture.pcapng</pre>
+ * The tests check that the replays deliver the packets within latency bounds; to compare the
+ * throughput across commits, run {@link ReplayHarness#main(String[])} on a capture.
+ */
+public class ReplayHarnessTest {
+    private static final long START_NANOS = 1700000000000000000L;
+    // the bound of the 99th percentile of latency at a low, paced rate; far above what a loaded
+    // build machine shows, far below the time a replay waits for stragglers
+    private static final long PACED_LATENCY_MICROS = 100000L;
+    // the bound of the 99th percentile of latency when replaying as fast as possible
+    private static final long FAST_LATENCY_MICROS = 200000L;
+
+    /**
+     * Create a mix of small acknowledgements, medium and full-sized packets of several flows,
+     * about 1 ms apart.
+     */
+    private static List<PcapReader.Packet> trafficMix(int count) {
+        final Random random = new Random(42);
+        final List<PcapReader.Packet> packets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final int kind = random.nextInt(10);
+            final int length = kind < 4 ? 72 : kind < 6 ? 40 + random.nextInt(600) : 1280;
+            final byte[] packet = new byte[length];
+            random.nextBytes(packet);
+            packet[0] = 0x60;
+            packet[1] = (byte) (kind < 4 ? 0xb8 : 0x00); // EF for the small ones
+            packet[4] = (byte) ((length - 40) >> 8);
+            packet[5] = (byte) (length - 40);
+            packet[6] = 17;
+            final int direction = i % 3 == 0 ? PcapReader.DIRECTION_UNKNOWN :
+                    i % 3 == 1 ? PcapReader.DIRECTION_OUTBOUND : PcapReader.DIRECTION_INBOUND;
+            packets.add(new PcapReader.Packet(packet, START_NANOS + i * 1000000L, direction));
+        }
+        return packets;
+    }
+
+    /**
+     * Create a bulk upload of full-sized packets every 0.5 ms, about 20 Mbit/s, next to a small
+     * query every 10 ms, all outbound.
+     */
+    private static List<PcapReader.Packet> bulkWithSmallPackets(int millis) {
+        final List<PcapReader.Packet> packets = new ArrayList<>();
+        for (int i = 0; i < millis * 2; i++) {
+            final long nanos = START_NANOS + i * 500000L;
+            if (i % 20 == 0)
+                packets.add(new PcapReader.Packet(udpPacket(53, 72, i), nanos, PcapReader.DIRECTION_OUTBOUND));
+            packets.add(new PcapReader.Packet(udpPacket(5001, 1280, i), nanos, PcapReader.DIRECTION_OUTBOUND));
+        }
+        return packets;
+    }
+
+    private static byte[] udpPacket(int port, int length, int sequence) {
+        final byte[] packet = new byte[length];
+        packet[0] = 0x60;
+        packet[4] = (byte) ((length - 40) >> 8);
+        packet[5] = (byte) (length - 40);
+        packet[6] = 17;
+        packet[23] = 1;
+        packet[39] = 2;
+        packet[42] = (byte) (port >> 8);
+        packet[43] = (byte) port;
+        packet[48] = (byte) (sequence >> 8);
+        packet[49] = (byte) sequence;
+        return packet;
+    }
+
+    /**
+     * Write packets as pcapng with nanosecond resolution, as PacketCapture does.
+     */
+    private static byte[] toPcapng(List<PcapReader.Packet> packets) {
+        final ByteBuffer buffer = ByteBuffer.allocate(64 + packets.size() * (48 + 1284)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0x0A0D0D0A).putInt(28).putInt(0x1A2B3C4D)
+                .putShort((short) 1).putShort((short) 0).putLong(-1L).putInt(28);
+        buffer.putInt(1).putInt(32).putShort((short) 229).putShort((short) 0).putInt(65535)
+                .putShort((short) 9).putShort((short) 1).put((byte) 9).put((byte) 0).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 0).putInt(32);
+        for (PcapReader.Packet packet : packets) {
+            final int padded = (packet.data.length + 3) & ~3;
+            final int length = 32 + padded + 12;
+            buffer.putInt(6).putInt(length).putInt(0)
+                    .putInt((int) (packet.nanos >>> 32)).putInt((int) packet.nanos)
+                    .putInt(packet.data.length).putInt(packet.data.length)
+                    .put(packet.data).put(new byte[padded - packet.data.length]);
+            buffer.putShort((short) 2).putShort((short) 4).putInt(packet.direction)
+                    .putShort((short) 0).putShort((short) 0)
+                    .putInt(length);
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Write packets as classic big-endian pcap of Ethernet frames with microsecond resolution,
+     * as tcpdump does, truncated to a snap length of 200.
+     */
+    private static byte[] toEthernetPcap(List<PcapReader.Packet> packets) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteBuffer header = ByteBuffer.allocate(24);
+        header.putInt(0xa1b2c3d4).putShort((short) 2).putShort((short) 4).putInt(0).putInt(0)
+                .putInt(200).putInt(1);
+        out.write(header.array(), 0, 24);
+        for (PcapReader.Packet packet : packets) {
+            final int frameLength = 14 + packet.data.length;
+            final int captured = Math.min(200, frameLength);
+            final ByteBuffer record = ByteBuffer.allocate(16 + captured);
+            record.putInt((int) (packet.nanos / 1000000000L)).putInt((int) (packet.nanos % 1000000000L / 1000L))
+                    .putInt(captured).putInt(frameLength)
+                    .put(new byte[12]).putShort((short) 0x86DD)
+                    .put(packet.data, 0, captured - 14);
+            out.write(record.array(), 0, record.position());
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void readsPcapngWithDirections() throws Exception {
+        final List<PcapReader.Packet> packets = trafficMix(50);
+        final List<PcapReader.Packet> read = PcapReader.read(new ByteArrayInputStream(toPcapng(packets)));
+        assertEquals(packets.size(), read.size());
+        for (int i = 0; i < packets.size(); i++) {
+            assertArrayEquals(packets.get(i).data, read.get(i).data);
+            assertEquals(packets.get(i).nanos, read.get(i).nanos);
+            assertEquals(packets.get(i).direction, read.get(i).direction);
+        }
+    }
+
+    @Test
+    public void readsTruncatedEthernetPcap() throws Exception {
+        final List<PcapReader.Packet> packets = trafficMix(50);
+        final List<PcapReader.Packet> read = PcapReader.read(new ByteArrayInputStream(toEthernetPcap(packets)));
+        assertEquals(packets.size(), read.size());
+        for (int i = 0; i < packets.size(); i++) {
+            final byte[] original = packets.get(i).data;
+            final byte[] replayed = read.get(i).data;
+            // padded to the original length, the captured part unchanged
+            assertEquals(original.length, replayed.length);
+            final int captured = Math.min(original.length, 200 - 14);
+            assertArrayEquals(Arrays.copyOf(original, captured), Arrays.copyOf(replayed, captured));
+            assertEquals(packets.get(i).nanos / 1000L, read.get(i).nanos / 1000L);
+            assertEquals(PcapReader.DIRECTION_UNKNOWN, read.get(i).direction);
+        }
+    }
+
+    @Test
+    public void replaysWithOriginalTiming() throws Exception {
+        final List<PcapReader.Packet> packets = PcapReader.read(new ByteArrayInputStream(toPcapng(trafficMix(600))));
+        final ReplayHarness harness = new ReplayHarness(packets, true, 2, 10);
+        assertEquals(400, harness.getOutboundCount());
+        assertEquals(400, harness.getInboundCount());
+
+        final ReplayHarness.Report outbound = harness.replayOutbound(ReplayHarness.Timing.ORIGINAL);
+        // 600 ms of capture at a low rate: nothing is lost, and the gaps are kept
+        assertEquals(outbound.offered, outbound.delivered);
+        assertTrue(outbound.nanos >= 590000000L);
+        assertTrue(outbound.latencyMicros.getP50() > 0L);
+        assertTrue(outbound.latencyMicros.getP99() < PACED_LATENCY_MICROS);
+
+        final ReplayHarness.Report inbound = harness.replayInbound(ReplayHarness.Timing.ORIGINAL);
+        assertEquals(inbound.offered, inbound.delivered);
+        assertTrue(inbound.nanos >= 590000000L);
+        assertTrue(inbound.latencyMicros.getP99() < PACED_LATENCY_MICROS);
+    }
+
+    @Test
+    public void replaysAsFastAsPossible() throws Exception {
+        final List<PcapReader.Packet> packets = trafficMix(20000);
+        // in order of arrival, the copy thread waits for the socket: nothing is lost
+        final ReplayHarness fifo = new ReplayHarness(packets, false, 2, 10);
+        final ReplayHarness.Report outbound = fifo.replayOutbound(ReplayHarness.Timing.AS_FAST_AS_POSSIBLE);
+        assertEquals(outbound.offered, outbound.delivered);
+        assertTrue(outbound.latencyMicros.getP99() < FAST_LATENCY_MICROS);
+
+        // the tunnel keeps up with a PoP sending as fast as the receive buffer allows
+        final ReplayHarness.Report inbound = fifo.replayInbound(ReplayHarness.Timing.AS_FAST_AS_POSSIBLE);
+        assertEquals(inbound.offered, inbound.delivered);
+        assertEquals(inbound.smallOffered, inbound.smallDelivered);
+        assertTrue(inbound.latencyMicros.getP99() < FAST_LATENCY_MICROS);
+
+        // the scheduler takes packets from the TUN device faster than the socket sends them and
+        // drops the excess instead of queueing it: what passes, passes without a long wait
+        final ReplayHarness scheduled = new ReplayHarness(packets, true, 2, 10);
+        final ReplayHarness.Report dropping = scheduled.replayOutbound(ReplayHarness.Timing.AS_FAST_AS_POSSIBLE);
+        assertTrue(dropping.delivered > 0);
+        assertTrue(dropping.delivered <= dropping.offered);
+        assertTrue(dropping.latencyMicros.getP99() < FAST_LATENCY_MICROS);
+    }
+
+    @Test
+    public void schedulerCutsSmallPacketLatencyUnderLoad() throws Exception {
+        final List<PcapReader.Packet> packets = bulkWithSmallPackets(500);
+        final ReplayHarness fifo = new ReplayHarness(packets, false, 0, 1);
+        fifo.setUplinkKilobits(10000);
+        final ReplayHarness.Report withoutScheduler = fifo.replayOutbound(ReplayHarness.Timing.ORIGINAL);
+        final ReplayHarness scheduled = new ReplayHarness(packets, true, 0, 1);
+        scheduled.setUplinkKilobits(10000);
+        final ReplayHarness.Report withScheduler = scheduled.replayOutbound(ReplayHarness.Timing.ORIGINAL);
+
+        // the uplink carries half the bulk rate: in order of arrival, the queries wait behind the
+        // growing backlog; scheduled, they overtake it, and CoDel keeps the bulk queue short
+        assertEquals(withoutScheduler.offered, withoutScheduler.delivered);
+        assertEquals(withScheduler.smallOffered, withScheduler.smallDelivered);
+        assertTrue(withScheduler.delivered < withScheduler.offered);
+        assertTrue(withoutScheduler.smallLatencyMicros.getP50() > 100000L);
+        assertTrue(withScheduler.smallLatencyMicros.getP90() < 50000L);
+        assertTrue(withScheduler.smallLatencyMicros.getP50() * 5 < withoutScheduler.smallLatencyMicros.getP50());
+    }
+
+    @Test
+    public void survivesBatchesLargerThanScheduler() throws Exception {
+        // a batch size beyond the scheduler's capacity is limited, so the copy thread keeps running
+        final ReplayHarness harness = new ReplayHarness(trafficMix(3000), true, 20, 1000);
+        final ReplayHarness.Report outbound = harness.replayOutbound(ReplayHarness.Timing.AS_FAST_AS_POSSIBLE);
+        assertTrue(outbound.delivered > 0);
+    }
+
+    @Test
+    public void replaysCaptureGivenBySystemProperty() throws Exception {
+        final String path = System.getProperty("ipv6droid.replay.pcap");
+        if (path == null || path.isEmpty())
+            return;
+        final ReplayHarness harness = new ReplayHarness(PcapReader.read(new File(path)), true, 2, 10);
+        for (ReplayHarness.Timing timing : ReplayHarness.Timing.values()) {
+            final ReplayHarness.Report outbound = harness.replayOutbound(timing);
+            assertEquals(harness.getOutboundCount(), outbound.offered);
+            assertTrue(outbound.offered == 0 || outbound.delivered > 0);
+            final ReplayHarness.Report inbound = harness.replayInbound(timing);
+            assertEquals(inbound.offered, inbound.delivered);
+        }
+    }
+}
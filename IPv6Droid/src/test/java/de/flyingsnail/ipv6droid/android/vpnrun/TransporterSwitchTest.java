@@ -0,0 +1,213 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of TransporterSwitch, driving FakeTransporters.
+ */
+public class TransporterSwitchTest {
+    private final TransporterSwitch transporterSwitch = new TransporterSwitch();
+    private final ExecutorService reader = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        transporterSwitch.close();
+        reader.shutdownNow();
+    }
+
+    private static byte[] packet(int id) {
+        return new byte[] {0x60, 0, 0, (byte) id};
+    }
+
+    private static ByteBuffer[] batch(int count) {
+        final ByteBuffer[] buffers = new ByteBuffer[count];
+        for (int i = 0; i < count; i++)
+            buffers[i] = ByteBuffer.wrap(packet(i));
+        return buffers;
+    }
+
+    private Future<byte[]> readPacket() {
+        final InputStream in = transporterSwitch.getInputStream();
+        return reader.submit(() -> {
+            final byte[] buffer = new byte[32767];
+            final int length = in.read(buffer, 0, buffer.length);
+            final byte[] packet = new byte[length];
+            System.arraycopy(buffer, 0, packet, 0, length);
+            return packet;
+        });
+    }
+
+    @Test
+    public void readsNewTransporterWhileDraining() throws Exception {
+        final FakeTransporter old = new FakeTransporter();
+        final FakeTransporter replacement = new FakeTransporter();
+        transporterSwitch.attach(old);
+        old.deliver(packet(1));
+        assertArrayEquals(packet(1), readPacket().get(1, TimeUnit.SECONDS));
+
+        // the copy thread is blocked on the old transporter, which stays silent
+        final Future<byte[]> next = readPacket();
+        Thread.sleep(50);
+        assertEquals(old, transporterSwitch.handover(replacement));
+        replacement.deliver(packet(2));
+        old.deliver(packet(3));
+        assertArrayEquals(packet(3), next.get(1, TimeUnit.SECONDS));
+        assertArrayEquals(packet(2), readPacket().get(1, TimeUnit.SECONDS));
+
+        // the packets in flight on both transporters are read before the drain ends
+        replacement.deliver(packet(4));
+        assertArrayEquals(packet(4), readPacket().get(1, TimeUnit.SECONDS));
+        old.deliver(packet(5));
+        assertArrayEquals(packet(5), readPacket().get(1, TimeUnit.SECONDS));
+
+        transporterSwitch.endDrain(old);
+        old.close();
+        replacement.deliver(packet(6));
+        assertArrayEquals(packet(6), readPacket().get(1, TimeUnit.SECONDS));
+        replacement.deliver(packet(7));
+        assertArrayEquals(packet(7), readPacket().get(1, TimeUnit.SECONDS));
+        assertNull(transporterSwitch.getFailure());
+    }
+
+    @Test
+    public void failingDrainEndsDrain() throws Exception {
+        final FakeTransporter old = new FakeTransporter();
+        final FakeTransporter replacement = new FakeTransporter();
+        transporterSwitch.attach(old);
+        transporterSwitch.handover(replacement);
+        old.close();
+        replacement.deliver(packet(1));
+        assertArrayEquals(packet(1), readPacket().get(1, TimeUnit.SECONDS));
+        assertNull(transporterSwitch.getFailure());
+    }
+
+    @Test
+    public void keepsCurrentTransporterAfterFailedHandover() throws Exception {
+        final FakeTransporter current = new FakeTransporter();
+        transporterSwitch.attach(current);
+        transporterSwitch.requestHandover();
+        assertTrue(transporterSwitch.isEnded());
+
+        // the successor failed to connect, so the current transporter carries on
+        transporterSwitch.cancelHandover();
+        assertFalse(transporterSwitch.isEnded());
+        assertFalse(transporterSwitch.isHandoverRequested());
+        transporterSwitch.getOutputStream().write(packet(1), 0, 4);
+        assertEquals(1, current.getSent().size());
+        current.deliver(packet(2));
+        assertArrayEquals(packet(2), readPacket().get(1, TimeUnit.SECONDS));
+
+        // a retried handover succeeds
+        transporterSwitch.requestHandover();
+        final FakeTransporter replacement = new FakeTransporter();
+        assertEquals(current, transporterSwitch.handover(replacement));
+        transporterSwitch.getOutputStream().write(packet(3), 0, 4);
+        assertEquals(1, replacement.getSent().size());
+        assertNull(transporterSwitch.getFailure());
+    }
+
+    @Test
+    public void resendsOnlyUnsentPartOfBatch() throws IOException {
+        final FakeTransporter first = new FakeTransporter();
+        final FakeTransporter second = new FakeTransporter();
+        transporterSwitch.attach(first);
+        first.failAfter(2);
+        transporterSwitch.getOutputStream().write(batch(4), 4);
+        assertTrue(transporterSwitch.isFailed());
+        assertEquals(2, transporterSwitch.getHeldCount());
+
+        transporterSwitch.attach(second);
+        final List<byte[]> sentFirst = first.getSent();
+        final List<byte[]> sentSecond = second.getSent();
+        assertEquals(2, sentFirst.size());
+        assertArrayEquals(packet(0), sentFirst.get(0));
+        assertArrayEquals(packet(1), sentFirst.get(1));
+        assertEquals(2, sentSecond.size());
+        assertArrayEquals(packet(2), sentSecond.get(0));
+        assertArrayEquals(packet(3), sentSecond.get(1));
+        assertEquals(0, transporterSwitch.getDroppedCount());
+    }
+
+    @Test
+    public void holdRingDropsOldestWhenFull() throws IOException {
+        final int size = TransporterSwitch.HOLD_MAX_BYTES / 4;
+        for (int id = 1; id <= 5; id++) {
+            final byte[] packet = new byte[size];
+            packet[3] = (byte) id;
+            transporterSwitch.getOutputStream().write(packet, 0, size);
+        }
+        assertEquals(5, transporterSwitch.getHeldCount());
+        assertEquals(1, transporterSwitch.getDroppedCount());
+        assertEquals(TransporterSwitch.HOLD_MAX_BYTES, transporterSwitch.getHeldBytes());
+
+        final FakeTransporter transporter = new FakeTransporter();
+        transporterSwitch.attach(transporter);
+        final List<byte[]> sent = transporter.getSent();
+        assertEquals(4, sent.size());
+        for (int i = 0; i < 4; i++)
+            assertEquals(i + 2, sent.get(i)[3]);
+        assertEquals(4, transporterSwitch.getFlushedCount());
+        assertEquals(0, transporterSwitch.getHeldBytes());
+    }
+
+    @Test
+    public void sendsHeldPacketsBeforeLaterWrites() throws IOException {
+        final FakeTransporter first = new FakeTransporter();
+        final FakeTransporter second = new FakeTransporter();
+        transporterSwitch.attach(first);
+        first.failAfter(0);
+        transporterSwitch.getOutputStream().write(packet(1), 0, 4);
+        assertEquals(1, transporterSwitch.getHeldCount());
+
+        // the held packet stays held when sending it fails again, and goes before the next one
+        second.failAfter(0);
+        transporterSwitch.attach(second);
+        assertTrue(transporterSwitch.isFailed());
+        assertEquals(4, transporterSwitch.getHeldBytes());
+        final FakeTransporter third = new FakeTransporter();
+        transporterSwitch.attach(third);
+        transporterSwitch.getOutputStream().write(packet(2), 0, 4);
+        final List<byte[]> sent = third.getSent();
+        assertEquals(2, sent.size());
+        assertArrayEquals(packet(1), sent.get(0));
+        assertArrayEquals(packet(2), sent.get(1));
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.flyingsnail.ipv6droid.android.vpnrun.TunnelLifecycle.State;
+
+/**
+ * Tests of TunnelLifecycle. Races are made deterministic where the order matters, by parking the
+ * thread that won a transition in a listener until the competitor ran; where only the outcome
+ * matters, many rounds of threads released at once by a barrier check that exactly one wins.
+ */
+public class TunnelLifecycleTest {
+    private static final int ROUNDS = 500;
+    private static final int THREADS = 4;
+
+    private static TunnelLifecycle lifecycleIn(State state) {
+        final TunnelLifecycle lifecycle = new TunnelLifecycle();
+        switch (state) {
+            case IDLE:
+                break;
+            case CLOSED:
+                lifecycle.close();
+                break;
+            case RESOLVING:
+                assertTrue(lifecycle.moveTo(State.RESOLVING));
+                break;
+            case HANDSHAKING:
+                assertTrue(lifecycle.moveTo(State.RESOLVING));
+                assertTrue(lifecycle.moveTo(State.HANDSHAKING));
+                break;
+            default:
+                assertTrue(lifecycle.moveTo(State.RESOLVING));
+                assertTrue(lifecycle.moveTo(State.HANDSHAKING));
+                assertTrue(lifecycle.moveTo(State.UP));
+                if (state != State.UP)
+                    assertTrue(lifecycle.moveTo(state));
+        }
+        return lifecycle;
+    }
+
+    /**
+     * Run the tasks at once, released by a barrier, and count those returning true.
+     */
+    private static int race(ExecutorService executor, List<Callable<Boolean>> tasks) throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(tasks.size());
+        final List<Future<Boolean>> results = new ArrayList<>();
+        for (Callable<Boolean> task : tasks)
+            results.add(executor.submit(() -> {
+                barrier.await(5, TimeUnit.SECONDS);
+                return task.call();
+            }));
+        int winners = 0;
+        for (Future<Boolean> result : results)
+            winners += result.get(5, TimeUnit.SECONDS) ? 1 : 0;
+        return winners;
+    }
+
+    @Test
+    public void allowsDegradedTunnelBackUpAndIdle() {
+        assertTrue(TunnelLifecycle.isAllowed(State.UP, State.DEGRADED));
+        assertTrue(TunnelLifecycle.isAllowed(State.DEGRADED, State.UP));
+        assertTrue(TunnelLifecycle.isAllowed(State.DEGRADED, State.IDLE));
+        assertTrue(TunnelLifecycle.isAllowed(State.DEGRADED, State.RECONNECTING));
+        assertFalse(TunnelLifecycle.isAllowed(State.HANDSHAKING, State.DEGRADED));
+        assertFalse(TunnelLifecycle.isAllowed(State.UP, State.UP));
+    }
+
+    @Test
+    public void keepsClosedFinal() {
+        final TunnelLifecycle lifecycle = lifecycleIn(State.CLOSED);
+        for (State to : State.values()) {
+            assertFalse(TunnelLifecycle.isAllowed(State.CLOSED, to));
+            assertFalse(lifecycle.moveTo(to));
+        }
+        assertFalse(lifecycle.close());
+        assertEquals(State.CLOSED, lifecycle.getState());
+    }
+
+    @Test
+    public void refusesTransitionFromUnexpectedState() {
+        final TunnelLifecycle lifecycle = lifecycleIn(State.RECONNECTING);
+        assertFalse(lifecycle.transition(State.UP, State.DEGRADED));
+        assertEquals(State.RECONNECTING, lifecycle.getState());
+    }
+
+    @Test
+    public void letsOneOfConcurrentTransitionsWin() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                final TunnelLifecycle lifecycle = lifecycleIn(State.UP);
+                final List<Callable<Boolean>> tasks = new ArrayList<>();
+                for (int i = 0; i < THREADS; i++)
+                    tasks.add(() -> lifecycle.transition(State.UP, State.DEGRADED));
+                assertEquals(1, race(executor, tasks));
+                assertEquals(State.DEGRADED, lifecycle.getState());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void letsOneOfConcurrentClosesWin() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                final TunnelLifecycle lifecycle = lifecycleIn(State.values()[round % (State.values().length - 1)]);
+                final List<Callable<Boolean>> tasks = new ArrayList<>();
+                for (int i = 0; i < THREADS; i++)
+                    tasks.add(lifecycle::close);
+                assertEquals(1, race(executor, tasks));
+                assertTrue(lifecycle.isClosed());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void endsClosedWhenStopRacesReconnect() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                final TunnelLifecycle lifecycle = lifecycleIn(State.UP);
+                final List<Callable<Boolean>> tasks = new ArrayList<>();
+                tasks.add(() -> lifecycle.moveTo(State.RECONNECTING));
+                tasks.add(() -> lifecycle.transition(State.UP, State.DEGRADED));
+                tasks.add(lifecycle::close);
+                race(executor, tasks);
+                assertEquals(State.CLOSED, lifecycle.getState());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void settlesVerificationFailureRacingFirstPacket() throws Exception {
+        // the verification gives up on a tunnel while its first packet arrives: whatever the
+        // order, a packet seen after the failure brings the tunnel back up
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                final TunnelLifecycle lifecycle = lifecycleIn(State.UP);
+                final List<Callable<Boolean>> tasks = new ArrayList<>();
+                tasks.add(() -> lifecycle.transition(State.UP, State.DEGRADED));
+                tasks.add(() -> lifecycle.transition(State.DEGRADED, State.UP));
+                race(executor, tasks);
+                lifecycle.transition(State.DEGRADED, State.UP);
+                assertEquals(State.UP, lifecycle.getState());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closeDuringListenerBeatsLaterTransition() throws Exception {
+        final TunnelLifecycle lifecycle = lifecycleIn(State.UP);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        lifecycle.addListener((from, to) -> {
+            if (to == State.DEGRADED) {
+                entered.countDown();
+                try {
+                    closed.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // the verification degrades the tunnel and is parked in the listener
+            final Future<Boolean> degrading = executor.submit(() ->
+                    lifecycle.transition(State.UP, State.DEGRADED) &&
+                            lifecycle.transition(State.DEGRADED, State.UP));
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            assertTrue(lifecycle.close());
+            closed.countDown();
+            // the parked thread finds the session closed and cannot revive it
+            assertFalse(degrading.get(5, TimeUnit.SECONDS));
+            assertEquals(State.CLOSED, lifecycle.getState());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void notifiesListenersOncePerTransition() throws Exception {
+        final TunnelLifecycle lifecycle = lifecycleIn(State.UP);
+        final AtomicInteger degraded = new AtomicInteger();
+        final AtomicInteger total = new AtomicInteger();
+        lifecycle.addListener((from, to) -> {
+            total.incrementAndGet();
+            if (to == State.DEGRADED)
+                degraded.incrementAndGet();
+        });
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            int winners = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                final List<Callable<Boolean>> tasks = new ArrayList<>();
+                for (int i = 0; i < THREADS; i++)
+                    tasks.add(() -> lifecycle.transition(State.UP, State.DEGRADED));
+                winners += race(executor, tasks);
+                assertTrue(lifecycle.transition(State.DEGRADED, State.UP));
+            }
+            assertEquals(ROUNDS, winners);
+            assertEquals(ROUNDS, degraded.get());
+            assertEquals(2 * ROUNDS, total.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void neverLosesSignalBetweenCheckAndWait() throws Exception {
+        final TunnelLifecycle lifecycle = new TunnelLifecycle();
+        final long since = lifecycle.getSignalCount();
+        // the signal comes after the condition was checked, but before the wait
+        final Thread signaller = new Thread(lifecycle::signal);
+        signaller.start();
+        signaller.join();
+        assertTrue(lifecycle.awaitSignal(since, 0L));
+        assertFalse(lifecycle.awaitSignal(lifecycle.getSignalCount(), 20L));
+    }
+
+    @Test
+    public void wakesWaiterOnClose() throws Exception {
+        final TunnelLifecycle lifecycle = lifecycleIn(State.RECONNECTING);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Boolean> waiter = executor.submit(() -> lifecycle.awaitClose(5000L));
+            final long start = System.nanoTime();
+            lifecycle.close();
+            assertTrue(waiter.get(5, TimeUnit.SECONDS));
+            assertTrue((System.nanoTime() - start) / 1000000L < 4000L);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
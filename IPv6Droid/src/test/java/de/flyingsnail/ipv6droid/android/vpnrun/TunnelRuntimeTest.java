@@ -0,0 +1,132 @@
+/*
+ *
+ *  * Copyright (c) 2024 Dr. Andreas Feldner.
+ *  *
+ *  *     This program is free software; you can redistribute it and/or modify
+ *  *     it under the terms of the GNU General Public License as published by
+ *  *     the Free Software Foundation; either version 2 of the License, or
+ *  *     (at your option) any later version.
+ *  *
+ *  *     This program is distributed in the hope that it will be useful,
+ *  *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  *     GNU General Public License for more details.
+ *  *
+ *  *     You should have received a copy of the GNU General Public License along
+ *  *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *  *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *  *
+ *  * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+package de.flyingsnail.ipv6droid.android.vpnrun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of TunnelRuntime. Timing is checked with generous bounds, as the tests run on real time.
+ */
+public class TunnelRuntimeTest {
+    private final TunnelRuntime runtime = new TunnelRuntime("test");
+
+    @After
+    public void tearDown() {
+        runtime.shutdown(1000L);
+    }
+
+    @Test
+    public void keepsFixedPeriod() throws InterruptedException {
+        final List<Long> runs = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(10);
+        final ScheduledFuture<?> timer = runtime.scheduleAtFixedRate(() -> {
+            synchronized (runs) {
+                runs.add(System.nanoTime());
+            }
+            done.countDown();
+        }, 2 * TunnelRuntime.TICK_MILLIS);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        timer.cancel(false);
+        synchronized (runs) {
+            final long first = runs.get(0);
+            for (int i = 1; i < 10; i++) {
+                // each run is due a whole number of periods after the first, without drift
+                final long offsetMillis = (runs.get(i) - first) / 1000000L;
+                assertTrue("run " + i + " at " + offsetMillis + " ms",
+                        Math.abs(offsetMillis - i * 2 * TunnelRuntime.TICK_MILLIS) < TunnelRuntime.TICK_MILLIS);
+            }
+        }
+    }
+
+    @Test
+    public void blockingTasksDoNotDelayTimers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Future<?>> blocked = new ArrayList<>();
+        for (int i = 0; i < 2 * TunnelRuntime.MAX_WORKERS; i++)
+            blocked.add(runtime.submitBlocking(() -> {
+                release.await();
+                return null;
+            }));
+        final CountDownLatch fired = new CountDownLatch(1);
+        final long start = System.nanoTime();
+        runtime.schedule(fired::countDown, TunnelRuntime.TICK_MILLIS);
+        assertTrue(fired.await(1, TimeUnit.SECONDS));
+        assertTrue((System.nanoTime() - start) / 1000000L < 10 * TunnelRuntime.TICK_MILLIS);
+        release.countDown();
+        for (Future<?> future : blocked)
+            future.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void blockingTasksMayWaitOnEachOther() throws Exception {
+        // like a re-evaluation waiting for its probes, with more probes than workers
+        final Future<Integer> parent = runtime.submitBlocking(() -> {
+            final List<Future<Integer>> children = new ArrayList<>();
+            for (int i = 0; i < 3 * TunnelRuntime.MAX_WORKERS; i++) {
+                final int value = i;
+                children.add(runtime.submitBlocking(() -> value));
+            }
+            int sum = 0;
+            for (Future<Integer> child : children)
+                sum += child.get();
+            return sum;
+        });
+        final int n = 3 * TunnelRuntime.MAX_WORKERS;
+        assertEquals(n * (n - 1) / 2, (int) parent.get(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void boundsBlockingWorkers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final List<Future<?>> blocked = new ArrayList<>();
+        for (int i = 0; i < 3 * TunnelRuntime.MAX_BLOCKING_WORKERS; i++)
+            blocked.add(runtime.submitBlocking(() -> {
+                final int now = running.incrementAndGet();
+                maxRunning.accumulateAndGet(now, Math::max);
+                release.await();
+                running.decrementAndGet();
+                return null;
+            }));
+        Thread.sleep(10 * TunnelRuntime.TICK_MILLIS);
+        assertEquals(TunnelRuntime.MAX_BLOCKING_WORKERS, running.get());
+        assertTrue(runtime.getThreadCount() <= TunnelRuntime.MAX_BLOCKING_WORKERS + 1);
+        release.countDown();
+        for (Future<?> future : blocked)
+            future.get(1, TimeUnit.SECONDS);
+        assertEquals(TunnelRuntime.MAX_BLOCKING_WORKERS, maxRunning.get());
+    }
+}